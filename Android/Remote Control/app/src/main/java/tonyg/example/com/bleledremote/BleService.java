@@ -0,0 +1,1303 @@
+package tonyg.example.com.bleledremote;
+
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.le.ScanResult;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import tonyg.example.com.bleledremote.ble.BleCaptureLog;
+import tonyg.example.com.bleledremote.ble.BleCommManager;
+import tonyg.example.com.bleledremote.ble.BleCommandQueue;
+import tonyg.example.com.bleledremote.ble.BleConnectPipeline;
+import tonyg.example.com.bleledremote.ble.BleDeviceCache;
+import tonyg.example.com.bleledremote.ble.BleEvent;
+import tonyg.example.com.bleledremote.ble.BleEventBus;
+import tonyg.example.com.bleledremote.ble.BleFleetState;
+import tonyg.example.com.bleledremote.ble.BleMetrics;
+import tonyg.example.com.bleledremote.ble.BlePeripheral;
+import tonyg.example.com.bleledremote.ble.BleScanScheduler;
+import tonyg.example.com.bleledremote.ble.BleSessionTimeline;
+import tonyg.example.com.bleledremote.ble.BleStartupProfiler;
+import tonyg.example.com.bleledremote.ble.BleWarmRestart;
+import tonyg.example.com.bleledremote.ble.callbacks.BleScanCallbackv18;
+import tonyg.example.com.bleledremote.ble.callbacks.BleScanCallbackv21;
+import tonyg.example.com.bleledremote.transport.GattTransport;
+
+/**
+ * Hosts the Bluetooth stack so that the connection to the Peripheral outlives any one Activity.
+ *
+ * Several remotes can be brought up at once.  The scan keeps running while discovered remotes
+ * are connected through a BleConnectPipeline, until the whole fleet is found.  Remotes found
+ * close together are gathered for a moment and handed to the pipeline nearest first, by their
+ * smoothed RSSI, so a small fleet is made of the closest remotes.  The first remote
+ * to connect drives the UI through getBlePeripheral(); the rest are reachable by address.
+ *
+ * The Service is started and bound by MainActivity.  Rotating the screen or switching tasks
+ * only unbinds and rebinds, so the connection stays open and the Activity is ready as soon as
+ * it binds again.  The Service stops when the Activity finishes for good.
+ *
+ * Events are delivered to the bound client on the main thread.  They are also published on
+ * the event bus straight from the Bluetooth callbacks, for subscribers that want them as streams.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleService extends Service {
+    private static final String TAG = BleService.class.getSimpleName();
+
+    /** Connection states **/
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_SCANNING = 1;
+    public static final int STATE_CONNECTING = 2;
+    public static final int STATE_CONNECTED = 3; // connected, GATT profile not discovered yet
+    public static final int STATE_READY = 4; // Characteristic found, commands can be sent
+
+    private static final int FLEET_EVENT_BUFFER = 256; // events waiting to reach the fleet state
+    private static final long SELECTION_WINDOW = 300; // ms to gather remotes before connecting the nearest, a few advertising intervals
+    private static final int MAX_PENDING_CONNECTS = 2; // many phone controllers can't create more connections at once
+    public static final int CAPTURE_CAPACITY = 1 << 20; // bytes preallocated per capture file
+
+    /**
+     * Notified of connection events.  Called on the main thread
+     */
+    public interface OnBleEventListener {
+        void onScanStarted();
+
+        /**
+         * Scanning stopped without finding the Peripheral
+         */
+        void onScanStopped();
+
+        void onConnecting(BluetoothDevice bluetoothDevice);
+
+        void onConnected(BluetoothDevice bluetoothDevice);
+
+        void onDisconnected();
+
+        /**
+         * The Characteristic is set up and commands can be sent
+         */
+        void onReady();
+
+        /**
+         * The Peripheral changed the LED on its own, for example while playing a pattern
+         *
+         * @param ledState the LED state
+         */
+        void onLedStateChanged(int ledState);
+
+        /**
+         * The Bluetooth radio is off.  The client should ask the user to turn it on
+         */
+        void onBluetoothOff();
+    }
+
+    /**
+     * Gives bound clients in this process direct access to the Service
+     */
+    public class LocalBinder extends Binder {
+        public BleService getService() {
+            return BleService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /** Bluetooth Stuff **/
+    private BleCommManager mBleCommManager;
+    private BlePeripheral mBlePeripheral; // the remote shown in the UI
+    private String mPrimaryAddress; // the address mBlePeripheral is connected to, or null
+    private final ConcurrentHashMap<String, BlePeripheral> mPeripherals = new ConcurrentHashMap<String, BlePeripheral>(); // by address, for the GATT callback
+    private final HashMap<String, BluetoothDevice> mDiscoveredDevices = new HashMap<String, BluetoothDevice>();
+    private BleConnectPipeline mConnectPipeline;
+    private final BleEventBus mEventBus = new BleEventBus(); // shared by every remote
+    private boolean mScanning = false;
+    private volatile int mScanGeneration = 0; // tells stale scan callbacks apart
+    private boolean mCaptureEnabled = false;
+    private BleDeviceCache mDeviceCache = new BleDeviceCache(); // dedupes repeated advertisements
+    private final HashMap<Long, BluetoothDevice> mCandidates = new HashMap<Long, BluetoothDevice>(); // discovered, waiting to be ranked by RSSI
+    private final BleFleetState mFleetState = new BleFleetState(); // every remote seen, for dashboards
+    private BleSessionTimeline mScanTimeline; // phases shared by every remote found in the current scan
+    private final HashMap<String, BleSessionTimeline> mSessionTimelines = new HashMap<String, BleSessionTimeline>(); // discovered, not connecting yet
+    private final BleStartupProfiler mStartupProfiler = new BleStartupProfiler(); // setup phase times by phone model
+    private final BleMetrics mMetrics = new BleMetrics(); // shared by every remote, scraped with dumpsys
+    private final BleWarmRestart mWarmRestart = new BleWarmRestart(); // remotes to reconnect when the radio is back
+    private boolean mReceiverRegistered = false;
+    private boolean mDestroyed = false;
+
+    private int mState = STATE_IDLE;
+    private OnBleEventListener mListener;
+    private long mSetupStartedAt = -1;
+    private long mLastSetupTime = -1; // ms from starting a scan to the Peripheral being ready
+
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mBlePeripheral = createPeripheral();
+        mConnectPipeline = new BleConnectPipeline(mConnector, MAX_PENDING_CONNECTS, BleConnectPipeline.DEFAULT_QUEUE_CAPACITY);
+        // the subscription's own thread is the fleet state's only writer
+        mEventBus.subscribe(mFleetState,
+                BleEvent.EVENT_SCAN_RESULT | BleEvent.EVENT_CONNECTION_STATE | BleEvent.EVENT_CONFIRMATION,
+                FLEET_EVENT_BUFFER, BleEventBus.POLICY_DROP_OLDEST, null);
+
+        try {
+            mBleCommManager = new BleCommManager(this);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not initialize bluetooth");
+            Log.e(TAG, e.getMessage());
+        }
+
+        // notify when bluetooth is turned on or off
+        IntentFilter filter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
+        registerReceiver(mReceiver, filter);
+        mReceiverRegistered = true;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // keep running between clients; nothing to redeliver if the system restarts the Service
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        setClientBound(true);
+        return mBinder;
+    }
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        mListener = null;
+        setClientBound(false);
+        // call onRebind when the next client binds
+        return true;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        super.onRebind(intent);
+        setClientBound(true);
+    }
+
+    /**
+     * The last client is gone.  Release the radio
+     */
+    @Override
+    public void onDestroy() {
+        mDestroyed = true;
+        mEventBus.clear();
+        stopScan();
+        mConnectPipeline.reset();
+        for (BlePeripheral blePeripheral : mPeripherals.values()) {
+            blePeripheral.disconnect();
+            blePeripheral.close();
+        }
+        mPeripherals.clear();
+        mBlePeripheral.disconnect();
+        mBlePeripheral.close();
+        if (mReceiverRegistered) {
+            unregisterReceiver(mReceiver);
+            mReceiverRegistered = false;
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        super.onDestroy();
+    }
+
+
+    /**
+     * Attach a client.  It should render getState() right away, since the connection may already be ready
+     *
+     * @param listener notified of connection events, or null to detach
+     */
+    public void setOnBleEventListener(OnBleEventListener listener) {
+        mListener = listener;
+        setClientBound(listener != null);
+    }
+
+    /**
+     * Scan in the foreground while a client is watching, and in low power background windows otherwise
+     *
+     * @param bound <b>true</b> if a client is bound and listening
+     */
+    private void setClientBound(boolean bound) {
+        if (mBleCommManager == null) {
+            return;
+        }
+        BleScanScheduler scanScheduler = mBleCommManager.getScanScheduler();
+        int scanContext = scanScheduler.getScanContext();
+        scanScheduler.setClientBound(bound);
+        if (bound && mScanning && scanContext != scanScheduler.getScanContext()) {
+            // don't leave the user waiting out a background pause
+            try {
+                mBleCommManager.scanForPeripherals(mBleScanCallbackv18, mBleScanCallbackv21);
+            } catch (Exception e) {
+                Log.e(TAG, "Can't restart the scan in the foreground");
+            }
+        }
+    }
+
+    /**
+     * @return one of STATE_IDLE, STATE_SCANNING, STATE_CONNECTING, STATE_CONNECTED, or STATE_READY
+     */
+    public int getState() {
+        return mState;
+    }
+
+    public boolean isBluetoothSupported() {
+        return mBleCommManager != null;
+    }
+
+    /**
+     * @return the remote shown in the UI
+     */
+    public BlePeripheral getBlePeripheral() {
+        return mBlePeripheral;
+    }
+
+    /**
+     * @param address a remote's MAC address
+     * @return the remote, or null if it isn't connected
+     */
+    public BlePeripheral getPeripheral(String address) {
+        return mPeripherals.get(address);
+    }
+
+    /**
+     * Bring up this many remotes.  Scanning continues until they are all found
+     *
+     * @param fleetSize 1 or more
+     */
+    public void setFleetSize(int fleetSize) {
+        mConnectPipeline.setFleetSize(fleetSize);
+        start();
+    }
+
+    /**
+     * Capture the GATT traffic of each connection from now on, for replaying with a ReplayDriver.
+     * Captures go to capture-[address].bin in the app's files directory, one per remote
+     *
+     * @param enabled <b>true</b> to capture
+     */
+    public void setCaptureEnabled(boolean enabled) {
+        mCaptureEnabled = enabled;
+    }
+
+    /**
+     * @param address a remote's MAC address
+     * @return the file its traffic is captured to
+     */
+    public File getCaptureFile(String address) {
+        return new File(getFilesDir(), "capture-" + address.replace(":", "") + ".bin");
+    }
+
+    /**
+     * Get the connect pipeline, which reports pending connects and the time until the whole fleet was ready
+     *
+     * @return the BleConnectPipeline
+     */
+    public BleConnectPipeline getConnectPipeline() {
+        return mConnectPipeline;
+    }
+
+    public BleCommManager getBleCommManager() {
+        return mBleCommManager;
+    }
+
+    /**
+     * Get the event bus, which streams scan, connection, confirmation, and notification events.
+     * Subscribers pick an overflow policy so a slow one can't stall the Bluetooth callbacks
+     *
+     * @return the BleEventBus
+     */
+    public BleEventBus getEventBus() {
+        return mEventBus;
+    }
+
+    /**
+     * Get the state of every remote seen.  Snapshots are immutable and reading them never blocks
+     *
+     * @return the BleFleetState
+     */
+    public BleFleetState getFleetState() {
+        return mFleetState;
+    }
+
+    /**
+     * Get the startup profiler, which aggregates the setup phases of every session by phone model
+     *
+     * @return the BleStartupProfiler
+     */
+    public BleStartupProfiler getStartupProfiler() {
+        return mStartupProfiler;
+    }
+
+    /**
+     * Get the metrics registry, which counts GATT statuses, scan failures, connects, retries, and traffic
+     *
+     * @return the BleMetrics
+     */
+    public BleMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Get the warm restart, which holds the remotes to reconnect and the time from the adapter turning on until ready
+     *
+     * @return the BleWarmRestart
+     */
+    public BleWarmRestart getWarmRestart() {
+        return mWarmRestart;
+    }
+
+    /**
+     * @return milliseconds from the start of the last scan until the Peripheral was ready, or -1
+     */
+    public long getLastSetupTime() {
+        return mLastSetupTime;
+    }
+
+    /**
+     * Find and connect to the remotes, unless that is already under way
+     */
+    public void start() {
+        if (mDestroyed || mBleCommManager == null || mScanning || mConnectPipeline.isFull()) {
+            return;
+        }
+        BleSessionTimeline timeline = new BleSessionTimeline(SystemClock.elapsedRealtimeNanos());
+        // should prompt user to open settings if Bluetooth is not enabled.
+        if (mBleCommManager.getBluetoothAdapter().isEnabled()) {
+            timeline.stamp(BleSessionTimeline.PHASE_ADAPTER_CHECK, SystemClock.elapsedRealtimeNanos());
+            mScanTimeline = timeline;
+            startScan();
+        } else if (mListener != null) {
+            mListener.onBluetoothOff();
+        }
+    }
+
+
+    /**
+     * Start scanning for Peripherals
+     */
+    private void startScan() {
+        long now = SystemClock.elapsedRealtime();
+        mScanning = true;
+        mScanGeneration++;
+        mConnectPipeline.onScanStarted(now);
+        mMetrics.increment(BleMetrics.SCAN_STARTS);
+        publishEvent(BleEvent.EVENT_SCAN_STARTED, null, 0);
+        if (mPrimaryAddress == null) {
+            mSetupStartedAt = now;
+            setState(STATE_SCANNING);
+            if (mListener != null) {
+                mListener.onScanStarted();
+            }
+        }
+
+        try {
+            // if the user is waiting on this scan, find the Peripheral as fast as possible
+            mBleCommManager.getScanScheduler().onScanRequested();
+            mBleCommManager.scanForPeripherals(mBleScanCallbackv18, mBleScanCallbackv21);
+        } catch (Exception e) {
+            Log.e(TAG, "Can't create Ble Device Scanner");
+        }
+    }
+
+    /**
+     * Stop scanning for Peripherals
+     */
+    private void stopScan() {
+        mScanning = false;
+        if (mBleCommManager != null) {
+            mBleCommManager.stopScanning(mBleScanCallbackv18, mBleScanCallbackv21);
+        }
+        // the scan complete callback posted by stopScanning is not news
+        mScanGeneration++;
+    }
+
+    /**
+     * Event trigger when a Peripheral advertisement is received.
+     * Repeated advertisements from the same Peripheral are filtered out unless its signal strength changed.
+     *
+     * @param bluetoothDevice the Peripheral
+     * @param rssi the signal strength of the advertisement
+     */
+    private void onBleScanResult(BluetoothDevice bluetoothDevice, int rssi) {
+        int event = mDeviceCache.onSighting(bluetoothDevice.getAddress(), rssi, SystemClock.elapsedRealtime());
+        if (event != BleDeviceCache.EVENT_NONE) {
+            // only new remotes and signal changes go on the bus, so repeats can't crowd out state events
+            publishEvent(BleEvent.EVENT_SCAN_RESULT, bluetoothDevice.getAddress(), rssi);
+            onBlePeripheralDiscovered(bluetoothDevice);
+        }
+    }
+
+    /**
+     * Event trigger when new Peripheral is discovered
+     */
+    private void onBlePeripheralDiscovered(BluetoothDevice bluetoothDevice) {
+        // only connect if the device has the right name
+        if (bluetoothDevice.getName() == null || !bluetoothDevice.getName().equals(BlePeripheral.BROADCAST_NAME)) {
+            return;
+        }
+        String address = bluetoothDevice.getAddress();
+        long key = BleDeviceCache.macToLong(address);
+        if (!mScanning || mCandidates.containsKey(key)
+                || mConnectPipeline.getState(address) != BleConnectPipeline.STATE_UNKNOWN) {
+            return;
+        }
+        if (mScanTimeline != null) {
+            BleSessionTimeline timeline = mScanTimeline.copy();
+            timeline.stamp(BleSessionTimeline.PHASE_SCAN, SystemClock.elapsedRealtimeNanos());
+            mSessionTimelines.put(address, timeline);
+        }
+        // other remotes may be advertising nearby; give them a moment before picking
+        if (mCandidates.isEmpty()) {
+            mHandler.postDelayed(mConnectNearestCandidates, SELECTION_WINDOW);
+        }
+        mCandidates.put(key, bluetoothDevice);
+    }
+
+    /**
+     * Hand the remotes gathered during the selection window to the connect pipeline, nearest
+     * first.  The pipeline connects straight away if a slot is free, and the rest wait in its
+     * queue in that order.  Once the fleet is full, the farther remotes are left out
+     */
+    private final Runnable mConnectNearestCandidates = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            while (!mCandidates.isEmpty() && !mConnectPipeline.isFull()) {
+                long nearest = mDeviceCache.getNearestAddress(mCandidates.keySet());
+                if (nearest == BleDeviceCache.NO_ADDRESS) {
+                    // the rest expired from the cache, so there is no signal to rank them by
+                    nearest = mCandidates.keySet().iterator().next();
+                }
+                BluetoothDevice bluetoothDevice = mCandidates.remove(nearest);
+                String address = bluetoothDevice.getAddress();
+                mDiscoveredDevices.put(address, bluetoothDevice);
+                if (!mConnectPipeline.onDiscovered(address, now)) {
+                    mDiscoveredDevices.remove(address);
+                    mSessionTimelines.remove(address);
+                    continue;
+                }
+                mBleCommManager.getScanScheduler().onPeripheralDiscovered(now);
+            }
+            for (BluetoothDevice bluetoothDevice : mCandidates.values()) {
+                mSessionTimelines.remove(bluetoothDevice.getAddress());
+            }
+            mCandidates.clear();
+            if (mScanning && mConnectPipeline.isFull()) {
+                stopScan();
+            }
+        }
+    };
+
+    /**
+     * Event trigger when BLE Scanning has stopped
+     *
+     * @param generation the scan the callback belonged to
+     */
+    private void onBleScanStopped(int generation) {
+        mDeviceCache.expire(SystemClock.elapsedRealtime());
+        // stopping the scan ourselves isn't news
+        if (generation != mScanGeneration || !mScanning) {
+            return;
+        }
+        mScanning = false;
+        if (mState != STATE_SCANNING) {
+            return;
+        }
+        setState(STATE_IDLE);
+        if (mListener != null) {
+            mListener.onScanStopped();
+        }
+    }
+
+    /**
+     * Connect to a Peripheral.  The first one takes the UI's BlePeripheral
+     *
+     * @param bluetoothDevice the Peripheral
+     */
+    private void connectToDevice(BluetoothDevice bluetoothDevice) {
+        final String address = bluetoothDevice.getAddress();
+        BlePeripheral blePeripheral;
+        if (mPrimaryAddress == null) {
+            mPrimaryAddress = address;
+            blePeripheral = mBlePeripheral;
+            setState(STATE_CONNECTING);
+            if (mListener != null) {
+                mListener.onConnecting(bluetoothDevice);
+            }
+        } else {
+            blePeripheral = createPeripheral();
+        }
+        mPeripherals.put(address, blePeripheral);
+        mMetrics.increment(BleMetrics.CONNECT_ATTEMPTS);
+        publishEvent(BleEvent.EVENT_CONNECTION_STATE, address, BleEvent.CONNECTION_CONNECTING);
+        BleSessionTimeline timeline = mSessionTimelines.remove(address);
+        if (timeline != null) {
+            timeline.stamp(BleSessionTimeline.PHASE_CONNECT_QUEUE, SystemClock.elapsedRealtimeNanos());
+        }
+        blePeripheral.setSessionTimeline(timeline);
+        if (mCaptureEnabled) {
+            try {
+                blePeripheral.startCapture(getCaptureFile(address), CAPTURE_CAPACITY);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not start capture: " + e.getMessage());
+            }
+        }
+        try {
+            blePeripheral.connect(bluetoothDevice, mGattCallback);
+        } catch (Exception e) {
+            Log.e(TAG, "Error connecting to device");
+            // not from inside the pipeline, which is still dispatching
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onBleDisconnected(address);
+                }
+            });
+        }
+    }
+
+    /**
+     * Opens connections as the connect pipeline frees up slots
+     */
+    private final BleConnectPipeline.Connector mConnector = new BleConnectPipeline.Connector() {
+        @Override
+        public void connect(String address) {
+            connectToDevice(mDiscoveredDevices.get(address));
+        }
+    };
+
+    private BlePeripheral createPeripheral() {
+        BlePeripheral blePeripheral = new BlePeripheral(this);
+        blePeripheral.setEventBus(mEventBus);
+        blePeripheral.setMetrics(mMetrics);
+        blePeripheral.setOnPatternProgressListener(mPatternProgressListener);
+        blePeripheral.setOnConnectionReadyListener(mConnectionReadyListener);
+        return blePeripheral;
+    }
+
+    /**
+     * @param bluetoothGatt a connection from the GATT callback
+     * @return the remote it belongs to, or null if the remote was already released
+     */
+    private BlePeripheral getPeripheral(BluetoothGatt bluetoothGatt) {
+        return mPeripherals.get(bluetoothGatt.getDevice().getAddress());
+    }
+
+    /**
+     * A Peripheral dropped the connection.  Release it and look for it again, unless the
+     * radio is going off.  Android delivers those disconnects before STATE_OFF, so the first
+     * one pauses while the remotes are still known
+     *
+     * @param address the Peripheral's MAC address
+     */
+    private void onBleDisconnected(String address) {
+        if (!mWarmRestart.isPaused() && mBleCommManager != null
+                && !mBleCommManager.getBluetoothAdapter().isEnabled()) {
+            onBluetoothTurnedOff();
+            return;
+        }
+        if (releasePeripheral(address) && !mWarmRestart.isPaused()) {
+            start();
+        }
+    }
+
+    /**
+     * Disconnect a Peripheral and free its slot in the connect pipeline
+     *
+     * @param address the Peripheral's MAC address
+     * @return false if it was already released
+     */
+    private boolean releasePeripheral(String address) {
+        BlePeripheral blePeripheral = mPeripherals.remove(address);
+        if (blePeripheral == null) {
+            return false;
+        }
+        blePeripheral.disconnect();
+        blePeripheral.close();
+        mDiscoveredDevices.remove(address);
+        mSessionTimelines.remove(address);
+        mWarmRestart.onResumeFailed(address);
+        if (address.equals(mPrimaryAddress)) {
+            mPrimaryAddress = null;
+            setState(mScanning ? STATE_SCANNING : STATE_IDLE);
+            if (mListener != null) {
+                mListener.onDisconnected();
+            }
+        }
+        // the next queued Peripheral may take the freed slot, and the UI
+        mConnectPipeline.onDisconnected(address);
+        return true;
+    }
+
+    /**
+     * A Peripheral connected.  Its slot in the connect pipeline is free for the next one
+     *
+     * @param address the Peripheral's MAC address
+     * @param bluetoothDevice the Peripheral
+     */
+    private void onBleConnected(String address, BluetoothDevice bluetoothDevice) {
+        if (!mPeripherals.containsKey(address)) {
+            return;
+        }
+        mConnectPipeline.onConnected(address);
+        mMetrics.increment(BleMetrics.CONNECTS);
+        if (address.equals(mPrimaryAddress)) {
+            setState(STATE_CONNECTED);
+            if (mListener != null) {
+                mListener.onConnected(bluetoothDevice);
+            }
+        }
+    }
+
+    /**
+     * A Peripheral is set up and can take commands
+     *
+     * @param address the Peripheral's MAC address
+     */
+    private void onBleReady(String address) {
+        if (!mPeripherals.containsKey(address)) {
+            return;
+        }
+        if (mWarmRestart.onReady(address, SystemClock.elapsedRealtime())) {
+            mMetrics.setGauge(BleMetrics.ADAPTER_RESTART_TIME, mWarmRestart.getLastTimeToAllReady());
+            Log.v(TAG, "Back " + mWarmRestart.getLastTimeToAllReady() + "ms after the adapter turned on, first remote ready in "
+                    + mWarmRestart.getLastTimeToFirstReady() + "ms, adapter was off " + mWarmRestart.getLastOffTime() + "ms");
+        }
+        if (mConnectPipeline.onReady(address, SystemClock.elapsedRealtime())) {
+            Log.v(TAG, "Fleet of " + mConnectPipeline.getFleetSize() + " ready "
+                    + mConnectPipeline.getLastTimeToAllReady() + "ms after starting the scan, setup times "
+                    + mConnectPipeline.getSetupTimes());
+        }
+        if (!address.equals(mPrimaryAddress)) {
+            return;
+        }
+        setState(STATE_READY);
+        if (mSetupStartedAt >= 0) {
+            mLastSetupTime = SystemClock.elapsedRealtime() - mSetupStartedAt;
+            mSetupStartedAt = -1;
+            Log.v(TAG, "Peripheral ready " + mLastSetupTime + "ms after starting the scan");
+        }
+        if (mListener != null) {
+            mListener.onReady();
+        }
+    }
+
+    /**
+     * A remote is ready.  Its finished session timeline goes to the startup profiler
+     *
+     * @param blePeripheral the remote
+     */
+    private void finishSession(BlePeripheral blePeripheral) {
+        BleSessionTimeline timeline = blePeripheral.getSessionTimeline();
+        if (timeline == null || !timeline.finish(SystemClock.elapsedRealtimeNanos())) {
+            return;
+        }
+        mStartupProfiler.addSession(Build.MODEL, timeline);
+        Log.v(TAG, "Session " + timeline + "\n" + mStartupProfiler.getProfile(Build.MODEL));
+    }
+
+    /**
+     * Write the metrics for scraping:
+     * adb shell dumpsys activity service tonyg.example.com.bleledremote/.BleService [json]
+     *
+     * @param fd the file descriptor to write to
+     * @param writer the writer
+     * @param args "json" for a JSON object, otherwise one "name value" line per metric,
+     *             then the link of each connected remote
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        updateGauges();
+        if (args != null && args.length > 0 && "json".equals(args[0])) {
+            writer.println(mMetrics.toJson());
+        } else {
+            writer.print(mMetrics.toText());
+            for (Map.Entry<String, BlePeripheral> entry : mPeripherals.entrySet()) {
+                writer.println("link " + entry.getKey() + " " + entry.getValue().getLinkMonitor());
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Sample the gauges, which are read from the remotes rather than counted as they change
+     */
+    private void updateGauges() {
+        int connected = 0;
+        int depth = 0;
+        int peakDepth = 0;
+        for (BlePeripheral blePeripheral : mPeripherals.values()) {
+            if (blePeripheral.isConnectionReady()) {
+                connected++;
+            }
+            BleCommandQueue commandQueue = blePeripheral.getCommandQueue();
+            synchronized (commandQueue) {
+                depth += commandQueue.size();
+                for (int lane = 0; lane < BleCommandQueue.LANE_COUNT; lane++) {
+                    peakDepth = Math.max(peakDepth, commandQueue.getMaxDepth(lane));
+                }
+            }
+        }
+        mMetrics.setGauge(BleMetrics.CONNECTED_REMOTES, connected);
+        mMetrics.setGauge(BleMetrics.QUEUE_DEPTH, depth);
+        // the deepest any one lane of a connected remote has been
+        mMetrics.setGauge(BleMetrics.QUEUE_LANE_PEAK_DEPTH, peakDepth);
+    }
+
+    /**
+     * Publish an event on the bus.  Returns without waiting on slow subscribers
+     *
+     * @param type one of the BleEvent.EVENT_* types
+     * @param address the Peripheral's MAC address, or null
+     * @param value the event's value
+     */
+    private void publishEvent(int type, String address, int value) {
+        mEventBus.publish(new BleEvent(type, address, value, null, SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * The radio is going off, so every connection and the scan are gone.  Pause: remember the
+     * remotes that were connected and release their connections, but keep the scanner and the
+     * device state.  Nothing starts again until the radio is back on
+     */
+    private void onBluetoothTurnedOff() {
+        if (mWarmRestart.isPaused()) {
+            return;
+        }
+        ArrayList<String> addresses = new ArrayList<String>();
+        if (mPrimaryAddress != null) {
+            // the UI's remote reconnects first
+            addresses.add(mPrimaryAddress);
+        }
+        for (String address : mPeripherals.keySet()) {
+            if (!address.equals(mPrimaryAddress)) {
+                addresses.add(address);
+            }
+        }
+        mWarmRestart.onAdapterOff(addresses, SystemClock.elapsedRealtime());
+        mMetrics.increment(BleMetrics.ADAPTER_OFF);
+        // stops the scan scheduler's windows too
+        stopScan();
+        // forget queued Peripherals first, so releasing one doesn't connect the next
+        mConnectPipeline.reset();
+        mHandler.removeCallbacks(mConnectNearestCandidates);
+        mCandidates.clear();
+        mSessionTimelines.clear();
+        mScanTimeline = null;
+        for (String address : new ArrayList<String>(mPeripherals.keySet())) {
+            releasePeripheral(address);
+        }
+        setState(STATE_IDLE);
+    }
+
+    /**
+     * The radio is back on.  Reconnect the remotes that were connected straight away, without
+     * waiting for a scan to find them, and scan for the rest of the fleet
+     */
+    private void onBluetoothTurnedOn() {
+        long now = SystemClock.elapsedRealtime();
+        List<String> addresses = mWarmRestart.onAdapterOn(now);
+        if (mDestroyed || mBleCommManager == null) {
+            return;
+        }
+        BluetoothAdapter bluetoothAdapter = mBleCommManager.getBluetoothAdapter();
+        for (String address : addresses) {
+            if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+                mWarmRestart.onResumeFailed(address);
+                continue;
+            }
+            // the pipeline connects straight away if a slot is free
+            mDiscoveredDevices.put(address, bluetoothAdapter.getRemoteDevice(address));
+            if (!mConnectPipeline.onDiscovered(address, now)) {
+                mDiscoveredDevices.remove(address);
+                mWarmRestart.onResumeFailed(address);
+                continue;
+            }
+            mMetrics.increment(BleMetrics.ADAPTER_RESUMED_CONNECTS);
+        }
+        Log.v(TAG, "Adapter on after " + mWarmRestart.getLastOffTime() + "ms, reconnecting " + addresses.size() + " remotes");
+        start();
+    }
+
+    private void setState(int state) {
+        Log.v(TAG, "State " + mState + " -> " + state);
+        mState = state;
+    }
+
+
+    /**
+     * The Peripheral is playing an uploaded pattern.  Show the LED state it is at
+     */
+    private final BlePeripheral.OnPatternProgressListener mPatternProgressListener = new BlePeripheral.OnPatternProgressListener() {
+        @Override
+        public void onPatternLoaded(BlePeripheral blePeripheral, int stepCount) {
+            Log.v(TAG, "Pattern loaded: " + stepCount + " steps");
+        }
+
+        @Override
+        public void onPatternProgress(BlePeripheral blePeripheral, int step, int pass, final int state) {
+            if (blePeripheral != mBlePeripheral) {
+                return;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mListener != null) {
+                        mListener.onLedStateChanged(state);
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * A remote passed its readiness barrier: the setup pipeline is done and commands go out
+     */
+    private final BlePeripheral.OnConnectionReadyListener mConnectionReadyListener = new BlePeripheral.OnConnectionReadyListener() {
+        @Override
+        public void onConnectionReady(BlePeripheral blePeripheral) {
+            BluetoothDevice bluetoothDevice = blePeripheral.getBluetoothDevice();
+            if (bluetoothDevice == null) {
+                return;
+            }
+            String address = bluetoothDevice.getAddress();
+            finishSession(blePeripheral);
+            mMetrics.increment(BleMetrics.CONNECTS_READY);
+            publishEvent(BleEvent.EVENT_CONNECTION_STATE, address, BleEvent.CONNECTION_READY);
+            onBleReady(address);
+        }
+    };
+
+    /**
+     * When the Bluetooth radio turns on, initialize the Bluetooth connection
+     */
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final String action = intent.getAction();
+
+            if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
+                final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
+                        BluetoothAdapter.ERROR);
+                switch (state) {
+                    case BluetoothAdapter.STATE_TURNING_OFF:
+                    case BluetoothAdapter.STATE_OFF:
+                        // pause on whichever comes first; the remotes disconnect in between
+                        onBluetoothTurnedOff();
+                        break;
+                    case BluetoothAdapter.STATE_ON:
+                        onBluetoothTurnedOn();
+                        break;
+                    case BluetoothAdapter.STATE_TURNING_ON:
+                        break;
+                }
+            }
+        }
+    };
+
+    /**
+     * BluetoothGattCallback handles connections, state changes, reads, writes, and GATT profile listings to a Peripheral
+     *
+     */
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        /**
+         * Charactersitic successfuly read
+         *
+         * @param gatt connection to GATT
+         * @param characteristic The charactersitic that was read
+         * @param status the status of the operation
+         */
+        @Override
+        public void onCharacteristicRead(final BluetoothGatt gatt,
+                                         final BluetoothGattCharacteristic characteristic,
+                                         int status) {
+            BlePeripheral blePeripheral = getPeripheral(gatt);
+            if (blePeripheral == null) {
+                return;
+            }
+            blePeripheral.capture(BleCaptureLog.TYPE_READ, status, characteristic.getValue());
+            mMetrics.onGattStatus(BleMetrics.OP_READ, status);
+
+            // read more at http://developer.android.com/guide/topics/connectivity/bluetooth-le.html#notification
+            GattTransport transport = blePeripheral.getGattTransport();
+            if (status == BluetoothGatt.GATT_SUCCESS && transport != null) {
+                transport.onCharacteristicRead(characteristic.getValue());
+            }
+            // let the next queued GATT operation run.  After the value, so the state read
+            // during setup is handled before the connection opens to commands
+            blePeripheral.onCharacteristicReadComplete(status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        /**
+         * Characteristic was written successfully.  update the UI
+         *
+         * @param gatt Connection to the GATT
+         * @param characteristic The Characteristic that was written
+         * @param status write status
+         */
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                Log.v(TAG, "characteristic written");
+            } else {
+                Log.e(TAG, "problem writing characteristic: " + status);
+            }
+            mMetrics.onGattStatus(BleMetrics.OP_WRITE, status);
+
+            BlePeripheral blePeripheral = getPeripheral(gatt);
+            if (blePeripheral == null) {
+                return;
+            }
+            blePeripheral.capture(BleCaptureLog.TYPE_WRITE_COMPLETE, status, null);
+            // the transport lets the next queued GATT operation run, and retries failed commands
+            GattTransport transport = blePeripheral.getGattTransport();
+            if (transport != null) {
+                transport.onCharacteristicWrite(status);
+            } else {
+                blePeripheral.onCharacteristicWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
+        /**
+         * Descriptor was written.  Notifications are now enabled or disabled
+         *
+         * @param gatt Connection to the GATT
+         * @param descriptor The Descriptor that was written
+         * @param status write status
+         */
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            mMetrics.onGattStatus(BleMetrics.OP_DESCRIPTOR_WRITE, status);
+            BlePeripheral blePeripheral = getPeripheral(gatt);
+            if (blePeripheral != null) {
+                blePeripheral.capture(BleCaptureLog.TYPE_DESCRIPTOR_WRITE, status, null);
+                blePeripheral.onDescriptorWriteComplete(status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
+        /**
+         * The ATT MTU was negotiated.  Bigger writes fit from now on
+         *
+         * @param gatt Connection to the GATT
+         * @param mtu the new MTU
+         * @param status the status of the request
+         */
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Log.v(TAG, "MTU " + mtu + ", status " + status);
+            mMetrics.onGattStatus(BleMetrics.OP_MTU, status);
+            BlePeripheral blePeripheral = getPeripheral(gatt);
+            if (blePeripheral == null) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                blePeripheral.setMtu(mtu);
+            }
+            blePeripheral.onMtuRequestComplete(status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        /**
+         * The remote's RSSI was read.  The link monitor falls back to a robust PHY if it keeps dropping
+         *
+         * @param gatt Connection to the GATT
+         * @param rssi the RSSI, in dBm
+         * @param status the status of the read
+         */
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            mMetrics.onGattStatus(BleMetrics.OP_RSSI, status);
+            BlePeripheral blePeripheral = getPeripheral(gatt);
+            if (blePeripheral != null) {
+                blePeripheral.onRemoteRssiRead(rssi, status);
+            }
+        }
+
+        /**
+         * The PHY changed.  Only called from Oreo on, so not an override of the SDK this builds against
+         *
+         * @param gatt Connection to the GATT
+         * @param txPhy the transmitter PHY
+         * @param rxPhy the receiver PHY
+         * @param status the status of the update
+         */
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            mMetrics.onGattStatus(BleMetrics.OP_PHY, status);
+            BlePeripheral blePeripheral = getPeripheral(gatt);
+            if (blePeripheral != null) {
+                blePeripheral.onPhyUpdate(txPhy, rxPhy, status);
+            }
+        }
+
+        /**
+         * The current PHY was read.  Only called from Oreo on, so not an override of the SDK this builds against
+         *
+         * @param gatt Connection to the GATT
+         * @param txPhy the transmitter PHY
+         * @param rxPhy the receiver PHY
+         * @param status the status of the read
+         */
+        public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            mMetrics.onGattStatus(BleMetrics.OP_PHY, status);
+            BlePeripheral blePeripheral = getPeripheral(gatt);
+            if (blePeripheral != null) {
+                blePeripheral.onPhyRead(txPhy, rxPhy, status);
+            }
+        }
+
+        /**
+         * Charactersitic value changed.  Read new value.
+         * @param gatt Connection to the GATT
+         * @param characteristic The Characterstic
+         */
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+            Log.d(TAG, "characteristic changed");
+            BlePeripheral blePeripheral = getPeripheral(gatt);
+            if (blePeripheral != null) {
+                blePeripheral.capture(BleCaptureLog.TYPE_CHANGED, 0, characteristic.getValue());
+                blePeripheral.readValueFromCharacteristic(characteristic);
+            }
+        }
+
+        /**
+         * Peripheral connected or disconnected.  Update UI
+         * @param bluetoothGatt Connection to GATT
+         * @param status status of the operation
+         * @param newState new connection state
+         */
+        @Override
+        public void onConnectionStateChange(final BluetoothGatt bluetoothGatt, int status, int newState) {
+            final String address = bluetoothGatt.getDevice().getAddress();
+            BlePeripheral blePeripheral = getPeripheral(bluetoothGatt);
+            if (blePeripheral != null) {
+                blePeripheral.capture(BleCaptureLog.TYPE_CONNECTION_STATE, newState, null);
+            }
+            // on a disconnect, the status is the reason the link dropped
+            mMetrics.onGattStatus(BleMetrics.OP_CONNECTION, status);
+
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                Log.e(TAG, "Connected to device");
+                if (blePeripheral != null) {
+                    blePeripheral.stampPhase(BleSessionTimeline.PHASE_LINK);
+                }
+                publishEvent(BleEvent.EVENT_CONNECTION_STATE, address, BleEvent.CONNECTION_CONNECTED);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onBleConnected(address, bluetoothGatt.getDevice());
+                    }
+                });
+
+                bluetoothGatt.discoverServices();
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.e(TAG, "Disconnected from device");
+                mMetrics.increment(BleMetrics.DISCONNECTS);
+                publishEvent(BleEvent.EVENT_CONNECTION_STATE, address, BleEvent.CONNECTION_DISCONNECTED);
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onBleDisconnected(address);
+                    }
+                });
+            }
+        }
+
+        /**
+         * GATT Profile discovered.  Set up the Characteristic
+         * @param bluetoothGatt connection to GATT
+         * @param status status of operation
+         */
+        @Override
+        public void onServicesDiscovered(final BluetoothGatt bluetoothGatt, int status) {
+            Log.v(TAG, "SERVICE DISCOVERED!: ");
+            BlePeripheral blePeripheral = getPeripheral(bluetoothGatt);
+            if (blePeripheral == null) {
+                return;
+            }
+            blePeripheral.capture(BleCaptureLog.TYPE_SERVICES_DISCOVERED, status, null);
+            mMetrics.onGattStatus(BleMetrics.OP_DISCOVER, status);
+
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.v(TAG, "Something went wrong while discovering GATT services from this device");
+                return;
+            }
+            blePeripheral.stampPhase(BleSessionTimeline.PHASE_DISCOVER_SERVICES);
+
+            List<BluetoothGattService> gattServices = bluetoothGatt.getServices();
+            for (BluetoothGattService gattService : gattServices) {
+                Log.v(TAG, "service: "+gattService.getUuid().toString());
+            }
+
+            BluetoothGattService service = bluetoothGatt.getService(BlePeripheral.SERVICE_UUID);
+            if (service == null) {
+                return;
+            }
+            Log.v(TAG, "service found");
+            BluetoothGattCharacteristic characteristic = service.getCharacteristic(BlePeripheral.CHARACTERISTIC_UUID);
+            if (characteristic == null || !BlePeripheral.isCharacteristicWritable(characteristic)) {
+                return;
+            }
+            Log.v(TAG, "characteristic writeable");
+            blePeripheral.setCharacteristic(characteristic);
+            blePeripheral.stampPhase(BleSessionTimeline.PHASE_CHARACTERISTIC_LOOKUP);
+
+            // MTU, connection priority, notifications, and the current state, back to back.
+            // The remote is ready, and anything journaled goes out, once the last step is done
+            blePeripheral.startSetup();
+        }
+    };
+
+    /**
+     * Use this callback for Android API 21 (Lollipop) or greater
+     */
+    private final BleScanCallbackv21 mBleScanCallbackv21 = new BleScanCallbackv21() {
+        /**
+         * New Peripheral discovered
+         *
+         * @param callbackType int: Determines how this callback was triggered. Could be one of CALLBACK_TYPE_ALL_MATCHES, CALLBACK_TYPE_FIRST_MATCH or CALLBACK_TYPE_MATCH_LOST
+         * @param result a Bluetooth Low Energy Scan Result, containing the Bluetooth Device, RSSI, and other information
+         */
+        @Override
+        public void onScanResult(int callbackType, final ScanResult result) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onBleScanResult(result.getDevice(), result.getRssi());
+                }
+            });
+        }
+
+        /**
+         * Several peripherals discovered when scanning in low power mode
+         *
+         * @param results List: List of scan results that are previously scanned.
+         */
+        @Override
+        public void onBatchScanResults(final List<ScanResult> results) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (ScanResult result : results) {
+                        onBleScanResult(result.getDevice(), result.getRssi());
+                    }
+                }
+            });
+        }
+
+        /**
+         * Scan failed to initialize
+         *
+         * @param errorCode	int: Error code (one of SCAN_FAILED_*) for scan failure.
+         */
+        @Override
+        public void onScanFailed(int errorCode) {
+            switch (errorCode) {
+                case SCAN_FAILED_ALREADY_STARTED:
+                    Log.e(TAG, "Fails to start scan as BLE scan with the same settings is already started by the app.");
+                    break;
+                case SCAN_FAILED_APPLICATION_REGISTRATION_FAILED:
+                    Log.e(TAG, "Fails to start scan as app cannot be registered.");
+                    break;
+                case SCAN_FAILED_FEATURE_UNSUPPORTED:
+                    Log.e(TAG, "Fails to start power optimized scan as this feature is not supported.");
+                    break;
+                default: // SCAN_FAILED_INTERNAL_ERROR
+                    Log.e(TAG, "Fails to start scan due an internal error");
+
+            }
+            mMetrics.onScanFailed(errorCode);
+            publishEvent(BleEvent.EVENT_SCAN_STOPPED, null, errorCode);
+
+            final int generation = mScanGeneration;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onBleScanStopped(generation);
+                }
+            });
+        }
+
+        /**
+         * Scan completed
+         */
+        public void onScanComplete() {
+            publishEvent(BleEvent.EVENT_SCAN_STOPPED, null, 0);
+            final int generation = mScanGeneration;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onBleScanStopped(generation);
+                }
+            });
+        }
+    };
+
+    /**
+     * Use this callback for Android API 18, 19, and 20 (before Lollipop)
+     */
+    private final BleScanCallbackv18 mBleScanCallbackv18 = new BleScanCallbackv18() {
+        /**
+         * New Peripheral discovered
+         * @param bluetoothDevice The Peripheral Device
+         * @param rssi The Peripheral's RSSI indicating how strong the radio signal is
+         * @param scanRecord Other information about the scan result
+         */
+        @Override
+        public void onLeScan(final BluetoothDevice bluetoothDevice, final int rssi, byte[] scanRecord) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onBleScanResult(bluetoothDevice, rssi);
+                }
+            });
+        }
+
+        /**
+         * Scan completed
+         */
+        @Override
+        public void onScanComplete() {
+            publishEvent(BleEvent.EVENT_SCAN_STOPPED, null, 0);
+            final int generation = mScanGeneration;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onBleScanStopped(generation);
+                }
+            });
+        }
+    };
+}
@@ -0,0 +1,111 @@
+package tonyg.example.com.bleledremote;
+
+import android.view.Choreographer;
+
+/**
+ * Draws the RemoteUiState at most once per display frame.
+ *
+ * Each update marks the model dirty and asks the Choreographer for the next frame, unless a
+ * frame is already requested.  When the frame comes, the parts that changed are handed to the
+ * Renderer once, however many updates came in since the last one.
+ *
+ * Use from the main thread only.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class RemoteUiPresenter {
+    /**
+     * Applies the model to the views
+     */
+    public interface Renderer {
+        /**
+         * @param uiState the latest state
+         * @param dirty the RemoteUiState.DIRTY_* flags of the parts that changed
+         */
+        void render(RemoteUiState uiState, int dirty);
+    }
+
+    private final RemoteUiState mUiState = new RemoteUiState();
+    private final Renderer mRenderer;
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private boolean mFrameRequested = false;
+    private boolean mPaused = true;
+
+
+    public RemoteUiPresenter(Renderer renderer) {
+        mRenderer = renderer;
+    }
+
+    public void setState(int state) {
+        mUiState.setState(state);
+        requestFrame();
+    }
+
+    public void setDevice(String name, String address) {
+        mUiState.setDevice(name, address);
+        requestFrame();
+    }
+
+    public void setNothingFound() {
+        mUiState.setNothingFound();
+        requestFrame();
+    }
+
+    public void setLedState(int ledState) {
+        mUiState.setLedState(ledState);
+        requestFrame();
+    }
+
+    /**
+     * Draw parts again on the next frame even though they didn't change
+     *
+     * @param dirty RemoteUiState.DIRTY_* flags
+     */
+    public void invalidate(int dirty) {
+        mUiState.invalidate(dirty);
+        requestFrame();
+    }
+
+    /**
+     * Start drawing, such as when the Activity becomes visible.  Everything is drawn on the next frame
+     */
+    public void resume() {
+        mPaused = false;
+        invalidate(RemoteUiState.DIRTY_ALL);
+    }
+
+    /**
+     * Stop drawing.  Updates still go into the model, and are drawn after resume()
+     */
+    public void pause() {
+        mPaused = true;
+        if (mFrameRequested) {
+            mChoreographer.removeFrameCallback(mFrameCallback);
+            mFrameRequested = false;
+        }
+    }
+
+    public RemoteUiState getUiState() {
+        return mUiState;
+    }
+
+    private void requestFrame() {
+        if (mPaused || mFrameRequested || !mUiState.isDirty()) {
+            return;
+        }
+        mFrameRequested = true;
+        mChoreographer.postFrameCallback(mFrameCallback);
+    }
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameRequested = false;
+            int dirty = mUiState.takeDirty();
+            if (dirty != 0) {
+                mRenderer.render(mUiState, dirty);
+            }
+        }
+    };
+}
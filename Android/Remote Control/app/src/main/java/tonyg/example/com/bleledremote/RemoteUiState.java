@@ -0,0 +1,196 @@
+package tonyg.example.com.bleledremote;
+
+import tonyg.example.com.bleledremote.ble.BleSampleStats;
+
+/**
+ * The latest Bluetooth state the remote control screen shows, with flags for what changed since it was last drawn.
+ *
+ * Events only update the model and mark what they touched.  Setting a value to what it already
+ * is marks nothing, and any number of updates between two frames are drawn once, so a burst
+ * of callbacks costs one layout pass.  Each drawn frame records how many updates it merged.
+ *
+ * Not thread safe; updated and drawn on the main thread.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class RemoteUiState {
+    /** Dirty flags **/
+    public static final int DIRTY_CONNECTION = 1; // the state, spinner, and controls
+    public static final int DIRTY_DEVICE = 1 << 1; // the name and address labels
+    public static final int DIRTY_LED = 1 << 2; // the LED switch
+    public static final int DIRTY_ALL = DIRTY_CONNECTION | DIRTY_DEVICE | DIRTY_LED;
+
+    private static final int STATS_CAPACITY = 64; // recent frames kept for percentiles
+
+    private int mState = BleService.STATE_IDLE;
+    private String mDeviceName = "";
+    private String mDeviceAddress = "";
+    private boolean mNothingFound = false; // the last scan ended without a remote
+    private int mLedState = -1;
+    private int mDirty = 0;
+    private int mPendingUpdates = 0; // updates since the last frame
+    private final BleSampleStats mUpdatesPerFrame = new BleSampleStats(STATS_CAPACITY);
+
+    /** Counters **/
+    private long mUpdates = 0;
+    private long mFramesDrawn = 0;
+    private long mUpdatesMerged = 0; // updates drawn in a frame along with an earlier one
+
+
+    /**
+     * @param state a BleService state
+     */
+    public void setState(int state) {
+        if (state == mState) {
+            return;
+        }
+        mState = state;
+        if (state == BleService.STATE_SCANNING || state == BleService.STATE_CONNECTING) {
+            mNothingFound = false;
+        }
+        // the name label shows the scanning and connecting progress
+        markDirty(DIRTY_CONNECTION | DIRTY_DEVICE);
+    }
+
+    /**
+     * @param name the remote's broadcast name, or null
+     * @param address the remote's MAC address, or null
+     */
+    public void setDevice(String name, String address) {
+        name = name == null ? "" : name;
+        address = address == null ? "" : address;
+        if (name.equals(mDeviceName) && address.equals(mDeviceAddress) && !mNothingFound) {
+            return;
+        }
+        mDeviceName = name;
+        mDeviceAddress = address;
+        mNothingFound = false;
+        markDirty(DIRTY_DEVICE);
+    }
+
+    /**
+     * The scan ended without finding a remote
+     */
+    public void setNothingFound() {
+        if (mNothingFound && mDeviceName.isEmpty() && mDeviceAddress.isEmpty()) {
+            return;
+        }
+        mDeviceName = "";
+        mDeviceAddress = "";
+        mNothingFound = true;
+        markDirty(DIRTY_DEVICE);
+    }
+
+    /**
+     * @param ledState the LED state to show
+     */
+    public void setLedState(int ledState) {
+        if (ledState == mLedState) {
+            return;
+        }
+        mLedState = ledState;
+        markDirty(DIRTY_LED);
+    }
+
+    /**
+     * The user flipped the switch, so it already shows this state.  Nothing to draw, but a
+     * later rollback to the old state is a change again
+     *
+     * @param ledState the LED state the switch shows
+     */
+    public void setLedStateShown(int ledState) {
+        mLedState = ledState;
+    }
+
+    /**
+     * Draw parts again even though they didn't change, such as after the views were recreated
+     *
+     * @param dirty DIRTY_* flags
+     */
+    public void invalidate(int dirty) {
+        markDirty(dirty);
+    }
+
+    private void markDirty(int dirty) {
+        mDirty |= dirty;
+        mPendingUpdates++;
+        mUpdates++;
+    }
+
+    /**
+     * @return true if something changed since the last frame
+     */
+    public boolean isDirty() {
+        return mDirty != 0;
+    }
+
+    /**
+     * Take what changed, to draw it, and record the updates merged into this frame
+     *
+     * @return the DIRTY_* flags of the parts to draw, or 0 if nothing changed
+     */
+    public int takeDirty() {
+        int dirty = mDirty;
+        if (dirty == 0) {
+            return 0;
+        }
+        mDirty = 0;
+        mFramesDrawn++;
+        mUpdatesMerged += mPendingUpdates - 1;
+        mUpdatesPerFrame.add(mPendingUpdates);
+        mPendingUpdates = 0;
+        return dirty;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public String getDeviceName() {
+        return mDeviceName;
+    }
+
+    public String getDeviceAddress() {
+        return mDeviceAddress;
+    }
+
+    public boolean isNothingFound() {
+        return mNothingFound;
+    }
+
+    /**
+     * @return the LED state to show, or -1 if none was set
+     */
+    public int getLedState() {
+        return mLedState;
+    }
+
+    /**
+     * @return the number of updates drawn in each recent frame
+     */
+    public BleSampleStats getUpdatesPerFrame() {
+        return mUpdatesPerFrame;
+    }
+
+    public long getUpdates() {
+        return mUpdates;
+    }
+
+    public long getFramesDrawn() {
+        return mFramesDrawn;
+    }
+
+    /**
+     * @return updates that didn't cost a frame of their own
+     */
+    public long getUpdatesMerged() {
+        return mUpdatesMerged;
+    }
+
+    @Override
+    public String toString() {
+        return mUpdates + " updates in " + mFramesDrawn + " frames, " + mUpdatesMerged + " merged, per frame "
+                + mUpdatesPerFrame;
+    }
+}
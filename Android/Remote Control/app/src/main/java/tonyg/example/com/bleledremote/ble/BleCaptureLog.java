@@ -0,0 +1,249 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary capture of the GATT traffic on one connection, for replaying a field issue later.
+ *
+ * The file is preallocated and memory mapped, so recording an event from a GATT callback is a
+ * few puts into memory with no system call.  Each record is
+ * [type, status (2 bytes), data length (2 bytes), microseconds since the previous record (4 bytes), data...].
+ * The header holds the capture's start time and is updated after every record, so a capture
+ * cut short by the app being killed still reads back up to its last whole record.
+ * Once the file is full, further records are counted and dropped.
+ *
+ * Gaps between records longer than Integer.MAX_VALUE microseconds (about 35 minutes) are shortened.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleCaptureLog {
+    /** Record types **/
+    public static final int TYPE_CONNECTION_STATE = 1; // status is the new BluetoothProfile state
+    public static final int TYPE_SERVICES_DISCOVERED = 2; // status is the GATT status
+    public static final int TYPE_WRITE = 3; // data is the frame handed to the transport
+    public static final int TYPE_WRITE_COMPLETE = 4; // status is the GATT status
+    public static final int TYPE_READ = 5; // data is the value read
+    public static final int TYPE_CHANGED = 6; // the Peripheral notified a change
+    public static final int TYPE_DESCRIPTOR_WRITE = 7; // status is the GATT status
+
+    public static final int MAX_DATA_LENGTH = 0xFFFF;
+
+    private static final int MAGIC = 0x424C4543; // "BLEC"
+    private static final short VERSION = 1;
+    private static final int HEADER_LENGTH = 24; // magic, version, reserved, start time, record count, end offset
+    private static final int RECORD_COUNT_POSITION = 16;
+    private static final int END_POSITION = 20;
+    private static final int RECORD_HEADER_LENGTH = 9;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private final long mStartedAt;
+    private long mLastRecordAt;
+    private int mRecordCount = 0;
+    private boolean mClosed = false;
+
+    /** Counters **/
+    private long mRecordsDropped = 0;
+
+
+    /**
+     * A recorded event
+     */
+    public static class Record {
+        private final int mType;
+        private final int mStatus;
+        private final byte[] mData;
+        private final long mTime;
+
+        public Record(int type, int status, byte[] data, long time) {
+            mType = type;
+            mStatus = status;
+            mData = data;
+            mTime = time;
+        }
+
+        /**
+         * @return one of the TYPE_* record types
+         */
+        public int getType() {
+            return mType;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+
+        /**
+         * @return the record's data, never null
+         */
+        public byte[] getData() {
+            return mData;
+        }
+
+        /**
+         * @return microseconds from the start of the capture
+         */
+        public long getTime() {
+            return mTime;
+        }
+    }
+
+
+    /**
+     * Start a new capture, replacing any capture already in the file
+     *
+     * @param file the capture file
+     * @param capacity the size to preallocate, in bytes
+     * @param now the current time in nanoseconds, from a monotonic clock
+     * @throws IOException if the file can't be created
+     */
+    public BleCaptureLog(File file, int capacity, long now) throws IOException {
+        if (capacity < HEADER_LENGTH + RECORD_HEADER_LENGTH) {
+            throw new IllegalArgumentException("Capture file too small");
+        }
+        mCapacity = capacity;
+        mStartedAt = now;
+        mLastRecordAt = now;
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        mBuffer.putInt(MAGIC);
+        mBuffer.putShort(VERSION);
+        mBuffer.putShort((short) 0);
+        mBuffer.putLong(now);
+        mBuffer.putInt(0);
+        mBuffer.putInt(HEADER_LENGTH);
+    }
+
+    /**
+     * Record an event.  Safe to call from any thread
+     *
+     * @param type one of the TYPE_* record types
+     * @param status the event's status, such as a GATT status
+     * @param data the event's data, or null
+     * @param now the current time in nanoseconds, from the clock the capture was started with
+     * @return false if the capture is closed or full
+     */
+    public synchronized boolean record(int type, int status, byte[] data, long now) {
+        int length = data == null ? 0 : data.length;
+        if (mClosed || length > MAX_DATA_LENGTH) {
+            return false;
+        }
+        if (mBuffer.position() + RECORD_HEADER_LENGTH + length > mCapacity) {
+            mRecordsDropped++;
+            return false;
+        }
+        long delta = Math.max(0, (now - mLastRecordAt) / 1000);
+        mLastRecordAt = now;
+        mBuffer.put((byte) type);
+        mBuffer.putShort((short) status);
+        mBuffer.putShort((short) length);
+        mBuffer.putInt((int) Math.min(delta, Integer.MAX_VALUE));
+        if (length > 0) {
+            mBuffer.put(data);
+        }
+        // publish the record only once it is whole
+        mRecordCount++;
+        mBuffer.putInt(RECORD_COUNT_POSITION, mRecordCount);
+        mBuffer.putInt(END_POSITION, mBuffer.position());
+        return true;
+    }
+
+    /**
+     * Flush the capture to storage and stop recording
+     */
+    public synchronized void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mBuffer.force();
+        mFile.close();
+    }
+
+    public synchronized int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return bytes used, including the header
+     */
+    public synchronized int getSize() {
+        return mBuffer.position();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return records dropped because the capture was full
+     */
+    public synchronized long getRecordsDropped() {
+        return mRecordsDropped;
+    }
+
+    /**
+     * @return when the capture started, in nanoseconds
+     */
+    public long getStartedAt() {
+        return mStartedAt;
+    }
+
+    /**
+     * Read back a capture, up to its last whole record
+     *
+     * @param file the capture file
+     * @return the records, in order
+     * @throws IOException if the file can't be read or isn't a capture
+     */
+    public static List<Record> read(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            if (input.length() < HEADER_LENGTH) {
+                throw new IOException("Not a capture file");
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            input.getChannel().read(header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getShort() != VERSION) {
+                throw new IOException("Not a capture file");
+            }
+            int recordCount = header.getInt(RECORD_COUNT_POSITION);
+            int end = header.getInt(END_POSITION);
+            if (end < HEADER_LENGTH || end > input.length()) {
+                throw new IOException("Corrupt capture file");
+            }
+
+            ByteBuffer body = ByteBuffer.allocate(end - HEADER_LENGTH);
+            input.getChannel().read(body, HEADER_LENGTH);
+            body.flip();
+            List<Record> records = new ArrayList<Record>(recordCount);
+            long time = 0;
+            while (records.size() < recordCount && body.remaining() >= RECORD_HEADER_LENGTH) {
+                int type = body.get() & 0xFF;
+                int status = body.getShort();
+                int length = body.getShort() & 0xFFFF;
+                time += body.getInt() & 0xFFFFFFFFL;
+                if (body.remaining() < length) {
+                    break;
+                }
+                byte[] data = new byte[length];
+                body.get(data);
+                records.add(new Record(type, status, data, time));
+            }
+            return records;
+        } finally {
+            input.close();
+        }
+    }
+}
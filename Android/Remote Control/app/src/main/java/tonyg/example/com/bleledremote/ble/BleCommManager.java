@@ -8,6 +8,8 @@ import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -26,13 +28,15 @@ import tonyg.example.com.bleledremote.ble.callbacks.BleScanCallbackv21;
  */
 public class BleCommManager {
     private static final String TAG = BleCommManager.class.getSimpleName();
-    private static final long SCAN_PERIOD = 5000; // 5 seconds of scanning time
 
     private BluetoothAdapter mBluetoothAdapter; // Andrdoid's Bluetooth Adapter
     private BluetoothLeScanner bluetoothLeScanner; // Ble scanner - API >= 21
 
 
     private Timer mTimer = new Timer(); // scan timer
+    private BleScanScheduler mScanScheduler = new BleScanScheduler(); // scan mode and timing
+    private boolean mScanRequested = false; // scanning until told to stop
+    private boolean mRadioScanning = false; // scanner is switched on
 
     /**
      * Initialize the BleCommManager
@@ -64,93 +68,152 @@ public class BleCommManager {
 
 
     /**
-     * Scan for Peripherals
+     * Get the scan scheduler, which decides scan mode and timing
+     *
+     * @return BleScanScheduler the scan scheduler
+     */
+    public BleScanScheduler getScanScheduler() {
+        return mScanScheduler;
+    }
+
+
+    /**
+     * Scan for Peripherals.
+     *
+     * The scan mode and window come from the BleScanScheduler.  If the scheduler asks for a pause,
+     * for example to back off after empty scans or to respect Android's scan start limit, the
+     * scan begins after that pause.
      *
      * @param bleScanCallbackv18 APIv18 compatible ScanCallback
      * @param bleScanCallbackv21 APIv21 compatible ScanCallback
      * @throws Exception
      */
-    public void scanForPeripherals(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21) throws Exception {
+    public synchronized void scanForPeripherals(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21) throws Exception {
         // Don't proceed if there is already a scan in progress
         mTimer.cancel();
+        stopRadioScan(bleScanCallbackv18, bleScanCallbackv21);
 
-        // Use BluetoothAdapter.startLeScan() for Android API 18, 19, and 20
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-            // Scan for SCAN_PERIOD milliseconds.
-            // at the end of that time, stop the scan.
-            new Thread() {
-                @Override
-                public void run() {
-                    mBluetoothAdapter.startLeScan(bleScanCallbackv18);
+        mScanRequested = true;
+        scheduleScanWindow(bleScanCallbackv18, bleScanCallbackv21);
+    }
 
-                    try {
-                        Thread.sleep(SCAN_PERIOD);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
 
-                    mBluetoothAdapter.stopLeScan(bleScanCallbackv18);
-                }
-            }.start();
-            // alert the system that BLE scanning has stopped after SCAN_PERIOD milliseconds
-            mTimer = new Timer();
+    /**
+     * Stop Scanning
+     *
+     * @param bleScanCallbackv18 APIv18 compatible ScanCallback
+     * @param bleScanCallbackv21 APIv21 compatible ScanCallback
+     */
+    public synchronized void stopScanning(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21) {
+        mScanRequested = false;
+        mTimer.cancel();
+        stopRadioScan(bleScanCallbackv18, bleScanCallbackv21);
+        notifyScanComplete(bleScanCallbackv18, bleScanCallbackv21);
+    }
+
+
+    /**
+     * Start the next scan window, now or after the pause the scheduler asks for
+     */
+    private void scheduleScanWindow(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21) {
+        long delay = mScanScheduler.getDelayUntilNextScan(SystemClock.elapsedRealtime());
+        mTimer = new Timer();
+        if (delay > 0) {
+            Log.v(TAG, "Next scan window in " + delay + "ms");
             mTimer.schedule(new TimerTask() {
                 @Override
                 public void run() {
-                    stopScanning(bleScanCallbackv18, bleScanCallbackv21);
+                    startScanWindow(bleScanCallbackv18, bleScanCallbackv21);
                 }
-            }, SCAN_PERIOD);
+            }, delay);
+        } else {
+            startScanWindow(bleScanCallbackv18, bleScanCallbackv21);
+        }
+    }
 
+    /**
+     * Turn on the scanner for one scan window.  At the end of the window, stop the scan
+     */
+    private synchronized void startScanWindow(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21) {
+        if (!mScanRequested) {
+            return;
+        }
+        if (!mBluetoothAdapter.isEnabled()) {
+            // the radio went off; the scan starts again once it is back on
+            mScanRequested = false;
+            notifyScanComplete(bleScanCallbackv18, bleScanCallbackv21);
+            return;
+        }
+
+        // Use BluetoothAdapter.startLeScan() for Android API 18, 19, and 20
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            mBluetoothAdapter.startLeScan(bleScanCallbackv18);
 
         } else { // use BluetoothLeScanner.startScan() for API 21 (Lollipop) or greater
             final ScanSettings settings = new ScanSettings.Builder()
-                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                    .setScanMode(mScanScheduler.getScanMode())
                     .build();
             final List<ScanFilter> filters = new ArrayList<ScanFilter>();
             bluetoothLeScanner = mBluetoothAdapter.getBluetoothLeScanner();
+            bluetoothLeScanner.startScan(filters, settings, bleScanCallbackv21);
+        }
+        mRadioScanning = true;
+        mScanScheduler.onScanStarted(SystemClock.elapsedRealtime());
+
+        // alert the system that BLE scanning has stopped after the scan window
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                onScanWindowComplete(bleScanCallbackv18, bleScanCallbackv21);
+            }
+        }, mScanScheduler.getScanWindow());
+    }
 
+    /**
+     * The scan window is over.  Either schedule the next window or report that scanning stopped
+     */
+    private synchronized void onScanWindowComplete(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21) {
+        stopRadioScan(bleScanCallbackv18, bleScanCallbackv21);
+        Log.v(TAG, "Scan window complete. Radio on for " + mScanScheduler.getRadioOnTime(SystemClock.elapsedRealtime()) + "ms, last discovery took " + mScanScheduler.getLastDiscoveryLatency() + "ms");
 
-            new Thread() {
-                @Override
-                public void run() {
-                    bluetoothLeScanner.startScan(filters, settings, bleScanCallbackv21);
-
-                    try {
-                        Thread.sleep(SCAN_PERIOD);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    bluetoothLeScanner.stopScan(bleScanCallbackv21);
-                }
-            }.start();
-            // alert the system that BLE scanning has stopped after SCAN_PERIOD milliseconds
-            mTimer = new Timer();
-            mTimer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    stopScanning(bleScanCallbackv18, bleScanCallbackv21);
-                }
-            }, SCAN_PERIOD);
+        if (mScanRequested && mScanScheduler.isDutyCycled()) {
+            scheduleScanWindow(bleScanCallbackv18, bleScanCallbackv21);
+        } else {
+            mScanRequested = false;
+            notifyScanComplete(bleScanCallbackv18, bleScanCallbackv21);
         }
-
     }
 
+    /**
+     * Turn off the scanner if it is on
+     */
+    private void stopRadioScan(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21) {
+        if (!mRadioScanning) {
+            return;
+        }
+        mRadioScanning = false;
+        if (!mBluetoothAdapter.isEnabled()) {
+            // turning the radio off already stopped the scan, and the scanner refuses calls until it is back
+            mScanScheduler.onScanStopped(SystemClock.elapsedRealtime());
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            mBluetoothAdapter.stopLeScan(bleScanCallbackv18);
+        } else if (bluetoothLeScanner != null) {
+            bluetoothLeScanner.stopScan(bleScanCallbackv21);
+        }
+        mScanScheduler.onScanStopped(SystemClock.elapsedRealtime());
+    }
 
     /**
-     * Stop Scanning
-     *
-     * @param bleScanCallbackv18 APIv18 compatible ScanCallback
-     * @param bleScanCallbackv21 APIv21 compatible ScanCallback
+     * propagate the onScanComplete through the system
      */
-    public void stopScanning(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21) {
-        mTimer.cancel();
-        // propagate the onScanComplete through the system
+    private void notifyScanComplete(final BleScanCallbackv18 bleScanCallbackv18, final BleScanCallbackv21 bleScanCallbackv21) {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
             bleScanCallbackv18.onScanComplete();
         } else {
             bleScanCallbackv21.onScanComplete();
         }
-
     }
 
 
@@ -0,0 +1,103 @@
+package tonyg.example.com.bleledremote.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+/**
+ * A GATT operation waiting for its turn on the Peripheral
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+class BleCommand {
+    public static final int NO_TARGET = -1;
+
+    /** Operation types **/
+    public static final int TYPE_WRITE_CHARACTERISTIC = 0;
+    public static final int TYPE_READ_CHARACTERISTIC = 1;
+    public static final int TYPE_WRITE_DESCRIPTOR = 2;
+    public static final int TYPE_REQUEST_MTU = 3;
+    public static final int TYPE_REQUEST_CONNECTION_PRIORITY = 4;
+    public static final int TYPE_READ_REMOTE_RSSI = 5;
+    public static final int TYPE_SET_PREFERRED_PHY = 6; // asks for the link monitor's preference when it runs
+
+    final int mType;
+    final int mLane; // BleCommandQueue lane
+    final BluetoothGattCharacteristic mCharacteristic;
+    final BluetoothGattDescriptor mDescriptor;
+    final byte[] mData;
+    final int mTarget; // BleCommandTracker target waiting on a confirmation, or NO_TARGET
+    final int mValue; // the MTU or connection priority requested
+    long mEnqueuedAt;
+
+    private BleCommand(int type, int lane, BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor, byte[] data, int target, int value) {
+        mType = type;
+        mLane = lane;
+        mCharacteristic = characteristic;
+        mDescriptor = descriptor;
+        mData = data;
+        mTarget = target;
+        mValue = value;
+    }
+
+    /**
+     * @param characteristic the Characteristic to write to
+     * @param data the data packet
+     * @param target the BleCommandTracker target to track once sent, or NO_TARGET
+     * @param lane the BleCommandQueue lane
+     */
+    static BleCommand write(BluetoothGattCharacteristic characteristic, byte[] data, int target, int lane) {
+        return new BleCommand(TYPE_WRITE_CHARACTERISTIC, lane, characteristic, null, data, target, 0);
+    }
+
+    /**
+     * @param characteristic the Characteristic to read
+     * @param lane the BleCommandQueue lane
+     */
+    static BleCommand read(BluetoothGattCharacteristic characteristic, int lane) {
+        return new BleCommand(TYPE_READ_CHARACTERISTIC, lane, characteristic, null, null, NO_TARGET, 0);
+    }
+
+    /**
+     * @param descriptor the Descriptor to write to
+     * @param value the Descriptor value
+     * @param lane the BleCommandQueue lane
+     */
+    static BleCommand writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value, int lane) {
+        return new BleCommand(TYPE_WRITE_DESCRIPTOR, lane, null, descriptor, value, NO_TARGET, 0);
+    }
+
+    /**
+     * @param mtu the ATT MTU to ask for
+     * @param lane the BleCommandQueue lane
+     */
+    static BleCommand requestMtu(int mtu, int lane) {
+        return new BleCommand(TYPE_REQUEST_MTU, lane, null, null, null, NO_TARGET, mtu);
+    }
+
+    /**
+     * @param priority one of the BluetoothGatt.CONNECTION_PRIORITY_* priorities
+     * @param lane the BleCommandQueue lane
+     */
+    static BleCommand requestConnectionPriority(int priority, int lane) {
+        return new BleCommand(TYPE_REQUEST_CONNECTION_PRIORITY, lane, null, null, null, NO_TARGET, priority);
+    }
+
+    /**
+     * @param lane the BleCommandQueue lane
+     */
+    static BleCommand readRemoteRssi(int lane) {
+        return new BleCommand(TYPE_READ_REMOTE_RSSI, lane, null, null, null, NO_TARGET, 0);
+    }
+
+    /**
+     * @param lane the BleCommandQueue lane
+     */
+    static BleCommand setPreferredPhy(int lane) {
+        return new BleCommand(TYPE_SET_PREFERRED_PHY, lane, null, null, null, NO_TARGET, 0);
+    }
+
+    boolean isCharacteristicWrite() {
+        return mType == TYPE_WRITE_CHARACTERISTIC;
+    }
+}
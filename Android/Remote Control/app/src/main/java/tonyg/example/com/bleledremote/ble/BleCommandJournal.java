@@ -0,0 +1,235 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Append-only journal of commands that couldn't be sent because the Peripheral was out of reach.
+ *
+ * Every command is appended to a file as a record of [target, length, frame...], so the
+ * journal survives the app being killed.  Commands carry absolute values, so only the last
+ * command for each target matters; once the file holds enough superseded records, it is
+ * rewritten with just the net effect per target.  When the connection is ready again,
+ * getPending() hands back the net commands as one batch.  Each stays in the journal until
+ * acknowledge() says it reached the Peripheral, so a link that drops mid-flush loses nothing.
+ *
+ * This class is not thread safe; BlePeripheral serializes access to it.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleCommandJournal {
+    /** Journaled targets **/
+    public static final int TARGET_LED = 0;
+    public static final int TARGET_BRIGHTNESS = 1;
+    public static final int TARGET_COUNT = 2;
+
+    private static final int RECORD_HEADER_LENGTH = 2; // target, frame length
+    private static final int COMPACTION_THRESHOLD = 32; // records on disk before rewriting the file
+
+    private final File mFile;
+    private final byte[][] mLatest = new byte[TARGET_COUNT][]; // net effect per target
+    private int mRecordCount = 0; // records in the file, including superseded ones
+
+    /** Metrics **/
+    private long mAppendCount = 0;
+    private long mCompactionCount = 0;
+
+
+    /**
+     * Open a journal, reading back any commands left from an earlier run
+     *
+     * @param file the journal file
+     * @throws IOException if the journal can't be read
+     */
+    public BleCommandJournal(File file) throws IOException {
+        mFile = file;
+        load();
+    }
+
+    /**
+     * Record a command
+     *
+     * @param target the journaled target, such as TARGET_LED
+     * @param frame the data packet, at most 255 bytes
+     * @throws IOException if the command couldn't be written to the file.  It is still kept in memory
+     */
+    public void append(int target, byte[] frame) throws IOException {
+        if (frame.length > 0xFF) {
+            throw new IllegalArgumentException("Frame too long");
+        }
+        mLatest[target] = frame.clone();
+        mAppendCount++;
+
+        if (mRecordCount + 1 > COMPACTION_THRESHOLD) {
+            compact();
+            return;
+        }
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        try {
+            out.write(encode(target, frame));
+            mRecordCount++;
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @return a copy of the net command for every target, indexed by target; null where a target has nothing pending
+     */
+    public byte[][] getPending() {
+        byte[][] frames = new byte[TARGET_COUNT][];
+        for (int target = 0; target < TARGET_COUNT; target++) {
+            if (mLatest[target] != null) {
+                frames[target] = mLatest[target].clone();
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * A pending command reached the Peripheral.  Remove it, unless a newer command for
+     * the same target was appended since, and compact the file
+     *
+     * @param target the journaled target
+     * @param frame the data packet that was sent
+     * @return <b>true</b> if the command was removed
+     * @throws IOException if the journal file couldn't be rewritten.  The command is still removed from memory
+     */
+    public boolean acknowledge(int target, byte[] frame) throws IOException {
+        if (!Arrays.equals(mLatest[target], frame)) {
+            return false;
+        }
+        mLatest[target] = null;
+        compact();
+        return true;
+    }
+
+    /**
+     * @return <b>true</b> if no commands are waiting
+     */
+    public boolean isEmpty() {
+        return getEntryCount() == 0;
+    }
+
+    /**
+     * @return the number of targets with a command waiting
+     */
+    public int getEntryCount() {
+        int count = 0;
+        for (byte[] frame : mLatest) {
+            if (frame != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of records in the file, including ones superseded since the last compaction
+     */
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return the size of the journal file in bytes
+     */
+    public long getFileSize() {
+        return mFile.length();
+    }
+
+    public long getAppendCount() {
+        return mAppendCount;
+    }
+
+    public long getCompactionCount() {
+        return mCompactionCount;
+    }
+
+
+    /**
+     * Replay the file into memory.  A record cut short by the app dying mid-write is dropped
+     */
+    private void load() throws IOException {
+        if (!mFile.exists()) {
+            return;
+        }
+        byte[] data = readFile();
+        int position = 0;
+        while (position + RECORD_HEADER_LENGTH <= data.length) {
+            int target = data[position] & 0xFF;
+            int length = data[position + 1] & 0xFF;
+            int start = position + RECORD_HEADER_LENGTH;
+            if (start + length > data.length) {
+                break;
+            }
+            if (target < TARGET_COUNT) {
+                byte[] frame = new byte[length];
+                System.arraycopy(data, start, frame, 0, length);
+                mLatest[target] = frame;
+            }
+            position = start + length;
+            mRecordCount++;
+        }
+        if (position != data.length || mRecordCount > getEntryCount()) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the file with only the net command per target.
+     * The new file is written in full before it replaces the old one
+     */
+    private void compact() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int records = 0;
+        for (int target = 0; target < TARGET_COUNT; target++) {
+            if (mLatest[target] != null) {
+                buffer.write(encode(target, mLatest[target]));
+                records++;
+            }
+        }
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            buffer.writeTo(out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Could not replace " + mFile);
+        }
+        mRecordCount = records;
+        mCompactionCount++;
+    }
+
+    private byte[] readFile() throws IOException {
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[256];
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                buffer.write(chunk, 0, read);
+            }
+            return buffer.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] encode(int target, byte[] frame) {
+        byte[] record = new byte[RECORD_HEADER_LENGTH + frame.length];
+        record[0] = (byte) target;
+        record[1] = (byte) frame.length;
+        System.arraycopy(frame, 0, record, RECORD_HEADER_LENGTH, frame.length);
+        return record;
+    }
+}
@@ -0,0 +1,203 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.ArrayDeque;
+
+/**
+ * Priority lanes for GATT operations.
+ *
+ * A Peripheral can only process one GATT operation at a time, so everything we send it waits
+ * in this queue.  User initiated commands go in the interactive lane and jump ahead of
+ * background work like state reads and descriptor writes.  To keep lower lanes moving, a command
+ * that has waited longer than its lane's maximum wait is served ahead of higher lanes, but never
+ * twice in a row, so an interactive command waits behind at most one promoted command.
+ *
+ * Each lane keeps its own queue depth and wait time metrics.
+ *
+ * This class is not thread safe; BlePeripheral serializes access to it.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleCommandQueue {
+    /** Lanes, highest priority first **/
+    public static final int LANE_INTERACTIVE = 0; // user initiated commands
+    public static final int LANE_NORMAL = 1; // protocol traffic, such as reading a confirmation
+    public static final int LANE_BACKGROUND = 2; // state reads, descriptor writes, polls
+    public static final int LANE_COUNT = 3;
+
+    // how long a command may wait before it is served ahead of higher lanes
+    private static final long[] MAX_WAIT = {0, 250, 1000}; // ms
+
+    private final ArrayDeque<BleCommand>[] mLanes;
+
+    /** Metrics **/
+    private final int[] mMaxDepth = new int[LANE_COUNT];
+    private final long[] mDequeued = new long[LANE_COUNT];
+    private final long[] mTotalWait = new long[LANE_COUNT];
+    private final long[] mMaxWait = new long[LANE_COUNT];
+    private final long[] mPromotions = new long[LANE_COUNT]; // times starvation protection kicked in
+    private boolean mLastWasPromotion = false;
+
+
+    @SuppressWarnings({"unchecked", "rawtypes"}) // Java can't create an array of ArrayDeque<BleCommand>
+    public BleCommandQueue() {
+        mLanes = new ArrayDeque[LANE_COUNT];
+        for (int lane = 0; lane < LANE_COUNT; lane++) {
+            mLanes[lane] = new ArrayDeque<BleCommand>();
+        }
+    }
+
+    /**
+     * Queue a command at the back of its lane
+     *
+     * @param command the command
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    void offer(BleCommand command, long now) {
+        command.mEnqueuedAt = now;
+        mLanes[command.mLane].addLast(command);
+        updateMaxDepth(command.mLane);
+    }
+
+    /**
+     * Queue a command at the front of its lane, for example a retry
+     *
+     * @param command the command
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    void offerFirst(BleCommand command, long now) {
+        command.mEnqueuedAt = now;
+        mLanes[command.mLane].addFirst(command);
+        updateMaxDepth(command.mLane);
+    }
+
+    /**
+     * Look at the command that would be served next
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return the next command, or null if the queue is empty
+     */
+    BleCommand peek(long now) {
+        int lane = selectLane(now);
+        return lane < 0 ? null : mLanes[lane].peekFirst();
+    }
+
+    /**
+     * Remove the command that should be served next
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return the next command, or null if the queue is empty
+     */
+    BleCommand poll(long now) {
+        int lane = selectLane(now);
+        if (lane < 0) {
+            return null;
+        }
+        mLastWasPromotion = false;
+        for (int higher = 0; higher < lane; higher++) {
+            if (!mLanes[higher].isEmpty()) {
+                mPromotions[lane]++;
+                mLastWasPromotion = true;
+                break;
+            }
+        }
+        BleCommand command = mLanes[lane].pollFirst();
+        long wait = now - command.mEnqueuedAt;
+        mDequeued[lane]++;
+        mTotalWait[lane] += wait;
+        mMaxWait[lane] = Math.max(mMaxWait[lane], wait);
+        return command;
+    }
+
+    /**
+     * Drop every queued command
+     */
+    void clear() {
+        for (ArrayDeque<BleCommand> lane : mLanes) {
+            lane.clear();
+        }
+    }
+
+    public boolean isEmpty() {
+        for (ArrayDeque<BleCommand> lane : mLanes) {
+            if (!lane.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the total number of queued commands
+     */
+    public int size() {
+        int size = 0;
+        for (ArrayDeque<BleCommand> lane : mLanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    public int getDepth(int lane) {
+        return mLanes[lane].size();
+    }
+
+    public int getMaxDepth(int lane) {
+        return mMaxDepth[lane];
+    }
+
+    public long getDequeuedCount(int lane) {
+        return mDequeued[lane];
+    }
+
+    /**
+     * @param lane the lane
+     * @return the average time commands in this lane waited, in milliseconds
+     */
+    public long getMeanWait(int lane) {
+        if (mDequeued[lane] == 0) {
+            return 0;
+        }
+        return mTotalWait[lane] / mDequeued[lane];
+    }
+
+    public long getMaxWait(int lane) {
+        return mMaxWait[lane];
+    }
+
+    public long getPromotionCount(int lane) {
+        return mPromotions[lane];
+    }
+
+
+    /**
+     * Pick the lane to serve: the most overdue starving lane, otherwise the highest non-empty lane
+     */
+    private int selectLane(long now) {
+        int starving = -1;
+        long mostOverdue = 0;
+        int highest = -1;
+        for (int lane = 0; lane < LANE_COUNT; lane++) {
+            BleCommand head = mLanes[lane].peekFirst();
+            if (head == null) {
+                continue;
+            }
+            if (highest < 0) {
+                highest = lane;
+            }
+            long overdue = now - head.mEnqueuedAt - MAX_WAIT[lane];
+            if (lane > 0 && overdue > mostOverdue) {
+                mostOverdue = overdue;
+                starving = lane;
+            }
+        }
+        if (starving < 0 || mLastWasPromotion) {
+            return highest;
+        }
+        return starving;
+    }
+
+    private void updateMaxDepth(int lane) {
+        mMaxDepth[lane] = Math.max(mMaxDepth[lane], mLanes[lane].size());
+    }
+}
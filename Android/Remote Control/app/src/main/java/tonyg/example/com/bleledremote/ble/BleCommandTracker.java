@@ -0,0 +1,277 @@
+package tonyg.example.com.bleledremote.ble;
+
+/**
+ * Keeps track of commands waiting for a confirmation from the Peripheral.
+ *
+ * Each command gets a deadline in a shared HashedTimerWheel.  If the confirmation doesn't arrive
+ * in time, or the write itself fails, the command is sent again according to the RetryPolicy.
+ * Commands are keyed by their target, such as the LED, and carry absolute values, so sending one
+ * again is idempotent.  Once the retries run out, the command fails.
+ *
+ * This class is not thread safe; BlePeripheral serializes access to it.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleCommandTracker {
+    /** Command targets **/
+    public static final int TARGET_LED = 0;
+    public static final int TARGET_COUNT = 1;
+
+    private static final long TICK_DURATION = 50; // ms
+    private static final int BUCKET_COUNT = 64;
+
+    /**
+     * How long to wait for a confirmation and how many times to try
+     */
+    public static class RetryPolicy {
+        public final int maxAttempts;
+        public final long timeout;
+        public final float backoffMultiplier;
+
+        /**
+         * @param maxAttempts total number of sends, including the first
+         * @param timeout milliseconds to wait for the first confirmation
+         * @param backoffMultiplier the timeout is multiplied by this on every retry
+         */
+        public RetryPolicy(int maxAttempts, long timeout, float backoffMultiplier) {
+            this.maxAttempts = maxAttempts;
+            this.timeout = timeout;
+            this.backoffMultiplier = backoffMultiplier;
+        }
+
+        long getTimeout(int attempt) {
+            double multiplier = Math.pow(backoffMultiplier, attempt - 1);
+            return (long) (timeout * multiplier);
+        }
+    }
+
+    public static final RetryPolicy DEFAULT_RETRY_POLICY = new RetryPolicy(3, 1000, 2f);
+
+    /**
+     * Notified when a command has to be sent again, or has failed for good
+     */
+    public interface OnCommandListener {
+        /**
+         * Send the command again
+         *
+         * @param target the command target
+         * @param frame the data packet to send
+         * @param attempt the attempt number, starting at 2 for the first retry
+         */
+        void onResendCommand(int target, byte[] frame, int attempt);
+
+        /**
+         * The command ran out of retries
+         *
+         * @param target the command target
+         * @param frame the data packet that failed
+         */
+        void onCommandFailed(int target, byte[] frame);
+    }
+
+    /**
+     * A command waiting for confirmation
+     */
+    private static class PendingCommand extends HashedTimerWheel.Timeout {
+        final int mTarget;
+        byte[] mFrame;
+        int mAttempt;
+        long mFirstSentAt;
+
+        PendingCommand(int target) {
+            mTarget = target;
+        }
+    }
+
+    private final HashedTimerWheel mTimerWheel;
+    private final PendingCommand[] mPending = new PendingCommand[TARGET_COUNT];
+    private final OnCommandListener mListener;
+    private RetryPolicy mRetryPolicy = DEFAULT_RETRY_POLICY;
+
+    /** Counters **/
+    private long mCommandsSent = 0;
+    private long mCommandsConfirmed = 0;
+    private long mTimeouts = 0;
+    private long mWriteFailures = 0;
+    private long mRetries = 0;
+    private long mFailures = 0;
+    private long mLastConfirmationLatency = -1;
+
+
+    /**
+     * @param listener notified of retries and failures
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public BleCommandTracker(OnCommandListener listener, long now) {
+        mListener = listener;
+        mTimerWheel = new HashedTimerWheel(TICK_DURATION, BUCKET_COUNT, now);
+        for (int target = 0; target < TARGET_COUNT; target++) {
+            mPending[target] = new PendingCommand(target);
+        }
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    /**
+     * A command was sent.  Start waiting for its confirmation.
+     * A newer command for the same target replaces the old one.
+     *
+     * @param target the command target
+     * @param frame the data packet that was sent
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public void track(int target, byte[] frame, long now) {
+        PendingCommand command = mPending[target];
+        command.mFrame = frame;
+        command.mAttempt = 1;
+        command.mFirstSentAt = now;
+        mTimerWheel.schedule(command, now + mRetryPolicy.getTimeout(1));
+        mCommandsSent++;
+    }
+
+    /**
+     * The Peripheral confirmed the command
+     *
+     * @param target the command target
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return <b>true</b> if a command was waiting for this confirmation
+     */
+    public boolean onConfirmed(int target, long now) {
+        PendingCommand command = mPending[target];
+        if (!mTimerWheel.cancel(command)) {
+            return false;
+        }
+        mCommandsConfirmed++;
+        mLastConfirmationLatency = now - command.mFirstSentAt;
+        command.mFrame = null;
+        return true;
+    }
+
+    /**
+     * The write was not acknowledged by the GATT server.  Retry right away if attempts remain
+     *
+     * @param target the command target
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public void onWriteFailed(int target, long now) {
+        PendingCommand command = mPending[target];
+        if (!command.isScheduled()) {
+            return;
+        }
+        mWriteFailures++;
+        mTimerWheel.cancel(command);
+        retryOrFail(command, now);
+    }
+
+    /**
+     * The Peripheral rejected the command.  Sending it again won't help
+     *
+     * @param target the command target
+     */
+    public void onRejected(int target) {
+        PendingCommand command = mPending[target];
+        if (!mTimerWheel.cancel(command)) {
+            return;
+        }
+        fail(command);
+    }
+
+    /**
+     * Expire overdue commands.  Call this periodically while hasPendingCommands() is true
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public void tick(long now) {
+        mTimerWheel.advance(now, mOnExpiredListener);
+    }
+
+    /**
+     * Forget all pending commands without failing them, for example after a disconnect
+     */
+    public void clear() {
+        for (PendingCommand command : mPending) {
+            mTimerWheel.cancel(command);
+            command.mFrame = null;
+        }
+    }
+
+    public boolean hasPendingCommands() {
+        return mTimerWheel.size() > 0;
+    }
+
+    public boolean isPending(int target) {
+        return mPending[target].isScheduled();
+    }
+
+    /**
+     * @return the tick duration the tracker should be driven at, in milliseconds
+     */
+    public long getTickDuration() {
+        return mTimerWheel.getTickDuration();
+    }
+
+    public long getCommandsSent() {
+        return mCommandsSent;
+    }
+
+    public long getCommandsConfirmed() {
+        return mCommandsConfirmed;
+    }
+
+    public long getTimeouts() {
+        return mTimeouts;
+    }
+
+    public long getWriteFailures() {
+        return mWriteFailures;
+    }
+
+    public long getRetries() {
+        return mRetries;
+    }
+
+    public long getFailures() {
+        return mFailures;
+    }
+
+    /**
+     * @return milliseconds from the first send to the confirmation of the last confirmed command, or -1
+     */
+    public long getLastConfirmationLatency() {
+        return mLastConfirmationLatency;
+    }
+
+
+    private final HashedTimerWheel.OnExpiredListener mOnExpiredListener = new HashedTimerWheel.OnExpiredListener() {
+        @Override
+        public void onExpired(HashedTimerWheel.Timeout timeout, long now) {
+            mTimeouts++;
+            retryOrFail((PendingCommand) timeout, now);
+        }
+    };
+
+    private void retryOrFail(PendingCommand command, long now) {
+        if (command.mAttempt >= mRetryPolicy.maxAttempts) {
+            fail(command);
+            return;
+        }
+        command.mAttempt++;
+        mRetries++;
+        mTimerWheel.schedule(command, now + mRetryPolicy.getTimeout(command.mAttempt));
+        mListener.onResendCommand(command.mTarget, command.mFrame, command.mAttempt);
+    }
+
+    private void fail(PendingCommand command) {
+        mFailures++;
+        byte[] frame = command.mFrame;
+        command.mFrame = null;
+        mListener.onCommandFailed(command.mTarget, frame);
+    }
+}
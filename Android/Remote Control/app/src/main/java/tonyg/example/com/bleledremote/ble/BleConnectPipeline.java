@@ -0,0 +1,295 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Brings up a fleet of remotes while the scan keeps running.
+ *
+ * Discovered remotes wait in a bounded queue and are connected as slots free up, so no more
+ * than the controller's limit of connection attempts are ever pending at once.  A slot frees
+ * when the connection comes up, so service discovery on one remote overlaps with connecting
+ * the next.  The pipeline stops taking remotes once the fleet is full.
+ *
+ * Reports the time from starting the scan until every remote in the fleet is ready, and the
+ * setup time of each remote from discovery to ready.
+ *
+ * Not thread safe.  BleService calls it on the main thread.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleConnectPipeline {
+    /** Remote states **/
+    public static final int STATE_UNKNOWN = 0;
+    public static final int STATE_QUEUED = 1;
+    public static final int STATE_CONNECTING = 2;
+    public static final int STATE_CONNECTED = 3; // connected, setting up
+    public static final int STATE_READY = 4;
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+    private static final int STATS_CAPACITY = 64;
+
+    /**
+     * Opens connections for the pipeline
+     */
+    public interface Connector {
+        /**
+         * Start connecting to a remote.  Report the outcome with onConnected(), onReady(), or onDisconnected()
+         *
+         * @param address the remote's MAC address
+         */
+        void connect(String address);
+    }
+
+    private final Connector mConnector;
+    private final int mMaxPendingConnects;
+    private final int mQueueCapacity;
+    private final ArrayDeque<String> mQueue;
+    private final HashMap<String, Integer> mStates = new HashMap<String, Integer>();
+    private final HashMap<String, Long> mDiscoveredAt = new HashMap<String, Long>();
+    private int mFleetSize = 1;
+    private int mPendingConnects = 0;
+    private int mReadyCount = 0;
+    private long mBringUpStartedAt = -1;
+    private long mLastTimeToAllReady = -1;
+    private final BleSampleStats mSetupTimes = new BleSampleStats(STATS_CAPACITY);
+
+    /** Counters **/
+    private long mRemotesDiscovered = 0;
+    private long mQueueOverflows = 0;
+    private int mMaxPendingSeen = 0;
+
+
+    /**
+     * @param connector opens connections
+     * @param maxPendingConnects the most connection attempts the controller allows at once
+     * @param queueCapacity the most discovered remotes waiting to connect
+     */
+    public BleConnectPipeline(Connector connector, int maxPendingConnects, int queueCapacity) {
+        if (connector == null || maxPendingConnects < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Invalid pipeline");
+        }
+        mConnector = connector;
+        mMaxPendingConnects = maxPendingConnects;
+        mQueueCapacity = queueCapacity;
+        mQueue = new ArrayDeque<String>(queueCapacity);
+    }
+
+    /**
+     * Set the number of remotes to bring up
+     *
+     * @param fleetSize 1 or more
+     */
+    public void setFleetSize(int fleetSize) {
+        if (fleetSize < 1) {
+            throw new IllegalArgumentException("Fleet size must be at least 1");
+        }
+        mFleetSize = fleetSize;
+        dispatch();
+    }
+
+    public int getFleetSize() {
+        return mFleetSize;
+    }
+
+    /**
+     * A scan started.  Starts the time-to-all-ready clock unless it is already running
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public void onScanStarted(long now) {
+        if (mBringUpStartedAt < 0 && !isComplete()) {
+            mBringUpStartedAt = now;
+        }
+    }
+
+    /**
+     * A remote was discovered.  Queue it, and connect if a slot is free
+     *
+     * @param address the remote's MAC address
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return true if the remote was queued, false if it is already known, the fleet is full, or the queue is full
+     */
+    public boolean onDiscovered(String address, long now) {
+        if (mStates.containsKey(address) || isFull()) {
+            return false;
+        }
+        if (mQueue.size() >= mQueueCapacity) {
+            mQueueOverflows++;
+            return false;
+        }
+        mRemotesDiscovered++;
+        mStates.put(address, STATE_QUEUED);
+        mDiscoveredAt.put(address, now);
+        mQueue.addLast(address);
+        dispatch();
+        return true;
+    }
+
+    /**
+     * The connection came up.  Frees the remote's slot
+     *
+     * @param address the remote's MAC address
+     */
+    public void onConnected(String address) {
+        if (getState(address) != STATE_CONNECTING) {
+            return;
+        }
+        mStates.put(address, STATE_CONNECTED);
+        mPendingConnects--;
+        dispatch();
+    }
+
+    /**
+     * The remote is set up and can take commands
+     *
+     * @param address the remote's MAC address
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return true if this remote completed the fleet
+     */
+    public boolean onReady(String address, long now) {
+        int state = getState(address);
+        if (state != STATE_CONNECTING && state != STATE_CONNECTED) {
+            return false;
+        }
+        if (state == STATE_CONNECTING) {
+            mPendingConnects--;
+        }
+        mStates.put(address, STATE_READY);
+        mReadyCount++;
+        Long discoveredAt = mDiscoveredAt.get(address);
+        if (discoveredAt != null) {
+            mSetupTimes.add(now - discoveredAt);
+        }
+        if (!isComplete()) {
+            dispatch();
+            return false;
+        }
+        if (mBringUpStartedAt >= 0) {
+            mLastTimeToAllReady = now - mBringUpStartedAt;
+            mBringUpStartedAt = -1;
+        }
+        return true;
+    }
+
+    /**
+     * The remote dropped, or connecting to it failed.  It can be discovered again
+     *
+     * @param address the remote's MAC address
+     */
+    public void onDisconnected(String address) {
+        Integer state = mStates.remove(address);
+        if (state == null) {
+            return;
+        }
+        mDiscoveredAt.remove(address);
+        switch (state) {
+            case STATE_QUEUED:
+                mQueue.remove(address);
+                break;
+            case STATE_CONNECTING:
+                mPendingConnects--;
+                break;
+            case STATE_READY:
+                mReadyCount--;
+                break;
+        }
+        dispatch();
+    }
+
+    /**
+     * Forget every remote, for example when the radio turns off
+     */
+    public void reset() {
+        mQueue.clear();
+        mStates.clear();
+        mDiscoveredAt.clear();
+        mPendingConnects = 0;
+        mReadyCount = 0;
+        mBringUpStartedAt = -1;
+    }
+
+    /**
+     * Connect queued remotes while slots are free
+     */
+    private void dispatch() {
+        while (mPendingConnects < mMaxPendingConnects && !mQueue.isEmpty()) {
+            String address = mQueue.pollFirst();
+            mStates.put(address, STATE_CONNECTING);
+            mPendingConnects++;
+            if (mPendingConnects > mMaxPendingSeen) {
+                mMaxPendingSeen = mPendingConnects;
+            }
+            // may report a failure straight back through onDisconnected()
+            mConnector.connect(address);
+        }
+    }
+
+    /**
+     * @param address the remote's MAC address
+     * @return one of the STATE_* remote states
+     */
+    public int getState(String address) {
+        Integer state = mStates.get(address);
+        return state == null ? STATE_UNKNOWN : state;
+    }
+
+    /**
+     * @return true once the whole fleet is discovered, so there is no need to keep scanning
+     */
+    public boolean isFull() {
+        return mStates.size() >= mFleetSize;
+    }
+
+    /**
+     * @return true once every remote in the fleet is ready
+     */
+    public boolean isComplete() {
+        return mReadyCount >= mFleetSize;
+    }
+
+    public int getReadyCount() {
+        return mReadyCount;
+    }
+
+    public int getPendingConnects() {
+        return mPendingConnects;
+    }
+
+    public int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return milliseconds from starting the scan until the whole fleet was last ready, or -1
+     */
+    public long getLastTimeToAllReady() {
+        return mLastTimeToAllReady;
+    }
+
+    /**
+     * @return milliseconds from discovery to ready, per remote
+     */
+    public BleSampleStats getSetupTimes() {
+        return mSetupTimes;
+    }
+
+    public long getRemotesDiscovered() {
+        return mRemotesDiscovered;
+    }
+
+    /**
+     * @return remotes turned away because the queue was full
+     */
+    public long getQueueOverflows() {
+        return mQueueOverflows;
+    }
+
+    /**
+     * @return the most connection attempts that were pending at once
+     */
+    public int getMaxPendingSeen() {
+        return mMaxPendingSeen;
+    }
+}
@@ -0,0 +1,410 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.Set;
+
+/**
+ * A bounded table of Peripherals seen while scanning.
+ *
+ * Peripherals advertise many times per second in low latency scan mode.  Rather than
+ * processing every advertisement, each sighting is run through this table, which keeps an
+ * exponentially smoothed RSSI and the last time the Peripheral was seen.  A sighting only
+ * produces an event when the Peripheral is new, when its smoothed RSSI has moved meaningfully,
+ * or when it has expired.
+ *
+ * Devices are keyed by their MAC address packed into a long, and stored in parallel primitive
+ * arrays so that a sighting does not allocate.  When the table is full, the least recently seen
+ * Peripheral is evicted.
+ *
+ * This class is not thread safe; feed it from a single scan callback thread.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleDeviceCache {
+    /** Events **/
+    public static final int EVENT_NONE = 0;
+    public static final int EVENT_FIRST_SIGHT = 1;
+    public static final int EVENT_RSSI_CHANGED = 2;
+    public static final int EVENT_EXPIRED = 3;
+
+    /** Defaults **/
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final long DEFAULT_EXPIRY_MS = 10000; // forget devices not seen for 10 seconds
+    public static final float DEFAULT_SMOOTHING_FACTOR = 0.25f;
+    public static final int DEFAULT_RSSI_THRESHOLD = 6; // dBm
+
+    // a MAC address is 48 bits long, so -1 can never be a real address
+    public static final long NO_ADDRESS = -1;
+    private static final int NO_SLOT = -1;
+
+    /**
+     * Notified when a sighting produces an event
+     */
+    public interface OnDeviceEventListener {
+        /**
+         * @param event one of EVENT_FIRST_SIGHT, EVENT_RSSI_CHANGED, or EVENT_EXPIRED
+         * @param address the Peripheral MAC address
+         * @param smoothedRssi the smoothed RSSI of the Peripheral
+         */
+        void onDeviceEvent(int event, long address, int smoothedRssi);
+    }
+
+    private final int mCapacity;
+    private final long mExpiryMs;
+    private final float mSmoothingFactor;
+    private final int mRssiThreshold;
+
+    /** Device slots **/
+    private final long[] mAddresses;
+    private final float[] mSmoothedRssi;
+    private final float[] mReportedRssi; // smoothed RSSI at the time of the last event
+    private final long[] mLastSeen;
+    private final int[] mPrevious; // LRU list, mHead is the most recently seen
+    private final int[] mNext; // LRU list, also used to chain free slots
+    private int mHead = NO_SLOT;
+    private int mTail = NO_SLOT;
+    private int mFree;
+    private int mSize;
+
+    /** Address index, open addressing with linear probing **/
+    private final long[] mIndexKeys;
+    private final int[] mIndexSlots;
+    private final int mIndexMask;
+
+    private OnDeviceEventListener mListener;
+
+
+    public BleDeviceCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_EXPIRY_MS, DEFAULT_SMOOTHING_FACTOR, DEFAULT_RSSI_THRESHOLD);
+    }
+
+    /**
+     * Create a device cache
+     *
+     * @param capacity maximum number of Peripherals to remember
+     * @param expiryMs how long a Peripheral can go unseen before it expires
+     * @param smoothingFactor weight of a new RSSI reading, between 0 and 1
+     * @param rssiThreshold how far the smoothed RSSI must move, in dBm, before an event is emitted
+     */
+    public BleDeviceCache(int capacity, long expiryMs, float smoothingFactor, int rssiThreshold) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        mCapacity = capacity;
+        mExpiryMs = expiryMs;
+        mSmoothingFactor = smoothingFactor;
+        mRssiThreshold = rssiThreshold;
+
+        mAddresses = new long[capacity];
+        mSmoothedRssi = new float[capacity];
+        mReportedRssi = new float[capacity];
+        mLastSeen = new long[capacity];
+        mPrevious = new int[capacity];
+        mNext = new int[capacity];
+
+        // keep the index at most half full so probe chains stay short
+        int indexSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        mIndexKeys = new long[indexSize];
+        mIndexSlots = new int[indexSize];
+        mIndexMask = indexSize - 1;
+
+        clear();
+    }
+
+    public void setOnDeviceEventListener(OnDeviceEventListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Forget all Peripherals
+     */
+    public void clear() {
+        for (int i = 0; i < mIndexKeys.length; i++) {
+            mIndexKeys[i] = NO_ADDRESS;
+        }
+        for (int slot = 0; slot < mCapacity; slot++) {
+            mAddresses[slot] = NO_ADDRESS;
+            mNext[slot] = slot + 1 < mCapacity ? slot + 1 : NO_SLOT;
+        }
+        mFree = 0;
+        mHead = NO_SLOT;
+        mTail = NO_SLOT;
+        mSize = 0;
+    }
+
+    /**
+     * Record a scan result
+     *
+     * @param address the Peripheral MAC address, as reported by BluetoothDevice.getAddress()
+     * @param rssi the RSSI of this advertisement
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return the resulting event.  See EVENT_NONE, EVENT_FIRST_SIGHT, and EVENT_RSSI_CHANGED
+     */
+    public int onSighting(String address, int rssi, long now) {
+        return onSighting(macToLong(address), rssi, now);
+    }
+
+    /**
+     * Record a scan result
+     *
+     * @param address the Peripheral MAC address packed into a long
+     * @param rssi the RSSI of this advertisement
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return the resulting event.  See EVENT_NONE, EVENT_FIRST_SIGHT, and EVENT_RSSI_CHANGED
+     */
+    public int onSighting(long address, int rssi, long now) {
+        int slot = findSlot(address);
+
+        // a Peripheral that went quiet for too long counts as a new sighting
+        if (slot != NO_SLOT && now - mLastSeen[slot] > mExpiryMs) {
+            remove(slot, EVENT_EXPIRED);
+            slot = NO_SLOT;
+        }
+
+        if (slot == NO_SLOT) {
+            if (mSize == mCapacity) {
+                remove(mTail, EVENT_EXPIRED);
+            }
+            slot = mFree;
+            mFree = mNext[slot];
+            mAddresses[slot] = address;
+            mSmoothedRssi[slot] = rssi;
+            mReportedRssi[slot] = rssi;
+            mLastSeen[slot] = now;
+            insertIndex(address, slot);
+            linkHead(slot);
+            mSize++;
+            notifyListener(EVENT_FIRST_SIGHT, slot);
+            return EVENT_FIRST_SIGHT;
+        }
+
+        mSmoothedRssi[slot] += mSmoothingFactor * (rssi - mSmoothedRssi[slot]);
+        mLastSeen[slot] = now;
+        if (slot != mHead) {
+            unlink(slot);
+            linkHead(slot);
+        }
+
+        if (Math.abs(mSmoothedRssi[slot] - mReportedRssi[slot]) >= mRssiThreshold) {
+            mReportedRssi[slot] = mSmoothedRssi[slot];
+            notifyListener(EVENT_RSSI_CHANGED, slot);
+            return EVENT_RSSI_CHANGED;
+        }
+        return EVENT_NONE;
+    }
+
+    /**
+     * Remove Peripherals that have not been seen recently.
+     * The LRU list is ordered by last sighting, so this only touches expired entries.
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return the number of Peripherals expired
+     */
+    public int expire(long now) {
+        int expired = 0;
+        while (mTail != NO_SLOT && now - mLastSeen[mTail] > mExpiryMs) {
+            remove(mTail, EVENT_EXPIRED);
+            expired++;
+        }
+        return expired;
+    }
+
+    /**
+     * Find the Peripheral with the strongest smoothed signal
+     *
+     * @return the MAC address of the nearest Peripheral or NO_ADDRESS if the cache is empty
+     */
+    public long getNearestAddress() {
+        return getNearestAddress(null);
+    }
+
+    /**
+     * Find the candidate with the strongest smoothed signal
+     *
+     * @param candidates MAC addresses packed into longs, or null to consider every Peripheral
+     * @return the MAC address of the nearest candidate or NO_ADDRESS if none of them is in the cache
+     */
+    public long getNearestAddress(Set<Long> candidates) {
+        long nearest = NO_ADDRESS;
+        float strongest = -Float.MAX_VALUE;
+        for (int slot = mHead; slot != NO_SLOT; slot = mNext[slot]) {
+            if (candidates != null && !candidates.contains(mAddresses[slot])) {
+                continue;
+            }
+            if (mSmoothedRssi[slot] > strongest) {
+                strongest = mSmoothedRssi[slot];
+                nearest = mAddresses[slot];
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Get the smoothed RSSI of a Peripheral
+     *
+     * @param address the Peripheral MAC address packed into a long
+     * @return the smoothed RSSI, or Integer.MIN_VALUE if the Peripheral is unknown
+     */
+    public int getSmoothedRssi(long address) {
+        int slot = findSlot(address);
+        if (slot == NO_SLOT) {
+            return Integer.MIN_VALUE;
+        }
+        return Math.round(mSmoothedRssi[slot]);
+    }
+
+    public boolean contains(long address) {
+        return findSlot(address) != NO_SLOT;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+
+    /**
+     * Pack a MAC address such as "00:11:22:AA:BB:CC" into a long
+     *
+     * @param address the colon separated MAC address
+     * @return the address as a 48 bit number
+     */
+    public static long macToLong(String address) {
+        long value = 0;
+        int digits = 0;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c == ':') {
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid MAC address: " + address);
+            }
+            value = (value << 4) | digit;
+            digits++;
+        }
+        if (digits != 12) {
+            throw new IllegalArgumentException("Invalid MAC address: " + address);
+        }
+        return value;
+    }
+
+    /**
+     * Unpack a MAC address from a long
+     *
+     * @param address the address as a 48 bit number
+     * @return the colon separated MAC address
+     */
+    public static String longToMac(long address) {
+        char[] mac = new char[17];
+        for (int octet = 0; octet < 6; octet++) {
+            int v = (int) (address >>> (40 - octet * 8)) & 0xFF;
+            mac[octet * 3] = BlePeripheral.hexArray[v >>> 4];
+            mac[octet * 3 + 1] = BlePeripheral.hexArray[v & 0x0F];
+            if (octet < 5) {
+                mac[octet * 3 + 2] = ':';
+            }
+        }
+        return new String(mac);
+    }
+
+
+    private void remove(int slot, int event) {
+        notifyListener(event, slot);
+        removeIndex(mAddresses[slot]);
+        unlink(slot);
+        mAddresses[slot] = NO_ADDRESS;
+        mNext[slot] = mFree;
+        mFree = slot;
+        mSize--;
+    }
+
+    private void notifyListener(int event, int slot) {
+        if (mListener != null) {
+            mListener.onDeviceEvent(event, mAddresses[slot], Math.round(mSmoothedRssi[slot]));
+        }
+    }
+
+    private void linkHead(int slot) {
+        mPrevious[slot] = NO_SLOT;
+        mNext[slot] = mHead;
+        if (mHead != NO_SLOT) {
+            mPrevious[mHead] = slot;
+        }
+        mHead = slot;
+        if (mTail == NO_SLOT) {
+            mTail = slot;
+        }
+    }
+
+    private void unlink(int slot) {
+        int previous = mPrevious[slot];
+        int next = mNext[slot];
+        if (previous != NO_SLOT) {
+            mNext[previous] = next;
+        } else {
+            mHead = next;
+        }
+        if (next != NO_SLOT) {
+            mPrevious[next] = previous;
+        } else {
+            mTail = previous;
+        }
+    }
+
+    private static int hash(long address) {
+        long h = address * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int findSlot(long address) {
+        int i = hash(address) & mIndexMask;
+        while (mIndexKeys[i] != NO_ADDRESS) {
+            if (mIndexKeys[i] == address) {
+                return mIndexSlots[i];
+            }
+            i = (i + 1) & mIndexMask;
+        }
+        return NO_SLOT;
+    }
+
+    private void insertIndex(long address, int slot) {
+        int i = hash(address) & mIndexMask;
+        while (mIndexKeys[i] != NO_ADDRESS) {
+            i = (i + 1) & mIndexMask;
+        }
+        mIndexKeys[i] = address;
+        mIndexSlots[i] = slot;
+    }
+
+    private void removeIndex(long address) {
+        int i = hash(address) & mIndexMask;
+        while (mIndexKeys[i] != address) {
+            if (mIndexKeys[i] == NO_ADDRESS) {
+                return;
+            }
+            i = (i + 1) & mIndexMask;
+        }
+        // shift later entries of the probe chain back so lookups don't stop at the hole
+        int hole = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mIndexMask;
+            if (mIndexKeys[j] == NO_ADDRESS) {
+                break;
+            }
+            int home = hash(mIndexKeys[j]) & mIndexMask;
+            boolean movable = (hole <= j) ? (home <= hole || home > j) : (home <= hole && home > j);
+            if (movable) {
+                mIndexKeys[hole] = mIndexKeys[j];
+                mIndexSlots[hole] = mIndexSlots[j];
+                hole = j;
+            }
+        }
+        mIndexKeys[hole] = NO_ADDRESS;
+    }
+}
@@ -0,0 +1,78 @@
+package tonyg.example.com.bleledremote.ble;
+
+/**
+ * Something that happened on the Bluetooth link: a scan event, a connection state change,
+ * a confirmation from the Peripheral, or a raw notification.
+ *
+ * Event types are bit flags so a subscriber can pick the streams it wants with a mask.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleEvent {
+    /** Event types **/
+    public static final int EVENT_SCAN_STARTED = 1;
+    public static final int EVENT_SCAN_RESULT = 1 << 1; // value is the RSSI
+    public static final int EVENT_SCAN_STOPPED = 1 << 2; // value is the scan failure code, or 0
+    public static final int EVENT_CONNECTION_STATE = 1 << 3; // value is one of CONNECTION_*
+    public static final int EVENT_CONFIRMATION = 1 << 4; // value is the confirmed LED state
+    public static final int EVENT_REJECTED = 1 << 5; // the Peripheral reported an error
+    public static final int EVENT_NOTIFICATION = 1 << 6; // data is the raw frame
+    public static final int EVENT_ALL = (1 << 7) - 1;
+
+    /** Scan events **/
+    public static final int EVENTS_SCAN = EVENT_SCAN_STARTED | EVENT_SCAN_RESULT | EVENT_SCAN_STOPPED;
+
+    /** Connection states **/
+    public static final int CONNECTION_DISCONNECTED = 0;
+    public static final int CONNECTION_CONNECTING = 1;
+    public static final int CONNECTION_CONNECTED = 2;
+    public static final int CONNECTION_READY = 3;
+
+    private final int mType;
+    private final String mAddress;
+    private final int mValue;
+    private final byte[] mData;
+    private final long mTimestamp;
+
+
+    /**
+     * @param type one of the EVENT_* types
+     * @param address the Peripheral's MAC address, or null
+     * @param value the event's value, see the EVENT_* types
+     * @param data the raw frame, or null
+     * @param timestamp when the event happened, in milliseconds from a monotonic clock
+     */
+    public BleEvent(int type, String address, int value, byte[] data, long timestamp) {
+        mType = type;
+        mAddress = address;
+        mValue = value;
+        mData = data;
+        mTimestamp = timestamp;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getValue() {
+        return mValue;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "BleEvent{type=" + mType + ", address=" + mAddress + ", value=" + mValue + ", at=" + mTimestamp + "}";
+    }
+}
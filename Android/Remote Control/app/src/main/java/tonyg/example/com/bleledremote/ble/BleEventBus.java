@@ -0,0 +1,379 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans Bluetooth events out to any number of subscribers without letting a slow one hold up
+ * the thread that published the event, which is usually a GATT or scan callback.
+ *
+ * Each subscriber has its own bounded buffer and an overflow policy for when that buffer is full:
+ *
+ * POLICY_DROP_OLDEST - the oldest pending event is discarded to make room
+ * POLICY_LATEST_ONLY - a pending event of the same type from the same remote is replaced, so
+ *     only the latest connection state, confirmation, etc. of each remote is delivered.  If the
+ *     buffer is still full the oldest event is discarded
+ * POLICY_BLOCK - the publisher waits up to the block timeout for room, then discards the
+ *     new event.  The publisher is never stalled longer than the timeout
+ *
+ * Events are delivered in order on the subscriber's Executor, or on a thread of its own if
+ * it has none.  At most one delivery task per subscriber is waiting on the Executor at a
+ * time, so delivering to a Handler doesn't flood its message queue.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleEventBus {
+    /** Overflow policies **/
+    public static final int POLICY_DROP_OLDEST = 0;
+    public static final int POLICY_LATEST_ONLY = 1;
+    public static final int POLICY_BLOCK = 2;
+
+    public static final long DEFAULT_BLOCK_TIMEOUT = 50; // ms a blocked publisher waits for room
+
+    /**
+     * Receives events from the bus
+     */
+    public interface OnEventListener {
+        /**
+         * @param event the event
+         */
+        void onEvent(BleEvent event);
+    }
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<Subscription>();
+    private final AtomicLong mEventsPublished = new AtomicLong();
+
+
+    /**
+     * Subscribe to the events in a mask
+     *
+     * @param listener receives the events
+     * @param eventMask the BleEvent.EVENT_* types to receive, or'ed together
+     * @param capacity the most events waiting to be delivered
+     * @param policy one of the POLICY_* overflow policies
+     * @param executor runs the listener, or null to give the subscriber a thread of its own
+     * @return the Subscription, for unsubscribing and for its counters
+     */
+    public Subscription subscribe(OnEventListener listener, int eventMask, int capacity, int policy, Executor executor) {
+        return subscribe(listener, eventMask, capacity, policy, DEFAULT_BLOCK_TIMEOUT, executor);
+    }
+
+    /**
+     * Subscribe to the events in a mask
+     *
+     * @param listener receives the events
+     * @param eventMask the BleEvent.EVENT_* types to receive, or'ed together
+     * @param capacity the most events waiting to be delivered
+     * @param policy one of the POLICY_* overflow policies
+     * @param blockTimeout with POLICY_BLOCK, the most milliseconds a publisher waits for room
+     * @param executor runs the listener, or null to give the subscriber a thread of its own
+     * @return the Subscription, for unsubscribing and for its counters
+     */
+    public Subscription subscribe(OnEventListener listener, int eventMask, int capacity, int policy,
+                                  long blockTimeout, Executor executor) {
+        if (listener == null || capacity < 1 || blockTimeout < 0
+                || policy < POLICY_DROP_OLDEST || policy > POLICY_BLOCK) {
+            throw new IllegalArgumentException("Invalid subscription");
+        }
+        Subscription subscription = new Subscription(listener, eventMask, capacity, policy, blockTimeout, executor);
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Stop delivering events to a subscriber.  Events still in its buffer are discarded
+     *
+     * @param subscription the Subscription
+     */
+    public void unsubscribe(Subscription subscription) {
+        if (mSubscriptions.remove(subscription)) {
+            subscription.cancel();
+        }
+    }
+
+    /**
+     * Remove every subscriber
+     */
+    public void clear() {
+        for (Subscription subscription : mSubscriptions) {
+            unsubscribe(subscription);
+        }
+    }
+
+    /**
+     * Hand an event to every subscriber that wants it.  Safe to call from any thread
+     *
+     * @param event the event
+     */
+    public void publish(BleEvent event) {
+        mEventsPublished.incrementAndGet();
+        for (Subscription subscription : mSubscriptions) {
+            if ((subscription.mEventMask & event.getType()) != 0) {
+                subscription.offer(event);
+            }
+        }
+    }
+
+    public int getSubscriberCount() {
+        return mSubscriptions.size();
+    }
+
+    public long getEventsPublished() {
+        return mEventsPublished.get();
+    }
+
+
+    /**
+     * One subscriber's buffer and delivery
+     */
+    public static class Subscription implements Runnable {
+        private final OnEventListener mListener;
+        private final int mEventMask;
+        private final int mCapacity;
+        private final int mPolicy;
+        private final long mBlockTimeout;
+        private final Executor mExecutor;
+        private final ExecutorService mOwnExecutor; // only when the subscriber brought no Executor
+        private final ArrayDeque<BleEvent> mBuffer; // also the lock for everything below
+        private boolean mDeliveryScheduled = false;
+        private boolean mCancelled = false;
+
+        /** Counters **/
+        private long mEventsOffered = 0;
+        private long mEventsDelivered = 0;
+        private long mEventsDropped = 0;
+        private long mEventsReplaced = 0;
+        private long mListenerErrors = 0;
+        private int mMaxDepth = 0;
+
+
+        private Subscription(OnEventListener listener, int eventMask, int capacity, int policy,
+                             long blockTimeout, Executor executor) {
+            mListener = listener;
+            mEventMask = eventMask;
+            mCapacity = capacity;
+            mPolicy = policy;
+            mBlockTimeout = blockTimeout;
+            mBuffer = new ArrayDeque<BleEvent>(capacity);
+            if (executor == null) {
+                mOwnExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "BleEventBus");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                mExecutor = mOwnExecutor;
+            } else {
+                mOwnExecutor = null;
+                mExecutor = executor;
+            }
+        }
+
+        /**
+         * Buffer an event, applying the overflow policy if the buffer is full
+         *
+         * @param event the event
+         * @return true if the event was buffered
+         */
+        boolean offer(BleEvent event) {
+            boolean schedule;
+            synchronized (mBuffer) {
+                if (mCancelled) {
+                    return false;
+                }
+                mEventsOffered++;
+                if (mPolicy == POLICY_LATEST_ONLY) {
+                    Iterator<BleEvent> iterator = mBuffer.iterator();
+                    while (iterator.hasNext()) {
+                        if (isSameSource(iterator.next(), event)) {
+                            iterator.remove();
+                            mEventsReplaced++;
+                            break;
+                        }
+                    }
+                }
+                if (mBuffer.size() >= mCapacity) {
+                    if (mPolicy == POLICY_BLOCK) {
+                        if (!awaitRoom() || mCancelled) {
+                            mEventsDropped++;
+                            return false;
+                        }
+                    } else {
+                        mBuffer.pollFirst();
+                        mEventsDropped++;
+                    }
+                }
+                mBuffer.addLast(event);
+                if (mBuffer.size() > mMaxDepth) {
+                    mMaxDepth = mBuffer.size();
+                }
+                schedule = !mDeliveryScheduled;
+                mDeliveryScheduled = true;
+            }
+            if (schedule) {
+                scheduleDelivery();
+            }
+            return true;
+        }
+
+        /**
+         * @return true if both events are the same type and come from the same remote
+         */
+        private boolean isSameSource(BleEvent a, BleEvent b) {
+            if (a.getType() != b.getType()) {
+                return false;
+            }
+            return a.getAddress() == null ? b.getAddress() == null : a.getAddress().equals(b.getAddress());
+        }
+
+        /**
+         * Wait for the subscriber to make room, up to the block timeout.  Holds the buffer lock
+         *
+         * @return true if there is room
+         */
+        private boolean awaitRoom() {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mBlockTimeout);
+            while (mBuffer.size() >= mCapacity && !mCancelled) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(mBuffer, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return mBuffer.size() < mCapacity;
+        }
+
+        private void scheduleDelivery() {
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (mBuffer) {
+                    mDeliveryScheduled = false;
+                }
+            }
+        }
+
+        /**
+         * Deliver what's buffered.  Hands the Executor back after a buffer's worth of events
+         * so a busy stream can't monopolize a shared thread
+         */
+        @Override
+        public void run() {
+            for (int delivered = 0; delivered < mCapacity; delivered++) {
+                BleEvent event;
+                synchronized (mBuffer) {
+                    event = mCancelled ? null : mBuffer.pollFirst();
+                    if (event == null) {
+                        mDeliveryScheduled = false;
+                        return;
+                    }
+                    // wake publishers blocked on a full buffer
+                    mBuffer.notifyAll();
+                }
+                try {
+                    mListener.onEvent(event);
+                    synchronized (mBuffer) {
+                        mEventsDelivered++;
+                    }
+                } catch (RuntimeException e) {
+                    synchronized (mBuffer) {
+                        mListenerErrors++;
+                    }
+                }
+            }
+            scheduleDelivery();
+        }
+
+        private void cancel() {
+            synchronized (mBuffer) {
+                mCancelled = true;
+                mBuffer.clear();
+                mBuffer.notifyAll();
+            }
+            if (mOwnExecutor != null) {
+                mOwnExecutor.shutdown();
+            }
+        }
+
+        public int getPolicy() {
+            return mPolicy;
+        }
+
+        public int getCapacity() {
+            return mCapacity;
+        }
+
+        /**
+         * @return the number of events waiting to be delivered
+         */
+        public int getDepth() {
+            synchronized (mBuffer) {
+                return mBuffer.size();
+            }
+        }
+
+        /**
+         * @return the deepest the buffer has been
+         */
+        public int getMaxDepth() {
+            synchronized (mBuffer) {
+                return mMaxDepth;
+            }
+        }
+
+        public long getEventsOffered() {
+            synchronized (mBuffer) {
+                return mEventsOffered;
+            }
+        }
+
+        public long getEventsDelivered() {
+            synchronized (mBuffer) {
+                return mEventsDelivered;
+            }
+        }
+
+        /**
+         * @return events discarded because the buffer was full
+         */
+        public long getEventsDropped() {
+            synchronized (mBuffer) {
+                return mEventsDropped;
+            }
+        }
+
+        /**
+         * @return events replaced by a newer one of the same type, with POLICY_LATEST_ONLY
+         */
+        public long getEventsReplaced() {
+            synchronized (mBuffer) {
+                return mEventsReplaced;
+            }
+        }
+
+        /**
+         * @return events the listener threw on
+         */
+        public long getListenerErrors() {
+            synchronized (mBuffer) {
+                return mListenerErrors;
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The last known LED state, signal strength, and link state of every remote, keyed by MAC address.
+ *
+ * Readers such as the UI or an exporter call getSnapshot() and get an immutable view of the
+ * whole fleet, consistent as of one version.  They never take a lock, so they can't hold up
+ * the Bluetooth threads, and a snapshot doesn't change while they are reading it.
+ *
+ * Each update copies the map, changes one device, and publishes the copy with a compare and
+ * set.  With one writer, such as the event bus delivery thread, the compare and set never
+ * retries.  Updates that wouldn't change anything publish nothing.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleFleetState implements BleEventBus.OnEventListener {
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private final AtomicReference<Snapshot> mSnapshot = new AtomicReference<Snapshot>(new Snapshot());
+
+    /** Counters **/
+    private final AtomicLong mUpdatesPublished = new AtomicLong();
+    private final AtomicLong mUpdatesSkipped = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+
+
+    /**
+     * One remote's state.  Immutable
+     */
+    public static class DeviceState {
+        private final String mAddress;
+        private final int mLedState;
+        private final int mRssi;
+        private final int mLinkState;
+        private final long mUpdatedAt;
+
+        DeviceState(String address, int ledState, int rssi, int linkState, long updatedAt) {
+            mAddress = address;
+            mLedState = ledState;
+            mRssi = rssi;
+            mLinkState = linkState;
+            mUpdatedAt = updatedAt;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * @return BlePeripheral.LED_STATE_ON, LED_STATE_OFF, or UNKNOWN
+         */
+        public int getLedState() {
+            return mLedState;
+        }
+
+        /**
+         * @return the signal strength of the last advertisement, or UNKNOWN
+         */
+        public int getRssi() {
+            return mRssi;
+        }
+
+        /**
+         * @return one of BleEvent.CONNECTION_*
+         */
+        public int getLinkState() {
+            return mLinkState;
+        }
+
+        /**
+         * @return when the state last changed, in milliseconds from a monotonic clock
+         */
+        public long getUpdatedAt() {
+            return mUpdatedAt;
+        }
+
+        private boolean sameAs(int ledState, int rssi, int linkState) {
+            return mLedState == ledState && mRssi == rssi && mLinkState == linkState;
+        }
+    }
+
+
+    /**
+     * The whole fleet as of one version.  Immutable
+     */
+    public static class Snapshot {
+        private final Map<String, DeviceState> mDevices;
+        private final long mVersion;
+
+        private Snapshot() {
+            mDevices = Collections.emptyMap();
+            mVersion = 0;
+        }
+
+        private Snapshot(Map<String, DeviceState> devices, long version) {
+            mDevices = Collections.unmodifiableMap(devices);
+            mVersion = version;
+        }
+
+        /**
+         * @return the number of updates published before this snapshot
+         */
+        public long getVersion() {
+            return mVersion;
+        }
+
+        public int size() {
+            return mDevices.size();
+        }
+
+        /**
+         * @param address the remote's MAC address
+         * @return its state, or null if it was never seen
+         */
+        public DeviceState get(String address) {
+            return mDevices.get(address);
+        }
+
+        public Collection<DeviceState> getDevices() {
+            return mDevices.values();
+        }
+
+        /**
+         * @param linkState one of BleEvent.CONNECTION_*
+         * @return the number of remotes in that link state
+         */
+        public int countLinkState(int linkState) {
+            int count = 0;
+            for (DeviceState device : mDevices.values()) {
+                if (device.getLinkState() == linkState) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+
+    /**
+     * @return the current state of the fleet.  Never blocks
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot.get();
+    }
+
+    /**
+     * @param address the remote's MAC address
+     * @param ledState BlePeripheral.LED_STATE_ON or LED_STATE_OFF
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public void setLedState(String address, int ledState, long now) {
+        update(address, ledState, UNKNOWN, UNKNOWN, now);
+    }
+
+    /**
+     * @param address the remote's MAC address
+     * @param rssi the signal strength of its latest advertisement
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public void setRssi(String address, int rssi, long now) {
+        update(address, UNKNOWN, rssi, UNKNOWN, now);
+    }
+
+    /**
+     * @param address the remote's MAC address
+     * @param linkState one of BleEvent.CONNECTION_*
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public void setLinkState(String address, int linkState, long now) {
+        update(address, UNKNOWN, UNKNOWN, linkState, now);
+    }
+
+    /**
+     * Forget a remote
+     *
+     * @param address the remote's MAC address
+     */
+    public void remove(String address) {
+        while (true) {
+            Snapshot current = mSnapshot.get();
+            if (current.get(address) == null) {
+                return;
+            }
+            HashMap<String, DeviceState> devices = new HashMap<String, DeviceState>(current.mDevices);
+            devices.remove(address);
+            if (mSnapshot.compareAndSet(current, new Snapshot(devices, current.mVersion + 1))) {
+                mUpdatesPublished.incrementAndGet();
+                return;
+            }
+            mRetries.incrementAndGet();
+        }
+    }
+
+    /**
+     * Keep the fleet up to date from the event bus
+     *
+     * @param event scan result, connection state, or confirmation events
+     */
+    @Override
+    public void onEvent(BleEvent event) {
+        if (event.getAddress() == null) {
+            return;
+        }
+        switch (event.getType()) {
+            case BleEvent.EVENT_SCAN_RESULT:
+                setRssi(event.getAddress(), event.getValue(), event.getTimestamp());
+                break;
+            case BleEvent.EVENT_CONNECTION_STATE:
+                setLinkState(event.getAddress(), event.getValue(), event.getTimestamp());
+                break;
+            case BleEvent.EVENT_CONFIRMATION:
+                setLedState(event.getAddress(), event.getValue(), event.getTimestamp());
+                break;
+        }
+    }
+
+    /**
+     * Change the fields that aren't UNKNOWN and publish a new snapshot
+     */
+    private void update(String address, int ledState, int rssi, int linkState, long now) {
+        while (true) {
+            Snapshot current = mSnapshot.get();
+            DeviceState previous = current.get(address);
+            int nextLedState = ledState;
+            int nextRssi = rssi;
+            int nextLinkState = linkState;
+            if (previous != null) {
+                nextLedState = ledState != UNKNOWN ? ledState : previous.getLedState();
+                nextRssi = rssi != UNKNOWN ? rssi : previous.getRssi();
+                nextLinkState = linkState != UNKNOWN ? linkState : previous.getLinkState();
+                if (previous.sameAs(nextLedState, nextRssi, nextLinkState)) {
+                    mUpdatesSkipped.incrementAndGet();
+                    return;
+                }
+            } else if (nextLinkState == UNKNOWN) {
+                nextLinkState = BleEvent.CONNECTION_DISCONNECTED;
+            }
+
+            HashMap<String, DeviceState> devices = new HashMap<String, DeviceState>(current.mDevices);
+            devices.put(address, new DeviceState(address, nextLedState, nextRssi, nextLinkState, now));
+            if (mSnapshot.compareAndSet(current, new Snapshot(devices, current.mVersion + 1))) {
+                mUpdatesPublished.incrementAndGet();
+                return;
+            }
+            // another writer got in first; apply the change to its snapshot
+            mRetries.incrementAndGet();
+        }
+    }
+
+    public long getUpdatesPublished() {
+        return mUpdatesPublished.get();
+    }
+
+    /**
+     * @return updates that wouldn't have changed anything
+     */
+    public long getUpdatesSkipped() {
+        return mUpdatesSkipped.get();
+    }
+
+    /**
+     * @return updates that lost a race with another writer and were applied again
+     */
+    public long getRetries() {
+        return mRetries.get();
+    }
+}
@@ -0,0 +1,375 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.Locale;
+
+/**
+ * Follows the quality of one connection, and picks the PHY and write type that suit it.
+ *
+ * The remote's RSSI is read periodically and smoothed, and its trend is kept in dBm per
+ * second.  A good link asks for the 2M PHY and unacknowledged writes, for throughput.  When
+ * the signal drops below the poor threshold, or fades fast below the good one, the link falls
+ * back to the coded PHY, or 1M where coded isn't supported, and acknowledged writes.  It only
+ * goes back once the signal is above the good threshold again, so a signal hovering around one
+ * threshold doesn't flip the link back and forth.
+ *
+ * Effective throughput is the bytes the Peripheral acknowledged per second while writes were
+ * going out: from the first acknowledgement of a window to the last one, so time spent idle
+ * doesn't count against the link.
+ *
+ * PHY values and masks are the BluetoothDevice.PHY_LE_* constants.  Safe to use from any thread.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleLinkMonitor {
+    /** PHYs, as BluetoothDevice.PHY_LE_* **/
+    public static final int PHY_UNKNOWN = 0;
+    public static final int PHY_LE_1M = 1;
+    public static final int PHY_LE_2M = 2;
+    public static final int PHY_LE_CODED = 3;
+
+    /** PHY preferences, as BluetoothDevice.PHY_LE_*_MASK and PHY_OPTION_* **/
+    public static final int PHY_LE_1M_MASK = 1;
+    public static final int PHY_LE_2M_MASK = 2;
+    public static final int PHY_LE_CODED_MASK = 4;
+    public static final int PHY_OPTION_NO_PREFERRED = 0;
+    public static final int PHY_OPTION_S8 = 2; // the slowest, longest range coding
+
+    /** Link quality **/
+    public static final int QUALITY_GOOD = 0;
+    public static final int QUALITY_POOR = 1;
+
+    public static final int DEFAULT_POOR_RSSI = -85; // dBm
+    public static final int DEFAULT_GOOD_RSSI = -75; // dBm; between the two the quality holds
+    public static final long RSSI_INTERVAL = 2000; // ms between RSSI reads
+    public static final double FADING_TREND = -2; // dBm per second
+    private static final double SMOOTHING = 0.25; // weight of each new reading
+    private static final int MIN_SAMPLES = 3; // readings before the quality can change
+    private static final long THROUGHPUT_WINDOW = 1000; // ms
+    private static final int STATS_CAPACITY = 64;
+
+    private final int mPoorRssi;
+    private final int mGoodRssi;
+    private boolean mCodedPhySupported = false;
+    private int mQuality = QUALITY_GOOD;
+    private int mRssiSamples = 0;
+    private int mLastRssi;
+    private double mSmoothedRssi;
+    private double mRssiTrend = 0;
+    private long mLastRssiAt;
+    private int mTxPhy = PHY_UNKNOWN;
+    private int mRxPhy = PHY_UNKNOWN;
+    private long mWindowStartedAt; // the first acknowledgement in the window
+    private long mWindowLastAt; // the last one
+    private long mWindowBytes = 0; // acknowledged after the first one
+    private int mWindowWrites = 0;
+    private long mThroughput = -1;
+    private final BleSampleStats mRssiStats = new BleSampleStats(STATS_CAPACITY);
+    private final BleSampleStats mThroughputStats = new BleSampleStats(STATS_CAPACITY);
+
+    /** Counters **/
+    private long mRssiReads = 0;
+    private long mRssiReadFailures = 0;
+    private long mFallbacks = 0;
+    private long mRecoveries = 0;
+    private long mPhyUpdates = 0;
+    private long mPhyUpdateFailures = 0;
+    private long mBytesWritten = 0;
+
+
+    public BleLinkMonitor() {
+        this(DEFAULT_POOR_RSSI, DEFAULT_GOOD_RSSI);
+    }
+
+    /**
+     * @param poorRssi the smoothed RSSI below which the link falls back, in dBm
+     * @param goodRssi the smoothed RSSI above which the link goes back to fast, in dBm
+     */
+    public BleLinkMonitor(int poorRssi, int goodRssi) {
+        if (goodRssi <= poorRssi) {
+            throw new IllegalArgumentException("The good RSSI must be above the poor RSSI");
+        }
+        mPoorRssi = poorRssi;
+        mGoodRssi = goodRssi;
+    }
+
+    /**
+     * @param supported <b>true</b> if the phone can fall back to the coded PHY
+     */
+    public synchronized void setCodedPhySupported(boolean supported) {
+        mCodedPhySupported = supported;
+    }
+
+    /**
+     * Start following a new connection.  The counters are kept
+     */
+    public synchronized void reset() {
+        mQuality = QUALITY_GOOD;
+        mRssiSamples = 0;
+        mRssiTrend = 0;
+        mTxPhy = PHY_UNKNOWN;
+        mRxPhy = PHY_UNKNOWN;
+        mWindowBytes = 0;
+        mWindowWrites = 0;
+        mThroughput = -1;
+    }
+
+    /**
+     * Add an RSSI reading
+     *
+     * @param rssi the remote's RSSI, in dBm
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return true if the link quality changed, so the PHY and write type should change too
+     */
+    public synchronized boolean onRssi(int rssi, long now) {
+        mRssiReads++;
+        mRssiStats.add(rssi);
+        mLastRssi = rssi;
+        if (mRssiSamples == 0) {
+            mSmoothedRssi = rssi;
+        } else {
+            double previous = mSmoothedRssi;
+            mSmoothedRssi += SMOOTHING * (rssi - mSmoothedRssi);
+            long elapsed = now - mLastRssiAt;
+            if (elapsed > 0) {
+                double slope = (mSmoothedRssi - previous) * 1000 / elapsed;
+                mRssiTrend += SMOOTHING * (slope - mRssiTrend);
+            }
+        }
+        mLastRssiAt = now;
+        mRssiSamples++;
+        if (mRssiSamples < MIN_SAMPLES) {
+            return false;
+        }
+
+        boolean fading = mRssiTrend <= FADING_TREND;
+        if (mQuality == QUALITY_GOOD && (mSmoothedRssi < mPoorRssi || (fading && mSmoothedRssi < mGoodRssi))) {
+            mQuality = QUALITY_POOR;
+            mFallbacks++;
+            return true;
+        }
+        if (mQuality == QUALITY_POOR && mSmoothedRssi >= mGoodRssi && !fading) {
+            mQuality = QUALITY_GOOD;
+            mRecoveries++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * An RSSI read failed or timed out
+     */
+    public synchronized void onRssiReadFailed() {
+        mRssiReadFailures++;
+    }
+
+    /**
+     * The PHY was negotiated, from BluetoothGattCallback.onPhyUpdate
+     *
+     * @param txPhy the transmitter PHY
+     * @param rxPhy the receiver PHY
+     * @param success <b>true</b> if the update succeeded
+     */
+    public synchronized void onPhyUpdate(int txPhy, int rxPhy, boolean success) {
+        if (!success) {
+            mPhyUpdateFailures++;
+            return;
+        }
+        mTxPhy = txPhy;
+        mRxPhy = rxPhy;
+        mPhyUpdates++;
+    }
+
+    /**
+     * The current PHY was read, from BluetoothGattCallback.onPhyRead.  Unlike an update,
+     * this comes even when the PHY didn't change
+     *
+     * @param txPhy the transmitter PHY
+     * @param rxPhy the receiver PHY
+     * @param success <b>true</b> if the read succeeded
+     */
+    public synchronized void onPhyRead(int txPhy, int rxPhy, boolean success) {
+        if (!success) {
+            return;
+        }
+        mTxPhy = txPhy;
+        mRxPhy = rxPhy;
+    }
+
+    /**
+     * The Peripheral acknowledged a write
+     *
+     * @param bytes the bytes written
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public synchronized void onBytesWritten(int bytes, long now) {
+        if (mWindowWrites > 0 && now - mWindowStartedAt >= THROUGHPUT_WINDOW) {
+            closeWindow();
+        }
+        if (mWindowWrites == 0) {
+            // the first acknowledgement only marks when the window started
+            mWindowStartedAt = now;
+        } else {
+            mWindowBytes += bytes;
+        }
+        mWindowLastAt = now;
+        mWindowWrites++;
+        mBytesWritten += bytes;
+    }
+
+    /**
+     * Close the throughput window once writes stopped.  Call periodically
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public synchronized void tick(long now) {
+        if (mWindowWrites > 0 && now - mWindowLastAt >= THROUGHPUT_WINDOW) {
+            closeWindow();
+        }
+    }
+
+    private void closeWindow() {
+        long elapsed = mWindowLastAt - mWindowStartedAt;
+        if (elapsed > 0) {
+            mThroughput = mWindowBytes * 1000 / elapsed;
+            mThroughputStats.add(mThroughput);
+        }
+        mWindowBytes = 0;
+        mWindowWrites = 0;
+    }
+
+    /**
+     * @return BluetoothDevice.PHY_LE_*_MASK PHYs to ask for, for both directions
+     */
+    public synchronized int getPreferredPhyMask() {
+        if (mQuality == QUALITY_GOOD) {
+            return PHY_LE_2M_MASK;
+        }
+        return mCodedPhySupported ? PHY_LE_CODED_MASK : PHY_LE_1M_MASK;
+    }
+
+    /**
+     * @return the BluetoothDevice.PHY_OPTION_* coding to ask for
+     */
+    public synchronized int getPhyOptions() {
+        return mQuality == QUALITY_POOR && mCodedPhySupported ? PHY_OPTION_S8 : PHY_OPTION_NO_PREFERRED;
+    }
+
+    /**
+     * @return <b>true</b> if writes should wait for the Peripheral's acknowledgement
+     */
+    public synchronized boolean isAcknowledgedWrites() {
+        return mQuality == QUALITY_POOR;
+    }
+
+    /**
+     * @return QUALITY_GOOD or QUALITY_POOR
+     */
+    public synchronized int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * @return the smoothed RSSI in dBm, or 0 before the first reading
+     */
+    public synchronized int getRssi() {
+        return mRssiSamples == 0 ? 0 : (int) Math.round(mSmoothedRssi);
+    }
+
+    /**
+     * @return the last RSSI read, in dBm, or 0 before the first reading
+     */
+    public synchronized int getLastRssi() {
+        return mRssiSamples == 0 ? 0 : mLastRssi;
+    }
+
+    /**
+     * @return how fast the smoothed RSSI is changing, in dBm per second.  Negative while fading
+     */
+    public synchronized double getRssiTrend() {
+        return mRssiTrend;
+    }
+
+    /**
+     * @return the recent RSSI readings, in dBm
+     */
+    public BleSampleStats getRssiStats() {
+        return mRssiStats;
+    }
+
+    public synchronized int getTxPhy() {
+        return mTxPhy;
+    }
+
+    public synchronized int getRxPhy() {
+        return mRxPhy;
+    }
+
+    /**
+     * @return bytes per second in the last window writes went out in, or -1
+     */
+    public synchronized long getThroughput() {
+        return mThroughput;
+    }
+
+    /**
+     * @return the throughput of recent windows, in bytes per second
+     */
+    public BleSampleStats getThroughputStats() {
+        return mThroughputStats;
+    }
+
+    public synchronized long getRssiReads() {
+        return mRssiReads;
+    }
+
+    public synchronized long getRssiReadFailures() {
+        return mRssiReadFailures;
+    }
+
+    /**
+     * @return times the link fell back to a robust PHY and acknowledged writes
+     */
+    public synchronized long getFallbacks() {
+        return mFallbacks;
+    }
+
+    public synchronized long getRecoveries() {
+        return mRecoveries;
+    }
+
+    public synchronized long getPhyUpdates() {
+        return mPhyUpdates;
+    }
+
+    public synchronized long getPhyUpdateFailures() {
+        return mPhyUpdateFailures;
+    }
+
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @param phy one of the PHY_* PHYs
+     * @return a short name for logs
+     */
+    public static String getPhyName(int phy) {
+        switch (phy) {
+            case PHY_LE_1M:
+                return "1M";
+            case PHY_LE_2M:
+                return "2M";
+            case PHY_LE_CODED:
+                return "coded";
+        }
+        return "unknown";
+    }
+
+    @Override
+    public synchronized String toString() {
+        return (mQuality == QUALITY_GOOD ? "good" : "poor") + " phy=" + getPhyName(mTxPhy) + "/" + getPhyName(mRxPhy)
+                + " rssi=" + getRssi() + "dBm trend=" + String.format(Locale.US, "%.1f", mRssiTrend)
+                + "dBm/s throughput=" + mThroughput + "B/s fallbacks=" + mFallbacks;
+    }
+}
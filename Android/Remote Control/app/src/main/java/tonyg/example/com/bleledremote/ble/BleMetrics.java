@@ -0,0 +1,289 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters and gauges for the Bluetooth stack, for scraping health and performance off devices.
+ *
+ * Counters only go up: connects, disconnects, retries, bytes sent and received, and one counter
+ * per GATT status and per scan failure code.  GATT statuses are also counted by category, so a
+ * dashboard can tell link loss from permission or security problems without knowing every code.
+ * Gauges hold the latest value of something, such as a queue depth, along with the highest
+ * value seen.
+ *
+ * Names are dotted paths, such as "gatt.write.status.write_not_permitted".  A snapshot is a
+ * sorted copy of every value, and dumps as text or JSON.  Safe to update from any thread;
+ * updating never blocks.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleMetrics {
+    /** Counters **/
+    public static final String CONNECT_ATTEMPTS = "connect.attempts";
+    public static final String CONNECTS = "connect.established";
+    public static final String CONNECTS_READY = "connect.ready";
+    public static final String DISCONNECTS = "disconnects";
+    public static final String COMMAND_RETRIES = "command.retries";
+    public static final String COMMAND_FAILURES = "command.failures";
+    public static final String FRAMES_SENT = "frames.sent";
+    public static final String BYTES_SENT = "bytes.sent";
+    public static final String FRAMES_RECEIVED = "frames.received";
+    public static final String BYTES_RECEIVED = "bytes.received";
+    public static final String SCAN_STARTS = "scan.starts";
+    public static final String LINK_FALLBACKS = "link.fallbacks"; // to a robust PHY and acknowledged writes
+    public static final String LINK_RECOVERIES = "link.recoveries";
+    public static final String ADAPTER_OFF = "adapter.off";
+    public static final String ADAPTER_RESUMED_CONNECTS = "adapter.resumed_connects"; // reconnected without a scan
+
+    /** Gauges **/
+    public static final String QUEUE_DEPTH = "queue.depth"; // commands waiting, over every remote
+    public static final String QUEUE_LANE_PEAK_DEPTH = "queue.lane_peak_depth";
+    public static final String ADAPTER_RESTART_TIME = "adapter.restart_ms"; // adapter on until ready
+    public static final String CONNECTED_REMOTES = "remotes.connected";
+
+    /** GATT operations, for status counters **/
+    public static final String OP_CONNECTION = "connection";
+    public static final String OP_DISCOVER = "discover";
+    public static final String OP_READ = "read";
+    public static final String OP_WRITE = "write";
+    public static final String OP_DESCRIPTOR_WRITE = "descriptor_write";
+    public static final String OP_MTU = "mtu";
+    public static final String OP_RSSI = "rssi";
+    public static final String OP_PHY = "phy";
+
+    /** GATT status categories **/
+    public static final String CATEGORY_SUCCESS = "success";
+    public static final String CATEGORY_PERMISSION = "permission"; // the attribute doesn't allow it
+    public static final String CATEGORY_SECURITY = "security"; // needs bonding or encryption
+    public static final String CATEGORY_REQUEST = "request"; // the request itself was wrong
+    public static final String CATEGORY_LINK = "link"; // the link dropped or timed out
+    public static final String CATEGORY_CONGESTION = "congestion";
+    public static final String CATEGORY_STACK = "stack"; // the phone's Bluetooth stack failed
+    public static final String CATEGORY_OTHER = "other";
+
+    private static final String MAX_SUFFIX = ".max";
+
+    private final ConcurrentHashMap<String, AtomicLong> mValues = new ConcurrentHashMap<String, AtomicLong>();
+
+
+    /**
+     * Add one to a counter
+     *
+     * @param name the counter's name
+     */
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Add to a counter
+     *
+     * @param name the counter's name
+     * @param delta the amount to add
+     */
+    public void add(String name, long delta) {
+        get(name).addAndGet(delta);
+    }
+
+    /**
+     * Set a gauge, and raise its ".max" companion if this is the highest value seen
+     *
+     * @param name the gauge's name
+     * @param value the current value
+     */
+    public void setGauge(String name, long value) {
+        get(name).set(value);
+        AtomicLong max = get(name + MAX_SUFFIX);
+        long seen;
+        do {
+            seen = max.get();
+        } while (value > seen && !max.compareAndSet(seen, value));
+    }
+
+    /**
+     * Count the status a GATT callback reported, by code and by category
+     *
+     * @param operation one of the OP_* operations
+     * @param status the GATT status, or for OP_CONNECTION the connection status
+     */
+    public void onGattStatus(String operation, int status) {
+        increment("gatt." + operation + ".status." + getGattStatusName(status));
+        increment("gatt." + operation + ".category." + getGattStatusCategory(status));
+    }
+
+    /**
+     * Count a scan that couldn't start
+     *
+     * @param errorCode one of the ScanCallback.SCAN_FAILED_* codes
+     */
+    public void onScanFailed(int errorCode) {
+        increment("scan.failed." + getScanFailureName(errorCode));
+    }
+
+    /**
+     * @param name a counter or gauge name
+     * @return its value, or 0 if it was never set
+     */
+    public long getValue(String name) {
+        AtomicLong value = mValues.get(name);
+        return value == null ? 0 : value.get();
+    }
+
+    public void clear() {
+        mValues.clear();
+    }
+
+    /**
+     * @return a sorted copy of every counter and gauge
+     */
+    public Map<String, Long> snapshot() {
+        TreeMap<String, Long> snapshot = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : mValues.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return one "name value" line per counter and gauge, sorted by name
+     */
+    public String toText() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            builder.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return a flat JSON object of every counter and gauge, sorted by name
+     */
+    public String toJson() {
+        StringBuilder builder = new StringBuilder("{");
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            if (builder.length() > 1) {
+                builder.append(',');
+            }
+            builder.append('"').append(escapeJson(entry.getKey())).append("\":").append(entry.getValue());
+        }
+        return builder.append('}').toString();
+    }
+
+    private AtomicLong get(String name) {
+        AtomicLong value = mValues.get(name);
+        if (value == null) {
+            AtomicLong created = new AtomicLong();
+            value = mValues.putIfAbsent(name, created);
+            if (value == null) {
+                value = created;
+            }
+        }
+        return value;
+    }
+
+    private static String escapeJson(String value) {
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Name a GATT status, including the connection statuses BluetoothGatt doesn't publish
+     *
+     * @param status a GATT status
+     * @return a short name, or "status_[code]" if it isn't a known one
+     */
+    public static String getGattStatusName(int status) {
+        switch (status) {
+            case 0x00: return "success";
+            case 0x01: return "invalid_handle";
+            case 0x02: return "read_not_permitted";
+            case 0x03: return "write_not_permitted";
+            case 0x05: return "insufficient_authentication";
+            case 0x06: return "request_not_supported";
+            case 0x07: return "invalid_offset";
+            case 0x08: return "connection_timeout";
+            case 0x0D: return "invalid_attribute_length";
+            case 0x0F: return "insufficient_encryption";
+            case 0x13: return "terminated_by_peer";
+            case 0x16: return "terminated_by_local_host";
+            case 0x22: return "lmp_response_timeout";
+            case 0x3E: return "failed_to_establish";
+            case 0x80: return "no_resources";
+            case 0x81: return "internal_error";
+            case 0x85: return "gatt_error";
+            case 0x8F: return "connection_congested";
+            case 0x101: return "failure";
+        }
+        return "status_" + status;
+    }
+
+    /**
+     * Sort a GATT status into the kind of problem it is
+     *
+     * @param status a GATT status
+     * @return one of the CATEGORY_* categories
+     */
+    public static String getGattStatusCategory(int status) {
+        switch (status) {
+            case 0x00:
+                return CATEGORY_SUCCESS;
+            case 0x02:
+            case 0x03:
+                return CATEGORY_PERMISSION;
+            case 0x05:
+            case 0x0F:
+                return CATEGORY_SECURITY;
+            case 0x01:
+            case 0x06:
+            case 0x07:
+            case 0x0D:
+                return CATEGORY_REQUEST;
+            case 0x08:
+            case 0x13:
+            case 0x16:
+            case 0x22:
+            case 0x3E:
+                return CATEGORY_LINK;
+            case 0x8F:
+                return CATEGORY_CONGESTION;
+            case 0x80:
+            case 0x81:
+            case 0x85:
+            case 0x101:
+                return CATEGORY_STACK;
+        }
+        return CATEGORY_OTHER;
+    }
+
+    /**
+     * Name a scan failure
+     *
+     * @param errorCode one of the ScanCallback.SCAN_FAILED_* codes
+     * @return a short name, or "error_[code]" if it isn't a known one
+     */
+    public static String getScanFailureName(int errorCode) {
+        switch (errorCode) {
+            case 1: return "already_started";
+            case 2: return "application_registration_failed";
+            case 3: return "internal_error";
+            case 4: return "feature_unsupported";
+            case 5: return "out_of_hardware_resources";
+            case 6: return "scanning_too_frequently";
+        }
+        return "error_" + errorCode;
+    }
+}
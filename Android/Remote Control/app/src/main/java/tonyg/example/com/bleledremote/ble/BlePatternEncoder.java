@@ -0,0 +1,91 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs a compiled BleScene into the frames that upload it to the Peripheral's pattern table.
+ *
+ * The upload is a BEGIN frame with the step count, the repeat count, and the length of one
+ * pass, then DATA frames with as many steps as fit in one write, then optionally PLAY.  The
+ * Peripheral plays whatever table it holds when PLAY arrives, so the frames only work in this
+ * order and must go out through one lane of the command queue.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BlePatternEncoder {
+    /** Data packet **/
+    private static final int DATA_POSITION = 0;
+    private static final int FOOTER_POSITION = 1;
+    private static final int PAYLOAD_POSITION = 2; // extended commands carry data after the footer
+    private static final int BEGIN_LENGTH = PAYLOAD_POSITION + 4;
+    private static final int STEP_LENGTH = 3; // state, then the offset as 16 bit little endian milliseconds
+    private static final int ATT_HEADER_LENGTH = 3;
+
+
+    /**
+     * Build the frames that upload a pattern
+     *
+     * @param schedule the compiled scene
+     * @param mtu the negotiated ATT MTU
+     * @param play <b>true</b> to end with a PLAY frame
+     * @return the frames, in the order they must be sent
+     * @throws IllegalArgumentException if the pattern doesn't fit the Peripheral's table
+     */
+    public static List<byte[]> encode(BleScene.Schedule schedule, int mtu, boolean play) {
+        int stepCount = schedule.getStepCount();
+        if (stepCount > BlePeripheral.MAX_PATTERN_STEPS) {
+            throw new IllegalArgumentException("Patterns are limited to " + BlePeripheral.MAX_PATTERN_STEPS + " steps");
+        }
+        if (schedule.getDuration() > BlePeripheral.MAX_PATTERN_OFFSET) {
+            throw new IllegalArgumentException("Patterns are limited to " + BlePeripheral.MAX_PATTERN_OFFSET + "ms");
+        }
+        ArrayList<byte[]> frames = new ArrayList<byte[]>();
+
+        // header: step count, repeat count, and duration of one pass
+        byte[] begin = buildFrame(BlePeripheral.COMMAND_PATTERN_BEGIN, BEGIN_LENGTH);
+        begin[PAYLOAD_POSITION] = (byte) stepCount;
+        begin[PAYLOAD_POSITION + 1] = (byte) Math.min(schedule.getRepeatCount(), 0xFF);
+        begin[PAYLOAD_POSITION + 2] = (byte) (schedule.getDuration() & 0xFF);
+        begin[PAYLOAD_POSITION + 3] = (byte) ((schedule.getDuration() >> 8) & 0xFF);
+        frames.add(begin);
+
+        // steps, as many per write as fit
+        int stepsPerFrame = getStepsPerFrame(mtu);
+        for (int first = 0; first < stepCount; first += stepsPerFrame) {
+            int count = Math.min(stepsPerFrame, stepCount - first);
+            byte[] data = buildFrame(BlePeripheral.COMMAND_PATTERN_DATA, PAYLOAD_POSITION + 1 + count * STEP_LENGTH);
+            data[PAYLOAD_POSITION] = (byte) first;
+            for (int i = 0; i < count; i++) {
+                int position = PAYLOAD_POSITION + 1 + i * STEP_LENGTH;
+                long offset = schedule.getOffset(first + i);
+                data[position] = (byte) schedule.getState(first + i);
+                data[position + 1] = (byte) (offset & 0xFF);
+                data[position + 2] = (byte) ((offset >> 8) & 0xFF);
+            }
+            frames.add(data);
+        }
+
+        if (play) {
+            frames.add(buildFrame(BlePeripheral.COMMAND_PATTERN_PLAY, PAYLOAD_POSITION));
+        }
+        return frames;
+    }
+
+    /**
+     * @param mtu the negotiated ATT MTU
+     * @return how many steps fit in one DATA frame
+     */
+    public static int getStepsPerFrame(int mtu) {
+        int frameLength = Math.min(mtu - ATT_HEADER_LENGTH, BlePeripheral.MAX_TRANSMISSION_LENGTH);
+        return (frameLength - PAYLOAD_POSITION - 1) / STEP_LENGTH;
+    }
+
+    private static byte[] buildFrame(byte command, int length) {
+        byte[] frame = new byte[length];
+        frame[DATA_POSITION] = command;
+        frame[FOOTER_POSITION] = BlePeripheral.MESSAGE_TYPE_COMMAND;
+        return frame;
+    }
+}
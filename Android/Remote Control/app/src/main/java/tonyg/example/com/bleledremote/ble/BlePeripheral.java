@@ -1,18 +1,29 @@
 package tonyg.example.com.bleledremote.ble;
 
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.content.Context;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 
+import tonyg.example.com.bleledremote.transport.GattTransport;
+import tonyg.example.com.bleledremote.transport.Transport;
+import tonyg.example.com.bleledremote.transport.TransportCallback;
+
 /**
  * This class allows us to share Bluetooth resources
  *
@@ -25,7 +36,38 @@ public class BlePeripheral {
     private BluetoothDevice mBluetoothDevice;
     private BluetoothGatt mBluetoothGatt;
     private BluetoothGattCharacteristic mCharacteristic;
+    private Transport mTransport; // carries command frames; GATT unless another transport is attached
+    private GattTransport mGattTransport;
     private Context mContext;
+    private LedShadowState mLedShadowState = new LedShadowState(); // desired vs reported LED state
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final BleCommandTracker mCommandTracker; // deadlines and retries for unconfirmed commands
+    private final BleRateController mRateController = new BleRateController(); // paces outbound commands
+    private final BleCommandQueue mCommandQueue = new BleCommandQueue(); // GATT operations waiting their turn
+    private BleCommand mCommandInFlight; // the GATT allows one operation at a time
+    private static final long COMMAND_WATCHDOG = 2000; // give up on a GATT callback after 2 seconds
+    private OnLedStateReportedListener mLedStateReportedListener;
+    private OnPatternProgressListener mPatternProgressListener;
+    private int mMtu = DEFAULT_MTU;
+    private long mPatternUploadStartedAt = -1;
+    private long mLastPatternUploadTime = -1;
+    private final BleValueStreamer mBrightnessStreamer = new BleValueStreamer(BRIGHTNESS_DEADBAND, BRIGHTNESS_INTERVAL);
+    private BleCommand mQueuedBrightnessCommand; // the brightness command still waiting in the queue
+    private BleCommandJournal mJournal; // commands issued while the Peripheral was out of reach
+    private volatile boolean mConnectionReady = false;
+    private BleCommand mLastFlushedCommand; // the last journaled command still waiting in the queue
+    private final BleCommand[] mFlushedCommands = new BleCommand[BleCommandJournal.TARGET_COUNT]; // queued or in flight, by journal target
+    private long mJournalFlushStartedAt = -1;
+    private long mLastJournalFlushLatency = -1;
+    private BleEventBus mEventBus = new BleEventBus(); // fans link events out to subscribers
+    private BleMetrics mMetrics = new BleMetrics(); // health counters, scraped from the service's dump
+    private final BleLinkMonitor mLinkMonitor = new BleLinkMonitor(); // RSSI, PHY, and throughput of the connection
+    private BleCommand mQueuedRssiCommand; // the RSSI read still waiting in the queue
+    private volatile BleCaptureLog mCapture; // GATT traffic, while capturing
+    private volatile BleSessionTimeline mSessionTimeline; // setup phases of the current connection
+    private final BleSetupPipeline mSetupPipeline; // runs before any command goes out; guarded by mCommandQueue
+    private BleCommand mSetupCommand; // the setup step waiting or in flight
+    private OnConnectionReadyListener mConnectionReadyListener;
 
     /** Bluetooth Stuff **/
     public static final String BROADCAST_NAME = "LedRemote";
@@ -38,28 +80,284 @@ public class BlePeripheral {
     private static final int TRANSMISSION_LENGTH = 2;
     private static final byte FOOTER_POSITION = TRANSMISSION_LENGTH - 1;
     private static final byte DATA_POSITION = 0;
+    private static final byte PAYLOAD_POSITION = 2; // extended commands carry data after the footer
+    public static final int MAX_TRANSMISSION_LENGTH = 20; // the Peripheral's Characteristic size
+    public static final int DEFAULT_MTU = 23;
+    public static final int PREFERRED_MTU = 247; // fills a 251 byte link layer packet
+    private static final int VERSION_CODES_O = 26; // PHY selection, past the SDK this builds against
 
     /** Sending commands **/
     public static final byte COMMAND_LED_OFF = 1;
     public static final byte COMMAND_LED_ON = 2;
+    public static final byte COMMAND_PATTERN_BEGIN = 3;
+    public static final byte COMMAND_PATTERN_DATA = 4;
+    public static final byte COMMAND_PATTERN_PLAY = 5;
+    public static final byte COMMAND_PATTERN_STOP = 6;
+    public static final byte COMMAND_LED_BRIGHTNESS = 7;
 
     /** Receiving messages **/
     public static final byte MESSAGE_TYPE_ERROR = 0;
     public static final byte MESSAGE_TYPE_CONFIRMATION = 1;
     public static final byte MESSAGE_TYPE_COMMAND = 2;
-    public static final int LED_STATE_ERROR = 1;
+    public static final byte MESSAGE_TYPE_PATTERN_PROGRESS = 3;
+    public static final byte MESSAGE_TYPE_PATTERN_LOADED = 4;
+
+    /** Pattern table **/
+    public static final int MAX_PATTERN_STEPS = 64;
+    public static final long MAX_PATTERN_OFFSET = 0xFFFF; // offsets are sent as 16 bit milliseconds
+    private static final int PATTERN_LANE = BleCommandQueue.LANE_NORMAL; // every pattern command, so they stay in order
+
+    /** Brightness streaming **/
+    public static final int MAX_BRIGHTNESS = 255; // PWM duty cycle
+    private static final int BRIGHTNESS_DEADBAND = 4; // smaller moves wait until the slider settles
+    private static final long BRIGHTNESS_INTERVAL = 50; // ms, at most 20 brightness commands per second
+    public static final int LED_STATE_ERROR = 0;
     public static final int LED_STATE_ON = 1;
     public static final int LED_STATE_OFF = 2;
 
+    // the session timeline phase of each setup step
+    private static final int[] SETUP_PHASES = {
+            BleSessionTimeline.PHASE_REQUEST_MTU, BleSessionTimeline.PHASE_CONNECTION_PRIORITY,
+            BleSessionTimeline.PHASE_NOTIFICATION_ENABLE, BleSessionTimeline.PHASE_INITIAL_READ
+    };
+
+
+    /**
+     * Notified when an LED command leaves the phone, and when the Peripheral confirms an LED state
+     */
+    public interface OnLedStateReportedListener {
+        /**
+         * @param blePeripheral the Peripheral
+         * @param state LED_STATE_ON or LED_STATE_OFF
+         * @param timestamp SystemClock.uptimeMillis() when the command was handed to the transport
+         */
+        void onLedStateSent(BlePeripheral blePeripheral, int state, long timestamp);
+
+        /**
+         * @param blePeripheral the Peripheral
+         * @param state LED_STATE_ON or LED_STATE_OFF
+         * @param timestamp SystemClock.uptimeMillis() when the confirmation arrived
+         */
+        void onLedStateReported(BlePeripheral blePeripheral, int state, long timestamp);
+    }
+
+
+    /**
+     * Notified when the connection is set up and commands go out.  Called on the main thread
+     */
+    public interface OnConnectionReadyListener {
+        void onConnectionReady(BlePeripheral blePeripheral);
+    }
+
+
+    /**
+     * Notified as the Peripheral loads and plays a pattern
+     */
+    public interface OnPatternProgressListener {
+        /**
+         * The whole pattern table arrived at the Peripheral
+         *
+         * @param blePeripheral the Peripheral
+         * @param stepCount the number of steps loaded
+         */
+        void onPatternLoaded(BlePeripheral blePeripheral, int stepCount);
+
+        /**
+         * The Peripheral played a pattern step
+         *
+         * @param blePeripheral the Peripheral
+         * @param step the step index
+         * @param pass the pass, starting at 0
+         * @param state the LED state of the step
+         */
+        void onPatternProgress(BlePeripheral blePeripheral, int step, int pass, int state);
+    }
+
 
     public BlePeripheral(Context context) {
         mContext = context;
+        mCommandTracker = new BleCommandTracker(mCommandTrackerListener, SystemClock.elapsedRealtime());
+        mSetupPipeline = new BleSetupPipeline(mSetupStepRunner);
+        mSetupPipeline.setOnReadyListener(mSetupReadyListener);
+        mLinkMonitor.setCodedPhySupported(isLeCodedPhySupported());
     }
 
     public void setCharacteristic(BluetoothGattCharacteristic characteristic) {
         mCharacteristic = characteristic;
+        if (mBluetoothGatt != null && characteristic != null) {
+            mGattTransport = new GattTransport(mBluetoothGatt, characteristic);
+            setTransport(mGattTransport);
+        }
+    }
+
+    /**
+     * Send command frames over another transport, such as TCP or an in-process loopback,
+     * instead of the radio.  Once the transport connects, the connection is ready
+     *
+     * @param transport the transport
+     */
+    public void setTransport(Transport transport) {
+        if (mTransport != null) {
+            mTransport.setTransportCallback(null);
+        }
+        mTransport = transport;
+        if (transport != null) {
+            transport.setTransportCallback(mTransportCallback);
+        }
+    }
+
+    public Transport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Get the GATT transport, which the BluetoothGattCallback forwards Characteristic events to
+     *
+     * @return the GattTransport, or null before the Characteristic is found
+     */
+    public GattTransport getGattTransport() {
+        return mGattTransport;
+    }
+
+    /**
+     * Handle a frame from the Peripheral: a pattern message, an LED confirmation, or an error
+     *
+     * @param frame the data packet
+     */
+    public void onFrameReceived(byte[] frame) {
+        Log.v(TAG, "Message received: " + bytesToHex(frame));
+        mMetrics.increment(BleMetrics.FRAMES_RECEIVED);
+        mMetrics.add(BleMetrics.BYTES_RECEIVED, frame.length);
+        publishEvent(BleEvent.EVENT_NOTIFICATION, 0, frame.clone());
+
+        // the Peripheral is playing an uploaded pattern
+        if (handlePatternMessage(frame)) {
+            return;
+        }
+
+        int ledState = LED_STATE_ERROR;
+        // we are looking to see if the remote command worked
+        try {
+            ledState = getMessageType(frame);
+        } catch (Exception e) {
+            Log.e(TAG, "Could not discern message type from incoming message");
+        }
+
+        final int reportedState = ledState;
+        switch (ledState) {
+            case LED_STATE_ON:
+            case LED_STATE_OFF:
+                publishEvent(BleEvent.EVENT_CONFIRMATION, reportedState, null);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.v(TAG, "Server reported success!");
+                        onLedStateReported(reportedState);
+                    }
+                });
+                break;
+            default:
+                publishEvent(BleEvent.EVENT_REJECTED, reportedState, null);
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.e(TAG, "Server reported an error!");
+                        onLedCommandRejected();
+                    }
+                });
+        }
+    }
+
+    /**
+     * Get the event bus, which streams scan, connection, confirmation, and notification events to subscribers
+     *
+     * @return the BleEventBus
+     */
+    public BleEventBus getEventBus() {
+        return mEventBus;
+    }
+
+    /**
+     * Publish on a bus shared with other Peripherals.  Call before connecting
+     *
+     * @param eventBus the BleEventBus
+     */
+    public void setEventBus(BleEventBus eventBus) {
+        mEventBus = eventBus;
+    }
+
+    /**
+     * Get the metrics registry, which counts frames, bytes, retries, and failed commands
+     *
+     * @return the BleMetrics
+     */
+    public BleMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Count into a registry shared with other Peripherals.  Call before connecting
+     *
+     * @param metrics the BleMetrics
+     */
+    public void setMetrics(BleMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Publish an event about this Peripheral.  Returns without waiting on slow subscribers
+     *
+     * @param type one of the BleEvent.EVENT_* types
+     * @param value the event's value
+     * @param data the raw frame, or null
+     */
+    public void publishEvent(int type, int value, byte[] data) {
+        BluetoothDevice bluetoothDevice = mBluetoothDevice;
+        String address = bluetoothDevice != null ? bluetoothDevice.getAddress() : null;
+        mEventBus.publish(new BleEvent(type, address, value, data, SystemClock.elapsedRealtime()));
     }
 
+    /**
+     * Events from the transport
+     */
+    private final TransportCallback mTransportCallback = new TransportCallback() {
+        @Override
+        public void onConnected(Transport transport) {
+            onConnectionReady();
+        }
+
+        @Override
+        public void onDisconnected(Transport transport) {
+            onConnectionLost();
+        }
+
+        @Override
+        public void onFrameWritten(Transport transport, boolean success) {
+            BleCommand command;
+            synchronized (mCommandQueue) {
+                command = mCommandInFlight;
+            }
+            if (command == null || !command.isCharacteristicWrite()) {
+                // a late callback for a write the watchdog already gave up on
+                Log.w(TAG, "Ignoring a write callback, no write is in flight");
+                return;
+            }
+            if (success) {
+                mLinkMonitor.onBytesWritten(command.mData.length, SystemClock.elapsedRealtime());
+            }
+            // let the next queued operation run
+            onCommandComplete(BleCommand.TYPE_WRITE_CHARACTERISTIC, success);
+            if (!success) {
+                onCommandWriteFailed(command, BluetoothGatt.GATT_FAILURE);
+            }
+        }
+
+        @Override
+        public void onFrameReceived(Transport transport, byte[] frame) {
+            BlePeripheral.this.onFrameReceived(frame);
+        }
+    };
+
     /**
      * Determine if the incoming value is a command, confirmation, or error
      *
@@ -78,163 +376,1355 @@ public class BlePeripheral {
 
 
     /**
-     * Connect to a Peripheral
+     * Handle pattern messages from the Peripheral
      *
-     * @param bluetoothDevice the Bluetooth Device
-     * @param callback The connection callback
-     * @return a connection to the BluetoothGatt
-     * @throws Exception if no device is given
+     * @param value the incoming data value
+     * @return <b>true</b> if the message was a pattern message
      */
-    public BluetoothGatt connect(BluetoothDevice bluetoothDevice, BluetoothGattCallback callback) throws Exception {
-        if (bluetoothDevice == null) {
-            throw new Exception("No bluetooth device provided");
+    public boolean handlePatternMessage(byte[] value) {
+        if (value == null || value.length < TRANSMISSION_LENGTH) {
+            return false;
         }
-        mBluetoothDevice = bluetoothDevice;
-        mBluetoothGatt = bluetoothDevice.connectGatt(mContext, false, callback);
-        refreshDeviceCache();
-        return mBluetoothGatt;
+        OnPatternProgressListener listener = mPatternProgressListener;
+        switch (value[FOOTER_POSITION]) {
+            case MESSAGE_TYPE_PATTERN_LOADED:
+                if (mPatternUploadStartedAt >= 0) {
+                    mLastPatternUploadTime = SystemClock.elapsedRealtime() - mPatternUploadStartedAt;
+                    mPatternUploadStartedAt = -1;
+                    Log.v(TAG, "Pattern uploaded in " + mLastPatternUploadTime + "ms");
+                }
+                if (listener != null) {
+                    listener.onPatternLoaded(this, value[DATA_POSITION] & 0xFF);
+                }
+                return true;
+            case MESSAGE_TYPE_PATTERN_PROGRESS:
+                if (value.length < PAYLOAD_POSITION + 2) {
+                    return true;
+                }
+                int state = value[PAYLOAD_POSITION + 1];
+                // the Peripheral is driving the LED, so the shadow follows it
+                mLedShadowState.onExternalState(state);
+                if (listener != null) {
+                    listener.onPatternProgress(this, value[DATA_POSITION] & 0xFF, value[PAYLOAD_POSITION] & 0xFF, state);
+                }
+                return true;
+        }
+        return false;
+    }
+
+    public void setOnPatternProgressListener(OnPatternProgressListener listener) {
+        mPatternProgressListener = listener;
     }
 
     /**
-     * Disconnect from a Peripheral
+     * Set the negotiated ATT MTU, which decides how much data fits in one write
+     *
+     * @param mtu the MTU reported by onMtuChanged
      */
-    public void disconnect() {
-        if (mBluetoothGatt != null) {
-            mBluetoothGatt.disconnect();
-        }
+    public void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    public int getMtu() {
+        return mMtu;
     }
 
     /**
-     * A connection can only close after a successful disconnect.
-     * Be sure to use the BluetoothGattCallback.onConnectionStateChanged event
-     * to notify of a successful disconnect
+     * Upload a pattern to the Peripheral so that it plays it with its own clock.
+     *
+     * The pattern table goes out back to back in as few writes as the MTU allows.
+     * The Peripheral reports MESSAGE_TYPE_PATTERN_LOADED once it has the whole table,
+     * and MESSAGE_TYPE_PATTERN_PROGRESS as it plays each step.
+     *
+     * @param schedule the compiled scene
+     * @param play <b>true</b> to start playing as soon as the pattern is uploaded
      */
-    public void close() {
-        if (mBluetoothGatt != null) {
-            mBluetoothGatt.close(); // close connection to Peripheral
-            mBluetoothGatt = null; // release from memory
+    public void uploadPattern(BleScene.Schedule schedule, boolean play) {
+        List<byte[]> frames = BlePatternEncoder.encode(schedule, mMtu, play);
+        mPatternUploadStartedAt = SystemClock.elapsedRealtime();
+        // one lane, so PLAY can't overtake the table it plays
+        for (byte[] frame : frames) {
+            queueCommand(BleCommand.write(mCharacteristic, frame, BleCommand.NO_TARGET, PATTERN_LANE), false);
         }
     }
-    public BluetoothDevice getBluetoothDevice() {
-        return mBluetoothDevice;
+
+    /**
+     * Start playing the uploaded pattern, after any upload still waiting in the queue
+     */
+    public void playPattern() {
+        queueCommand(BleCommand.write(mCharacteristic, buildCommand(COMMAND_PATTERN_PLAY), BleCommand.NO_TARGET, PATTERN_LANE), false);
     }
 
+    /**
+     * Stop playing the uploaded pattern, after any pattern command still waiting in the queue.
+     * The Peripheral confirms the LED state it stopped at
+     */
+    public void stopPattern() {
+        queueCommand(BleCommand.write(mCharacteristic, buildCommand(COMMAND_PATTERN_STOP), BleCommand.NO_TARGET, PATTERN_LANE), false);
+    }
 
     /**
-     * Clear the GATT Service cache.
-     *
-     * New in this chapter
+     * @return milliseconds from starting the last pattern upload until the Peripheral had all of it, or -1
+     */
+    public long getLastPatternUploadTime() {
+        return mLastPatternUploadTime;
+    }
+
+
+    /**
+     * Set the LED brightness.  Call this as often as the input changes;
+     * values are thinned out and paced before they are sent
      *
-     * @return <b>true</b> if the device cache clears successfully
-     * @throws Exception
+     * @param level 0 to MAX_BRIGHTNESS
      */
-    public boolean refreshDeviceCache() throws Exception {
-        Method localMethod = mBluetoothGatt.getClass().getMethod("refresh", new Class[0]);
-        if (localMethod != null) {
-            boolean bool = ((Boolean) localMethod.invoke(mBluetoothGatt, new Object[0])).booleanValue();
-            return bool;
+    public void setBrightness(int level) {
+        if (level < 0 || level > MAX_BRIGHTNESS) {
+            throw new IllegalArgumentException("Brightness must be between 0 and " + MAX_BRIGHTNESS);
         }
+        mBrightnessStreamer.offer(level, SystemClock.elapsedRealtime());
+        streamBrightness();
+    }
 
-        return false;
+    /**
+     * The brightness input stopped moving.  Send the final value right away
+     */
+    public void finishBrightness() {
+        mBrightnessStreamer.finish();
+        streamBrightness();
     }
 
     /**
-     * Request a data/value read from a Ble Characteristic
+     * Get the brightness streamer, which counts the values offered and sent
      *
-     * @param characteristic
+     * @return the BleValueStreamer
      */
-    public void readValueFromCharacteristic(final BluetoothGattCharacteristic characteristic) {
-        // Reading a characteristic requires both requesting the read and handling the callback that is
-        // sent when the read is successful
-        // http://stackoverflow.com/a/20020279
-        mBluetoothGatt.readCharacteristic(characteristic);
+    public BleValueStreamer getBrightnessStreamer() {
+        return mBrightnessStreamer;
     }
 
     /**
-     * Turn the remote LED on;
+     * Send the brightness if it is due, and check back when the next one could be
      */
-    public void turnLedOn() {
-        writeCommandToCharacteristic(COMMAND_LED_ON, mCharacteristic);
+    private void streamBrightness() {
+        mHandler.removeCallbacks(mStreamBrightness);
+        long now = SystemClock.elapsedRealtime();
+        int level = mBrightnessStreamer.poll(now);
+        if (level != BleValueStreamer.NO_VALUE) {
+            BleCommand command = null;
+            synchronized (mCommandQueue) {
+                if (journalCommand(BleCommandJournal.TARGET_BRIGHTNESS, buildBrightnessCommand(level))) {
+                    // sent when the Peripheral is back
+                } else if (mQueuedBrightnessCommand != null) {
+                    // the last level hasn't left yet, so send the newer one in its place
+                    mQueuedBrightnessCommand.mData[PAYLOAD_POSITION] = (byte) level;
+                } else {
+                    command = BleCommand.write(mCharacteristic, buildBrightnessCommand(level), BleCommand.NO_TARGET, BleCommandQueue.LANE_INTERACTIVE);
+                    mQueuedBrightnessCommand = command;
+                }
+            }
+            if (command != null) {
+                queueCommand(command, false);
+            }
+        }
+        long delay = mBrightnessStreamer.getDelayUntilNextPoll(now);
+        if (delay >= 0) {
+            mHandler.postDelayed(mStreamBrightness, delay);
+        }
     }
 
+    private final Runnable mStreamBrightness = new Runnable() {
+        @Override
+        public void run() {
+            streamBrightness();
+        }
+    };
+
+
     /**
-     * Turn the remote LED off.
+     * Set the connection up once the Characteristic is found: request the MTU and a fast
+     * connection interval, enable notifications, and read the current state, as back to back
+     * GATT operations.  Commands issued meanwhile wait, in the journal or the queue, and go
+     * out when the setup is done
      */
-    public void turnLedOff() {
-        writeCommandToCharacteristic(COMMAND_LED_OFF, mCharacteristic);
+    public void startSetup() {
+        synchronized (mCommandQueue) {
+            mSetupCommand = null;
+            mSetupPipeline.start(SystemClock.elapsedRealtime());
+        }
+        executeNextCommand();
     }
 
     /**
-     * Convert bytes to a hexadecimal String
+     * Get the setup pipeline, which holds the readiness barrier and the time each setup step took
      *
-     * @param bytes a byte array
-     * @return hexadecimal string
+     * @return the BleSetupPipeline
      */
-    final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();
-    public static String bytesToHex(byte[] bytes) {
-        char[] hexChars = new char[bytes.length * 2];
-        for ( int j = 0; j < bytes.length; j++ ) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = hexArray[v >>> 4];
-            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
-        }
-        return new String(hexChars);
+    public BleSetupPipeline getSetupPipeline() {
+        return mSetupPipeline;
+    }
+
+    public void setOnConnectionReadyListener(OnConnectionReadyListener listener) {
+        mConnectionReadyListener = listener;
     }
 
     /**
-     * Write a value to a Characteristic
+     * Hands each setup step to the command loop, ahead of everything queued
+     */
+    private final BleSetupPipeline.StepRunner mSetupStepRunner = new BleSetupPipeline.StepRunner() {
+        @Override
+        public boolean startStep(int step) {
+            mSetupCommand = buildSetupCommand(step);
+            return mSetupCommand != null;
+        }
+    };
+
+    /**
+     * Build the GATT operation of a setup step
      *
-     * @param command The command being written
-     * @param characteristic The Characteristic being written to
-     * @throws Exception
+     * @param step one of the BleSetupPipeline.STEP_* steps
+     * @return the command, or null if the step doesn't apply to this connection
      */
-    public void writeCommandToCharacteristic(byte command, BluetoothGattCharacteristic characteristic) {
-        // build data packet
-        byte[] data = new byte[TRANSMISSION_LENGTH];
-        data[DATA_POSITION] = command;
-        data[FOOTER_POSITION] = MESSAGE_TYPE_COMMAND;
+    private BleCommand buildSetupCommand(int step) {
+        if (mBluetoothGatt == null || mCharacteristic == null) {
+            return null;
+        }
+        switch (step) {
+            case BleSetupPipeline.STEP_REQUEST_MTU:
+                // the MTU and connection interval can only be negotiated from Lollipop on
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                    return null;
+                }
+                return BleCommand.requestMtu(PREFERRED_MTU, BleCommandQueue.LANE_BACKGROUND);
+            case BleSetupPipeline.STEP_CONNECTION_PRIORITY:
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                    return null;
+                }
+                return BleCommand.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH, BleCommandQueue.LANE_BACKGROUND);
+            case BleSetupPipeline.STEP_ENABLE_NOTIFICATIONS:
+                if (!isCharacteristicNotifiable(mCharacteristic)) {
+                    return null;
+                }
+                return buildNotificationCommand(mCharacteristic, true);
+            case BleSetupPipeline.STEP_READ_STATE:
+                if (!isCharacteristicReadable(mCharacteristic)) {
+                    return null;
+                }
+                return BleCommand.read(mCharacteristic, BleCommandQueue.LANE_BACKGROUND);
+        }
+        return null;
+    }
 
+    /**
+     * The last setup step finished.  Open the connection to commands on the main thread,
+     * after any value the setup read has been handled
+     */
+    private final BleSetupPipeline.OnReadyListener mSetupReadyListener = new BleSetupPipeline.OnReadyListener() {
+        @Override
+        public void onSetupReady(BleSetupPipeline pipeline, int failedSteps) {
+            Log.v(TAG, "Setup done in " + pipeline.getLastSetupTime() + "ms, " + failedSteps + " steps failed");
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mSetupPipeline.isReady()) {
+                        return;
+                    }
+                    onConnectionReady();
+                    OnConnectionReadyListener listener = mConnectionReadyListener;
+                    if (listener != null) {
+                        listener.onConnectionReady(BlePeripheral.this);
+                    }
+                }
+            });
+        }
+    };
 
-        Log.d(TAG, "Writing Message: "+bytesToHex(data));
+    /**
+     * The Peripheral is connected and its Characteristic is set up.
+     * Commands journaled while it was out of reach go out as one batch
+     */
+    public void onConnectionReady() {
+        mConnectionReady = true;
+        flushJournal();
+        // commands queued before the setup finished were held back, journal or not
+        executeNextCommand();
+        if (mBluetoothGatt != null) {
+            startLinkMonitor();
+        }
+    }
 
-        characteristic.setValue(data);
-        mBluetoothGatt.writeCharacteristic(characteristic);
+    public boolean isConnectionReady() {
+        return mConnectionReady;
     }
 
+    /**
+     * Get the offline command journal, which holds the journal size metrics
+     *
+     * @return the BleCommandJournal, or null before the first connection
+     */
+    public BleCommandJournal getJournal() {
+        return mJournal;
+    }
 
+    /**
+     * @return milliseconds from the connection being ready until the last journaled command was sent, or -1
+     */
+    public long getLastJournalFlushLatency() {
+        return mLastJournalFlushLatency;
+    }
 
     /**
-     * Subscribe or unsubscribe from Characteristic Notifications
+     * Record every GATT event on this connection, for replaying later.  Replaces any capture in the file
      *
-     * New in this chapter
+     * @param file the capture file
+     * @param capacity the size to preallocate, in bytes
+     * @throws IOException if the capture file can't be created
+     */
+    public void startCapture(File file, int capacity) throws IOException {
+        stopCapture();
+        mCapture = new BleCaptureLog(file, capacity, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Stop recording and flush the capture to storage
+     */
+    public void stopCapture() {
+        BleCaptureLog capture = mCapture;
+        mCapture = null;
+        if (capture == null) {
+            return;
+        }
+        try {
+            capture.close();
+            Log.v(TAG, "Captured " + capture.getRecordCount() + " GATT events in " + capture.getSize() + " bytes");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close capture: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the capture in progress, or null
+     */
+    public BleCaptureLog getCapture() {
+        return mCapture;
+    }
+
+    /**
+     * Record a GATT event if capturing.  Call from the BluetoothGattCallback
      *
-     * @param characteristic
-     * @param enableNotifications <b>true</b> for "subscribe" <b>false</b> for "unsubscribe"
+     * @param type one of the BleCaptureLog.TYPE_* record types
+     * @param status the event's status
+     * @param data the event's data, or null
      */
-    public void setCharacteristicNotification(final BluetoothGattCharacteristic characteristic, final boolean enableNotifications) {
-        // modified from http://stackoverflow.com/a/18011901/5671180
-        // This is a 2-step process
-        // Step 1: set the Characteristic Notification parameter locally
-        mBluetoothGatt.setCharacteristicNotification(characteristic, enableNotifications);
-        // Step 2: Write a descriptor to the Bluetooth GATT enabling the subscription on the Perpiheral
-        // turns out you need to implement a delay between setCharacteristicNotification and setvalue.
-        // maybe it can be handled with a callback, but this is an easy way to implement
-        final Handler handler = new Handler(Looper.getMainLooper());
-        handler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID);
-
-                if (enableNotifications) {
-                    descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                } else {
-                    descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-                }
-                mBluetoothGatt.writeDescriptor(descriptor);
-            }
-        }, 10);
+    public void capture(int type, int status, byte[] data) {
+        BleCaptureLog capture = mCapture;
+        if (capture != null) {
+            capture.record(type, status, data, SystemClock.elapsedRealtimeNanos());
+        }
+    }
+
+    /**
+     * Follow the setup of the next connection on a session timeline
+     *
+     * @param timeline the timeline, with the phases before connecting already stamped, or null
+     */
+    public void setSessionTimeline(BleSessionTimeline timeline) {
+        mSessionTimeline = timeline;
+    }
 
+    /**
+     * @return the current connection's session timeline, or null
+     */
+    public BleSessionTimeline getSessionTimeline() {
+        return mSessionTimeline;
+    }
 
+    /**
+     * Stamp the end of a setup phase on the session timeline, if there is one
+     *
+     * @param phase one of the BleSessionTimeline.PHASE_* phases
+     */
+    public void stampPhase(int phase) {
+        BleSessionTimeline timeline = mSessionTimeline;
+        if (timeline != null) {
+            timeline.stamp(phase, SystemClock.elapsedRealtimeNanos());
+        }
+    }
+
+    /**
+     * Open the journal for a Peripheral, picking up commands left from an earlier run
+     *
+     * @param address the Peripheral's MAC address
+     */
+    private void openJournal(String address) {
+        File file = new File(mContext.getFilesDir(), "journal-" + address.replace(":", "") + ".bin");
+        try {
+            mJournal = new BleCommandJournal(file);
+            if (!mJournal.isEmpty()) {
+                Log.v(TAG, mJournal.getEntryCount() + " journaled commands waiting for " + address);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open command journal: " + e.getMessage());
+            mJournal = null;
+        }
+    }
+
+    /**
+     * Journal a command if the Peripheral is out of reach
+     *
+     * @param target the journaled target
+     * @param frame the data packet
+     * @return <b>true</b> if the command was journaled instead of sent
+     */
+    private boolean journalCommand(int target, byte[] frame) {
+        if (mConnectionReady || mJournal == null) {
+            return false;
+        }
+        synchronized (mJournal) {
+            try {
+                mJournal.append(target, frame);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write command journal: " + e.getMessage());
+            }
+            Log.v(TAG, "Link down, journaled " + bytesToHex(frame) + ". Journal is " + mJournal.getFileSize() + " bytes");
+        }
+        return true;
+    }
+
+    /**
+     * The link dropped before the LED state was confirmed.  Keep the desired state so it goes out on reconnect
+     */
+    private void journalUnconfirmedLedState() {
+        int state = mLedShadowState.getDesiredState();
+        if (mLedShadowState.isReconciled() || state == LedShadowState.STATE_UNKNOWN) {
+            return;
+        }
+        journalCommand(BleCommandJournal.TARGET_LED, buildCommand(state == LED_STATE_ON ? COMMAND_LED_ON : COMMAND_LED_OFF));
+    }
+
+    /**
+     * Send the net effect of everything journaled while the Peripheral was out of reach.
+     * Each command stays journaled until its write succeeds
+     */
+    private void flushJournal() {
+        if (mJournal == null) {
+            return;
+        }
+        byte[][] frames;
+        long size;
+        synchronized (mJournal) {
+            if (mJournal.isEmpty()) {
+                return;
+            }
+            size = mJournal.getFileSize();
+            frames = mJournal.getPending();
+        }
+
+        BleCommand[] commands = new BleCommand[BleCommandJournal.TARGET_COUNT];
+        byte[] ledFrame = frames[BleCommandJournal.TARGET_LED];
+        if (ledFrame != null) {
+            // the Peripheral confirms LED commands, so track this one like any other
+            mLedShadowState.forceDesiredState(ledFrame[DATA_POSITION] == COMMAND_LED_ON ? LED_STATE_ON : LED_STATE_OFF);
+            commands[BleCommandJournal.TARGET_LED] = BleCommand.write(mCharacteristic, ledFrame, BleCommandTracker.TARGET_LED, BleCommandQueue.LANE_INTERACTIVE);
+        }
+        byte[] brightnessFrame = frames[BleCommandJournal.TARGET_BRIGHTNESS];
+        if (brightnessFrame != null) {
+            commands[BleCommandJournal.TARGET_BRIGHTNESS] = BleCommand.write(mCharacteristic, brightnessFrame, BleCommand.NO_TARGET, BleCommandQueue.LANE_INTERACTIVE);
+        }
+
+        int count = 0;
+        long now = SystemClock.elapsedRealtime();
+        synchronized (mCommandQueue) {
+            mJournalFlushStartedAt = now;
+            for (int target = 0; target < BleCommandJournal.TARGET_COUNT; target++) {
+                // a command from an earlier flush still on its way covers this target
+                if (commands[target] != null && mFlushedCommands[target] == null) {
+                    mCommandQueue.offer(commands[target], now);
+                    mFlushedCommands[target] = commands[target];
+                    mLastFlushedCommand = commands[target];
+                    count++;
+                }
+            }
+        }
+        Log.v(TAG, "Flushing " + count + " journaled commands. Journal was " + size + " bytes");
+        executeNextCommand();
+    }
+
+
+    /**
+     * Connect to a Peripheral
+     *
+     * @param bluetoothDevice the Bluetooth Device
+     * @param callback The connection callback
+     * @return a connection to the BluetoothGatt
+     * @throws Exception if no device is given
+     */
+    public BluetoothGatt connect(BluetoothDevice bluetoothDevice, BluetoothGattCallback callback) throws Exception {
+        if (bluetoothDevice == null) {
+            throw new Exception("No bluetooth device provided");
+        }
+        mBluetoothDevice = bluetoothDevice;
+        openJournal(bluetoothDevice.getAddress());
+        mBluetoothGatt = bluetoothDevice.connectGatt(mContext, false, callback);
+        stampPhase(BleSessionTimeline.PHASE_CONNECT_GATT);
+        refreshDeviceCache();
+        stampPhase(BleSessionTimeline.PHASE_REFRESH_CACHE);
+        return mBluetoothGatt;
+    }
+
+    /**
+     * Disconnect from a Peripheral
+     */
+    public void disconnect() {
+        onConnectionLost();
+        if (mTransport != null) {
+            mTransport.disconnect();
+        } else if (mBluetoothGatt != null) {
+            mBluetoothGatt.disconnect();
+        }
+    }
+
+    /**
+     * The link is gone.  Keep what wasn't confirmed in the journal and drop everything in flight
+     */
+    private void onConnectionLost() {
+        mConnectionReady = false;
+        stopLinkMonitor();
+        synchronized (mCommandQueue) {
+            mSetupPipeline.cancel();
+        }
+        journalUnconfirmedLedState();
+        clearPendingCommands();
+        clearCommandQueue();
+    }
+
+    /**
+     * A connection can only close after a successful disconnect.
+     * Be sure to use the BluetoothGattCallback.onConnectionStateChanged event
+     * to notify of a successful disconnect
+     */
+    public void close() {
+        mConnectionReady = false;
+        stopLinkMonitor();
+        synchronized (mCommandQueue) {
+            mSetupPipeline.cancel();
+        }
+        stopCapture();
+        clearPendingCommands();
+        clearCommandQueue();
+        if (mTransport != null) {
+            mTransport.setTransportCallback(null);
+            mTransport = null;
+        }
+        mGattTransport = null;
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.close(); // close connection to Peripheral
+            mBluetoothGatt = null; // release from memory
+        }
+    }
+    public BluetoothDevice getBluetoothDevice() {
+        return mBluetoothDevice;
+    }
+
+
+    /**
+     * Get the link monitor, which holds the negotiated PHY, the RSSI trend, and the effective throughput
+     *
+     * @return the BleLinkMonitor
+     */
+    public BleLinkMonitor getLinkMonitor() {
+        return mLinkMonitor;
+    }
+
+    /**
+     * Ask for the PHY that suits the link, and start reading the RSSI periodically
+     */
+    private void startLinkMonitor() {
+        mLinkMonitor.reset();
+        applyLinkQuality();
+        mHandler.removeCallbacks(mLinkTick);
+        mHandler.postDelayed(mLinkTick, BleLinkMonitor.RSSI_INTERVAL);
+    }
+
+    private void stopLinkMonitor() {
+        mHandler.removeCallbacks(mLinkTick);
+    }
+
+    /**
+     * Queue an RSSI read behind everything else, unless one is still waiting
+     */
+    private final Runnable mLinkTick = new Runnable() {
+        @Override
+        public void run() {
+            mLinkMonitor.tick(SystemClock.elapsedRealtime());
+            boolean queued = false;
+            synchronized (mCommandQueue) {
+                if (mQueuedRssiCommand == null) {
+                    mQueuedRssiCommand = BleCommand.readRemoteRssi(BleCommandQueue.LANE_BACKGROUND);
+                    mCommandQueue.offer(mQueuedRssiCommand, SystemClock.elapsedRealtime());
+                    queued = true;
+                }
+            }
+            if (queued) {
+                executeNextCommand();
+            }
+            mHandler.postDelayed(this, BleLinkMonitor.RSSI_INTERVAL);
+        }
+    };
+
+    /**
+     * The remote's RSSI was read.  Call from BluetoothGattCallback.onReadRemoteRssi
+     *
+     * @param rssi the RSSI, in dBm
+     * @param status the GATT status of the read
+     */
+    public void onRemoteRssiRead(int rssi, int status) {
+        if (!isCommandInFlight(BleCommand.TYPE_READ_REMOTE_RSSI)) {
+            // the watchdog already gave up on this read
+            return;
+        }
+        boolean success = status == BluetoothGatt.GATT_SUCCESS;
+        if (!success) {
+            mLinkMonitor.onRssiReadFailed();
+        } else if (mLinkMonitor.onRssi(rssi, SystemClock.elapsedRealtime())) {
+            boolean poor = mLinkMonitor.getQuality() == BleLinkMonitor.QUALITY_POOR;
+            Log.w(TAG, "Link " + (poor ? "fell back" : "recovered") + ": " + mLinkMonitor);
+            mMetrics.increment(poor ? BleMetrics.LINK_FALLBACKS : BleMetrics.LINK_RECOVERIES);
+            applyLinkQuality();
+        }
+        onCommandComplete(BleCommand.TYPE_READ_REMOTE_RSSI, success);
+    }
+
+    /**
+     * The PHY changed.  Call from BluetoothGattCallback.onPhyUpdate
+     *
+     * @param txPhy the transmitter PHY
+     * @param rxPhy the receiver PHY
+     * @param status the GATT status of the update
+     */
+    public void onPhyUpdate(int txPhy, int rxPhy, int status) {
+        mLinkMonitor.onPhyUpdate(txPhy, rxPhy, status == BluetoothGatt.GATT_SUCCESS);
+        Log.v(TAG, "PHY " + BleLinkMonitor.getPhyName(txPhy) + "/" + BleLinkMonitor.getPhyName(rxPhy) + ", status " + status);
+    }
+
+    /**
+     * The current PHY was read.  Call from BluetoothGattCallback.onPhyRead
+     *
+     * @param txPhy the transmitter PHY
+     * @param rxPhy the receiver PHY
+     * @param status the GATT status of the read
+     */
+    public void onPhyRead(int txPhy, int rxPhy, int status) {
+        mLinkMonitor.onPhyRead(txPhy, rxPhy, status == BluetoothGatt.GATT_SUCCESS);
+        Log.v(TAG, "PHY read " + BleLinkMonitor.getPhyName(txPhy) + "/" + BleLinkMonitor.getPhyName(rxPhy) + ", status " + status);
+    }
+
+    /**
+     * Set the write type and ask for the PHY the link monitor prefers
+     */
+    private void applyLinkQuality() {
+        GattTransport gattTransport = mGattTransport;
+        if (gattTransport != null) {
+            gattTransport.setAcknowledgedWrites(mLinkMonitor.isAcknowledgedWrites());
+        }
+        if (Build.VERSION.SDK_INT >= VERSION_CODES_O) {
+            queueCommand(BleCommand.setPreferredPhy(BleCommandQueue.LANE_BACKGROUND), false);
+        }
+    }
+
+    /**
+     * Ask for a PHY.  BluetoothGatt.setPreferredPhy is newer than the SDK this builds against
+     *
+     * @param phyMask BleLinkMonitor.PHY_LE_*_MASK PHYs, for both directions
+     * @param phyOptions a BleLinkMonitor.PHY_OPTION_* coding
+     * @return <b>true</b> if the request was made
+     */
+    private boolean setPreferredPhy(int phyMask, int phyOptions) {
+        try {
+            Method method = mBluetoothGatt.getClass().getMethod("setPreferredPhy", int.class, int.class, int.class);
+            method.invoke(mBluetoothGatt, phyMask, phyMask, phyOptions);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not set the preferred PHY: " + e.getMessage());
+            return false;
+        }
+        // onPhyUpdate only comes if the PHY changes, so read back the one in use
+        readPhy();
+        return true;
+    }
+
+    /**
+     * Ask for the PHY in use, answered in onPhyRead.  BluetoothGatt.readPhy is newer than the SDK this builds against
+     */
+    private void readPhy() {
+        try {
+            Method method = mBluetoothGatt.getClass().getMethod("readPhy");
+            method.invoke(mBluetoothGatt);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not read the PHY: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return <b>true</b> if the phone supports the coded PHY.  BluetoothAdapter.isLeCodedPhySupported
+     * is newer than the SDK this builds against
+     */
+    private static boolean isLeCodedPhySupported() {
+        BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        if (bluetoothAdapter == null || Build.VERSION.SDK_INT < VERSION_CODES_O) {
+            return false;
+        }
+        try {
+            Method method = bluetoothAdapter.getClass().getMethod("isLeCodedPhySupported");
+            return (Boolean) method.invoke(bluetoothAdapter);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Clear the GATT Service cache.
+     *
+     * New in this chapter
+     *
+     * @return <b>true</b> if the device cache clears successfully
+     * @throws Exception
+     */
+    public boolean refreshDeviceCache() throws Exception {
+        Method localMethod = mBluetoothGatt.getClass().getMethod("refresh", new Class[0]);
+        if (localMethod != null) {
+            boolean bool = ((Boolean) localMethod.invoke(mBluetoothGatt, new Object[0])).booleanValue();
+            return bool;
+        }
+
+        return false;
+    }
+
+    /**
+     * Request a data/value read from a Ble Characteristic
+     *
+     * @param characteristic
+     */
+    public void readValueFromCharacteristic(final BluetoothGattCharacteristic characteristic) {
+        readValueFromCharacteristic(characteristic, BleCommandQueue.LANE_NORMAL);
+    }
+
+    /**
+     * Request a data/value read from a Ble Characteristic
+     *
+     * @param characteristic
+     * @param lane the BleCommandQueue lane, such as LANE_BACKGROUND for a poll
+     */
+    public void readValueFromCharacteristic(final BluetoothGattCharacteristic characteristic, int lane) {
+        // Reading a characteristic requires both requesting the read and handling the callback that is
+        // sent when the read is successful
+        // http://stackoverflow.com/a/20020279
+        queueCommand(BleCommand.read(characteristic, lane), false);
+    }
+
+    /**
+     * Get the shadow LED state, which tracks the desired and reported LED state
+     *
+     * @return the LedShadowState
+     */
+    public LedShadowState getLedShadowState() {
+        return mLedShadowState;
+    }
+
+    /**
+     * Switch the remote LED on or off.
+     *
+     * The desired state changes immediately.  If a command is already in flight,
+     * the new state is sent when that command is confirmed.
+     *
+     * @param on <b>true</b> to turn the LED on
+     */
+    public void setLedState(boolean on) {
+        int state = on ? LED_STATE_ON : LED_STATE_OFF;
+        if (mLedShadowState.setDesiredState(state)) {
+            sendLedState(state);
+        } else {
+            // keep the journal at the latest desired state while the Peripheral is out of reach
+            journalCommand(BleCommandJournal.TARGET_LED, buildCommand(on ? COMMAND_LED_ON : COMMAND_LED_OFF));
+        }
+    }
+
+    /**
+     * The Peripheral confirmed the LED state.  Reconcile it with the desired state
+     *
+     * @param state LED_STATE_ON or LED_STATE_OFF
+     */
+    public void onLedStateReported(int state) {
+        OnLedStateReportedListener listener = mLedStateReportedListener;
+        if (listener != null) {
+            listener.onLedStateReported(this, state, SystemClock.uptimeMillis());
+        }
+        long now = SystemClock.elapsedRealtime();
+        boolean confirmed;
+        synchronized (mCommandTracker) {
+            confirmed = mCommandTracker.onConfirmed(BleCommandTracker.TARGET_LED, now);
+        }
+        if (confirmed) {
+            mRateController.onConfirmed(mCommandTracker.getLastConfirmationLatency(), now);
+        }
+        int nextState = mLedShadowState.onReportedState(state);
+        if (nextState != LedShadowState.STATE_UNKNOWN) {
+            sendLedState(nextState);
+        }
+    }
+
+    public void setOnLedStateReportedListener(OnLedStateReportedListener listener) {
+        mLedStateReportedListener = listener;
+    }
+
+    /**
+     * Send an LED state straight away for a timed scene.
+     * Unlike setLedState(), this doesn't wait for the command in flight to be confirmed.
+     *
+     * @param state LED_STATE_ON or LED_STATE_OFF
+     */
+    public void playLedState(int state) {
+        mLedShadowState.forceDesiredState(state);
+        sendLedState(state);
+    }
+
+    /**
+     * The Peripheral replied with an error.  Sending the command again won't help, so roll back to the reported state
+     */
+    public void onLedCommandRejected() {
+        synchronized (mCommandTracker) {
+            mCommandTracker.onRejected(BleCommandTracker.TARGET_LED);
+        }
+        mLedShadowState.onCommandFailed();
+    }
+
+    /**
+     * Writing a command to the Characteristic failed.  Retry it if it is tracked and attempts remain
+     *
+     * @param command the command whose write failed
+     * @param status the GATT status of the failed write
+     */
+    private void onCommandWriteFailed(BleCommand command, int status) {
+        Log.w(TAG, "Command write failed with status " + status);
+        // untracked writes, such as brightness and pattern frames, have nothing to retry
+        if (command.mTarget == BleCommand.NO_TARGET) {
+            return;
+        }
+        synchronized (mCommandTracker) {
+            mCommandTracker.onWriteFailed(command.mTarget, SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * Get the rate controller, which paces outbound commands to what the link can carry
+     *
+     * @return the BleRateController
+     */
+    public BleRateController getRateController() {
+        return mRateController;
+    }
+
+    /**
+     * Get the command tracker, which holds the timeout and retry counters
+     *
+     * @return the BleCommandTracker
+     */
+    public BleCommandTracker getCommandTracker() {
+        return mCommandTracker;
+    }
+
+    private void sendLedState(int state) {
+        if (state == LED_STATE_ON) {
+            turnLedOn();
+        } else {
+            turnLedOff();
+        }
+    }
+
+    /**
+     * Turn the remote LED on;
+     */
+    public void turnLedOn() {
+        sendLedCommand(COMMAND_LED_ON);
+    }
+
+    /**
+     * Turn the remote LED off.
+     */
+    public void turnLedOff() {
+        sendLedCommand(COMMAND_LED_OFF);
+    }
+
+    /**
+     * Send an LED command and wait for its confirmation
+     *
+     * @param command COMMAND_LED_ON or COMMAND_LED_OFF
+     */
+    private void sendLedCommand(byte command) {
+        if (journalCommand(BleCommandJournal.TARGET_LED, buildCommand(command))) {
+            return;
+        }
+        queueCommand(BleCommand.write(mCharacteristic, buildCommand(command), BleCommandTracker.TARGET_LED, BleCommandQueue.LANE_INTERACTIVE), false);
+    }
+
+    /**
+     * Get the command queue, which holds the per-lane queue depth and wait time metrics
+     *
+     * @return the BleCommandQueue
+     */
+    public BleCommandQueue getCommandQueue() {
+        return mCommandQueue;
+    }
+
+    /**
+     * Queue a GATT operation in its priority lane
+     *
+     * @param command the command
+     * @param first <b>true</b> to send it ahead of the other commands in its lane, such as a retry
+     */
+    private void queueCommand(BleCommand command, boolean first) {
+        long now = SystemClock.elapsedRealtime();
+        synchronized (mCommandQueue) {
+            if (first) {
+                mCommandQueue.offerFirst(command, now);
+            } else {
+                mCommandQueue.offer(command, now);
+            }
+        }
+        executeNextCommand();
+    }
+
+    /**
+     * @param type one of the BleCommand.TYPE_* operations
+     * @return <b>true</b> if an operation of this type is in flight
+     */
+    private boolean isCommandInFlight(int type) {
+        synchronized (mCommandQueue) {
+            return mCommandInFlight != null && mCommandInFlight.mType == type;
+        }
+    }
+
+    /**
+     * A Characteristic read finished.  Call from BluetoothGattCallback.onCharacteristicRead
+     *
+     * @param success <b>true</b> if the read succeeded
+     */
+    public void onCharacteristicReadComplete(boolean success) {
+        onCommandComplete(BleCommand.TYPE_READ_CHARACTERISTIC, success);
+    }
+
+    /**
+     * A Characteristic write finished.  Call from BluetoothGattCallback.onCharacteristicWrite
+     * when there is no transport to report it
+     *
+     * @param success <b>true</b> if the write succeeded
+     */
+    public void onCharacteristicWriteComplete(boolean success) {
+        onCommandComplete(BleCommand.TYPE_WRITE_CHARACTERISTIC, success);
+    }
+
+    /**
+     * A Descriptor write finished.  Call from BluetoothGattCallback.onDescriptorWrite
+     *
+     * @param success <b>true</b> if the write succeeded
+     */
+    public void onDescriptorWriteComplete(boolean success) {
+        onCommandComplete(BleCommand.TYPE_WRITE_DESCRIPTOR, success);
+    }
+
+    /**
+     * An MTU request finished.  Call from BluetoothGattCallback.onMtuChanged
+     *
+     * @param success <b>true</b> if the MTU was negotiated
+     */
+    public void onMtuRequestComplete(boolean success) {
+        onCommandComplete(BleCommand.TYPE_REQUEST_MTU, success);
+    }
+
+    /**
+     * A GATT operation has finished.
+     *
+     * A callback that doesn't match the operation in flight is ignored.  It comes late, after
+     * the watchdog gave up on its operation, and must not finish the one that went out next
+     *
+     * @param type the BleCommand.TYPE_* operation the callback is for
+     * @param success <b>true</b> if the operation succeeded
+     */
+    private void onCommandComplete(int type, boolean success) {
+        int setupStep = BleSetupPipeline.NO_STEP;
+        int journalTarget = BleCommand.NO_TARGET;
+        byte[] journalFrame = null;
+        synchronized (mCommandQueue) {
+            if (mCommandInFlight == null || mCommandInFlight.mType != type) {
+                Log.w(TAG, "Ignoring a late callback for GATT operation " + type);
+                return;
+            }
+            mHandler.removeCallbacks(mCommandWatchdog);
+            for (int target = 0; target < BleCommandJournal.TARGET_COUNT; target++) {
+                if (mFlushedCommands[target] == mCommandInFlight) {
+                    mFlushedCommands[target] = null;
+                    // a failed write stays journaled for the next flush
+                    if (success) {
+                        journalTarget = target;
+                        journalFrame = mCommandInFlight.mData;
+                    }
+                }
+            }
+            if (mCommandInFlight != null && mCommandInFlight == mSetupCommand) {
+                setupStep = mSetupPipeline.getCurrentStep();
+                mSetupCommand = null;
+            }
+            mCommandInFlight = null;
+            // the next setup step, if any, goes straight out
+            if (setupStep != BleSetupPipeline.NO_STEP) {
+                mSetupPipeline.onStepComplete(setupStep, success, SystemClock.elapsedRealtime());
+            }
+        }
+        if (setupStep != BleSetupPipeline.NO_STEP) {
+            stampPhase(SETUP_PHASES[setupStep]);
+        }
+        if (journalFrame != null) {
+            acknowledgeJournal(journalTarget, journalFrame);
+        }
+        executeNextCommand();
+    }
+
+    /**
+     * A journaled command reached the Peripheral, so it no longer needs to survive a restart
+     */
+    private void acknowledgeJournal(int target, byte[] frame) {
+        if (mJournal == null) {
+            return;
+        }
+        synchronized (mJournal) {
+            try {
+                mJournal.acknowledge(target, frame);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not compact command journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Start the next GATT operation if none is in flight.
+     * Characteristic writes are held back as long as the rate controller asks
+     */
+    private void executeNextCommand() {
+        while (true) {
+            BleCommand command;
+            long now = SystemClock.elapsedRealtime();
+            synchronized (mCommandQueue) {
+                mHandler.removeCallbacks(mExecuteNextCommand);
+                if (mCommandInFlight != null || (mTransport == null && mBluetoothGatt == null)) {
+                    return;
+                }
+                if (mSetupPipeline.isRunning() || !mConnectionReady) {
+                    // everything else waits behind the readiness barrier, including
+                    // commands issued between connecting and starting the setup
+                    command = mSetupCommand;
+                    if (command == null) {
+                        return;
+                    }
+                } else {
+                    command = mCommandQueue.peek(now);
+                    if (command == null) {
+                        return;
+                    }
+                    if (command.isCharacteristicWrite()) {
+                        long delay = mRateController.getDelayUntilNextSend(now);
+                        if (delay > 0) {
+                            mHandler.postDelayed(mExecuteNextCommand, delay);
+                            return;
+                        }
+                        mRateController.onSent(now);
+                    }
+                    mCommandQueue.poll(now);
+                    if (command == mQueuedBrightnessCommand) {
+                        mQueuedBrightnessCommand = null;
+                    } else if (command == mQueuedRssiCommand) {
+                        mQueuedRssiCommand = null;
+                    }
+                    if (command == mLastFlushedCommand) {
+                        mLastFlushedCommand = null;
+                        mLastJournalFlushLatency = now - mJournalFlushStartedAt;
+                        Log.v(TAG, "Journal flushed in " + mLastJournalFlushLatency + "ms");
+                    }
+                }
+                mCommandInFlight = command;
+                mHandler.postDelayed(mCommandWatchdog, COMMAND_WATCHDOG);
+            }
+
+            // run outside the lock; the command tracker calls back into the queue on retries
+            if (execute(command, now)) {
+                if (command.mType == BleCommand.TYPE_REQUEST_CONNECTION_PRIORITY
+                        || command.mType == BleCommand.TYPE_SET_PREFERRED_PHY) {
+                    // there is no callback for the connection interval, and onPhyUpdate
+                    // only comes if the PHY changes
+                    onCommandComplete(command.mType, true);
+                }
+                return;
+            }
+            Log.e(TAG, "Could not start GATT operation " + command.mType);
+            boolean setupStep;
+            synchronized (mCommandQueue) {
+                setupStep = command == mSetupCommand;
+            }
+            if (setupStep) {
+                // the setup moves on without this step
+                onCommandComplete(command.mType, false);
+                return;
+            }
+            synchronized (mCommandQueue) {
+                mHandler.removeCallbacks(mCommandWatchdog);
+                mCommandInFlight = null;
+            }
+            if (command.mTarget != BleCommand.NO_TARGET) {
+                synchronized (mCommandTracker) {
+                    mCommandTracker.onWriteFailed(command.mTarget, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand a GATT operation to the Android Bluetooth stack
+     *
+     * @return <b>true</b> if the operation started
+     */
+    private boolean execute(BleCommand command, long now) {
+        switch (command.mType) {
+            case BleCommand.TYPE_WRITE_CHARACTERISTIC:
+                if (command.mTarget != BleCommand.NO_TARGET) {
+                    // start the confirmation deadline when the command actually leaves
+                    synchronized (mCommandTracker) {
+                        mCommandTracker.track(command.mTarget, command.mData, now);
+                    }
+                    scheduleCommandTick();
+                }
+                Log.d(TAG, "Writing Message: " + bytesToHex(command.mData));
+                capture(BleCaptureLog.TYPE_WRITE, 0, command.mData);
+                if (mTransport == null || !mTransport.writeFrame(command.mData)) {
+                    return false;
+                }
+                mMetrics.increment(BleMetrics.FRAMES_SENT);
+                mMetrics.add(BleMetrics.BYTES_SENT, command.mData.length);
+                if (command.mTarget == BleCommandTracker.TARGET_LED) {
+                    OnLedStateReportedListener listener = mLedStateReportedListener;
+                    if (listener != null) {
+                        int state = command.mData[DATA_POSITION] == COMMAND_LED_ON ? LED_STATE_ON : LED_STATE_OFF;
+                        listener.onLedStateSent(this, state, SystemClock.uptimeMillis());
+                    }
+                }
+                return true;
+            case BleCommand.TYPE_READ_CHARACTERISTIC:
+                return mBluetoothGatt != null && mBluetoothGatt.readCharacteristic(command.mCharacteristic);
+            case BleCommand.TYPE_WRITE_DESCRIPTOR:
+                if (mBluetoothGatt == null) {
+                    return false;
+                }
+                command.mDescriptor.setValue(command.mData);
+                return mBluetoothGatt.writeDescriptor(command.mDescriptor);
+            case BleCommand.TYPE_REQUEST_MTU:
+                return mBluetoothGatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                        && mBluetoothGatt.requestMtu(command.mValue);
+            case BleCommand.TYPE_REQUEST_CONNECTION_PRIORITY:
+                return mBluetoothGatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                        && mBluetoothGatt.requestConnectionPriority(command.mValue);
+            case BleCommand.TYPE_READ_REMOTE_RSSI:
+                return mBluetoothGatt != null && mBluetoothGatt.readRemoteRssi();
+            case BleCommand.TYPE_SET_PREFERRED_PHY:
+                return mBluetoothGatt != null && setPreferredPhy(mLinkMonitor.getPreferredPhyMask(), mLinkMonitor.getPhyOptions());
+        }
+        return false;
+    }
+
+    private final Runnable mExecuteNextCommand = new Runnable() {
+        @Override
+        public void run() {
+            executeNextCommand();
+        }
+    };
+
+    /**
+     * The GATT callback for the operation in flight never came.  Move on rather than stall the queue
+     */
+    private final Runnable mCommandWatchdog = new Runnable() {
+        @Override
+        public void run() {
+            int type;
+            synchronized (mCommandQueue) {
+                if (mCommandInFlight == null) {
+                    return;
+                }
+                type = mCommandInFlight.mType;
+            }
+            Log.w(TAG, "GATT operation " + type + " timed out");
+            onCommandComplete(type, false);
+        }
+    };
+
+    private void clearCommandQueue() {
+        synchronized (mCommandQueue) {
+            mHandler.removeCallbacks(mExecuteNextCommand);
+            mHandler.removeCallbacks(mCommandWatchdog);
+            mCommandQueue.clear();
+            mCommandInFlight = null;
+            mSetupCommand = null;
+            mQueuedBrightnessCommand = null;
+            mQueuedRssiCommand = null;
+            mLastFlushedCommand = null;
+            Arrays.fill(mFlushedCommands, null);
+        }
+        mHandler.removeCallbacks(mStreamBrightness);
+        mBrightnessStreamer.reset();
+    }
+
+    /**
+     * Drive the command tracker deadlines from a single periodic tick, which only runs while commands are pending
+     */
+    private void scheduleCommandTick() {
+        mHandler.removeCallbacks(mCommandTick);
+        mHandler.postDelayed(mCommandTick, mCommandTracker.getTickDuration());
+    }
+
+    private final Runnable mCommandTick = new Runnable() {
+        @Override
+        public void run() {
+            boolean pending;
+            synchronized (mCommandTracker) {
+                mCommandTracker.tick(SystemClock.elapsedRealtime());
+                pending = mCommandTracker.hasPendingCommands();
+            }
+            if (pending) {
+                mHandler.postDelayed(this, mCommandTracker.getTickDuration());
+            }
+        }
+    };
+
+    private void clearPendingCommands() {
+        mHandler.removeCallbacks(mCommandTick);
+        synchronized (mCommandTracker) {
+            mCommandTracker.clear();
+        }
+    }
+
+    /**
+     * Resend commands that timed out and roll back commands that ran out of retries
+     */
+    private final BleCommandTracker.OnCommandListener mCommandTrackerListener = new BleCommandTracker.OnCommandListener() {
+        @Override
+        public void onResendCommand(int target, byte[] frame, int attempt) {
+            Log.w(TAG, "No confirmation, sending attempt " + attempt + ": " + bytesToHex(frame));
+            mMetrics.increment(BleMetrics.COMMAND_RETRIES);
+            mRateController.onFailure(SystemClock.elapsedRealtime());
+            queueCommand(BleCommand.write(mCharacteristic, frame, BleCommand.NO_TARGET, BleCommandQueue.LANE_INTERACTIVE), true);
+        }
+
+        @Override
+        public void onCommandFailed(int target, byte[] frame) {
+            Log.e(TAG, "Command failed: " + bytesToHex(frame));
+            mMetrics.increment(BleMetrics.COMMAND_FAILURES);
+            mRateController.onFailure(SystemClock.elapsedRealtime());
+            mLedShadowState.onCommandFailed();
+        }
+    };
+
+    /**
+     * Convert bytes to a hexadecimal String
+     *
+     * @param bytes a byte array
+     * @return hexadecimal string
+     */
+    final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();
+    public static String bytesToHex(byte[] bytes) {
+        char[] hexChars = new char[bytes.length * 2];
+        for ( int j = 0; j < bytes.length; j++ ) {
+            int v = bytes[j] & 0xFF;
+            hexChars[j * 2] = hexArray[v >>> 4];
+            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+    /**
+     * Write a value to a Characteristic
+     *
+     * @param command The command being written
+     * @param characteristic The Characteristic being written to
+     * @return the data packet that was queued
+     */
+    public byte[] writeCommandToCharacteristic(byte command, BluetoothGattCharacteristic characteristic) {
+        byte[] data = buildCommand(command);
+        queueCommand(BleCommand.write(characteristic, data, BleCommand.NO_TARGET, BleCommandQueue.LANE_NORMAL), false);
+        return data;
+    }
+
+    /**
+     * Build a command data packet
+     *
+     * @param command The command
+     * @return the data packet
+     */
+    private static byte[] buildCommand(byte command) {
+        byte[] data = new byte[TRANSMISSION_LENGTH];
+        data[DATA_POSITION] = command;
+        data[FOOTER_POSITION] = MESSAGE_TYPE_COMMAND;
+        return data;
+    }
+
+    /**
+     * Build a brightness data packet
+     *
+     * @param level 0 to MAX_BRIGHTNESS
+     * @return the data packet
+     */
+    private static byte[] buildBrightnessCommand(int level) {
+        byte[] data = new byte[PAYLOAD_POSITION + 1];
+        data[DATA_POSITION] = COMMAND_LED_BRIGHTNESS;
+        data[FOOTER_POSITION] = MESSAGE_TYPE_COMMAND;
+        data[PAYLOAD_POSITION] = (byte) level;
+        return data;
+    }
+
+
+    /**
+     * Subscribe or unsubscribe from Characteristic Notifications
+     *
+     * New in this chapter
+     *
+     * @param characteristic
+     * @param enableNotifications <b>true</b> for "subscribe" <b>false</b> for "unsubscribe"
+     */
+    public void setCharacteristicNotification(final BluetoothGattCharacteristic characteristic, final boolean enableNotifications) {
+        BleCommand command = buildNotificationCommand(characteristic, enableNotifications);
+        if (command != null) {
+            queueCommand(command, false);
+        }
+    }
+
+    /**
+     * Subscribe or unsubscribe locally, and build the Descriptor write that tells the Peripheral
+     *
+     * @param characteristic the Characteristic
+     * @param enableNotifications <b>true</b> for "subscribe" <b>false</b> for "unsubscribe"
+     * @return the Descriptor write, or null if the Characteristic has no configuration Descriptor
+     */
+    private BleCommand buildNotificationCommand(BluetoothGattCharacteristic characteristic, boolean enableNotifications) {
+        // modified from http://stackoverflow.com/a/18011901/5671180
+        // This is a 2-step process
+        // Step 1: set the Characteristic Notification parameter locally
+        mBluetoothGatt.setCharacteristicNotification(characteristic, enableNotifications);
+        // Step 2: Write a descriptor to the Bluetooth GATT enabling the subscription on the Perpiheral.
+        // It goes through the command queue, so it waits for the GATT operation in flight instead of a fixed delay
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID);
+        if (descriptor == null) {
+            return null;
+        }
+        byte[] value;
+        if (enableNotifications) {
+            value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        } else {
+            value = BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+        }
+        return BleCommand.writeDescriptor(descriptor, value, BleCommandQueue.LANE_BACKGROUND);
     }
 
 
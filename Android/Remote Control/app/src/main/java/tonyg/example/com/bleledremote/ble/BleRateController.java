@@ -0,0 +1,149 @@
+package tonyg.example.com.bleledremote.ble;
+
+/**
+ * Additive increase, multiplicative decrease (AIMD) rate controller for outbound commands.
+ *
+ * While confirmations come back quickly and writes succeed, the send rate creeps up by a fixed
+ * step per confirmation.  A failed write, a lost confirmation, or a confirmation latency spike
+ * cuts the rate in half.  The send rate therefore settles near what the link can actually carry
+ * instead of pushing until the GATT layer starts returning errors or drops the connection.
+ *
+ * Sends are paced evenly: getDelayUntilNextSend() says how long to hold the next command.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleRateController {
+    public static final float DEFAULT_MIN_RATE = 1f; // commands per second
+    public static final float DEFAULT_MAX_RATE = 50f;
+    public static final float DEFAULT_INITIAL_RATE = 10f;
+
+    private static final float ADDITIVE_INCREASE = 0.5f; // commands per second, per healthy confirmation
+    private static final float MULTIPLICATIVE_DECREASE = 0.5f;
+    private static final float LATENCY_SMOOTHING_FACTOR = 0.125f;
+    private static final float LATENCY_SPIKE_FACTOR = 2f; // latency this far above the baseline is a spike
+    private static final long MIN_LATENCY_SPIKE = 50; // ms, ignore jitter on very fast links
+
+    private final float mMinRate;
+    private final float mMaxRate;
+    private float mRate;
+
+    private float mSmoothedLatency = -1;
+    private long mNextSendTime = 0;
+    private long mLastDecreaseTime = Long.MIN_VALUE / 2;
+
+    /** Counters **/
+    private long mIncreases = 0;
+    private long mDecreases = 0;
+
+
+    public BleRateController() {
+        this(DEFAULT_MIN_RATE, DEFAULT_MAX_RATE, DEFAULT_INITIAL_RATE);
+    }
+
+    /**
+     * @param minRate the slowest send rate, in commands per second
+     * @param maxRate the fastest send rate, in commands per second
+     * @param initialRate the starting send rate, in commands per second
+     */
+    public BleRateController(float minRate, float maxRate, float initialRate) {
+        if (minRate <= 0 || maxRate < minRate) {
+            throw new IllegalArgumentException("Invalid rate limits");
+        }
+        mMinRate = minRate;
+        mMaxRate = maxRate;
+        mRate = clamp(initialRate);
+    }
+
+    /**
+     * Work out how long to hold the next command
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return milliseconds to wait, or 0 to send now
+     */
+    public synchronized long getDelayUntilNextSend(long now) {
+        return Math.max(0, mNextSendTime - now);
+    }
+
+    /**
+     * A command was sent
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public synchronized void onSent(long now) {
+        // pace from the actual send time, so no credit is banked while idle
+        mNextSendTime = now + (long) (1000f / mRate);
+    }
+
+    /**
+     * A command was confirmed
+     *
+     * @param latency milliseconds from send to confirmation
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public synchronized void onConfirmed(long latency, long now) {
+        if (mSmoothedLatency < 0) {
+            mSmoothedLatency = latency;
+        }
+        boolean spike = latency > mSmoothedLatency * LATENCY_SPIKE_FACTOR
+                && latency - mSmoothedLatency > MIN_LATENCY_SPIKE;
+        mSmoothedLatency += LATENCY_SMOOTHING_FACTOR * (latency - mSmoothedLatency);
+
+        if (spike) {
+            decrease(now);
+        } else if (mRate < mMaxRate) {
+            mRate = clamp(mRate + ADDITIVE_INCREASE);
+            mIncreases++;
+        }
+    }
+
+    /**
+     * A write failed or a confirmation was lost
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public synchronized void onFailure(long now) {
+        decrease(now);
+    }
+
+    /**
+     * @return the current send rate, in commands per second
+     */
+    public synchronized float getRate() {
+        return mRate;
+    }
+
+    /**
+     * @return the smoothed confirmation latency in milliseconds, or -1 if nothing was confirmed yet
+     */
+    public synchronized float getSmoothedLatency() {
+        return mSmoothedLatency;
+    }
+
+    public synchronized long getIncreaseCount() {
+        return mIncreases;
+    }
+
+    public synchronized long getDecreaseCount() {
+        return mDecreases;
+    }
+
+
+    /**
+     * Cut the rate, at most once per smoothed round trip so that one bad patch
+     * doesn't collapse the rate to the minimum
+     */
+    private void decrease(long now) {
+        long holdOff = mSmoothedLatency > 0 ? (long) mSmoothedLatency : 0;
+        if (now - mLastDecreaseTime < holdOff) {
+            return;
+        }
+        mLastDecreaseTime = now;
+        mRate = clamp(mRate * MULTIPLICATIVE_DECREASE);
+        mDecreases++;
+    }
+
+    private float clamp(float rate) {
+        return Math.max(mMinRate, Math.min(mMaxRate, rate));
+    }
+}
@@ -0,0 +1,90 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.Arrays;
+
+/**
+ * Summary statistics over the most recent samples of a measurement, such as a latency or a timing drift.
+ *
+ * Samples are kept in a fixed size ring, so memory use is bounded and old samples age out.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleSampleStats {
+    private final long[] mSamples;
+    private int mNext = 0;
+    private int mSize = 0;
+    private long mCount = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = Long.MIN_VALUE;
+    private double mSum = 0;
+
+    /**
+     * @param capacity the number of recent samples kept for percentiles
+     */
+    public BleSampleStats(int capacity) {
+        mSamples = new long[capacity];
+    }
+
+    public synchronized void add(long sample) {
+        mSamples[mNext] = sample;
+        mNext = (mNext + 1) % mSamples.length;
+        if (mSize < mSamples.length) {
+            mSize++;
+        }
+        mCount++;
+        mSum += sample;
+        mMin = Math.min(mMin, sample);
+        mMax = Math.max(mMax, sample);
+    }
+
+    public synchronized void clear() {
+        mNext = 0;
+        mSize = 0;
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = Long.MIN_VALUE;
+    }
+
+    /**
+     * @return the number of samples ever added
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    public synchronized double getMean() {
+        return mCount == 0 ? 0 : mSum / mCount;
+    }
+
+    public synchronized long getMin() {
+        return mCount == 0 ? 0 : mMin;
+    }
+
+    public synchronized long getMax() {
+        return mCount == 0 ? 0 : mMax;
+    }
+
+    /**
+     * Get a percentile of the recent samples
+     *
+     * @param percentile between 0 and 100
+     * @return the sample value at that percentile, or 0 if there are no samples
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mSize == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mSamples, mSize);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * mSize) - 1;
+        return sorted[Math.max(0, Math.min(mSize - 1, index))];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "n=" + mCount + " mean=" + Math.round(getMean()) + " p50=" + getPercentile(50)
+                + " p95=" + getPercentile(95) + " max=" + getMax();
+    }
+}
@@ -0,0 +1,252 @@
+package tonyg.example.com.bleledremote.ble;
+
+import android.bluetooth.le.ScanSettings;
+
+/**
+ * Decides how aggressively to scan for Peripherals.
+ *
+ * While a client is bound the user may be waiting for a connection, so we scan in the
+ * foreground: low latency windows that start as soon as Android's limit on scan starts per
+ * 30 seconds allows.  Empty windows only drop the scan mode to balanced, and a scan the user
+ * asks for starts over at low latency.  With no client bound we monitor in the background,
+ * in short low power windows separated by long pauses that back off while windows find nothing.
+ *
+ * The scheduler also keeps track of how long the radio has been scanning and how long it took
+ * to discover a Peripheral, so battery can be traded against time-to-discover.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleScanScheduler {
+    /** Scan contexts **/
+    public static final int CONTEXT_FOREGROUND = 0; // the user is waiting for a connection
+    public static final int CONTEXT_BACKGROUND = 1; // monitoring while nobody is watching
+
+    /** Foreground scanning **/
+    private static final long FOREGROUND_SCAN_WINDOW = 5000; // 5 seconds of scanning time
+    private static final int FOREGROUND_EMPTY_SCANS_BEFORE_BACKOFF = 2;
+
+    /** Background scanning **/
+    private static final long BACKGROUND_SCAN_WINDOW = 2000;
+    private static final long BACKGROUND_SCAN_INTERVAL = 30000;
+    private static final long BACKGROUND_MAX_BACKOFF = 300000;
+
+    /** Android refuses more than 5 scan starts in 30 seconds (Android 7+) **/
+    private static final int MAX_SCAN_STARTS = 5;
+    private static final long SCAN_START_PERIOD = 30000;
+
+    private int mScanContext = CONTEXT_FOREGROUND;
+    private int mConsecutiveEmptyScans = 0;
+    private boolean mDiscoveredThisWindow = false;
+
+    private final long[] mScanStarts = new long[MAX_SCAN_STARTS]; // ring buffer of scan start times
+    private int mScanStartCount = 0;
+    private long mLastScanStopped = -1;
+
+    /** Statistics **/
+    private boolean mScanning = false;
+    private long mScanStartedAt;
+    private long mRadioOnTime = 0;
+    private long mSearchStartedAt = -1; // first scan start since the last discovery
+    private long mLastDiscoveryLatency = -1;
+    private long mTotalDiscoveryLatency = 0;
+    private int mDiscoveryCount = 0;
+
+
+    /**
+     * Switch between foreground and background scanning.  Resets any backoff.
+     *
+     * @param scanContext CONTEXT_FOREGROUND or CONTEXT_BACKGROUND
+     */
+    public synchronized void setScanContext(int scanContext) {
+        if (scanContext != mScanContext) {
+            mScanContext = scanContext;
+            mConsecutiveEmptyScans = 0;
+        }
+    }
+
+    /**
+     * Scan in the foreground while a client is bound, and in the background otherwise
+     *
+     * @param bound <b>true</b> if a client is bound to the Service and listening
+     */
+    public synchronized void setClientBound(boolean bound) {
+        setScanContext(bound ? CONTEXT_FOREGROUND : CONTEXT_BACKGROUND);
+    }
+
+    /**
+     * A scan was asked for.  In the foreground the user is waiting, so drop any backoff
+     */
+    public synchronized void onScanRequested() {
+        if (mScanContext == CONTEXT_FOREGROUND) {
+            mConsecutiveEmptyScans = 0;
+        }
+    }
+
+    public synchronized int getScanContext() {
+        return mScanContext;
+    }
+
+    /**
+     * Scan windows repeat on their own in the background
+     *
+     * @return <b>true</b> if a new scan window should follow the last one
+     */
+    public synchronized boolean isDutyCycled() {
+        return mScanContext == CONTEXT_BACKGROUND;
+    }
+
+    /**
+     * Get the ScanSettings scan mode for the next window
+     *
+     * @return one of ScanSettings.SCAN_MODE_*
+     */
+    public synchronized int getScanMode() {
+        if (mScanContext == CONTEXT_BACKGROUND) {
+            return ScanSettings.SCAN_MODE_LOW_POWER;
+        }
+        if (mConsecutiveEmptyScans >= FOREGROUND_EMPTY_SCANS_BEFORE_BACKOFF) {
+            return ScanSettings.SCAN_MODE_BALANCED;
+        }
+        return ScanSettings.SCAN_MODE_LOW_LATENCY;
+    }
+
+    /**
+     * Get the length of the next scan window
+     *
+     * @return scan window in milliseconds
+     */
+    public synchronized long getScanWindow() {
+        if (mScanContext == CONTEXT_BACKGROUND) {
+            return BACKGROUND_SCAN_WINDOW;
+        }
+        return FOREGROUND_SCAN_WINDOW;
+    }
+
+    /**
+     * Work out how long to wait before the next scan window may start
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return milliseconds to wait, or 0 to start now
+     */
+    public synchronized long getDelayUntilNextScan(long now) {
+        long delay = 0;
+
+        // in the foreground only the scan start limit holds a window back
+        if (mScanContext == CONTEXT_BACKGROUND && mLastScanStopped >= 0) {
+            delay = mLastScanStopped + getScanInterval() - now;
+        }
+
+        // don't trip Android's scan start limit, or the scan will silently return nothing
+        if (mScanStartCount >= MAX_SCAN_STARTS) {
+            long oldestStart = mScanStarts[mScanStartCount % MAX_SCAN_STARTS];
+            delay = Math.max(delay, oldestStart + SCAN_START_PERIOD - now);
+        }
+
+        return Math.max(0, delay);
+    }
+
+    /**
+     * A scan window has started
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public synchronized void onScanStarted(long now) {
+        mScanStarts[mScanStartCount % MAX_SCAN_STARTS] = now;
+        mScanStartCount++;
+        mScanning = true;
+        mScanStartedAt = now;
+        mDiscoveredThisWindow = false;
+        if (mSearchStartedAt < 0) {
+            mSearchStartedAt = now;
+        }
+    }
+
+    /**
+     * A scan window has stopped
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public synchronized void onScanStopped(long now) {
+        if (!mScanning) {
+            return;
+        }
+        mScanning = false;
+        mRadioOnTime += now - mScanStartedAt;
+        mLastScanStopped = now;
+        if (mDiscoveredThisWindow) {
+            mConsecutiveEmptyScans = 0;
+        } else {
+            mConsecutiveEmptyScans++;
+        }
+    }
+
+    /**
+     * A Peripheral we were looking for has been discovered
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public synchronized void onPeripheralDiscovered(long now) {
+        mDiscoveredThisWindow = true;
+        mConsecutiveEmptyScans = 0;
+        if (mSearchStartedAt >= 0) {
+            mLastDiscoveryLatency = now - mSearchStartedAt;
+            mTotalDiscoveryLatency += mLastDiscoveryLatency;
+            mDiscoveryCount++;
+            mSearchStartedAt = -1;
+        }
+    }
+
+    /**
+     * Get the total time the radio has spent scanning
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return radio on time in milliseconds, including the current window
+     */
+    public synchronized long getRadioOnTime(long now) {
+        if (mScanning) {
+            return mRadioOnTime + (now - mScanStartedAt);
+        }
+        return mRadioOnTime;
+    }
+
+    /**
+     * @return time from the first scan start to the most recent discovery, or -1 if nothing was discovered yet
+     */
+    public synchronized long getLastDiscoveryLatency() {
+        return mLastDiscoveryLatency;
+    }
+
+    /**
+     * @return average discovery latency in milliseconds, or -1 if nothing was discovered yet
+     */
+    public synchronized long getMeanDiscoveryLatency() {
+        if (mDiscoveryCount == 0) {
+            return -1;
+        }
+        return mTotalDiscoveryLatency / mDiscoveryCount;
+    }
+
+    public synchronized int getScanStartCount() {
+        return mScanStartCount;
+    }
+
+    public synchronized int getConsecutiveEmptyScans() {
+        return mConsecutiveEmptyScans;
+    }
+
+
+    /**
+     * The pause between background scan windows, doubled for every empty window
+     */
+    private long getScanInterval() {
+        return backoff(BACKGROUND_SCAN_INTERVAL, mConsecutiveEmptyScans, BACKGROUND_MAX_BACKOFF);
+    }
+
+    private static long backoff(long base, int exponent, long max) {
+        if (exponent >= 16) {
+            return max;
+        }
+        return Math.min(max, base << exponent);
+    }
+}
@@ -0,0 +1,167 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A timed LED pattern, such as a blink sequence.
+ *
+ * A scene is a list of steps, each with a target LED state and an offset from the start of
+ * the scene.  Compiling the scene sorts the steps, drops steps that wouldn't change the LED,
+ * and packs the result into parallel arrays that BleScenePlayer can walk without allocating.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleScene {
+
+    /**
+     * A compiled scene
+     */
+    public static class Schedule {
+        final long[] mOffsets; // ms from the start of the scene, ascending
+        final byte[] mStates; // BlePeripheral.LED_STATE_ON or LED_STATE_OFF
+        final long mDuration; // length of one pass, in ms
+        final int mRepeatCount;
+
+        Schedule(long[] offsets, byte[] states, long duration, int repeatCount) {
+            mOffsets = offsets;
+            mStates = states;
+            mDuration = duration;
+            mRepeatCount = repeatCount;
+        }
+
+        public int getStepCount() {
+            return mOffsets.length;
+        }
+
+        public long getOffset(int step) {
+            return mOffsets[step];
+        }
+
+        public int getState(int step) {
+            return mStates[step];
+        }
+
+        /**
+         * @return the length of one pass of the scene in milliseconds
+         */
+        public long getDuration() {
+            return mDuration;
+        }
+
+        public int getRepeatCount() {
+            return mRepeatCount;
+        }
+    }
+
+    private static class Step {
+        final int mState;
+        final long mOffset;
+
+        Step(int state, long offset) {
+            mState = state;
+            mOffset = offset;
+        }
+    }
+
+    private final ArrayList<Step> mSteps = new ArrayList<Step>();
+    private long mDuration = -1;
+    private int mRepeatCount = 1;
+
+
+    /**
+     * Add a step to the scene
+     *
+     * @param ledState BlePeripheral.LED_STATE_ON or BlePeripheral.LED_STATE_OFF
+     * @param offset milliseconds from the start of the scene
+     * @return this scene, so steps can be chained
+     */
+    public BleScene addStep(int ledState, long offset) {
+        if (ledState != BlePeripheral.LED_STATE_ON && ledState != BlePeripheral.LED_STATE_OFF) {
+            throw new IllegalArgumentException("Invalid LED state: " + ledState);
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset can't be negative");
+        }
+        mSteps.add(new Step(ledState, offset));
+        return this;
+    }
+
+    /**
+     * Set the length of one pass of the scene.  By default a pass ends one step interval after
+     * its last step, the same gap as between the last two steps, so the next pass keeps the rhythm.
+     * A repeating scene must end after its last step, or the first step of the next pass would
+     * go out at the same time as it
+     *
+     * @param duration milliseconds
+     * @return this scene
+     */
+    public BleScene setDuration(long duration) {
+        mDuration = duration;
+        return this;
+    }
+
+    /**
+     * Play the scene more than once
+     *
+     * @param repeatCount the number of passes, at least 1
+     * @return this scene
+     */
+    public BleScene setRepeatCount(int repeatCount) {
+        if (repeatCount < 1) {
+            throw new IllegalArgumentException("Repeat count must be at least 1");
+        }
+        mRepeatCount = repeatCount;
+        return this;
+    }
+
+    /**
+     * Compile the scene into a compact schedule
+     *
+     * @return the Schedule
+     * @throws IllegalStateException if the scene repeats and a pass doesn't end after its last step
+     */
+    public Schedule compile() {
+        Step[] steps = mSteps.toArray(new Step[mSteps.size()]);
+        // stable sort, so steps at the same offset keep the order they were added in
+        Arrays.sort(steps, new Comparator<Step>() {
+            @Override
+            public int compare(Step a, Step b) {
+                return a.mOffset < b.mOffset ? -1 : (a.mOffset == b.mOffset ? 0 : 1);
+            }
+        });
+
+        long[] offsets = new long[steps.length];
+        byte[] states = new byte[steps.length];
+        int count = 0;
+        for (int i = 0; i < steps.length; i++) {
+            // the last step at a given offset wins
+            if (count > 0 && offsets[count - 1] == steps[i].mOffset) {
+                count--;
+            }
+            // a step that doesn't change the LED is a wasted round trip
+            if (count > 0 && states[count - 1] == steps[i].mState) {
+                continue;
+            }
+            offsets[count] = steps[i].mOffset;
+            states[count] = (byte) steps[i].mState;
+            count++;
+        }
+
+        long lastOffset = count > 0 ? offsets[count - 1] : 0;
+        long duration = mDuration;
+        if (duration < 0) {
+            // a lone step is as far from the start of the pass as from its end
+            long interval = count > 1 ? lastOffset - offsets[count - 2] : lastOffset;
+            duration = lastOffset + interval;
+        }
+        if (mRepeatCount > 1 && count > 0 && duration <= lastOffset) {
+            throw new IllegalStateException("A repeating scene must end after its last step, at "
+                    + lastOffset + "ms, not at " + duration + "ms");
+        }
+        duration = Math.max(duration, lastOffset);
+        return new Schedule(Arrays.copyOf(offsets, count), Arrays.copyOf(states, count), duration, mRepeatCount);
+    }
+}
@@ -0,0 +1,164 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Walks a compiled BleScene against a clock, and measures how closely it was kept to.
+ *
+ * Every step is planned relative to a single start time, so lateness on one step doesn't push
+ * back the steps after it.  When a step is played, its planned time waits twice for each
+ * Peripheral: for the write to leave the phone, and for the Peripheral to confirm it.  Sends
+ * and confirmations are matched to the steps in order, and their distance from the plan is
+ * kept as the send drift and the confirm drift.
+ *
+ * Not thread safe.  BleScenePlayer serializes access to it.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleSceneClock {
+    private final BleSampleStats mSendDrift;
+    private final BleSampleStats mConfirmDrift;
+    private BleScene.Schedule mSchedule;
+    private final ArrayList<ArrayDeque<Long>> mAwaitingSend = new ArrayList<ArrayDeque<Long>>(); // planned step times, per Peripheral
+    private final ArrayList<ArrayDeque<Long>> mAwaitingConfirmation = new ArrayList<ArrayDeque<Long>>();
+    private long mStartTime;
+    private int mPass;
+    private int mStep;
+    private boolean mPlaying = false;
+
+
+    /**
+     * @param statsCapacity the number of recent drift samples kept for percentiles
+     */
+    public BleSceneClock(int statsCapacity) {
+        mSendDrift = new BleSampleStats(statsCapacity);
+        mConfirmDrift = new BleSampleStats(statsCapacity);
+    }
+
+    /**
+     * Start a scene.  Steps still waiting from an earlier scene are forgotten
+     *
+     * @param schedule the compiled scene
+     * @param peripheralCount the number of Peripherals it plays on
+     * @param startTime when the first step is planned, in milliseconds from a monotonic clock
+     */
+    public void start(BleScene.Schedule schedule, int peripheralCount, long startTime) {
+        mSchedule = schedule;
+        mAwaitingSend.clear();
+        mAwaitingConfirmation.clear();
+        for (int i = 0; i < peripheralCount; i++) {
+            mAwaitingSend.add(new ArrayDeque<Long>());
+            mAwaitingConfirmation.add(new ArrayDeque<Long>());
+        }
+        mSendDrift.clear();
+        mConfirmDrift.clear();
+        mStartTime = startTime;
+        mPass = 0;
+        mStep = 0;
+        mPlaying = schedule.getStepCount() > 0;
+    }
+
+    /**
+     * Stop playing.  Sends and confirmations of steps already played still count
+     */
+    public void stop() {
+        mPlaying = false;
+    }
+
+    /**
+     * @return <b>true</b> until the last step of the last pass is played
+     */
+    public boolean isPlaying() {
+        return mPlaying;
+    }
+
+    /**
+     * @return when the next step is planned, in milliseconds from the start time's clock
+     */
+    public long getPlannedTime() {
+        return mStartTime + mPass * mSchedule.getDuration() + mSchedule.getOffset(mStep);
+    }
+
+    /**
+     * @return the LED state of the next step
+     */
+    public int getState() {
+        return mSchedule.getState(mStep);
+    }
+
+    /**
+     * The next step is being handed to every Peripheral.  Call before sending it, so its
+     * send can be matched to it
+     *
+     * @return <b>true</b> if another step follows
+     */
+    public boolean advance() {
+        if (!mPlaying) {
+            return false;
+        }
+        long planned = getPlannedTime();
+        for (int i = 0; i < mAwaitingSend.size(); i++) {
+            mAwaitingSend.get(i).addLast(planned);
+            mAwaitingConfirmation.get(i).addLast(planned);
+        }
+        mStep++;
+        if (mStep == mSchedule.getStepCount()) {
+            mStep = 0;
+            mPass++;
+        }
+        if (mPass >= mSchedule.getRepeatCount()) {
+            mPlaying = false;
+        }
+        return mPlaying;
+    }
+
+    /**
+     * A step's write left the phone
+     *
+     * @param peripheral the Peripheral's index
+     * @param now the current time in milliseconds, from the start time's clock
+     */
+    public void onSent(int peripheral, long now) {
+        Long planned = mAwaitingSend.get(peripheral).pollFirst();
+        if (planned != null) {
+            mSendDrift.add(now - planned);
+        }
+    }
+
+    /**
+     * A Peripheral confirmed a step
+     *
+     * @param peripheral the Peripheral's index
+     * @param now the current time in milliseconds, from the start time's clock
+     */
+    public void onConfirmed(int peripheral, long now) {
+        Long planned = mAwaitingConfirmation.get(peripheral).pollFirst();
+        if (planned != null) {
+            mConfirmDrift.add(now - planned);
+        }
+    }
+
+    /**
+     * @param peripheral the Peripheral's index
+     * @return <b>true</b> if every step played so far was confirmed by the Peripheral
+     */
+    public boolean isConfirmed(int peripheral) {
+        return mAwaitingConfirmation.get(peripheral).isEmpty();
+    }
+
+    /**
+     * @return drift of actual send times from the planned step times, in milliseconds
+     */
+    public BleSampleStats getSendDrift() {
+        return mSendDrift;
+    }
+
+    /**
+     * @return drift of confirmation times from the planned step times, in milliseconds
+     */
+    public BleSampleStats getConfirmDrift() {
+        return mConfirmDrift;
+    }
+}
@@ -0,0 +1,184 @@
+package tonyg.example.com.bleledremote.ble;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Plays a compiled BleScene against one or more Peripherals.
+ *
+ * Steps are scheduled against SystemClock.uptimeMillis(), a monotonic clock, by a BleSceneClock.
+ * For every step, the player records how far the write leaving the phone drifted from the
+ * plan, and how far the Peripheral's confirmation landed from the plan.
+ *
+ * While the scene plays, the Peripherals' shadow states don't resend the desired state when a
+ * confirmation lags, so every write is one the scene planned.  Each Peripheral goes back to
+ * reconciling once the scene is over and its last confirmation is in, or the scene is stopped.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleScenePlayer {
+    private static final String TAG = BleScenePlayer.class.getSimpleName();
+    private static final long START_LEAD_TIME = 50; // ms, so the first step isn't already late
+    private static final int STATS_CAPACITY = 512;
+
+    /**
+     * Notified when the last step of the last pass has been sent
+     */
+    public interface OnSceneCompleteListener {
+        void onSceneComplete(BleScenePlayer player);
+    }
+
+    private final Handler mHandler;
+    private final BleSceneClock mClock = new BleSceneClock(STATS_CAPACITY);
+    private BlePeripheral[] mBlePeripherals = new BlePeripheral[0];
+    private OnSceneCompleteListener mListener;
+
+
+    public BleScenePlayer() {
+        this(new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * @param handler the Handler the scene is scheduled on
+     */
+    public BleScenePlayer(Handler handler) {
+        mHandler = handler;
+    }
+
+    public void setOnSceneCompleteListener(OnSceneCompleteListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Start playing a scene.  Any scene already playing is stopped
+     *
+     * @param schedule the compiled scene
+     * @param blePeripherals the Peripherals to play it on
+     */
+    public synchronized void play(BleScene.Schedule schedule, List<BlePeripheral> blePeripherals) {
+        stop();
+        mBlePeripherals = blePeripherals.toArray(new BlePeripheral[blePeripherals.size()]);
+        mClock.start(schedule, mBlePeripherals.length, SystemClock.uptimeMillis() + START_LEAD_TIME);
+        if (!mClock.isPlaying()) {
+            return;
+        }
+        for (BlePeripheral blePeripheral : mBlePeripherals) {
+            blePeripheral.setOnLedStateReportedListener(mLedStateReportedListener);
+            blePeripheral.getLedShadowState().setReconciling(false);
+        }
+        mHandler.postAtTime(mPlayStep, mClock.getPlannedTime());
+    }
+
+    /**
+     * Stop playing, and stop listening for sends and confirmations
+     */
+    public synchronized void stop() {
+        mHandler.removeCallbacks(mPlayStep);
+        mClock.stop();
+        for (BlePeripheral blePeripheral : mBlePeripherals) {
+            blePeripheral.setOnLedStateReportedListener(null);
+            blePeripheral.getLedShadowState().setReconciling(true);
+        }
+        mBlePeripherals = new BlePeripheral[0];
+    }
+
+    public synchronized boolean isPlaying() {
+        return mClock.isPlaying();
+    }
+
+    /**
+     * @return drift of the times the writes left the phone from the planned step times, in milliseconds
+     */
+    public BleSampleStats getSendDrift() {
+        return mClock.getSendDrift();
+    }
+
+    /**
+     * @return drift of confirmation times from the planned step times, in milliseconds
+     */
+    public BleSampleStats getConfirmDrift() {
+        return mClock.getConfirmDrift();
+    }
+
+
+    /**
+     * @param blePeripheral a Peripheral
+     * @return its index in the scene, or -1 if it isn't playing it
+     */
+    private int indexOf(BlePeripheral blePeripheral) {
+        for (int i = 0; i < mBlePeripherals.length; i++) {
+            if (mBlePeripherals[i] == blePeripheral) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private final Runnable mPlayStep = new Runnable() {
+        @Override
+        public void run() {
+            OnSceneCompleteListener completeListener = null;
+            synchronized (BleScenePlayer.this) {
+                if (!mClock.isPlaying()) {
+                    return;
+                }
+                int state = mClock.getState();
+                // before sending, so a write that leaves straight away is matched to this step
+                boolean more = mClock.advance();
+                for (BlePeripheral blePeripheral : mBlePeripherals) {
+                    blePeripheral.playLedState(state);
+                }
+
+                if (more) {
+                    mHandler.postAtTime(this, mClock.getPlannedTime());
+                } else {
+                    for (int i = 0; i < mBlePeripherals.length; i++) {
+                        if (mClock.isConfirmed(i)) {
+                            mBlePeripherals[i].getLedShadowState().setReconciling(true);
+                        }
+                    }
+                    completeListener = mListener;
+                    Log.v(TAG, "Scene complete. Send drift " + mClock.getSendDrift() + ", confirm drift " + mClock.getConfirmDrift());
+                }
+            }
+            if (completeListener != null) {
+                completeListener.onSceneComplete(BleScenePlayer.this);
+            }
+        }
+    };
+
+    /**
+     * Match sends and confirmations to the steps that were played, in order
+     */
+    private final BlePeripheral.OnLedStateReportedListener mLedStateReportedListener = new BlePeripheral.OnLedStateReportedListener() {
+        @Override
+        public void onLedStateSent(BlePeripheral blePeripheral, int state, long timestamp) {
+            synchronized (BleScenePlayer.this) {
+                int index = indexOf(blePeripheral);
+                if (index >= 0) {
+                    mClock.onSent(index, timestamp);
+                }
+            }
+        }
+
+        @Override
+        public void onLedStateReported(BlePeripheral blePeripheral, int state, long timestamp) {
+            synchronized (BleScenePlayer.this) {
+                int index = indexOf(blePeripheral);
+                if (index < 0) {
+                    return;
+                }
+                mClock.onConfirmed(index, timestamp);
+                if (!mClock.isPlaying() && mClock.isConfirmed(index)) {
+                    // the scene is over and this was its last confirmation
+                    blePeripheral.getLedShadowState().setReconciling(true);
+                }
+            }
+        }
+    };
+}
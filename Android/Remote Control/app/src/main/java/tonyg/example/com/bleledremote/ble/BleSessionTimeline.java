@@ -0,0 +1,159 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The phases one remote goes through from starting the scan until it is ready, and when each one ended.
+ *
+ * Phases are stamped in order as they finish, and the timeline is finished when the remote
+ * passes its readiness barrier.  A phase's duration runs from the end of the phase stamped
+ * before it, so a phase that was skipped has no duration and its time counts towards the next
+ * one.  A stamp for a phase at or before the last one is ignored, so a late or repeated
+ * callback can't rewrite the timeline.
+ *
+ * Times are in nanoseconds from a monotonic clock.  Safe to stamp from any thread.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleSessionTimeline {
+    /** Phases, in order **/
+    public static final int PHASE_ADAPTER_CHECK = 0; // checking the radio is on
+    public static final int PHASE_SCAN = 1; // until an advertisement matched
+    public static final int PHASE_CONNECT_QUEUE = 2; // waiting for a connect slot
+    public static final int PHASE_CONNECT_GATT = 3; // the connectGatt() call
+    public static final int PHASE_REFRESH_CACHE = 4; // the refreshDeviceCache() call
+    public static final int PHASE_LINK = 5; // until the link came up
+    public static final int PHASE_DISCOVER_SERVICES = 6; // until the GATT profile arrived
+    public static final int PHASE_CHARACTERISTIC_LOOKUP = 7; // finding the Service and Characteristic
+    public static final int PHASE_REQUEST_MTU = 8; // the setup pipeline's steps
+    public static final int PHASE_CONNECTION_PRIORITY = 9;
+    public static final int PHASE_NOTIFICATION_ENABLE = 10;
+    public static final int PHASE_INITIAL_READ = 11;
+    public static final int PHASE_COUNT = 12;
+
+    private static final String[] PHASE_NAMES = {
+            "adapter", "scan", "queue", "connectGatt", "refresh", "link", "discover", "lookup",
+            "mtu", "priority", "notify", "read"
+    };
+    private static final long NOT_STAMPED = -1;
+
+    private final long mStartedAt;
+    private final long[] mPhaseEnds = new long[PHASE_COUNT];
+    private int mLastPhase = -1;
+    private long mFinishedAt = NOT_STAMPED;
+
+
+    /**
+     * @param startedAt when the session started, in nanoseconds
+     */
+    public BleSessionTimeline(long startedAt) {
+        mStartedAt = startedAt;
+        Arrays.fill(mPhaseEnds, NOT_STAMPED);
+    }
+
+    /**
+     * Copy the phases stamped so far, such as a scan shared by several remotes, to continue for one of them
+     *
+     * @return a new timeline with the same stamps
+     */
+    public synchronized BleSessionTimeline copy() {
+        BleSessionTimeline timeline = new BleSessionTimeline(mStartedAt);
+        System.arraycopy(mPhaseEnds, 0, timeline.mPhaseEnds, 0, PHASE_COUNT);
+        timeline.mLastPhase = mLastPhase;
+        timeline.mFinishedAt = mFinishedAt;
+        return timeline;
+    }
+
+    /**
+     * Stamp the end of a phase
+     *
+     * @param phase one of the PHASE_* phases
+     * @param now the current time in nanoseconds
+     * @return false if the phase, or a later one, was already stamped, or the timeline is finished
+     */
+    public synchronized boolean stamp(int phase, long now) {
+        if (phase <= mLastPhase || phase >= PHASE_COUNT || mFinishedAt != NOT_STAMPED) {
+            return false;
+        }
+        mPhaseEnds[phase] = now;
+        mLastPhase = phase;
+        return true;
+    }
+
+    /**
+     * @param phase one of the PHASE_* phases
+     * @return nanoseconds the phase took, or -1 if it wasn't stamped
+     */
+    public synchronized long getDuration(int phase) {
+        if (mPhaseEnds[phase] == NOT_STAMPED) {
+            return -1;
+        }
+        long previousEnd = mStartedAt;
+        for (int i = phase - 1; i >= 0; i--) {
+            if (mPhaseEnds[i] != NOT_STAMPED) {
+                previousEnd = mPhaseEnds[i];
+                break;
+            }
+        }
+        return mPhaseEnds[phase] - previousEnd;
+    }
+
+    /**
+     * The remote is ready.  No more phases are stamped
+     *
+     * @param now the current time in nanoseconds
+     * @return false if the timeline was already finished
+     */
+    public synchronized boolean finish(long now) {
+        if (mFinishedAt != NOT_STAMPED) {
+            return false;
+        }
+        mFinishedAt = now;
+        return true;
+    }
+
+    /**
+     * @return nanoseconds from the start until the remote was ready, or until the end of the
+     * last phase stamped if it isn't yet, or -1 if no phase was stamped
+     */
+    public synchronized long getTotal() {
+        if (mFinishedAt != NOT_STAMPED) {
+            return mFinishedAt - mStartedAt;
+        }
+        return mLastPhase < 0 ? -1 : mPhaseEnds[mLastPhase] - mStartedAt;
+    }
+
+    /**
+     * @return true once the remote is ready
+     */
+    public synchronized boolean isComplete() {
+        return mFinishedAt != NOT_STAMPED;
+    }
+
+    public long getStartedAt() {
+        return mStartedAt;
+    }
+
+    /**
+     * @param phase one of the PHASE_* phases
+     * @return a short name for logs
+     */
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            long duration = getDuration(phase);
+            if (duration >= 0) {
+                builder.append(PHASE_NAMES[phase]).append('=')
+                        .append(String.format(Locale.US, "%.1f", duration / 1e6)).append("ms ");
+            }
+        }
+        return builder.append("total=").append(String.format(Locale.US, "%.1f", getTotal() / 1e6)).append("ms").toString();
+    }
+}
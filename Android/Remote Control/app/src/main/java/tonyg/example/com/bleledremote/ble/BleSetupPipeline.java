@@ -0,0 +1,273 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sets a connection up after the GATT profile is discovered, and tells when it is ready.
+ *
+ * The setup is a fixed list of steps: request a larger MTU, ask for a fast connection interval,
+ * enable notifications, and read the Peripheral's current state.  Each step is one GATT
+ * operation, and the next one starts from the previous one's callback, so setting up takes as
+ * long as the operations themselves and no longer.  A step that doesn't apply, such as an MTU
+ * request before Lollipop, is skipped.  A step that fails is counted and the setup goes on,
+ * since a connection without a larger MTU or a fast interval still works.
+ *
+ * When the last step finishes, the readiness barrier is passed: the listener is notified once,
+ * and threads waiting in awaitReady() are released.
+ *
+ * This class is not thread safe, apart from isReady() and awaitReady(); BlePeripheral
+ * serializes access to it.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleSetupPipeline {
+    /** Setup steps **/
+    public static final int STEP_REQUEST_MTU = 0;
+    public static final int STEP_CONNECTION_PRIORITY = 1;
+    public static final int STEP_ENABLE_NOTIFICATIONS = 2;
+    public static final int STEP_READ_STATE = 3;
+    public static final int STEP_COUNT = 4;
+    public static final int NO_STEP = -1;
+
+    // in order; the state is read last so no change is missed while notifications were off
+    public static final int[] DEFAULT_STEPS = {
+            STEP_REQUEST_MTU, STEP_CONNECTION_PRIORITY, STEP_ENABLE_NOTIFICATIONS, STEP_READ_STATE
+    };
+
+    private static final String[] STEP_NAMES = {"mtu", "priority", "notify", "read"};
+    private static final int STATS_CAPACITY = 32;
+
+    /**
+     * Starts the GATT operation of a step
+     */
+    public interface StepRunner {
+        /**
+         * @param step one of the STEP_* steps
+         * @return false if the step doesn't apply and was not started
+         */
+        boolean startStep(int step);
+    }
+
+    /**
+     * Notified when a setup passes the readiness barrier
+     */
+    public interface OnReadyListener {
+        /**
+         * @param pipeline the setup pipeline
+         * @param failedSteps the number of steps that failed
+         */
+        void onSetupReady(BleSetupPipeline pipeline, int failedSteps);
+    }
+
+    private final StepRunner mRunner;
+    private final int[] mSteps;
+    private OnReadyListener mListener;
+    private int mNextStep = 0; // index into mSteps
+    private int mCurrentStep = NO_STEP; // the step in flight
+    private boolean mRunning = false;
+    private volatile boolean mReady = false;
+    private volatile CountDownLatch mReadyLatch = new CountDownLatch(1);
+    private long mStartedAt;
+    private long mStepStartedAt;
+    private int mFailedSteps;
+    private long mLastSetupTime = -1;
+    private final BleSampleStats[] mStepTimes = new BleSampleStats[STEP_COUNT];
+    private final BleSampleStats mSetupTimes = new BleSampleStats(STATS_CAPACITY);
+
+    /** Counters **/
+    private long mSetupsStarted = 0;
+    private long mSetupsCompleted = 0;
+    private long mSetupsCancelled = 0;
+    private long mStepsSkipped = 0;
+    private long mStepsFailed = 0;
+
+
+    public BleSetupPipeline(StepRunner runner) {
+        this(runner, DEFAULT_STEPS);
+    }
+
+    /**
+     * @param runner starts each step's GATT operation
+     * @param steps the steps to run, in order
+     */
+    public BleSetupPipeline(StepRunner runner, int[] steps) {
+        mRunner = runner;
+        mSteps = steps.clone();
+        for (int step = 0; step < STEP_COUNT; step++) {
+            mStepTimes[step] = new BleSampleStats(STATS_CAPACITY);
+        }
+    }
+
+    public void setOnReadyListener(OnReadyListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Start setting up a new connection, abandoning any setup still running
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public void start(long now) {
+        cancel();
+        mRunning = true;
+        mNextStep = 0;
+        mFailedSteps = 0;
+        mStartedAt = now;
+        mSetupsStarted++;
+        startNextStep(now);
+    }
+
+    /**
+     * The GATT operation of the step in flight finished
+     *
+     * @param step the step
+     * @param success <b>true</b> if the operation succeeded
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return false if the step wasn't in flight, such as a late callback from an abandoned setup
+     */
+    public boolean onStepComplete(int step, boolean success, long now) {
+        if (!mRunning || step != mCurrentStep) {
+            return false;
+        }
+        mStepTimes[step].add(now - mStepStartedAt);
+        if (!success) {
+            mStepsFailed++;
+            mFailedSteps++;
+        }
+        mCurrentStep = NO_STEP;
+        startNextStep(now);
+        return true;
+    }
+
+    /**
+     * The connection is gone.  Stop without passing the barrier, and close it again if it was passed
+     */
+    public void cancel() {
+        if (mReady) {
+            mReady = false;
+            mReadyLatch = new CountDownLatch(1);
+        }
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mCurrentStep = NO_STEP;
+        mSetupsCancelled++;
+    }
+
+    /**
+     * Start the next step that applies, or pass the barrier if there are none left
+     */
+    private void startNextStep(long now) {
+        while (mNextStep < mSteps.length) {
+            int step = mSteps[mNextStep++];
+            mCurrentStep = step;
+            mStepStartedAt = now;
+            if (mRunner.startStep(step)) {
+                return;
+            }
+            mCurrentStep = NO_STEP;
+            mStepsSkipped++;
+        }
+        mRunning = false;
+        mLastSetupTime = now - mStartedAt;
+        mSetupTimes.add(mLastSetupTime);
+        mSetupsCompleted++;
+        mReady = true;
+        mReadyLatch.countDown();
+        if (mListener != null) {
+            mListener.onSetupReady(this, mFailedSteps);
+        }
+    }
+
+    /**
+     * @return true while the steps are running, so commands should wait
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return true once the current connection passed the readiness barrier.  Safe from any thread
+     */
+    public boolean isReady() {
+        return mReady;
+    }
+
+    /**
+     * Wait for the current connection to pass the readiness barrier.  Don't call from the main thread
+     *
+     * @param timeout how long to wait
+     * @param unit the unit of the timeout
+     * @return true if ready, false if the time ran out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return mReadyLatch.await(timeout, unit);
+    }
+
+    /**
+     * @return the step in flight, or NO_STEP
+     */
+    public int getCurrentStep() {
+        return mCurrentStep;
+    }
+
+    /**
+     * @return milliseconds the last finished setup took, or -1
+     */
+    public long getLastSetupTime() {
+        return mLastSetupTime;
+    }
+
+    /**
+     * @return the durations of finished setups, in milliseconds
+     */
+    public BleSampleStats getSetupTimes() {
+        return mSetupTimes;
+    }
+
+    /**
+     * @param step one of the STEP_* steps
+     * @return the durations of the step's GATT operation, in milliseconds
+     */
+    public BleSampleStats getStepTimes(int step) {
+        return mStepTimes[step];
+    }
+
+    /**
+     * @param step one of the STEP_* steps
+     * @return a short name for logs
+     */
+    public static String getStepName(int step) {
+        return STEP_NAMES[step];
+    }
+
+    public long getSetupsStarted() {
+        return mSetupsStarted;
+    }
+
+    public long getSetupsCompleted() {
+        return mSetupsCompleted;
+    }
+
+    /**
+     * @return setups abandoned because the connection dropped
+     */
+    public long getSetupsCancelled() {
+        return mSetupsCancelled;
+    }
+
+    /**
+     * @return steps that didn't apply to the connection
+     */
+    public long getStepsSkipped() {
+        return mStepsSkipped;
+    }
+
+    public long getStepsFailed() {
+        return mStepsFailed;
+    }
+}
@@ -0,0 +1,192 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Aggregates finished session timelines by phone model, to show where time to ready goes.
+ *
+ * Each model keeps the recent samples of every phase and of the total, in microseconds.
+ * The dominant phase is the one with the highest median, so one slow outlier doesn't decide it.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleStartupProfiler {
+    public static final int DEFAULT_SAMPLE_CAPACITY = 64; // recent sessions kept per model
+
+    private final int mSampleCapacity;
+    private final HashMap<String, ModelProfile> mProfiles = new HashMap<String, ModelProfile>();
+
+    /** Counters **/
+    private long mSessionsAdded = 0;
+    private long mSessionsIncomplete = 0;
+
+
+    /**
+     * Phase and total statistics for one phone model
+     */
+    public static class ModelProfile {
+        private final String mModel;
+        private final BleSampleStats[] mPhases = new BleSampleStats[BleSessionTimeline.PHASE_COUNT];
+        private final BleSampleStats mTotal;
+
+        ModelProfile(String model, int sampleCapacity) {
+            mModel = model;
+            for (int phase = 0; phase < mPhases.length; phase++) {
+                mPhases[phase] = new BleSampleStats(sampleCapacity);
+            }
+            mTotal = new BleSampleStats(sampleCapacity);
+        }
+
+        void add(BleSessionTimeline timeline) {
+            for (int phase = 0; phase < mPhases.length; phase++) {
+                long duration = timeline.getDuration(phase);
+                if (duration >= 0) {
+                    mPhases[phase].add(duration / 1000);
+                }
+            }
+            mTotal.add(timeline.getTotal() / 1000);
+        }
+
+        public String getModel() {
+            return mModel;
+        }
+
+        /**
+         * @param phase one of the BleSessionTimeline.PHASE_* phases
+         * @return the phase's durations, in microseconds
+         */
+        public BleSampleStats getPhaseStats(int phase) {
+            return mPhases[phase];
+        }
+
+        /**
+         * @return the times to ready, in microseconds
+         */
+        public BleSampleStats getTotalStats() {
+            return mTotal;
+        }
+
+        /**
+         * @return the phase with the highest median duration, or -1 if there are no sessions
+         */
+        public int getDominantPhase() {
+            int dominant = -1;
+            long longest = -1;
+            for (int phase = 0; phase < mPhases.length; phase++) {
+                if (mPhases[phase].getCount() == 0) {
+                    continue;
+                }
+                long median = mPhases[phase].getPercentile(50);
+                if (median > longest) {
+                    longest = median;
+                    dominant = phase;
+                }
+            }
+            return dominant;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(mModel).append(": ready p50=")
+                    .append(formatMillis(mTotal.getPercentile(50))).append(" p95=")
+                    .append(formatMillis(mTotal.getPercentile(95))).append(" n=").append(mTotal.getCount());
+            int dominant = getDominantPhase();
+            if (dominant >= 0) {
+                builder.append(", dominated by ").append(BleSessionTimeline.getPhaseName(dominant));
+            }
+            for (int phase = 0; phase < mPhases.length; phase++) {
+                if (mPhases[phase].getCount() == 0) {
+                    continue;
+                }
+                builder.append("\n  ").append(BleSessionTimeline.getPhaseName(phase))
+                        .append(" p50=").append(formatMillis(mPhases[phase].getPercentile(50)))
+                        .append(" p95=").append(formatMillis(mPhases[phase].getPercentile(95)))
+                        .append(" max=").append(formatMillis(mPhases[phase].getMax()));
+            }
+            return builder.toString();
+        }
+    }
+
+
+    public BleStartupProfiler() {
+        this(DEFAULT_SAMPLE_CAPACITY);
+    }
+
+    /**
+     * @param sampleCapacity the number of recent sessions kept per model for percentiles
+     */
+    public BleStartupProfiler(int sampleCapacity) {
+        mSampleCapacity = sampleCapacity;
+    }
+
+    /**
+     * Add a session whose timeline is finished
+     *
+     * @param model the phone model, such as Build.MODEL
+     * @param timeline the session's timeline
+     * @return false if the timeline isn't finished, in which case it is only counted
+     */
+    public synchronized boolean addSession(String model, BleSessionTimeline timeline) {
+        if (!timeline.isComplete()) {
+            mSessionsIncomplete++;
+            return false;
+        }
+        ModelProfile profile = mProfiles.get(model);
+        if (profile == null) {
+            profile = new ModelProfile(model, mSampleCapacity);
+            mProfiles.put(model, profile);
+        }
+        profile.add(timeline);
+        mSessionsAdded++;
+        return true;
+    }
+
+    /**
+     * @param model the phone model
+     * @return its profile, or null if it has no sessions
+     */
+    public synchronized ModelProfile getProfile(String model) {
+        return mProfiles.get(model);
+    }
+
+    public synchronized List<String> getModels() {
+        return new ArrayList<String>(mProfiles.keySet());
+    }
+
+    public synchronized void clear() {
+        mProfiles.clear();
+        mSessionsAdded = 0;
+        mSessionsIncomplete = 0;
+    }
+
+    public synchronized long getSessionsAdded() {
+        return mSessionsAdded;
+    }
+
+    /**
+     * @return sessions turned away because they weren't finished
+     */
+    public synchronized long getSessionsIncomplete() {
+        return mSessionsIncomplete;
+    }
+
+    private static String formatMillis(long micros) {
+        return String.format(Locale.US, "%.1fms", micros / 1000.0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (ModelProfile profile : mProfiles.values()) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(profile);
+        }
+        return builder.toString();
+    }
+}
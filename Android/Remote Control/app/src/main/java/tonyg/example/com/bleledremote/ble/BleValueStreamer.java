@@ -0,0 +1,134 @@
+package tonyg.example.com.bleledremote.ble;
+
+/**
+ * Turns a noisy stream of input values, such as a slider being dragged, into a sparse
+ * stream of commands.
+ *
+ * The streamer only keeps the latest input.  A value is sent when it moved at least the
+ * deadband away from the last value sent, and never more often than the minimum interval.
+ * Small moves are held back until the input settles or finish() is called, so the final
+ * value is always delivered exactly.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleValueStreamer {
+    public static final int NO_VALUE = -1;
+
+    private final int mDeadband;
+    private final long mMinInterval;
+
+    private int mLatestValue = NO_VALUE;
+    private long mLatestAt;
+    private int mLastSentValue = NO_VALUE;
+    private long mLastSentAt = Long.MIN_VALUE / 2;
+    private boolean mFinished = false;
+
+    /** Counters **/
+    private long mValuesOffered = 0;
+    private long mValuesSent = 0;
+
+
+    /**
+     * @param deadband the smallest change worth sending while the input is moving
+     * @param minInterval the minimum time between sends, in milliseconds
+     */
+    public BleValueStreamer(int deadband, long minInterval) {
+        if (deadband < 1 || minInterval < 0) {
+            throw new IllegalArgumentException("Invalid deadband or interval");
+        }
+        mDeadband = deadband;
+        mMinInterval = minInterval;
+    }
+
+    /**
+     * Sample a new input value.  It replaces any value that wasn't sent yet
+     *
+     * @param value the input value, 0 or more
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public synchronized void offer(int value, long now) {
+        mLatestValue = value;
+        mLatestAt = now;
+        mFinished = false;
+        mValuesOffered++;
+    }
+
+    /**
+     * The input stopped moving, for example the user let go of the slider.
+     * The latest value goes out as soon as the minimum interval allows
+     */
+    public synchronized void finish() {
+        mFinished = true;
+    }
+
+    /**
+     * Take the value that should be sent now
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return the value to send, or NO_VALUE if nothing should be sent yet
+     */
+    public synchronized int poll(long now) {
+        if (!hasUnsentValue() || now - mLastSentAt < mMinInterval) {
+            return NO_VALUE;
+        }
+        if (!isSignificant() && !isSettled(now)) {
+            return NO_VALUE;
+        }
+        mLastSentValue = mLatestValue;
+        mLastSentAt = now;
+        mValuesSent++;
+        return mLastSentValue;
+    }
+
+    /**
+     * Work out when poll() should be called again
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return milliseconds to wait, 0 to poll now, or -1 if there is nothing left to send
+     */
+    public synchronized long getDelayUntilNextPoll(long now) {
+        if (!hasUnsentValue()) {
+            return -1;
+        }
+        long delay = mLastSentAt + mMinInterval - now;
+        if (!isSignificant() && !mFinished) {
+            // hold small moves until the input settles
+            delay = Math.max(delay, mLatestAt + mMinInterval - now);
+        }
+        return Math.max(0, delay);
+    }
+
+    /**
+     * Forget the last value sent, for example after reconnecting, so the next value goes out regardless
+     */
+    public synchronized void reset() {
+        mLastSentValue = NO_VALUE;
+        mLastSentAt = Long.MIN_VALUE / 2;
+    }
+
+    public synchronized int getLastSentValue() {
+        return mLastSentValue;
+    }
+
+    public synchronized long getValuesOffered() {
+        return mValuesOffered;
+    }
+
+    public synchronized long getValuesSent() {
+        return mValuesSent;
+    }
+
+
+    private boolean hasUnsentValue() {
+        return mLatestValue != NO_VALUE && mLatestValue != mLastSentValue;
+    }
+
+    private boolean isSignificant() {
+        return mLastSentValue == NO_VALUE || Math.abs(mLatestValue - mLastSentValue) >= mDeadband;
+    }
+
+    private boolean isSettled(long now) {
+        return mFinished || now - mLatestAt >= mMinInterval;
+    }
+}
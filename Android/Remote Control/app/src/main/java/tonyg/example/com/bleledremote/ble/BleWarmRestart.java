@@ -0,0 +1,216 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Remembers the connected remotes across a Bluetooth adapter toggle, and times the way back to ready.
+ *
+ * When the adapter turns off, the addresses of the remotes that were connected are kept, the
+ * UI's remote first.  When it turns back on, they are handed back to be reconnected straight
+ * away, without waiting for a scan to find them again.  The restart is over when every remote
+ * handed back is ready or failed to reconnect; if none were handed back, when the first remote
+ * the scan brings up is ready.  A restart where every remote failed isn't timed.
+ *
+ * Turning the adapter off again before the restart is over keeps the remotes still waiting, so
+ * quick toggles don't forget anyone.
+ *
+ * Not thread safe.  BleService calls it on the main thread.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class BleWarmRestart {
+    private static final int STATS_CAPACITY = 32;
+
+    private final LinkedHashSet<String> mKnownAddresses = new LinkedHashSet<String>(); // in reconnect order
+    private final HashSet<String> mWaiting = new HashSet<String>(); // handed back, not ready yet
+    private boolean mPaused = false;
+    private long mOffAt = -1;
+    private long mOnAt = -1; // while restarting
+    private long mFirstReadyAt = -1;
+    private long mLastReadyAt = -1;
+    private long mLastOffTime = -1;
+    private long mLastTimeToFirstReady = -1;
+    private long mLastTimeToAllReady = -1;
+    private final BleSampleStats mTimesToReady = new BleSampleStats(STATS_CAPACITY);
+
+    /** Counters **/
+    private long mRestarts = 0;
+    private long mRestartsInterrupted = 0;
+    private long mResumes = 0;
+    private long mResumesFailed = 0;
+
+
+    /**
+     * The adapter turned off.  Remember the remotes that were connected
+     *
+     * @param addresses the MAC addresses of the connected remotes, in the order to reconnect them
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public void onAdapterOff(List<String> addresses, long now) {
+        if (mPaused) {
+            return;
+        }
+        if (mOnAt >= 0) {
+            // the last restart wasn't over; keep whoever was still waiting
+            mRestartsInterrupted++;
+            mOnAt = -1;
+        }
+        // the connected remotes keep their order, so the UI's remote still goes first
+        mKnownAddresses.addAll(addresses);
+        mKnownAddresses.addAll(mWaiting);
+        mWaiting.clear();
+        mPaused = true;
+        mOffAt = now;
+    }
+
+    /**
+     * The adapter turned on.  Start timing the restart
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return the remotes to reconnect, in order
+     */
+    public List<String> onAdapterOn(long now) {
+        List<String> addresses = new ArrayList<String>(mKnownAddresses);
+        mKnownAddresses.clear();
+        if (mPaused && mOffAt >= 0) {
+            mLastOffTime = now - mOffAt;
+        }
+        mPaused = false;
+        mOnAt = now;
+        mFirstReadyAt = -1;
+        mLastReadyAt = -1;
+        mWaiting.clear();
+        mWaiting.addAll(addresses);
+        mRestarts++;
+        mResumes += addresses.size();
+        return addresses;
+    }
+
+    /**
+     * A remote is ready
+     *
+     * @param address the remote's MAC address
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return true if this finished the restart
+     */
+    public boolean onReady(String address, long now) {
+        if (mOnAt < 0) {
+            return false;
+        }
+        if (mFirstReadyAt < 0) {
+            mFirstReadyAt = now;
+            mLastTimeToFirstReady = now - mOnAt;
+        }
+        if (mWaiting.remove(address) || mLastReadyAt < 0) {
+            mLastReadyAt = now;
+        }
+        return finishIfDone();
+    }
+
+    /**
+     * A remote that was handed back couldn't reconnect, or disconnected before it was ready
+     *
+     * @param address the remote's MAC address
+     * @return true if this finished the restart
+     */
+    public boolean onResumeFailed(String address) {
+        if (mOnAt < 0 || !mWaiting.remove(address)) {
+            return false;
+        }
+        mResumesFailed++;
+        if (mWaiting.isEmpty() && mLastReadyAt < 0) {
+            // nobody came back, so there is no time to record
+            mOnAt = -1;
+            return true;
+        }
+        return finishIfDone();
+    }
+
+    /**
+     * Finish once nobody is waiting and something came back
+     */
+    private boolean finishIfDone() {
+        if (!mWaiting.isEmpty() || mLastReadyAt < 0) {
+            return false;
+        }
+        mLastTimeToAllReady = mLastReadyAt - mOnAt;
+        mTimesToReady.add(mLastTimeToAllReady);
+        mOnAt = -1;
+        return true;
+    }
+
+    /**
+     * @return true while the adapter is off
+     */
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * @return true from the adapter turning on until the restart is over
+     */
+    public boolean isRestarting() {
+        return mOnAt >= 0;
+    }
+
+    /**
+     * @return the remotes to reconnect once the adapter is on, in order
+     */
+    public List<String> getKnownAddresses() {
+        return new ArrayList<String>(mKnownAddresses);
+    }
+
+    /**
+     * @return milliseconds the adapter was off before the last restart, or -1
+     */
+    public long getLastOffTime() {
+        return mLastOffTime;
+    }
+
+    /**
+     * @return milliseconds from the adapter turning on until the first remote was ready, or -1
+     */
+    public long getLastTimeToFirstReady() {
+        return mLastTimeToFirstReady;
+    }
+
+    /**
+     * @return milliseconds from the adapter turning on until the last restart was over, or -1
+     */
+    public long getLastTimeToAllReady() {
+        return mLastTimeToAllReady;
+    }
+
+    /**
+     * @return the adapter-on-to-ready times of recent restarts, in milliseconds
+     */
+    public BleSampleStats getTimesToReady() {
+        return mTimesToReady;
+    }
+
+    public long getRestarts() {
+        return mRestarts;
+    }
+
+    /**
+     * @return restarts cut short by the adapter turning off again
+     */
+    public long getRestartsInterrupted() {
+        return mRestartsInterrupted;
+    }
+
+    /**
+     * @return remotes handed back to reconnect
+     */
+    public long getResumes() {
+        return mResumes;
+    }
+
+    public long getResumesFailed() {
+        return mResumesFailed;
+    }
+}
@@ -0,0 +1,184 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.ArrayList;
+
+/**
+ * A hashed timer wheel.
+ *
+ * Deadlines are hashed into a ring of buckets, one bucket per tick.  Scheduling and cancelling
+ * are O(1), and advancing the wheel only touches the buckets whose ticks have passed, so many
+ * pending deadlines can be driven by a single periodic tick instead of one timer each.
+ *
+ * Timeouts are intrusive: extend Timeout to carry your own state, so scheduling doesn't allocate.
+ *
+ * This class is not thread safe.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class HashedTimerWheel {
+
+    /**
+     * A deadline in the wheel
+     */
+    public static class Timeout {
+        private long mDeadline;
+        private long mRemainingRounds;
+        private int mBucket = -1;
+        private Timeout mPrevious;
+        private Timeout mNext;
+
+        public long getDeadline() {
+            return mDeadline;
+        }
+
+        public boolean isScheduled() {
+            return mBucket >= 0;
+        }
+    }
+
+    /**
+     * Notified when a Timeout expires
+     */
+    public interface OnExpiredListener {
+        /**
+         * @param timeout the expired Timeout.  It may be scheduled again from here
+         * @param now the time the wheel was advanced to
+         */
+        void onExpired(Timeout timeout, long now);
+    }
+
+    private final long mTickDuration;
+    private final Timeout[] mBuckets;
+    private final int mMask;
+    private final long mStartTime;
+    private long mCurrentTick = 0;
+    private int mSize = 0;
+    private final ArrayList<Timeout> mExpired = new ArrayList<Timeout>();
+
+
+    /**
+     * Create a timer wheel
+     *
+     * @param tickDuration the resolution of the wheel in milliseconds
+     * @param bucketCount the number of buckets, rounded up to a power of two
+     * @param now the current time in milliseconds, from a monotonic clock
+     */
+    public HashedTimerWheel(long tickDuration, int bucketCount, long now) {
+        if (tickDuration <= 0 || bucketCount <= 0) {
+            throw new IllegalArgumentException("Tick duration and bucket count must be positive");
+        }
+        int buckets = Integer.highestOneBit(bucketCount);
+        if (buckets < bucketCount) {
+            buckets <<= 1;
+        }
+        mTickDuration = tickDuration;
+        mBuckets = new Timeout[buckets];
+        mMask = buckets - 1;
+        mStartTime = now;
+    }
+
+    public long getTickDuration() {
+        return mTickDuration;
+    }
+
+    /**
+     * @return the number of scheduled Timeouts
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Schedule a Timeout.  If it is already scheduled, it is moved to the new deadline
+     *
+     * @param timeout the Timeout
+     * @param deadline when the Timeout expires, in milliseconds from the same clock as advance()
+     */
+    public void schedule(Timeout timeout, long deadline) {
+        cancel(timeout);
+
+        long tick = (deadline - mStartTime + mTickDuration - 1) / mTickDuration;
+        if (tick < mCurrentTick) {
+            tick = mCurrentTick; // already late, expire on the next advance
+        }
+        timeout.mDeadline = deadline;
+        timeout.mRemainingRounds = (tick - mCurrentTick) / mBuckets.length;
+        timeout.mBucket = (int) (tick & mMask);
+
+        Timeout head = mBuckets[timeout.mBucket];
+        timeout.mPrevious = null;
+        timeout.mNext = head;
+        if (head != null) {
+            head.mPrevious = timeout;
+        }
+        mBuckets[timeout.mBucket] = timeout;
+        mSize++;
+    }
+
+    /**
+     * Remove a Timeout from the wheel
+     *
+     * @param timeout the Timeout
+     * @return <b>true</b> if the Timeout was scheduled
+     */
+    public boolean cancel(Timeout timeout) {
+        if (timeout.mBucket < 0) {
+            return false;
+        }
+        if (timeout.mPrevious != null) {
+            timeout.mPrevious.mNext = timeout.mNext;
+        } else {
+            mBuckets[timeout.mBucket] = timeout.mNext;
+        }
+        if (timeout.mNext != null) {
+            timeout.mNext.mPrevious = timeout.mPrevious;
+        }
+        timeout.mPrevious = null;
+        timeout.mNext = null;
+        timeout.mBucket = -1;
+        mSize--;
+        return true;
+    }
+
+    /**
+     * Advance the wheel and expire every Timeout whose tick has passed
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @param listener notified of each expired Timeout
+     * @return the number of Timeouts expired
+     */
+    public int advance(long now, OnExpiredListener listener) {
+        long targetTick = (now - mStartTime) / mTickDuration;
+        mExpired.clear();
+
+        while (mCurrentTick <= targetTick && mSize > mExpired.size()) {
+            Timeout timeout = mBuckets[(int) (mCurrentTick & mMask)];
+            while (timeout != null) {
+                Timeout next = timeout.mNext;
+                if (timeout.mRemainingRounds <= 0) {
+                    mExpired.add(timeout);
+                } else {
+                    timeout.mRemainingRounds--;
+                }
+                timeout = next;
+            }
+            mCurrentTick++;
+        }
+        // nothing left to expire, skip the empty ticks
+        if (mCurrentTick <= targetTick) {
+            mCurrentTick = targetTick + 1;
+        }
+
+        // unlink everything before calling out, so listeners can reschedule freely
+        for (int i = 0; i < mExpired.size(); i++) {
+            cancel(mExpired.get(i));
+        }
+        int expired = mExpired.size();
+        for (int i = 0; i < expired; i++) {
+            listener.onExpired(mExpired.get(i), now);
+        }
+        mExpired.clear();
+        return expired;
+    }
+}
@@ -0,0 +1,179 @@
+package tonyg.example.com.bleledremote.ble;
+
+/**
+ * Shadow copy of the remote LED state.
+ *
+ * The UI changes the desired state immediately and carries on.  The Peripheral confirms the
+ * state it actually set, which becomes the reported state.  Only one command is in flight at a
+ * time; if the desired state changed while it was in flight, the latest desired state is sent
+ * once the confirmation arrives.  If a command fails, the desired state rolls back to the
+ * last reported state.
+ *
+ * Every change of desired state bumps the version, so a listener can tell which change a
+ * rollback undid.
+ *
+ * A timed scene turns reconciling off while it plays.  It sends every state itself, so
+ * resending the desired state when a confirmation lags would only add writes it didn't plan.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class LedShadowState {
+    public static final int STATE_UNKNOWN = BlePeripheral.LED_STATE_ERROR;
+
+    /**
+     * Notified when a failed command rolls the desired state back
+     */
+    public interface OnRollbackListener {
+        /**
+         * @param state the reported state the LED was rolled back to
+         * @param version the new version
+         */
+        void onLedStateRolledBack(int state, long version);
+    }
+
+    private int mDesiredState = STATE_UNKNOWN;
+    private int mReportedState = STATE_UNKNOWN;
+    private long mVersion = 0;
+    private long mInFlightVersion = -1;
+    private boolean mReconciling = true;
+    private OnRollbackListener mListener;
+
+
+    public synchronized void setOnRollbackListener(OnRollbackListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * The user wants the LED in a new state
+     *
+     * @param state BlePeripheral.LED_STATE_ON or BlePeripheral.LED_STATE_OFF
+     * @return <b>true</b> if the caller should send this state to the Peripheral now
+     */
+    public synchronized boolean setDesiredState(int state) {
+        if (state == mDesiredState) {
+            return false;
+        }
+        mDesiredState = state;
+        mVersion++;
+        if (isCommandInFlight()) {
+            // sent once the command in flight is confirmed
+            return false;
+        }
+        if (state == mReportedState) {
+            return false;
+        }
+        markInFlight();
+        return true;
+    }
+
+    /**
+     * A timed scene wants the LED in a new state, and the command must go out now
+     * even if another command is in flight
+     *
+     * @param state BlePeripheral.LED_STATE_ON or BlePeripheral.LED_STATE_OFF
+     */
+    public synchronized void forceDesiredState(int state) {
+        mDesiredState = state;
+        mVersion++;
+        markInFlight();
+    }
+
+    /**
+     * The Peripheral changed the LED on its own, for example while playing a pattern.
+     * Both the desired and the reported state follow it
+     *
+     * @param state the state reported by the Peripheral
+     */
+    public synchronized void onExternalState(int state) {
+        mReportedState = state;
+        if (mDesiredState != state) {
+            mDesiredState = state;
+            mVersion++;
+        }
+    }
+
+    /**
+     * Turn resending the desired state on or off
+     *
+     * @param reconciling <b>false</b> while a timed scene plays
+     */
+    public synchronized void setReconciling(boolean reconciling) {
+        mReconciling = reconciling;
+    }
+
+    public synchronized boolean isReconciling() {
+        return mReconciling;
+    }
+
+    /**
+     * The Peripheral confirmed the LED state
+     *
+     * @param state the state reported by the Peripheral
+     * @return the state the caller should send next, or STATE_UNKNOWN if the LED has converged
+     *         or reconciling is off
+     */
+    public synchronized int onReportedState(int state) {
+        mReportedState = state;
+        mInFlightVersion = -1;
+        if (mDesiredState == STATE_UNKNOWN) {
+            mDesiredState = state;
+        }
+        if (mReconciling && mDesiredState != mReportedState) {
+            markInFlight();
+            return mDesiredState;
+        }
+        return STATE_UNKNOWN;
+    }
+
+    /**
+     * The command in flight failed.  Roll the desired state back to what the Peripheral last reported
+     */
+    public void onCommandFailed() {
+        OnRollbackListener listener;
+        int state;
+        long version;
+        synchronized (this) {
+            mInFlightVersion = -1;
+            if (mDesiredState == mReportedState) {
+                return;
+            }
+            mDesiredState = mReportedState;
+            mVersion++;
+            listener = mListener;
+            state = mDesiredState;
+            version = mVersion;
+        }
+        // call out without holding the lock
+        if (listener != null) {
+            listener.onLedStateRolledBack(state, version);
+        }
+    }
+
+    public synchronized int getDesiredState() {
+        return mDesiredState;
+    }
+
+    public synchronized int getReportedState() {
+        return mReportedState;
+    }
+
+    public synchronized long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return <b>true</b> if the desired state has been confirmed by the Peripheral
+     */
+    public synchronized boolean isReconciled() {
+        return mDesiredState == mReportedState && !isCommandInFlight();
+    }
+
+    public synchronized boolean isCommandInFlight() {
+        return mInFlightVersion >= 0;
+    }
+
+    private void markInFlight() {
+        mInFlightVersion = mVersion;
+    }
+}
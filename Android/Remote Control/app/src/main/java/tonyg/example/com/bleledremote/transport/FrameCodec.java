@@ -0,0 +1,95 @@
+package tonyg.example.com.bleledremote.transport;
+
+/**
+ * Frames command packets for stream transports such as TCP.
+ *
+ * BLE writes and notifications keep message boundaries on their own, but a byte stream
+ * doesn't.  On a stream, every frame is sent as [length, frame...], with a one byte length.
+ * The decoder is fed whatever the stream delivers, in chunks of any size, and hands back
+ * whole frames.
+ *
+ * Not thread safe; use one decoder per stream.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class FrameCodec {
+    public static final int MAX_FRAME_LENGTH = 0xFF;
+    private static final int HEADER_LENGTH = 1;
+
+    /**
+     * Receives decoded frames
+     */
+    public interface OnFrameDecodedListener {
+        void onFrameDecoded(byte[] frame);
+    }
+
+    private byte[] mFrame; // the frame being reassembled, or null between frames
+    private int mFramePosition;
+
+    /** Counters **/
+    private long mFramesDecoded = 0;
+    private long mBytesDecoded = 0;
+
+
+    /**
+     * Encode a frame for the stream
+     *
+     * @param frame the data packet
+     * @return the length prefixed frame
+     */
+    public static byte[] encode(byte[] frame) {
+        if (frame.length > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Frame too long: " + frame.length);
+        }
+        byte[] encoded = new byte[HEADER_LENGTH + frame.length];
+        encoded[0] = (byte) frame.length;
+        System.arraycopy(frame, 0, encoded, HEADER_LENGTH, frame.length);
+        return encoded;
+    }
+
+    /**
+     * Feed bytes from the stream
+     *
+     * @param buffer the bytes read
+     * @param offset where the new bytes start
+     * @param length how many bytes were read
+     * @param listener receives every frame completed by these bytes
+     */
+    public void decode(byte[] buffer, int offset, int length, OnFrameDecodedListener listener) {
+        int position = offset;
+        int end = offset + length;
+        mBytesDecoded += length;
+        while (position < end) {
+            if (mFrame == null) {
+                mFrame = new byte[buffer[position++] & 0xFF];
+                mFramePosition = 0;
+            }
+            int count = Math.min(mFrame.length - mFramePosition, end - position);
+            System.arraycopy(buffer, position, mFrame, mFramePosition, count);
+            mFramePosition += count;
+            position += count;
+            if (mFramePosition == mFrame.length) {
+                byte[] frame = mFrame;
+                mFrame = null;
+                mFramesDecoded++;
+                listener.onFrameDecoded(frame);
+            }
+        }
+    }
+
+    /**
+     * Drop a partly received frame, for example after the stream reconnects
+     */
+    public void reset() {
+        mFrame = null;
+    }
+
+    public long getFramesDecoded() {
+        return mFramesDecoded;
+    }
+
+    public long getBytesDecoded() {
+        return mBytesDecoded;
+    }
+}
@@ -0,0 +1,134 @@
+package tonyg.example.com.bleledremote.transport;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+/**
+ * Carries frames over BLE, as writes to and reads from the remote's Characteristic.
+ *
+ * The GATT connection and Characteristic discovery stay with BlePeripheral.  Once the
+ * Characteristic is found, this transport is connected.  The BluetoothGattCallback forwards
+ * write completions and values read from the Characteristic here.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class GattTransport implements Transport {
+    public static final int MAX_FRAME_LENGTH = 20; // the Peripheral's Characteristic size
+
+    private final BluetoothGatt mBluetoothGatt;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private volatile TransportCallback mCallback;
+    private volatile boolean mConnected = true;
+    private volatile boolean mAcknowledgedWrites = true;
+
+
+    /**
+     * @param bluetoothGatt the connection to the Peripheral
+     * @param characteristic the Characteristic frames are written to and read from
+     */
+    public GattTransport(BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic characteristic) {
+        mBluetoothGatt = bluetoothGatt;
+        mCharacteristic = characteristic;
+    }
+
+    @Override
+    public void setTransportCallback(TransportCallback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * The GATT connection is already up by the time this transport exists
+     */
+    @Override
+    public void connect() {
+        mConnected = true;
+        TransportCallback callback = mCallback;
+        if (callback != null) {
+            callback.onConnected(this);
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        mConnected = false;
+        mBluetoothGatt.disconnect();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public boolean writeFrame(byte[] frame) {
+        if (!mConnected || frame.length > MAX_FRAME_LENGTH) {
+            return false;
+        }
+        mCharacteristic.setValue(frame);
+        mCharacteristic.setWriteType(mAcknowledgedWrites || !supportsUnacknowledgedWrites()
+                ? BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT : BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        return mBluetoothGatt.writeCharacteristic(mCharacteristic);
+    }
+
+    /**
+     * Wait for the Peripheral to acknowledge each write, or send writes without a response where
+     * the Characteristic allows it.  Unacknowledged writes are faster, but lost if the link is poor
+     *
+     * @param acknowledged <b>true</b> to wait for acknowledgements
+     */
+    public void setAcknowledgedWrites(boolean acknowledged) {
+        mAcknowledgedWrites = acknowledged;
+    }
+
+    /**
+     * @return <b>true</b> if writes go out without waiting for an acknowledgement
+     */
+    public boolean isUnacknowledgedWrites() {
+        return !mAcknowledgedWrites && supportsUnacknowledgedWrites();
+    }
+
+    private boolean supportsUnacknowledgedWrites() {
+        return (mCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+    }
+
+    @Override
+    public int getMaxFrameLength() {
+        return MAX_FRAME_LENGTH;
+    }
+
+    /**
+     * Call from BluetoothGattCallback.onCharacteristicWrite
+     *
+     * @param status the GATT status of the write
+     */
+    public void onCharacteristicWrite(int status) {
+        TransportCallback callback = mCallback;
+        if (callback != null) {
+            callback.onFrameWritten(this, status == BluetoothGatt.GATT_SUCCESS);
+        }
+    }
+
+    /**
+     * Call from BluetoothGattCallback.onCharacteristicRead with the value read
+     *
+     * @param value the Characteristic value
+     */
+    public void onCharacteristicRead(byte[] value) {
+        TransportCallback callback = mCallback;
+        if (callback != null && value != null) {
+            callback.onFrameReceived(this, value);
+        }
+    }
+
+    /**
+     * Call when the GATT connection drops
+     */
+    public void onDisconnected() {
+        mConnected = false;
+        TransportCallback callback = mCallback;
+        if (callback != null) {
+            callback.onDisconnected(this);
+        }
+    }
+}
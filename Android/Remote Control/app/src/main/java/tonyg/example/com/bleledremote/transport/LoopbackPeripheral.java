@@ -0,0 +1,70 @@
+package tonyg.example.com.bleledremote.transport;
+
+import tonyg.example.com.bleledremote.ble.BlePeripheral;
+
+/**
+ * Emulates the LED remote firmware (Arduino/ble_remote) closely enough to exercise the command pipeline.
+ *
+ * LED on and off commands are confirmed with the new LED state, brightness commands are
+ * applied without a reply, and stopping a pattern confirms the current LED state.  Any other
+ * command turns the LED off, as the firmware does.  Pattern uploads are accepted and ignored.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class LoopbackPeripheral implements LoopbackTransport.Peer {
+    private static final int DATA_POSITION = 0;
+    private static final int FOOTER_POSITION = 1;
+    private static final int PAYLOAD_POSITION = 2;
+
+    private int mLedState = BlePeripheral.LED_STATE_OFF;
+    private int mBrightness = BlePeripheral.MAX_BRIGHTNESS;
+    private long mFramesReceived = 0;
+
+
+    @Override
+    public synchronized byte[] onFrame(byte[] frame) {
+        mFramesReceived++;
+        if (frame.length < PAYLOAD_POSITION) {
+            return null;
+        }
+        switch (frame[DATA_POSITION]) {
+            case BlePeripheral.COMMAND_PATTERN_BEGIN:
+            case BlePeripheral.COMMAND_PATTERN_DATA:
+            case BlePeripheral.COMMAND_PATTERN_PLAY:
+                return null;
+            case BlePeripheral.COMMAND_LED_BRIGHTNESS:
+                if (frame.length > PAYLOAD_POSITION) {
+                    mBrightness = frame[PAYLOAD_POSITION] & 0xFF;
+                }
+                return null;
+            case BlePeripheral.COMMAND_PATTERN_STOP:
+                break;
+            case BlePeripheral.COMMAND_LED_ON:
+                mLedState = BlePeripheral.LED_STATE_ON;
+                break;
+            default:
+                mLedState = BlePeripheral.LED_STATE_OFF;
+        }
+        return buildReply(mLedState, BlePeripheral.MESSAGE_TYPE_CONFIRMATION);
+    }
+
+    public synchronized int getLedState() {
+        return mLedState;
+    }
+
+    public synchronized int getBrightness() {
+        return mBrightness;
+    }
+
+    public synchronized long getFramesReceived() {
+        return mFramesReceived;
+    }
+
+    private static byte[] buildReply(int data, int messageType) {
+        byte[] reply = new byte[PAYLOAD_POSITION];
+        reply[DATA_POSITION] = (byte) data;
+        reply[FOOTER_POSITION] = (byte) messageType;
+        return reply;
+    }
+}
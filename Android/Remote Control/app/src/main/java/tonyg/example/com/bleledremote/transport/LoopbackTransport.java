@@ -0,0 +1,118 @@
+package tonyg.example.com.bleledremote.transport;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Carries frames to a Peripheral emulated in the same process.
+ *
+ * There is no radio and no socket, so round trips through this transport measure only the
+ * cost of the command pipeline itself: encoding, queueing, pacing, and dispatch.
+ * Frames are handed to the Peer on a worker thread, like a real transport's callbacks.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class LoopbackTransport implements Transport {
+    public static final int MAX_FRAME_LENGTH = 20; // same as the Peripheral's Characteristic
+
+    /**
+     * The emulated Peripheral
+     */
+    public interface Peer {
+        /**
+         * Handle a frame from the Central
+         *
+         * @param frame the data packet
+         * @return the reply frame, or null for no reply
+         */
+        byte[] onFrame(byte[] frame);
+    }
+
+    private final Peer mPeer;
+    // daemon, so benchmarks and tests that drop the transport can exit
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "LoopbackTransport");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private volatile TransportCallback mCallback;
+    private volatile boolean mConnected = false;
+
+
+    /**
+     * @param peer the emulated Peripheral
+     */
+    public LoopbackTransport(Peer peer) {
+        mPeer = peer;
+    }
+
+    @Override
+    public void setTransportCallback(TransportCallback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public void connect() {
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                mConnected = true;
+                TransportCallback callback = mCallback;
+                if (callback != null) {
+                    callback.onConnected(LoopbackTransport.this);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                mConnected = false;
+                TransportCallback callback = mCallback;
+                if (callback != null) {
+                    callback.onDisconnected(LoopbackTransport.this);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public boolean writeFrame(final byte[] frame) {
+        if (!mConnected || frame.length > MAX_FRAME_LENGTH) {
+            return false;
+        }
+        final byte[] copy = frame.clone();
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                TransportCallback callback = mCallback;
+                if (callback != null) {
+                    callback.onFrameWritten(LoopbackTransport.this, true);
+                }
+                byte[] reply = mPeer.onFrame(copy);
+                if (reply != null && callback != null) {
+                    callback.onFrameReceived(LoopbackTransport.this, reply);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public int getMaxFrameLength() {
+        return MAX_FRAME_LENGTH;
+    }
+}
@@ -0,0 +1,183 @@
+package tonyg.example.com.bleledremote.transport;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import tonyg.example.com.bleledremote.ble.BleCaptureLog;
+import tonyg.example.com.bleledremote.ble.BlePeripheral;
+
+/**
+ * Replays a captured connection through a BlePeripheral's command and confirmation pipeline,
+ * without the device.
+ *
+ * The commands in the capture are issued again through the BlePeripheral's public API, at
+ * their recorded times divided by the speed, so they go through the same shadow state,
+ * journal, rate controller, queue, and command tracker as the user's commands did.
+ * A ReplayTransport plays the Peripheral's answers back with their recorded latency.
+ * The pipeline's own metrics, such as the command tracker's confirmation latency, then
+ * describe the real traffic.
+ *
+ * Pattern uploads can't be rebuilt from their frames, so their frames are skipped and counted.
+ * Recorded retries of a command are no-ops when issued again; the pipeline makes its own retries.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class ReplayDriver {
+    private static final String TAG = ReplayDriver.class.getSimpleName();
+    private static final int DATA_POSITION = 0;
+    private static final int PAYLOAD_POSITION = 2;
+
+    /**
+     * Notified when the last recorded command has been issued
+     */
+    public interface OnReplayCompleteListener {
+        void onReplayComplete(ReplayDriver driver);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final BlePeripheral mBlePeripheral;
+    private final List<BleCaptureLog.Record> mRecords;
+    private final List<BleCaptureLog.Record> mCommands = new ArrayList<BleCaptureLog.Record>();
+    private final double mSpeed;
+    private ReplayTransport mTransport;
+    private OnReplayCompleteListener mListener;
+    private long mStartTime;
+    private int mNextCommand;
+
+    /** Counters **/
+    private long mCommandsIssued = 0;
+    private long mCommandsSkipped = 0;
+    private long mReplayTime = -1;
+
+
+    /**
+     * @param blePeripheral the pipeline to replay through.  It must not be connected to a device
+     * @param records a capture, from BleCaptureLog.read()
+     * @param speed 1 for recorded speed, more to play faster
+     */
+    public ReplayDriver(BlePeripheral blePeripheral, List<BleCaptureLog.Record> records, double speed) {
+        mBlePeripheral = blePeripheral;
+        mRecords = records;
+        mSpeed = speed;
+        for (BleCaptureLog.Record record : records) {
+            if (record.getType() == BleCaptureLog.TYPE_WRITE && record.getData().length >= PAYLOAD_POSITION) {
+                mCommands.add(record);
+            }
+        }
+    }
+
+    public void setOnReplayCompleteListener(OnReplayCompleteListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Attach the replayed Peripheral and start issuing the recorded commands
+     */
+    public void start() {
+        stop();
+        mTransport = new ReplayTransport(mRecords, mSpeed);
+        mBlePeripheral.setTransport(mTransport);
+        mTransport.connect();
+        mNextCommand = 0;
+        mStartTime = SystemClock.uptimeMillis();
+        scheduleNextCommand();
+    }
+
+    /**
+     * Stop issuing commands and detach the replayed Peripheral
+     */
+    public void stop() {
+        mHandler.removeCallbacks(mIssueCommand);
+        if (mTransport != null) {
+            mBlePeripheral.setTransport(null);
+            mTransport.shutdown();
+            mTransport = null;
+        }
+    }
+
+    private void scheduleNextCommand() {
+        if (mNextCommand >= mCommands.size()) {
+            mReplayTime = SystemClock.uptimeMillis() - mStartTime;
+            Log.v(TAG, "Replayed " + mCommandsIssued + " commands in " + mReplayTime + "ms, skipped " + mCommandsSkipped);
+            if (mListener != null) {
+                mListener.onReplayComplete(this);
+            }
+            return;
+        }
+        long offset = mCommands.get(mNextCommand).getTime() - mCommands.get(0).getTime();
+        mHandler.postAtTime(mIssueCommand, mStartTime + (long) (offset / mSpeed / 1000));
+    }
+
+    private final Runnable mIssueCommand = new Runnable() {
+        @Override
+        public void run() {
+            issue(mCommands.get(mNextCommand++).getData());
+            scheduleNextCommand();
+        }
+    };
+
+    /**
+     * Issue a recorded frame again as the command that produced it
+     *
+     * @param frame the recorded frame
+     */
+    private void issue(byte[] frame) {
+        switch (frame[DATA_POSITION]) {
+            case BlePeripheral.COMMAND_LED_ON:
+                mBlePeripheral.setLedState(true);
+                break;
+            case BlePeripheral.COMMAND_LED_OFF:
+                mBlePeripheral.setLedState(false);
+                break;
+            case BlePeripheral.COMMAND_LED_BRIGHTNESS:
+                if (frame.length <= PAYLOAD_POSITION) {
+                    mCommandsSkipped++;
+                    return;
+                }
+                mBlePeripheral.setBrightness(frame[PAYLOAD_POSITION] & 0xFF);
+                mBlePeripheral.finishBrightness();
+                break;
+            case BlePeripheral.COMMAND_PATTERN_PLAY:
+                mBlePeripheral.playPattern();
+                break;
+            case BlePeripheral.COMMAND_PATTERN_STOP:
+                mBlePeripheral.stopPattern();
+                break;
+            default:
+                mCommandsSkipped++;
+                return;
+        }
+        mCommandsIssued++;
+    }
+
+    /**
+     * @return the ReplayTransport playing the Peripheral's side, or null when stopped
+     */
+    public ReplayTransport getTransport() {
+        return mTransport;
+    }
+
+    public long getCommandsIssued() {
+        return mCommandsIssued;
+    }
+
+    /**
+     * @return recorded frames that couldn't be issued again, such as pattern uploads
+     */
+    public long getCommandsSkipped() {
+        return mCommandsSkipped;
+    }
+
+    /**
+     * @return milliseconds from starting the replay until the last command was issued, or -1
+     */
+    public long getReplayTime() {
+        return mReplayTime;
+    }
+}
@@ -0,0 +1,253 @@
+package tonyg.example.com.bleledremote.transport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import tonyg.example.com.bleledremote.ble.BleCaptureLog;
+
+/**
+ * Plays the Peripheral's side of a captured connection back to the command pipeline.
+ *
+ * The capture is cut into segments at each recorded write.  Connecting starts the first
+ * segment, and every frame the pipeline writes starts the next one.  The events in a segment,
+ * the write completion, the values read, and a disconnect, are played back at their recorded
+ * offsets from the start of the segment, divided by the speed.  So the Peripheral answers with
+ * the recorded latency however long the pipeline itself took, and the replay stays in step
+ * with the pipeline at any speed.
+ *
+ * A write that doesn't match the recorded frame is still answered, and counted.  Writes past
+ * the end of the capture complete straight away.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class ReplayTransport implements Transport {
+    public static final int MAX_FRAME_LENGTH = BleCaptureLog.MAX_DATA_LENGTH;
+    private static final int GATT_SUCCESS = 0;
+    private static final int STATE_DISCONNECTED = 0; // BluetoothProfile.STATE_DISCONNECTED
+
+    private final List<List<BleCaptureLog.Record>> mSegments = new ArrayList<List<BleCaptureLog.Record>>();
+    private final double mSpeed;
+    private final ScheduledExecutorService mWorker = Executors.newSingleThreadScheduledExecutor();
+    private volatile TransportCallback mCallback;
+    private volatile boolean mConnected = false;
+    private int mNextSegment = 0;
+
+    /** Counters **/
+    private long mWritesMatched = 0;
+    private long mWritesMismatched = 0;
+    private long mWritesPastEnd = 0;
+    private long mEventsReplayed = 0;
+
+
+    /**
+     * @param records a capture, from BleCaptureLog.read()
+     * @param speed 1 for recorded speed, more to play faster
+     */
+    public ReplayTransport(List<BleCaptureLog.Record> records, double speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("Speed must be positive");
+        }
+        mSpeed = speed;
+        List<BleCaptureLog.Record> segment = new ArrayList<BleCaptureLog.Record>();
+        for (BleCaptureLog.Record record : records) {
+            if (record.getType() == BleCaptureLog.TYPE_WRITE) {
+                mSegments.add(segment);
+                segment = new ArrayList<BleCaptureLog.Record>();
+            }
+            segment.add(record);
+        }
+        mSegments.add(segment);
+    }
+
+    @Override
+    public void setTransportCallback(TransportCallback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public synchronized void connect() {
+        mConnected = true;
+        mNextSegment = 0;
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                TransportCallback callback = mCallback;
+                if (callback != null) {
+                    callback.onConnected(ReplayTransport.this);
+                }
+            }
+        });
+        playNextSegment(null);
+    }
+
+    @Override
+    public void disconnect() {
+        mConnected = false;
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                TransportCallback callback = mCallback;
+                if (callback != null) {
+                    callback.onDisconnected(ReplayTransport.this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the replay thread.  The transport can't be used again
+     */
+    public void shutdown() {
+        mConnected = false;
+        mWorker.shutdownNow();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public synchronized boolean writeFrame(byte[] frame) {
+        if (!mConnected || frame.length > MAX_FRAME_LENGTH) {
+            return false;
+        }
+        if (mNextSegment >= mSegments.size()) {
+            mWritesPastEnd++;
+            mWorker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onFrameWritten(GATT_SUCCESS);
+                }
+            });
+            return true;
+        }
+        playNextSegment(frame);
+        return true;
+    }
+
+    @Override
+    public int getMaxFrameLength() {
+        return MAX_FRAME_LENGTH;
+    }
+
+    /**
+     * Schedule the events of the next segment, relative to now
+     *
+     * @param frame the frame the pipeline wrote to start it, or null when connecting
+     */
+    private void playNextSegment(byte[] frame) {
+        List<BleCaptureLog.Record> segment = mSegments.get(mNextSegment++);
+        if (segment.isEmpty()) {
+            return;
+        }
+        long segmentStart = segment.get(0).getTime();
+        boolean writeCompleted = false;
+        for (BleCaptureLog.Record record : segment) {
+            final BleCaptureLog.Record event = record;
+            switch (record.getType()) {
+                case BleCaptureLog.TYPE_WRITE:
+                    if (frame != null && Arrays.equals(frame, record.getData())) {
+                        mWritesMatched++;
+                    } else {
+                        mWritesMismatched++;
+                    }
+                    continue;
+                case BleCaptureLog.TYPE_WRITE_COMPLETE:
+                    // one completion per write; a second would release the next command early
+                    if (frame == null || writeCompleted) {
+                        continue;
+                    }
+                    writeCompleted = true;
+                    break;
+                case BleCaptureLog.TYPE_READ:
+                    if (record.getStatus() != GATT_SUCCESS || record.getData().length == 0) {
+                        continue;
+                    }
+                    break;
+                case BleCaptureLog.TYPE_CONNECTION_STATE:
+                    if (record.getStatus() != STATE_DISCONNECTED) {
+                        continue;
+                    }
+                    break;
+                default:
+                    continue;
+            }
+            long delay = (long) ((record.getTime() - segmentStart) / mSpeed);
+            mWorker.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    replay(event);
+                }
+            }, delay, TimeUnit.MICROSECONDS);
+        }
+        if (frame != null && !writeCompleted) {
+            // the capture ended before the write completed
+            mWorker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onFrameWritten(GATT_SUCCESS);
+                }
+            });
+        }
+    }
+
+    private void replay(BleCaptureLog.Record record) {
+        if (!mConnected) {
+            return;
+        }
+        synchronized (this) {
+            mEventsReplayed++;
+        }
+        TransportCallback callback = mCallback;
+        if (callback == null) {
+            return;
+        }
+        switch (record.getType()) {
+            case BleCaptureLog.TYPE_WRITE_COMPLETE:
+                callback.onFrameWritten(this, record.getStatus() == GATT_SUCCESS);
+                break;
+            case BleCaptureLog.TYPE_READ:
+                callback.onFrameReceived(this, record.getData());
+                break;
+            case BleCaptureLog.TYPE_CONNECTION_STATE:
+                mConnected = false;
+                callback.onDisconnected(this);
+                break;
+        }
+    }
+
+    private void onFrameWritten(int status) {
+        TransportCallback callback = mCallback;
+        if (callback != null) {
+            callback.onFrameWritten(this, status == GATT_SUCCESS);
+        }
+    }
+
+    public synchronized long getWritesMatched() {
+        return mWritesMatched;
+    }
+
+    /**
+     * @return writes that didn't match the recorded frame
+     */
+    public synchronized long getWritesMismatched() {
+        return mWritesMismatched;
+    }
+
+    /**
+     * @return writes after the capture ran out
+     */
+    public synchronized long getWritesPastEnd() {
+        return mWritesPastEnd;
+    }
+
+    public synchronized long getEventsReplayed() {
+        return mEventsReplayed;
+    }
+}
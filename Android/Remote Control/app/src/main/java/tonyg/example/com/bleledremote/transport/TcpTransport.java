@@ -0,0 +1,167 @@
+package tonyg.example.com.bleledremote.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Carries frames over a TCP connection, for example to a Peripheral emulator on a Linux host.
+ *
+ * Frames are length prefixed with FrameCodec.  A reader thread decodes incoming frames, and
+ * writes go out on their own thread, so neither blocks the caller.
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public class TcpTransport implements Transport {
+    private static final int CONNECT_TIMEOUT = 5000; // ms
+    private static final int READ_BUFFER_LENGTH = 512;
+
+    private final String mHost;
+    private final int mPort;
+    // daemon, like the reader; transports can reconnect, so the executor lives as long as the transport
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "TcpTransport writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private volatile TransportCallback mCallback;
+    private volatile Socket mSocket;
+    private volatile boolean mConnected = false;
+
+
+    /**
+     * @param host the host name or address
+     * @param port the TCP port
+     */
+    public TcpTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    @Override
+    public void setTransportCallback(TransportCallback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Connect on a background thread.  If the connection can't be opened, onDisconnected() is called
+     */
+    @Override
+    public void connect() {
+        Thread reader = new Thread(mReader, "TcpTransport " + mHost + ":" + mPort);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public void disconnect() {
+        Socket socket = mSocket;
+        if (socket != null) {
+            try {
+                // the reader thread sees the socket close and reports the disconnect
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public boolean writeFrame(byte[] frame) {
+        final Socket socket = mSocket;
+        if (!mConnected || socket == null || frame.length > FrameCodec.MAX_FRAME_LENGTH) {
+            return false;
+        }
+        final byte[] encoded = FrameCodec.encode(frame);
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = true;
+                try {
+                    OutputStream out = socket.getOutputStream();
+                    out.write(encoded);
+                    out.flush();
+                } catch (IOException e) {
+                    success = false;
+                }
+                TransportCallback callback = mCallback;
+                if (callback != null) {
+                    callback.onFrameWritten(TcpTransport.this, success);
+                }
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public int getMaxFrameLength() {
+        return FrameCodec.MAX_FRAME_LENGTH;
+    }
+
+
+    /**
+     * Connect, then decode incoming frames until the connection drops
+     */
+    private final Runnable mReader = new Runnable() {
+        @Override
+        public void run() {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true); // frames are tiny; don't hold them back to batch
+                socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+                mSocket = socket;
+                mConnected = true;
+                TransportCallback callback = mCallback;
+                if (callback != null) {
+                    callback.onConnected(TcpTransport.this);
+                }
+
+                FrameCodec codec = new FrameCodec();
+                InputStream in = socket.getInputStream();
+                byte[] buffer = new byte[READ_BUFFER_LENGTH];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    codec.decode(buffer, 0, read, mOnFrameDecodedListener);
+                }
+            } catch (IOException e) {
+                // connection refused or dropped
+            } finally {
+                mConnected = false;
+                mSocket = null;
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // already closed
+                }
+                TransportCallback callback = mCallback;
+                if (callback != null) {
+                    callback.onDisconnected(TcpTransport.this);
+                }
+            }
+        }
+    };
+
+    private final FrameCodec.OnFrameDecodedListener mOnFrameDecodedListener = new FrameCodec.OnFrameDecodedListener() {
+        @Override
+        public void onFrameDecoded(byte[] frame) {
+            TransportCallback callback = mCallback;
+            if (callback != null) {
+                callback.onFrameReceived(TcpTransport.this, frame);
+            }
+        }
+    };
+}
@@ -0,0 +1,46 @@
+package tonyg.example.com.bleledremote.transport;
+
+/**
+ * Carries command frames to a Peripheral and brings frames back.
+ *
+ * A frame is the same data packet the LED remote speaks over BLE:
+ * [command or data, message type, payload...].  The command pipeline in BlePeripheral only
+ * deals in frames, so it can run over the radio, a TCP socket, or an in-process loopback.
+ *
+ * Writes are asynchronous.  Only one write may be outstanding at a time; the transport
+ * reports its completion through TransportCallback.onFrameWritten().
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public interface Transport {
+    /**
+     * @param callback notified of connection changes, write completions, and incoming frames
+     */
+    void setTransportCallback(TransportCallback callback);
+
+    /**
+     * Open the connection.  TransportCallback.onConnected() is called once it is up
+     */
+    void connect();
+
+    /**
+     * Close the connection.  TransportCallback.onDisconnected() is called once it is down
+     */
+    void disconnect();
+
+    boolean isConnected();
+
+    /**
+     * Start writing a frame
+     *
+     * @param frame the data packet
+     * @return <b>true</b> if the write started
+     */
+    boolean writeFrame(byte[] frame);
+
+    /**
+     * @return the longest frame this transport can carry, in bytes
+     */
+    int getMaxFrameLength();
+}
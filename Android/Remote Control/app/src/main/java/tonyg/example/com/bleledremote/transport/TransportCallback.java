@@ -0,0 +1,29 @@
+package tonyg.example.com.bleledremote.transport;
+
+/**
+ * Events from a Transport.  These may arrive on any thread
+ *
+ * @author Tony Gaitatzis backupbrain@gmail.com
+ * @date 2026-10-18
+ */
+public interface TransportCallback {
+    void onConnected(Transport transport);
+
+    void onDisconnected(Transport transport);
+
+    /**
+     * The outstanding write finished
+     *
+     * @param transport the transport
+     * @param success <b>false</b> if the frame didn't make it out
+     */
+    void onFrameWritten(Transport transport, boolean success);
+
+    /**
+     * A frame arrived from the Peripheral
+     *
+     * @param transport the transport
+     * @param frame the data packet
+     */
+    void onFrameReceived(Transport transport, byte[] frame);
+}
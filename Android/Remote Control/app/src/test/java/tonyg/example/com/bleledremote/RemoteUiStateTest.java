@@ -0,0 +1,57 @@
+package tonyg.example.com.bleledremote;
+
+import org.junit.Test;
+
+import tonyg.example.com.bleledremote.ble.BlePeripheral;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the dirty-flagged remote control screen model
+ */
+public class RemoteUiStateTest {
+    @Test
+    public void burst_isMergedIntoOneFrame() throws Exception {
+        RemoteUiState uiState = new RemoteUiState();
+        uiState.setState(BleService.STATE_CONNECTING);
+        uiState.setDevice("LedRemote", "00:11:22:33:44:55");
+        uiState.setState(BleService.STATE_CONNECTED);
+        uiState.setState(BleService.STATE_READY);
+        uiState.setLedState(BlePeripheral.LED_STATE_ON);
+
+        assertEquals(RemoteUiState.DIRTY_ALL, uiState.takeDirty());
+        assertEquals(0, uiState.takeDirty());
+        assertEquals(1, uiState.getFramesDrawn());
+        assertEquals(4, uiState.getUpdatesMerged());
+        assertEquals(5, uiState.getUpdatesPerFrame().getMax());
+    }
+
+    @Test
+    public void unchangedValues_markNothing() throws Exception {
+        RemoteUiState uiState = new RemoteUiState();
+        uiState.setDevice("LedRemote", "00:11:22:33:44:55");
+        uiState.setLedState(BlePeripheral.LED_STATE_OFF);
+        uiState.takeDirty();
+
+        uiState.setDevice("LedRemote", "00:11:22:33:44:55");
+        uiState.setLedState(BlePeripheral.LED_STATE_OFF);
+        assertFalse(uiState.isDirty());
+
+        uiState.setNothingFound();
+        assertEquals(RemoteUiState.DIRTY_DEVICE, uiState.takeDirty());
+        assertEquals("", uiState.getDeviceName());
+        assertTrue(uiState.isNothingFound());
+    }
+
+    @Test
+    public void switchFlippedByUser_rollbackIsDrawn() throws Exception {
+        RemoteUiState uiState = new RemoteUiState();
+        uiState.setLedState(BlePeripheral.LED_STATE_OFF);
+        uiState.takeDirty();
+
+        uiState.setLedStateShown(BlePeripheral.LED_STATE_ON);
+        assertFalse(uiState.isDirty());
+        uiState.setLedState(BlePeripheral.LED_STATE_OFF);
+        assertEquals(RemoteUiState.DIRTY_LED, uiState.takeDirty());
+    }
+}
@@ -0,0 +1,79 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the GATT capture format
+ */
+public class BleCaptureLogTest {
+    private static final long MS = 1000000; // nanoseconds
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("capture", ".bin");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    @Test
+    public void records_readBackWithTimestamps() throws Exception {
+        BleCaptureLog capture = new BleCaptureLog(mFile, 4096, 1000 * MS);
+        capture.record(BleCaptureLog.TYPE_CONNECTION_STATE, 2, null, 1000 * MS);
+        capture.record(BleCaptureLog.TYPE_WRITE, 0, new byte[] {2, 2}, 1250 * MS);
+        capture.record(BleCaptureLog.TYPE_WRITE_COMPLETE, 257, null, 1262 * MS);
+        capture.record(BleCaptureLog.TYPE_READ, 0, new byte[] {1, 1}, 1300 * MS + 500);
+        capture.close();
+
+        List<BleCaptureLog.Record> records = BleCaptureLog.read(mFile);
+        assertEquals(4, records.size());
+        assertEquals(BleCaptureLog.TYPE_CONNECTION_STATE, records.get(0).getType());
+        assertEquals(2, records.get(0).getStatus());
+        assertEquals(0, records.get(0).getTime());
+        assertArrayEquals(new byte[] {2, 2}, records.get(1).getData());
+        assertEquals(250000, records.get(1).getTime());
+        assertEquals(257, records.get(2).getStatus());
+        assertEquals(262000, records.get(2).getTime());
+        assertEquals(0, records.get(2).getData().length);
+        assertEquals(300000, records.get(3).getTime());
+        // preallocated up front
+        assertEquals(4096, mFile.length());
+    }
+
+    @Test
+    public void unclosedCapture_readsBackWholeRecords() throws Exception {
+        BleCaptureLog capture = new BleCaptureLog(mFile, 4096, 0);
+        for (int i = 0; i < 10; i++) {
+            capture.record(BleCaptureLog.TYPE_READ, 0, new byte[] {(byte) i, 1}, i * MS);
+        }
+        // not closed, as if the app were killed; the mapping is shared with readers
+        List<BleCaptureLog.Record> records = BleCaptureLog.read(mFile);
+        assertEquals(10, records.size());
+        assertEquals(9, records.get(9).getData()[0]);
+        capture.close();
+    }
+
+    @Test
+    public void fullCapture_dropsRecords() throws Exception {
+        BleCaptureLog capture = new BleCaptureLog(mFile, 24 + 3 * 11, 0);
+        for (int i = 0; i < 5; i++) {
+            capture.record(BleCaptureLog.TYPE_WRITE, 0, new byte[] {1, 2}, i * MS);
+        }
+        assertEquals(3, capture.getRecordCount());
+        assertEquals(2, capture.getRecordsDropped());
+        capture.close();
+        assertFalse(capture.record(BleCaptureLog.TYPE_WRITE, 0, null, 10 * MS));
+        assertEquals(3, BleCaptureLog.read(mFile).size());
+    }
+}
@@ -0,0 +1,116 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the offline command journal
+ */
+public class BleCommandJournalTest {
+    private static final byte[] LED_ON = {BlePeripheral.COMMAND_LED_ON, BlePeripheral.MESSAGE_TYPE_COMMAND};
+    private static final byte[] LED_OFF = {BlePeripheral.COMMAND_LED_OFF, BlePeripheral.MESSAGE_TYPE_COMMAND};
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("journal", ".bin");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    @Test
+    public void pending_keepsNetEffectPerTarget() throws Exception {
+        BleCommandJournal journal = new BleCommandJournal(mFile);
+        journal.append(BleCommandJournal.TARGET_LED, LED_ON);
+        journal.append(BleCommandJournal.TARGET_LED, LED_OFF);
+        journal.append(BleCommandJournal.TARGET_BRIGHTNESS, new byte[] {7, 2, 100});
+
+        assertEquals(2, journal.getEntryCount());
+        byte[][] frames = journal.getPending();
+        assertArrayEquals(LED_OFF, frames[BleCommandJournal.TARGET_LED]);
+        assertEquals(100, frames[BleCommandJournal.TARGET_BRIGHTNESS][2]);
+        // nothing leaves the journal until it is acknowledged
+        assertEquals(2, journal.getEntryCount());
+
+        assertTrue(journal.acknowledge(BleCommandJournal.TARGET_LED, LED_OFF));
+        assertTrue(journal.acknowledge(BleCommandJournal.TARGET_BRIGHTNESS, frames[BleCommandJournal.TARGET_BRIGHTNESS]));
+        assertTrue(journal.isEmpty());
+        assertEquals(0, journal.getRecordCount());
+        assertTrue(new BleCommandJournal(mFile).isEmpty());
+    }
+
+    @Test
+    public void unacknowledged_survivesRestart() throws Exception {
+        BleCommandJournal journal = new BleCommandJournal(mFile);
+        journal.append(BleCommandJournal.TARGET_LED, LED_ON);
+        journal.append(BleCommandJournal.TARGET_BRIGHTNESS, new byte[] {7, 2, 100});
+        journal.getPending();
+        // the link dropped after the LED command went out, but before the brightness did
+        journal.acknowledge(BleCommandJournal.TARGET_LED, LED_ON);
+
+        BleCommandJournal reopened = new BleCommandJournal(mFile);
+        assertEquals(1, reopened.getEntryCount());
+        assertNull(reopened.getPending()[BleCommandJournal.TARGET_LED]);
+        assertEquals(100, reopened.getPending()[BleCommandJournal.TARGET_BRIGHTNESS][2]);
+    }
+
+    @Test
+    public void acknowledge_keepsNewerCommand() throws Exception {
+        BleCommandJournal journal = new BleCommandJournal(mFile);
+        journal.append(BleCommandJournal.TARGET_LED, LED_ON);
+        byte[] sent = journal.getPending()[BleCommandJournal.TARGET_LED];
+        // a newer command arrived while the flushed one was in flight
+        journal.append(BleCommandJournal.TARGET_LED, LED_OFF);
+        assertFalse(journal.acknowledge(BleCommandJournal.TARGET_LED, sent));
+        assertArrayEquals(LED_OFF, new BleCommandJournal(mFile).getPending()[BleCommandJournal.TARGET_LED]);
+    }
+
+    @Test
+    public void journal_survivesRestart() throws Exception {
+        BleCommandJournal journal = new BleCommandJournal(mFile);
+        journal.append(BleCommandJournal.TARGET_LED, LED_OFF);
+        journal.append(BleCommandJournal.TARGET_LED, LED_ON);
+
+        BleCommandJournal reopened = new BleCommandJournal(mFile);
+        assertEquals(1, reopened.getEntryCount());
+        // superseded records were compacted away on load
+        assertEquals(1, reopened.getRecordCount());
+        assertArrayEquals(LED_ON, reopened.getPending()[BleCommandJournal.TARGET_LED]);
+    }
+
+    @Test
+    public void manyAppends_areCompacted() throws Exception {
+        BleCommandJournal journal = new BleCommandJournal(mFile);
+        for (int i = 0; i < 100; i++) {
+            journal.append(BleCommandJournal.TARGET_LED, i % 2 == 0 ? LED_ON : LED_OFF);
+        }
+        assertTrue(journal.getCompactionCount() > 0);
+        assertTrue(journal.getRecordCount() <= 32);
+        assertTrue(journal.getFileSize() <= 32 * 4);
+        assertArrayEquals(LED_OFF, new BleCommandJournal(mFile).getPending()[BleCommandJournal.TARGET_LED]);
+    }
+
+    @Test
+    public void truncatedRecord_isDropped() throws Exception {
+        BleCommandJournal journal = new BleCommandJournal(mFile);
+        journal.append(BleCommandJournal.TARGET_LED, LED_ON);
+        // the app died halfway through writing a second record
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        out.write(new byte[] {BleCommandJournal.TARGET_LED, 2, BlePeripheral.COMMAND_LED_OFF});
+        out.close();
+
+        BleCommandJournal reopened = new BleCommandJournal(mFile);
+        assertArrayEquals(LED_ON, reopened.getPending()[BleCommandJournal.TARGET_LED]);
+    }
+}
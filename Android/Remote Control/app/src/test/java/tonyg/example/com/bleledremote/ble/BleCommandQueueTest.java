@@ -0,0 +1,61 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the priority lanes
+ */
+public class BleCommandQueueTest {
+
+    private static BleCommand command(int lane) {
+        return BleCommand.write(null, new byte[2], BleCommand.NO_TARGET, lane);
+    }
+
+    @Test
+    public void interactive_jumpsAheadOfBackground() throws Exception {
+        BleCommandQueue queue = new BleCommandQueue();
+        BleCommand background = command(BleCommandQueue.LANE_BACKGROUND);
+        BleCommand interactive = command(BleCommandQueue.LANE_INTERACTIVE);
+        queue.offer(background, 0);
+        queue.offer(interactive, 10);
+        assertTrue(queue.poll(20) == interactive);
+        assertTrue(queue.poll(20) == background);
+        assertNull(queue.poll(20));
+    }
+
+    @Test
+    public void starvingLane_isPromotedOnlyOnce() throws Exception {
+        BleCommandQueue queue = new BleCommandQueue();
+        BleCommand background1 = command(BleCommandQueue.LANE_BACKGROUND);
+        BleCommand background2 = command(BleCommandQueue.LANE_BACKGROUND);
+        queue.offer(background1, 0);
+        queue.offer(background2, 0);
+        BleCommand interactive1 = command(BleCommandQueue.LANE_INTERACTIVE);
+        BleCommand interactive2 = command(BleCommandQueue.LANE_INTERACTIVE);
+        queue.offer(interactive1, 5000);
+        queue.offer(interactive2, 5000);
+
+        // the background lane has waited too long and gets one turn, then interactive resumes
+        assertTrue(queue.poll(5000) == background1);
+        assertTrue(queue.poll(5000) == interactive1);
+        assertTrue(queue.poll(5000) == background2);
+        assertTrue(queue.poll(5000) == interactive2);
+        assertEquals(2, queue.getPromotionCount(BleCommandQueue.LANE_BACKGROUND));
+    }
+
+    @Test
+    public void laneMetrics_areRecorded() throws Exception {
+        BleCommandQueue queue = new BleCommandQueue();
+        queue.offer(command(BleCommandQueue.LANE_NORMAL), 0);
+        queue.offer(command(BleCommandQueue.LANE_NORMAL), 0);
+        assertEquals(2, queue.getDepth(BleCommandQueue.LANE_NORMAL));
+        queue.poll(100);
+        queue.poll(300);
+        assertEquals(2, queue.getMaxDepth(BleCommandQueue.LANE_NORMAL));
+        assertEquals(200, queue.getMeanWait(BleCommandQueue.LANE_NORMAL));
+        assertEquals(300, queue.getMaxWait(BleCommandQueue.LANE_NORMAL));
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,95 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for command deadlines and retries
+ */
+public class BleCommandTrackerTest {
+    private static final byte[] FRAME = {BlePeripheral.COMMAND_LED_ON, BlePeripheral.MESSAGE_TYPE_COMMAND};
+
+    private int mResends = 0;
+    private int mFailures = 0;
+
+    private final BleCommandTracker.OnCommandListener mListener = new BleCommandTracker.OnCommandListener() {
+        @Override
+        public void onResendCommand(int target, byte[] frame, int attempt) {
+            mResends++;
+        }
+
+        @Override
+        public void onCommandFailed(int target, byte[] frame) {
+            mFailures++;
+        }
+    };
+
+    @Test
+    public void timerWheel_expiresOnlyOverdueTimeouts() throws Exception {
+        HashedTimerWheel wheel = new HashedTimerWheel(10, 8, 0);
+        HashedTimerWheel.Timeout soon = new HashedTimerWheel.Timeout();
+        HashedTimerWheel.Timeout later = new HashedTimerWheel.Timeout();
+        wheel.schedule(soon, 25);
+        wheel.schedule(later, 500); // several revolutions of the wheel away
+
+        final int[] expired = {0};
+        HashedTimerWheel.OnExpiredListener listener = new HashedTimerWheel.OnExpiredListener() {
+            @Override
+            public void onExpired(HashedTimerWheel.Timeout timeout, long now) {
+                expired[0]++;
+            }
+        };
+        assertEquals(0, wheel.advance(20, listener));
+        assertEquals(1, wheel.advance(30, listener));
+        assertFalse(soon.isScheduled());
+        assertEquals(0, wheel.advance(490, listener));
+        assertEquals(1, wheel.advance(500, listener));
+        assertEquals(2, expired[0]);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void confirmedCommand_doesNotTimeOut() throws Exception {
+        BleCommandTracker tracker = new BleCommandTracker(mListener, 0);
+        tracker.track(BleCommandTracker.TARGET_LED, FRAME, 0);
+        assertTrue(tracker.onConfirmed(BleCommandTracker.TARGET_LED, 120));
+        tracker.tick(10000);
+        assertEquals(0, mResends);
+        assertEquals(0, tracker.getTimeouts());
+        assertEquals(120, tracker.getLastConfirmationLatency());
+    }
+
+    @Test
+    public void lostConfirmation_isRetriedThenFails() throws Exception {
+        BleCommandTracker tracker = new BleCommandTracker(mListener, 0);
+        tracker.setRetryPolicy(new BleCommandTracker.RetryPolicy(3, 100, 2f));
+        tracker.track(BleCommandTracker.TARGET_LED, FRAME, 0);
+        for (long now = 0; now <= 1000; now += 50) {
+            tracker.tick(now);
+        }
+        assertEquals(2, mResends);
+        assertEquals(1, mFailures);
+        assertEquals(3, tracker.getTimeouts());
+        assertFalse(tracker.hasPendingCommands());
+    }
+
+    @Test
+    public void writeFailure_isRetriedImmediately() throws Exception {
+        BleCommandTracker tracker = new BleCommandTracker(mListener, 0);
+        tracker.track(BleCommandTracker.TARGET_LED, FRAME, 0);
+        tracker.onWriteFailed(BleCommandTracker.TARGET_LED, 5);
+        assertEquals(1, mResends);
+        assertEquals(1, tracker.getRetries());
+        assertTrue(tracker.isPending(BleCommandTracker.TARGET_LED));
+    }
+
+    @Test
+    public void rejectedCommand_failsWithoutRetry() throws Exception {
+        BleCommandTracker tracker = new BleCommandTracker(mListener, 0);
+        tracker.track(BleCommandTracker.TARGET_LED, FRAME, 0);
+        tracker.onRejected(BleCommandTracker.TARGET_LED);
+        assertEquals(0, mResends);
+        assertEquals(1, mFailures);
+    }
+}
@@ -0,0 +1,100 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the scan-and-connect pipeline
+ */
+public class BleConnectPipelineTest {
+    private final List<String> mConnects = new ArrayList<String>();
+    private BleConnectPipeline mPipeline;
+
+    @Before
+    public void setUp() throws Exception {
+        mPipeline = new BleConnectPipeline(new BleConnectPipeline.Connector() {
+            @Override
+            public void connect(String address) {
+                mConnects.add(address);
+            }
+        }, 2, 4);
+    }
+
+    @Test
+    public void pendingConnects_neverExceedTheLimit() throws Exception {
+        mPipeline.setFleetSize(5);
+        mPipeline.onScanStarted(0);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(mPipeline.onDiscovered("R" + i, i));
+        }
+        assertEquals(2, mConnects.size());
+        assertEquals(3, mPipeline.getQueuedCount());
+
+        // a slot frees when a connection comes up, not when setup finishes
+        mPipeline.onConnected("R0");
+        assertEquals(3, mConnects.size());
+        assertEquals("R2", mConnects.get(2));
+        assertEquals(BleConnectPipeline.STATE_CONNECTED, mPipeline.getState("R0"));
+        assertEquals(2, mPipeline.getPendingConnects());
+        assertEquals(2, mPipeline.getMaxPendingSeen());
+    }
+
+    @Test
+    public void timeToAllReady_coversTheWholeFleet() throws Exception {
+        mPipeline.setFleetSize(3);
+        mPipeline.onScanStarted(100);
+        mPipeline.onDiscovered("A", 150);
+        mPipeline.onDiscovered("B", 160);
+        mPipeline.onDiscovered("C", 170);
+        assertTrue(mPipeline.isFull());
+        assertFalse(mPipeline.onDiscovered("D", 180));
+
+        long now = 200;
+        for (String address : new String[] {"A", "B", "C"}) {
+            mPipeline.onConnected(address);
+        }
+        assertFalse(mPipeline.onReady("A", now += 50));
+        assertFalse(mPipeline.onReady("B", now += 50));
+        assertEquals(-1, mPipeline.getLastTimeToAllReady());
+        assertTrue(mPipeline.onReady("C", now += 50));
+
+        assertTrue(mPipeline.isComplete());
+        assertEquals(250, mPipeline.getLastTimeToAllReady());
+        assertEquals(3, mPipeline.getSetupTimes().getCount());
+        assertEquals(100, mPipeline.getSetupTimes().getMin());
+    }
+
+    @Test
+    public void failedConnect_freesItsSlotAndCanBeRediscovered() throws Exception {
+        mPipeline.setFleetSize(3);
+        mPipeline.onDiscovered("A", 0);
+        mPipeline.onDiscovered("B", 0);
+        mPipeline.onDiscovered("C", 0);
+        assertEquals(2, mConnects.size());
+
+        mPipeline.onDisconnected("A");
+        assertEquals(3, mConnects.size());
+        assertEquals("C", mConnects.get(2));
+        assertEquals(BleConnectPipeline.STATE_UNKNOWN, mPipeline.getState("A"));
+        assertFalse(mPipeline.isFull());
+
+        assertTrue(mPipeline.onDiscovered("A", 10));
+        assertFalse(mPipeline.onDiscovered("A", 20));
+    }
+
+    @Test
+    public void fullQueue_turnsRemotesAway() throws Exception {
+        mPipeline.setFleetSize(10);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(mPipeline.onDiscovered("R" + i, i));
+        }
+        assertFalse(mPipeline.onDiscovered("R6", 6));
+        assertEquals(1, mPipeline.getQueueOverflows());
+        assertEquals(4, mPipeline.getQueuedCount());
+    }
+}
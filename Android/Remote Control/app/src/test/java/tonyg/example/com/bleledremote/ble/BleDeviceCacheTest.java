@@ -0,0 +1,89 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the scan dedup cache
+ */
+public class BleDeviceCacheTest {
+    private static final long REMOTE_A = BleDeviceCache.macToLong("00:11:22:AA:BB:CC");
+    private static final long REMOTE_B = BleDeviceCache.macToLong("00:11:22:AA:BB:CD");
+    private static final long REMOTE_C = BleDeviceCache.macToLong("00:11:22:AA:BB:CE");
+
+    @Test
+    public void macAddress_roundTrips() throws Exception {
+        assertEquals(0x001122AABBCCL, REMOTE_A);
+        assertEquals("00:11:22:AA:BB:CC", BleDeviceCache.longToMac(REMOTE_A));
+    }
+
+    @Test
+    public void repeatedSightings_areDeduped() throws Exception {
+        BleDeviceCache cache = new BleDeviceCache(4, 1000, 0.25f, 6);
+        assertEquals(BleDeviceCache.EVENT_FIRST_SIGHT, cache.onSighting(REMOTE_A, -60, 0));
+        assertEquals(BleDeviceCache.EVENT_NONE, cache.onSighting(REMOTE_A, -61, 10));
+        assertEquals(BleDeviceCache.EVENT_NONE, cache.onSighting(REMOTE_A, -59, 20));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void sustainedRssiChange_emitsEvent() throws Exception {
+        BleDeviceCache cache = new BleDeviceCache(4, 1000, 0.5f, 6);
+        cache.onSighting(REMOTE_A, -80, 0);
+        int event = BleDeviceCache.EVENT_NONE;
+        for (int i = 1; i < 10 && event == BleDeviceCache.EVENT_NONE; i++) {
+            event = cache.onSighting(REMOTE_A, -50, i);
+        }
+        assertEquals(BleDeviceCache.EVENT_RSSI_CHANGED, event);
+    }
+
+    @Test
+    public void staleDevice_isSeenAgain() throws Exception {
+        BleDeviceCache cache = new BleDeviceCache(4, 1000, 0.25f, 6);
+        cache.onSighting(REMOTE_A, -60, 0);
+        cache.onSighting(REMOTE_B, -60, 900);
+        assertEquals(1, cache.expire(1500));
+        assertFalse(cache.contains(REMOTE_A));
+        assertTrue(cache.contains(REMOTE_B));
+        assertEquals(BleDeviceCache.EVENT_FIRST_SIGHT, cache.onSighting(REMOTE_A, -60, 1600));
+    }
+
+    @Test
+    public void fullCache_evictsLeastRecentlySeen() throws Exception {
+        BleDeviceCache cache = new BleDeviceCache(2, 1000, 0.25f, 6);
+        cache.onSighting(REMOTE_A, -60, 0);
+        cache.onSighting(REMOTE_B, -60, 10);
+        cache.onSighting(REMOTE_A, -60, 20);
+        cache.onSighting(REMOTE_C, -60, 30);
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains(REMOTE_A));
+        assertFalse(cache.contains(REMOTE_B));
+        assertTrue(cache.contains(REMOTE_C));
+    }
+
+    @Test
+    public void nearestDevice_hasStrongestSignal() throws Exception {
+        BleDeviceCache cache = new BleDeviceCache(4, 1000, 0.25f, 6);
+        cache.onSighting(REMOTE_A, -80, 0);
+        cache.onSighting(REMOTE_B, -40, 0);
+        cache.onSighting(REMOTE_C, -70, 0);
+        assertEquals(REMOTE_B, cache.getNearestAddress());
+    }
+
+    @Test
+    public void nearestCandidate_ignoresOtherDevices() throws Exception {
+        BleDeviceCache cache = new BleDeviceCache(4, 1000, 0.25f, 6);
+        cache.onSighting(REMOTE_A, -80, 0);
+        cache.onSighting(REMOTE_B, -40, 0);
+        cache.onSighting(REMOTE_C, -70, 0);
+        Set<Long> candidates = new HashSet<Long>(Arrays.asList(REMOTE_A, REMOTE_C));
+        assertEquals(REMOTE_C, cache.getNearestAddress(candidates));
+        assertEquals(BleDeviceCache.NO_ADDRESS, cache.getNearestAddress(Collections.singleton(0x42L)));
+    }
+}
@@ -0,0 +1,185 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the event bus overflow policies
+ */
+public class BleEventBusTest {
+
+    /**
+     * Runs delivery only when the test says so, like a busy main thread
+     */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> mTasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            mTasks.add(runnable);
+        }
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                mTasks.remove(0).run();
+            }
+        }
+    }
+
+    private static class Collector implements BleEventBus.OnEventListener {
+        final List<BleEvent> mEvents = new ArrayList<BleEvent>();
+
+        @Override
+        public void onEvent(BleEvent event) {
+            mEvents.add(event);
+        }
+    }
+
+    private static BleEvent event(int type, int value) {
+        return new BleEvent(type, null, value, null, value);
+    }
+
+    @Test
+    public void dropOldest_keepsNewestEvents() throws Exception {
+        BleEventBus bus = new BleEventBus();
+        ManualExecutor executor = new ManualExecutor();
+        Collector collector = new Collector();
+        BleEventBus.Subscription subscription = bus.subscribe(collector, BleEvent.EVENT_SCAN_RESULT, 4,
+                BleEventBus.POLICY_DROP_OLDEST, executor);
+
+        for (int rssi = 0; rssi < 10; rssi++) {
+            bus.publish(event(BleEvent.EVENT_SCAN_RESULT, rssi));
+        }
+        // only one delivery task waits on the executor however many events arrive
+        assertEquals(1, executor.mTasks.size());
+        executor.runAll();
+
+        assertEquals(4, collector.mEvents.size());
+        assertEquals(6, collector.mEvents.get(0).getValue());
+        assertEquals(9, collector.mEvents.get(3).getValue());
+        assertEquals(6, subscription.getEventsDropped());
+        assertEquals(4, subscription.getMaxDepth());
+    }
+
+    @Test
+    public void latestOnly_replacesPendingEventOfSameType() throws Exception {
+        BleEventBus bus = new BleEventBus();
+        ManualExecutor executor = new ManualExecutor();
+        Collector collector = new Collector();
+        BleEventBus.Subscription subscription = bus.subscribe(collector,
+                BleEvent.EVENT_CONNECTION_STATE | BleEvent.EVENT_CONFIRMATION, 4,
+                BleEventBus.POLICY_LATEST_ONLY, executor);
+
+        bus.publish(event(BleEvent.EVENT_CONNECTION_STATE, BleEvent.CONNECTION_CONNECTING));
+        for (int i = 0; i < 5; i++) {
+            bus.publish(event(BleEvent.EVENT_CONFIRMATION, i % 2 == 0 ? BlePeripheral.LED_STATE_ON : BlePeripheral.LED_STATE_OFF));
+        }
+        bus.publish(event(BleEvent.EVENT_CONNECTION_STATE, BleEvent.CONNECTION_READY));
+        // not subscribed
+        bus.publish(event(BleEvent.EVENT_SCAN_STARTED, 0));
+        executor.runAll();
+
+        assertEquals(2, collector.mEvents.size());
+        assertEquals(BleEvent.EVENT_CONFIRMATION, collector.mEvents.get(0).getType());
+        assertEquals(BlePeripheral.LED_STATE_ON, collector.mEvents.get(0).getValue());
+        assertEquals(BleEvent.CONNECTION_READY, collector.mEvents.get(1).getValue());
+        assertEquals(5, subscription.getEventsReplaced());
+        assertEquals(0, subscription.getEventsDropped());
+    }
+
+    @Test
+    public void latestOnly_keepsLatestEventOfEachRemote() throws Exception {
+        BleEventBus bus = new BleEventBus();
+        ManualExecutor executor = new ManualExecutor();
+        Collector collector = new Collector();
+        BleEventBus.Subscription subscription = bus.subscribe(collector, BleEvent.EVENT_CONNECTION_STATE, 4,
+                BleEventBus.POLICY_LATEST_ONLY, executor);
+
+        bus.publish(new BleEvent(BleEvent.EVENT_CONNECTION_STATE, "A", BleEvent.CONNECTION_CONNECTING, null, 0));
+        bus.publish(new BleEvent(BleEvent.EVENT_CONNECTION_STATE, "B", BleEvent.CONNECTION_READY, null, 1));
+        bus.publish(new BleEvent(BleEvent.EVENT_CONNECTION_STATE, "A", BleEvent.CONNECTION_READY, null, 2));
+        executor.runAll();
+
+        // B's state isn't lost to A's
+        assertEquals(2, collector.mEvents.size());
+        assertEquals("B", collector.mEvents.get(0).getAddress());
+        assertEquals("A", collector.mEvents.get(1).getAddress());
+        assertEquals(BleEvent.CONNECTION_READY, collector.mEvents.get(1).getValue());
+        assertEquals(1, subscription.getEventsReplaced());
+    }
+
+    @Test
+    public void block_waitsForRoomThenGivesUp() throws Exception {
+        BleEventBus bus = new BleEventBus();
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch delivered = new CountDownLatch(2);
+        BleEventBus.Subscription subscription = bus.subscribe(new BleEventBus.OnEventListener() {
+            @Override
+            public void onEvent(BleEvent event) {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                delivered.countDown();
+            }
+        }, BleEvent.EVENT_ALL, 1, BleEventBus.POLICY_BLOCK, 20, null);
+
+        // the first event is taken by the stuck listener, the second fills the buffer
+        bus.publish(event(BleEvent.EVENT_NOTIFICATION, 1));
+        while (subscription.getDepth() > 0) {
+            Thread.sleep(1);
+        }
+        bus.publish(event(BleEvent.EVENT_NOTIFICATION, 2));
+
+        // the publisher waits out the timeout, then drops the event
+        long startedAt = System.nanoTime();
+        bus.publish(event(BleEvent.EVENT_NOTIFICATION, 3));
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        assertTrue(waited >= 15);
+        assertTrue(waited < 2000);
+        assertEquals(1, subscription.getEventsDropped());
+
+        // once the listener moves on, the buffered event is delivered
+        release.countDown();
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertEquals(3, subscription.getEventsOffered());
+        bus.unsubscribe(subscription);
+        assertEquals(0, bus.getSubscriberCount());
+    }
+
+    @Test
+    public void block_deliversEverythingToAKeepingUpSubscriber() throws Exception {
+        BleEventBus bus = new BleEventBus();
+        final CountDownLatch done = new CountDownLatch(200);
+        final List<Integer> values = new ArrayList<Integer>();
+        BleEventBus.Subscription subscription = bus.subscribe(new BleEventBus.OnEventListener() {
+            @Override
+            public void onEvent(BleEvent event) {
+                synchronized (values) {
+                    values.add(event.getValue());
+                }
+                done.countDown();
+            }
+        }, BleEvent.EVENT_NOTIFICATION, 8, BleEventBus.POLICY_BLOCK, 1000, null);
+
+        for (int i = 0; i < 200; i++) {
+            bus.publish(event(BleEvent.EVENT_NOTIFICATION, i));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(0, subscription.getEventsDropped());
+        synchronized (values) {
+            for (int i = 0; i < 200; i++) {
+                assertEquals(i, (int) values.get(i));
+            }
+        }
+        bus.clear();
+    }
+}
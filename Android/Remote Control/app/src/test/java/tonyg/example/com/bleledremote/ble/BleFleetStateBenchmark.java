@@ -0,0 +1,109 @@
+package tonyg.example.com.bleledremote.ble;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reader/writer benchmark of the fleet state store against a synchronized map.
+ *
+ * One writer updates a fleet of remotes while readers take consistent views of it, first
+ * through BleFleetState and then through a synchronized map that readers copy under its lock.
+ * Prints writer and reader throughput for each.  It has no tests, so the unit test run skips
+ * it; run main() by hand.
+ */
+public class BleFleetStateBenchmark {
+    private static final int FLEET_SIZE = 500;
+    private static final int READERS = 4;
+    private static final long BENCHMARK_TIME = 2000; // ms per store
+
+    private interface Store {
+        void write(int i, int rssi);
+
+        int read();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final BleFleetState fleet = new BleFleetState();
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            fleet.setLinkState(address(i), BleEvent.CONNECTION_READY, 0);
+        }
+        long[] fleetResult = run(new Store() {
+            @Override
+            public void write(int i, int rssi) {
+                fleet.setRssi(address(i), rssi, rssi);
+            }
+
+            @Override
+            public int read() {
+                return fleet.getSnapshot().size();
+            }
+        });
+
+        final Map<String, Integer> map = Collections.synchronizedMap(new HashMap<String, Integer>());
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            map.put(address(i), 0);
+        }
+        long[] mapResult = run(new Store() {
+            @Override
+            public void write(int i, int rssi) {
+                map.put(address(i), rssi);
+            }
+
+            @Override
+            public int read() {
+                // a consistent view of a synchronized map means copying it under its lock
+                synchronized (map) {
+                    return new HashMap<String, Integer>(map).size();
+                }
+            }
+        });
+
+        System.out.println("BleFleetState: " + fleetResult[0] + " writes, " + fleetResult[1]
+                + " snapshots, longest write " + fleetResult[2] / 1000 + "us");
+        System.out.println("synchronizedMap: " + mapResult[0] + " writes, " + mapResult[1]
+                + " snapshots, longest write " + mapResult[2] / 1000 + "us");
+    }
+
+    private static String address(int i) {
+        return String.format("00:00:00:00:%02X:%02X", i >> 8, i & 0xFF);
+    }
+
+    /**
+     * @return writes, reads, and the longest write in nanoseconds
+     */
+    private static long[] run(final Store store) throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+        Thread[] readers = new Thread[READERS];
+        for (int r = 0; r < READERS; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        store.read();
+                        reads.incrementAndGet();
+                    }
+                }
+            });
+            readers[r].start();
+        }
+
+        long writes = 0;
+        long longestWrite = 0;
+        long deadline = System.nanoTime() + BENCHMARK_TIME * 1000000L;
+        while (System.nanoTime() < deadline) {
+            long startedAt = System.nanoTime();
+            store.write((int) (writes % FLEET_SIZE), (int) -(writes % 100) - 1);
+            longestWrite = Math.max(longestWrite, System.nanoTime() - startedAt);
+            writes++;
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        return new long[] {writes, reads.get(), longestWrite};
+    }
+}
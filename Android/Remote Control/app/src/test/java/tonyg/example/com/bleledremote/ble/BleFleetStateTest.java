@@ -0,0 +1,227 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the fleet state store
+ */
+public class BleFleetStateTest {
+    private static final int FLEET_SIZE = 500;
+    private static final int READERS = 4;
+    private static final int ROUNDS = 20;
+
+    private static String address(int i) {
+        return String.format("00:00:00:00:%02X:%02X", i >> 8, i & 0xFF);
+    }
+
+    @Test
+    public void updates_mergeIntoDeviceState() throws Exception {
+        BleFleetState fleet = new BleFleetState();
+        fleet.setRssi("A", -60, 1);
+        fleet.onEvent(new BleEvent(BleEvent.EVENT_CONNECTION_STATE, "A", BleEvent.CONNECTION_READY, null, 2));
+        fleet.onEvent(new BleEvent(BleEvent.EVENT_CONFIRMATION, "A", BlePeripheral.LED_STATE_ON, null, 3));
+        fleet.setRssi("B", -80, 4);
+
+        BleFleetState.Snapshot snapshot = fleet.getSnapshot();
+        assertEquals(2, snapshot.size());
+        BleFleetState.DeviceState a = snapshot.get("A");
+        assertEquals(-60, a.getRssi());
+        assertEquals(BleEvent.CONNECTION_READY, a.getLinkState());
+        assertEquals(BlePeripheral.LED_STATE_ON, a.getLedState());
+        assertEquals(3, a.getUpdatedAt());
+        assertEquals(BleFleetState.UNKNOWN, snapshot.get("B").getLedState());
+        assertEquals(1, snapshot.countLinkState(BleEvent.CONNECTION_DISCONNECTED));
+    }
+
+    @Test
+    public void snapshot_isImmutable() throws Exception {
+        BleFleetState fleet = new BleFleetState();
+        fleet.setRssi("A", -60, 1);
+        BleFleetState.Snapshot before = fleet.getSnapshot();
+        fleet.setRssi("A", -70, 2);
+        fleet.remove("A");
+
+        assertEquals(-60, before.get("A").getRssi());
+        assertEquals(0, fleet.getSnapshot().size());
+        assertEquals(before.getVersion() + 2, fleet.getSnapshot().getVersion());
+    }
+
+    @Test
+    public void unchangedUpdate_publishesNothing() throws Exception {
+        BleFleetState fleet = new BleFleetState();
+        fleet.setLinkState("A", BleEvent.CONNECTION_READY, 1);
+        BleFleetState.Snapshot snapshot = fleet.getSnapshot();
+        fleet.setLinkState("A", BleEvent.CONNECTION_READY, 2);
+        assertSame(snapshot, fleet.getSnapshot());
+        assertEquals(1, fleet.getUpdatesSkipped());
+    }
+
+    @Test
+    public void concurrentWriters_loseNoUpdates() throws Exception {
+        final BleFleetState fleet = new BleFleetState();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[4];
+        for (int w = 0; w < writers.length; w++) {
+            final int writer = w;
+            writers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 100; i++) {
+                        fleet.setRssi(address(writer * 100 + i), -i - 1, i);
+                    }
+                }
+            });
+            writers[w].start();
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(400, fleet.getSnapshot().size());
+        assertEquals(400, fleet.getUpdatesPublished());
+    }
+
+    /**
+     * @return the RSSI the writer sets in a round, so a reader can tell which round a device is from
+     */
+    private static int rssiOf(long round) {
+        return (int) -(round % 100) - 1;
+    }
+
+    @Test
+    public void readers_seeEachRoundOfWritesInOrder() throws Exception {
+        final BleFleetState fleet = new BleFleetState();
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            fleet.setRssi(address(i), rssiOf(0), 0);
+        }
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicBoolean torn = new AtomicBoolean(false);
+        Thread[] readers = new Thread[READERS];
+        for (int r = 0; r < READERS; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        if (!isConsistent(fleet.getSnapshot())) {
+                            torn.set(true);
+                        }
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        // the writer updates the devices in order, one round at a time
+        for (int round = 1; round <= ROUNDS; round++) {
+            for (int i = 0; i < FLEET_SIZE; i++) {
+                fleet.setRssi(address(i), rssiOf(round), round);
+            }
+        }
+        running.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertFalse(torn.get());
+        assertTrue(isConsistent(fleet.getSnapshot()));
+        assertEquals(ROUNDS, fleet.getSnapshot().get(address(0)).getUpdatedAt());
+    }
+
+    /**
+     * In one snapshot, every device's RSSI matches its round, and the devices the writer has
+     * reached are one round ahead of the rest
+     */
+    private static boolean isConsistent(BleFleetState.Snapshot snapshot) {
+        if (snapshot.size() != FLEET_SIZE) {
+            return false;
+        }
+        long first = snapshot.get(address(0)).getUpdatedAt();
+        long previous = first;
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            BleFleetState.DeviceState device = snapshot.get(address(i));
+            long round = device.getUpdatedAt();
+            if (device.getRssi() != rssiOf(round) || round > previous || first - round > 1) {
+                return false;
+            }
+            previous = round;
+        }
+        return true;
+    }
+
+    @Test
+    public void slowReader_doesNotBlockTheWriter() throws Exception {
+        final BleFleetState fleet = new BleFleetState();
+        for (int i = 0; i < FLEET_SIZE; i++) {
+            fleet.setRssi(address(i), rssiOf(0), 0);
+        }
+        final Map<String, Integer> map = Collections.synchronizedMap(new HashMap<String, Integer>());
+        final CountDownLatch reading = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // one reader sits on a snapshot, the other on the map's lock, as a slow copy would
+        Thread fleetReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                fleet.getSnapshot();
+                reading.countDown();
+                await(release);
+            }
+        });
+        Thread mapReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (map) {
+                    reading.countDown();
+                    await(release);
+                }
+            }
+        });
+        fleetReader.start();
+        mapReader.start();
+        reading.await();
+
+        Thread fleetWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                fleet.setRssi(address(0), rssiOf(1), 1);
+            }
+        });
+        Thread mapWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                map.put(address(0), rssiOf(1));
+            }
+        });
+        fleetWriter.start();
+        mapWriter.start();
+        fleetWriter.join(5000);
+        assertFalse(fleetWriter.isAlive());
+        // the synchronized map's writer waits for the reader to let go of the lock
+        assertTrue(mapWriter.isAlive());
+
+        release.countDown();
+        mapWriter.join();
+        fleetReader.join();
+        mapReader.join();
+        assertEquals(1, fleet.getSnapshot().get(address(0)).getUpdatedAt());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for link quality, PHY preference, and throughput
+ */
+public class BleLinkMonitorTest {
+    @Test
+    public void weakSignal_fallsBackAndRecoversWithHysteresis() throws Exception {
+        BleLinkMonitor monitor = new BleLinkMonitor();
+        monitor.setCodedPhySupported(true);
+        long now = 0;
+        for (int i = 0; i < 5; i++) {
+            assertFalse(monitor.onRssi(-60, now += 2000));
+        }
+        assertEquals(BleLinkMonitor.PHY_LE_2M_MASK, monitor.getPreferredPhyMask());
+        assertFalse(monitor.isAcknowledgedWrites());
+
+        boolean changed = false;
+        for (int i = 0; i < 20 && !changed; i++) {
+            changed = monitor.onRssi(-95, now += 2000);
+        }
+        assertTrue(changed);
+        assertEquals(BleLinkMonitor.QUALITY_POOR, monitor.getQuality());
+        assertEquals(BleLinkMonitor.PHY_LE_CODED_MASK, monitor.getPreferredPhyMask());
+        assertEquals(BleLinkMonitor.PHY_OPTION_S8, monitor.getPhyOptions());
+        assertTrue(monitor.isAcknowledgedWrites());
+
+        // between the thresholds the link stays where it is
+        for (int i = 0; i < 30; i++) {
+            assertFalse(monitor.onRssi(-80, now += 2000));
+        }
+        changed = false;
+        for (int i = 0; i < 20 && !changed; i++) {
+            changed = monitor.onRssi(-60, now += 2000);
+        }
+        assertTrue(changed);
+        assertEquals(BleLinkMonitor.QUALITY_GOOD, monitor.getQuality());
+        assertEquals(1, monitor.getFallbacks());
+        assertEquals(1, monitor.getRecoveries());
+    }
+
+    @Test
+    public void withoutCodedPhy_fallsBackTo1M() throws Exception {
+        BleLinkMonitor monitor = new BleLinkMonitor();
+        long now = 0;
+        for (int i = 0; i < 5; i++) {
+            monitor.onRssi(-95, now += 2000);
+        }
+        assertEquals(BleLinkMonitor.QUALITY_POOR, monitor.getQuality());
+        assertEquals(BleLinkMonitor.PHY_LE_1M_MASK, monitor.getPreferredPhyMask());
+        assertEquals(BleLinkMonitor.PHY_OPTION_NO_PREFERRED, monitor.getPhyOptions());
+        assertTrue(monitor.getRssiTrend() <= 0);
+    }
+
+    @Test
+    public void throughput_countsWindowsWithTraffic() throws Exception {
+        BleLinkMonitor monitor = new BleLinkMonitor();
+        assertEquals(-1, monitor.getThroughput());
+        for (long now = 10000; now < 12000; now += 10) {
+            monitor.onBytesWritten(20, now);
+        }
+        // 20 bytes every 10ms
+        assertEquals(2000, monitor.getThroughput());
+        assertEquals(1, monitor.getThroughputStats().getCount());
+        // the last window closes once writes stop, and the idle time isn't counted against the link
+        monitor.tick(11995);
+        assertEquals(1, monitor.getThroughputStats().getCount());
+        monitor.tick(60000);
+        assertEquals(2, monitor.getThroughputStats().getCount());
+        assertEquals(2000, monitor.getThroughputStats().getMin());
+        assertEquals(4000, monitor.getBytesWritten());
+
+        monitor.onPhyUpdate(BleLinkMonitor.PHY_LE_2M, BleLinkMonitor.PHY_LE_2M, true);
+        monitor.onPhyUpdate(BleLinkMonitor.PHY_LE_CODED, BleLinkMonitor.PHY_LE_CODED, false);
+        assertEquals(BleLinkMonitor.PHY_LE_2M, monitor.getTxPhy());
+        assertEquals(1, monitor.getPhyUpdateFailures());
+    }
+
+    @Test
+    public void phyRead_setsPhyWithoutCountingAnUpdate() throws Exception {
+        BleLinkMonitor monitor = new BleLinkMonitor();
+        assertEquals(BleLinkMonitor.PHY_UNKNOWN, monitor.getTxPhy());
+        // the PHY didn't change, so only the read reports it
+        monitor.onPhyRead(BleLinkMonitor.PHY_LE_2M, BleLinkMonitor.PHY_LE_2M, true);
+        assertEquals(BleLinkMonitor.PHY_LE_2M, monitor.getTxPhy());
+        assertEquals(BleLinkMonitor.PHY_LE_2M, monitor.getRxPhy());
+        assertEquals(0, monitor.getPhyUpdates());
+        monitor.onPhyRead(BleLinkMonitor.PHY_LE_CODED, BleLinkMonitor.PHY_LE_CODED, false);
+        assertEquals(BleLinkMonitor.PHY_LE_2M, monitor.getTxPhy());
+    }
+}
@@ -0,0 +1,67 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the metrics registry
+ */
+public class BleMetricsTest {
+    @Test
+    public void gattStatus_countedByCodeAndCategory() throws Exception {
+        BleMetrics metrics = new BleMetrics();
+        metrics.onGattStatus(BleMetrics.OP_WRITE, 0);
+        metrics.onGattStatus(BleMetrics.OP_WRITE, 3);
+        metrics.onGattStatus(BleMetrics.OP_WRITE, 3);
+        metrics.onGattStatus(BleMetrics.OP_CONNECTION, 8);
+        metrics.onGattStatus(BleMetrics.OP_CONNECTION, 133);
+        metrics.onGattStatus(BleMetrics.OP_READ, 0x42);
+
+        assertEquals(1, metrics.getValue("gatt.write.status.success"));
+        assertEquals(2, metrics.getValue("gatt.write.status.write_not_permitted"));
+        assertEquals(2, metrics.getValue("gatt.write.category.permission"));
+        assertEquals(1, metrics.getValue("gatt.connection.category.link"));
+        assertEquals(1, metrics.getValue("gatt.connection.status.gatt_error"));
+        assertEquals(1, metrics.getValue("gatt.connection.category.stack"));
+        // codes nobody named still get their own counter
+        assertEquals(1, metrics.getValue("gatt.read.status.status_66"));
+        assertEquals(1, metrics.getValue("gatt.read.category.other"));
+    }
+
+    @Test
+    public void scanFailed_countedByCode() throws Exception {
+        BleMetrics metrics = new BleMetrics();
+        metrics.onScanFailed(6);
+        metrics.onScanFailed(6);
+        metrics.onScanFailed(99);
+        assertEquals(2, metrics.getValue("scan.failed.scanning_too_frequently"));
+        assertEquals(1, metrics.getValue("scan.failed.error_99"));
+    }
+
+    @Test
+    public void gauge_keepsHighestValue() throws Exception {
+        BleMetrics metrics = new BleMetrics();
+        metrics.setGauge(BleMetrics.QUEUE_DEPTH, 4);
+        metrics.setGauge(BleMetrics.QUEUE_DEPTH, 9);
+        metrics.setGauge(BleMetrics.QUEUE_DEPTH, 2);
+        assertEquals(2, metrics.getValue(BleMetrics.QUEUE_DEPTH));
+        assertEquals(9, metrics.getValue(BleMetrics.QUEUE_DEPTH + ".max"));
+    }
+
+    @Test
+    public void dump_sortedTextAndJson() throws Exception {
+        BleMetrics metrics = new BleMetrics();
+        assertEquals("{}", metrics.toJson());
+        metrics.add(BleMetrics.BYTES_SENT, 20);
+        metrics.increment(BleMetrics.CONNECT_ATTEMPTS);
+        metrics.increment(BleMetrics.CONNECT_ATTEMPTS);
+
+        assertEquals("bytes.sent 20\nconnect.attempts 2\n", metrics.toText());
+        assertEquals("{\"bytes.sent\":20,\"connect.attempts\":2}", metrics.toJson());
+
+        metrics.clear();
+        assertEquals(0, metrics.getValue(BleMetrics.BYTES_SENT));
+        assertTrue(metrics.snapshot().isEmpty());
+    }
+}
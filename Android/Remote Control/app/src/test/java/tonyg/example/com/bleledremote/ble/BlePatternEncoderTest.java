@@ -0,0 +1,75 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for packing a scene into pattern upload frames
+ */
+public class BlePatternEncoderTest {
+    private static final int ON = BlePeripheral.LED_STATE_ON;
+    private static final int OFF = BlePeripheral.LED_STATE_OFF;
+
+    /**
+     * @param stepCount steps alternating ON and OFF, 100ms apart
+     * @return the compiled scene
+     */
+    private BleScene.Schedule createSchedule(int stepCount) {
+        BleScene scene = new BleScene();
+        for (int i = 0; i < stepCount; i++) {
+            scene.addStep(i % 2 == 0 ? ON : OFF, i * 100);
+        }
+        return scene.setRepeatCount(2).compile();
+    }
+
+    @Test
+    public void encode_sendsBeginThenDataThenPlay() throws Exception {
+        BleScene.Schedule schedule = createSchedule(12);
+        List<byte[]> frames = BlePatternEncoder.encode(schedule, BlePeripheral.DEFAULT_MTU, true);
+
+        // 5 steps fit in 20 bytes, so 12 steps take 3 DATA frames
+        assertEquals(5, frames.size());
+        byte[] begin = frames.get(0);
+        assertEquals(BlePeripheral.COMMAND_PATTERN_BEGIN, begin[0]);
+        assertEquals(BlePeripheral.MESSAGE_TYPE_COMMAND, begin[1]);
+        assertEquals(12, begin[2]);
+        assertEquals(2, begin[3]);
+        assertEquals(schedule.getDuration(), (begin[4] & 0xFF) | ((begin[5] & 0xFF) << 8));
+
+        int step = 0;
+        for (int i = 1; i <= 3; i++) {
+            byte[] data = frames.get(i);
+            assertEquals(BlePeripheral.COMMAND_PATTERN_DATA, data[0]);
+            assertEquals(step, data[2]);
+            assertTrue(data.length <= BlePeripheral.MAX_TRANSMISSION_LENGTH);
+            for (int position = 3; position < data.length; position += 3) {
+                assertEquals(schedule.getState(step), data[position]);
+                assertEquals(schedule.getOffset(step), (data[position + 1] & 0xFF) | ((data[position + 2] & 0xFF) << 8));
+                step++;
+            }
+        }
+        assertEquals(12, step);
+        assertEquals(BlePeripheral.COMMAND_PATTERN_PLAY, frames.get(4)[0]);
+    }
+
+    @Test
+    public void encode_chunksByMtu() throws Exception {
+        BleScene.Schedule schedule = createSchedule(12);
+        // a tiny MTU leaves room for 3 steps a frame
+        assertEquals(1 + 4, BlePatternEncoder.encode(schedule, 17, false).size());
+        // a large MTU is still held to the Peripheral's characteristic size
+        assertEquals(BlePatternEncoder.getStepsPerFrame(BlePeripheral.DEFAULT_MTU),
+                BlePatternEncoder.getStepsPerFrame(BlePeripheral.PREFERRED_MTU));
+        List<byte[]> frames = BlePatternEncoder.encode(schedule, BlePeripheral.PREFERRED_MTU, false);
+        assertEquals(4, frames.size());
+        assertEquals(BlePeripheral.COMMAND_PATTERN_DATA, frames.get(frames.size() - 1)[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encode_rejectsTooManySteps() throws Exception {
+        BlePatternEncoder.encode(createSchedule(BlePeripheral.MAX_PATTERN_STEPS + 1), BlePeripheral.DEFAULT_MTU, true);
+    }
+}
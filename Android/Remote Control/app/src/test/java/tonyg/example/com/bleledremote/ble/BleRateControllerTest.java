@@ -0,0 +1,60 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the AIMD rate controller
+ */
+public class BleRateControllerTest {
+
+    @Test
+    public void healthyConfirmations_increaseRateAdditively() throws Exception {
+        BleRateController controller = new BleRateController(1, 50, 10);
+        for (int i = 0; i < 10; i++) {
+            controller.onConfirmed(40, i * 100);
+        }
+        assertEquals(15f, controller.getRate(), 0.001);
+    }
+
+    @Test
+    public void failure_halvesRate() throws Exception {
+        BleRateController controller = new BleRateController(1, 50, 20);
+        controller.onFailure(0);
+        assertEquals(10f, controller.getRate(), 0.001);
+    }
+
+    @Test
+    public void latencySpike_cutsRate() throws Exception {
+        BleRateController controller = new BleRateController(1, 50, 20);
+        for (int i = 0; i < 5; i++) {
+            controller.onConfirmed(40, i * 100);
+        }
+        float rate = controller.getRate();
+        controller.onConfirmed(400, 1000);
+        assertEquals(rate / 2, controller.getRate(), 0.001);
+    }
+
+    @Test
+    public void rate_staysWithinLimits() throws Exception {
+        BleRateController controller = new BleRateController(2, 5, 4);
+        for (int i = 0; i < 100; i++) {
+            controller.onConfirmed(40, i * 100);
+        }
+        assertEquals(5f, controller.getRate(), 0.001);
+        for (int i = 0; i < 100; i++) {
+            controller.onFailure(100000 + i * 1000);
+        }
+        assertEquals(2f, controller.getRate(), 0.001);
+    }
+
+    @Test
+    public void sends_arePaced() throws Exception {
+        BleRateController controller = new BleRateController(1, 50, 10);
+        assertEquals(0, controller.getDelayUntilNextSend(0));
+        controller.onSent(0);
+        assertEquals(100, controller.getDelayUntilNextSend(0));
+        assertEquals(0, controller.getDelayUntilNextSend(100));
+    }
+}
@@ -0,0 +1,118 @@
+package tonyg.example.com.bleledremote.ble;
+
+import android.bluetooth.le.ScanSettings;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the adaptive scan scheduler
+ */
+public class BleScanSchedulerTest {
+
+    @Test
+    public void foreground_scansAggressively() throws Exception {
+        BleScanScheduler scheduler = new BleScanScheduler();
+        assertEquals(ScanSettings.SCAN_MODE_LOW_LATENCY, scheduler.getScanMode());
+        assertFalse(scheduler.isDutyCycled());
+        assertEquals(0, scheduler.getDelayUntilNextScan(0));
+    }
+
+    @Test
+    public void background_isLowPowerAndDutyCycled() throws Exception {
+        BleScanScheduler scheduler = new BleScanScheduler();
+        scheduler.setScanContext(BleScanScheduler.CONTEXT_BACKGROUND);
+        assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, scheduler.getScanMode());
+        assertTrue(scheduler.isDutyCycled());
+
+        scheduler.onScanStarted(0);
+        scheduler.onScanStopped(2000);
+        assertTrue(scheduler.getDelayUntilNextScan(2000) > 0);
+    }
+
+    @Test
+    public void emptyScans_backOffInBackground() throws Exception {
+        BleScanScheduler scheduler = new BleScanScheduler();
+        scheduler.setScanContext(BleScanScheduler.CONTEXT_BACKGROUND);
+        long now = 0;
+        long previousDelay = 0;
+        for (int i = 0; i < 5; i++) {
+            now += scheduler.getDelayUntilNextScan(now);
+            scheduler.onScanStarted(now);
+            now += scheduler.getScanWindow();
+            scheduler.onScanStopped(now);
+            long delay = scheduler.getDelayUntilNextScan(now);
+            assertTrue(delay >= previousDelay);
+            previousDelay = delay;
+        }
+        assertTrue(previousDelay > 30000);
+
+        scheduler.onScanStarted(now);
+        scheduler.onPeripheralDiscovered(now + 100);
+        scheduler.onScanStopped(now + 200);
+        assertEquals(0, scheduler.getConsecutiveEmptyScans());
+    }
+
+    @Test
+    public void emptyScans_inForeground_onlyLowerTheScanMode() throws Exception {
+        BleScanScheduler scheduler = new BleScanScheduler();
+        long now = 0;
+        for (int i = 0; i < 3; i++) {
+            scheduler.onScanStarted(now);
+            now += scheduler.getScanWindow();
+            scheduler.onScanStopped(now);
+            // the user is waiting, so the next window isn't held back
+            assertEquals(0, scheduler.getDelayUntilNextScan(now));
+        }
+        assertEquals(ScanSettings.SCAN_MODE_BALANCED, scheduler.getScanMode());
+
+        // a scan the user asks for starts over at full speed
+        scheduler.onScanRequested();
+        assertEquals(0, scheduler.getConsecutiveEmptyScans());
+        assertEquals(ScanSettings.SCAN_MODE_LOW_LATENCY, scheduler.getScanMode());
+    }
+
+    @Test
+    public void scanContext_followsBinding() throws Exception {
+        BleScanScheduler scheduler = new BleScanScheduler();
+        scheduler.setClientBound(false);
+        assertEquals(BleScanScheduler.CONTEXT_BACKGROUND, scheduler.getScanContext());
+        assertTrue(scheduler.isDutyCycled());
+        scheduler.onScanStarted(0);
+        scheduler.onScanStopped(2000);
+        // a background scan doesn't drop its backoff when the Service looks again
+        scheduler.onScanRequested();
+        assertEquals(1, scheduler.getConsecutiveEmptyScans());
+        assertTrue(scheduler.getDelayUntilNextScan(2000) > 0);
+
+        scheduler.setClientBound(true);
+        assertEquals(BleScanScheduler.CONTEXT_FOREGROUND, scheduler.getScanContext());
+        assertFalse(scheduler.isDutyCycled());
+        assertEquals(0, scheduler.getDelayUntilNextScan(2000));
+    }
+
+    @Test
+    public void scanStarts_respectRateLimit() throws Exception {
+        BleScanScheduler scheduler = new BleScanScheduler();
+        for (int i = 0; i < 5; i++) {
+            scheduler.onScanStarted(i * 100);
+            scheduler.onPeripheralDiscovered(i * 100 + 10);
+            scheduler.onScanStopped(i * 100 + 50);
+        }
+        // the sixth start must wait until 30 seconds after the first
+        assertEquals(30000 - 500, scheduler.getDelayUntilNextScan(500));
+    }
+
+    @Test
+    public void radioOnTime_andDiscoveryLatency_areMeasured() throws Exception {
+        BleScanScheduler scheduler = new BleScanScheduler();
+        scheduler.onScanStarted(1000);
+        scheduler.onScanStopped(6000);
+        scheduler.onScanStarted(7000);
+        scheduler.onPeripheralDiscovered(8000);
+        scheduler.onScanStopped(8500);
+        assertEquals(6500, scheduler.getRadioOnTime(9000));
+        assertEquals(7000, scheduler.getLastDiscoveryLatency());
+    }
+}
@@ -0,0 +1,85 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for walking a scene and measuring its send and confirm drift
+ */
+public class BleSceneClockTest {
+    private static final int ON = BlePeripheral.LED_STATE_ON;
+    private static final int OFF = BlePeripheral.LED_STATE_OFF;
+
+    private static BleScene.Schedule blink() {
+        return new BleScene()
+                .addStep(ON, 0)
+                .addStep(OFF, 100)
+                .setRepeatCount(2)
+                .compile();
+    }
+
+    @Test
+    public void steps_arePlannedFromOneStartTime() throws Exception {
+        BleSceneClock clock = new BleSceneClock(16);
+        clock.start(blink(), 1, 1000);
+        long[] planned = new long[4];
+        int[] states = new int[4];
+        int played = 0;
+        while (clock.isPlaying()) {
+            planned[played] = clock.getPlannedTime();
+            states[played] = clock.getState();
+            clock.advance();
+            played++;
+        }
+        assertEquals(4, played);
+        // a pass lasts one step interval past its last step, so passes don't overlap
+        assertArrayEquals(new long[]{1000, 1100, 1200, 1300}, planned);
+        assertArrayEquals(new int[]{ON, OFF, ON, OFF}, states);
+        assertFalse(clock.advance());
+    }
+
+    @Test
+    public void drift_isMeasuredFromSendsAndConfirmationsInOrder() throws Exception {
+        BleSceneClock clock = new BleSceneClock(16);
+        clock.start(blink(), 2, 0);
+        clock.advance(); // planned at 0
+        clock.advance(); // planned at 100
+        // the first Peripheral's writes left late, behind the queue
+        clock.onSent(0, 30);
+        clock.onSent(0, 110);
+        clock.onSent(1, 5);
+        assertEquals(3, clock.getSendDrift().getCount());
+        assertEquals(30, clock.getSendDrift().getMax());
+        assertEquals(5, clock.getSendDrift().getMin());
+
+        assertFalse(clock.isConfirmed(0));
+        clock.onConfirmed(0, 60);
+        clock.onConfirmed(0, 150);
+        assertTrue(clock.isConfirmed(0));
+        assertFalse(clock.isConfirmed(1));
+        assertEquals(50, clock.getConfirmDrift().getMin());
+        assertEquals(60, clock.getConfirmDrift().getMax());
+        assertEquals(2, clock.getConfirmDrift().getCount());
+
+        // a confirmation no step is waiting for isn't counted
+        clock.onConfirmed(0, 400);
+        assertEquals(2, clock.getConfirmDrift().getCount());
+    }
+
+    @Test
+    public void restart_forgetsStepsOfTheLastScene() throws Exception {
+        BleSceneClock clock = new BleSceneClock(16);
+        clock.start(blink(), 1, 0);
+        clock.advance();
+        clock.stop();
+        assertFalse(clock.isPlaying());
+        clock.start(blink(), 1, 500);
+        assertTrue(clock.isConfirmed(0));
+        assertEquals(0, clock.getSendDrift().getCount());
+        assertEquals(500, clock.getPlannedTime());
+
+        clock.start(new BleScene().compile(), 1, 0);
+        assertFalse(clock.isPlaying());
+    }
+}
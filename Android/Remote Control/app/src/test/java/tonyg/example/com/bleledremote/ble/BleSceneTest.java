@@ -0,0 +1,86 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for scene compilation
+ */
+public class BleSceneTest {
+
+    @Test
+    public void compile_sortsStepsAndDropsRedundantOnes() throws Exception {
+        BleScene.Schedule schedule = new BleScene()
+                .addStep(BlePeripheral.LED_STATE_OFF, 500)
+                .addStep(BlePeripheral.LED_STATE_ON, 0)
+                .addStep(BlePeripheral.LED_STATE_ON, 250) // already on
+                .addStep(BlePeripheral.LED_STATE_ON, 1000)
+                .setRepeatCount(3)
+                .compile();
+
+        assertEquals(3, schedule.getStepCount());
+        assertEquals(0, schedule.getOffset(0));
+        assertEquals(BlePeripheral.LED_STATE_ON, schedule.getState(0));
+        assertEquals(500, schedule.getOffset(1));
+        assertEquals(BlePeripheral.LED_STATE_OFF, schedule.getState(1));
+        assertEquals(1000, schedule.getOffset(2));
+        // one step interval past the last step
+        assertEquals(1500, schedule.getDuration());
+        assertEquals(3, schedule.getRepeatCount());
+    }
+
+    @Test
+    public void compile_lastStepAtSameOffsetWins() throws Exception {
+        BleScene.Schedule schedule = new BleScene()
+                .addStep(BlePeripheral.LED_STATE_ON, 0)
+                .addStep(BlePeripheral.LED_STATE_OFF, 100)
+                .addStep(BlePeripheral.LED_STATE_ON, 100)
+                .setDuration(400)
+                .compile();
+
+        assertEquals(1, schedule.getStepCount());
+        assertEquals(400, schedule.getDuration());
+    }
+
+    @Test
+    public void compile_loneStepEndsAsFarFromTheEnd() throws Exception {
+        BleScene.Schedule schedule = new BleScene()
+                .addStep(BlePeripheral.LED_STATE_ON, 200)
+                .setRepeatCount(2)
+                .compile();
+        assertEquals(400, schedule.getDuration());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void compile_rejectsRepeatingPassEndingAtLastStep() throws Exception {
+        new BleScene()
+                .addStep(BlePeripheral.LED_STATE_ON, 0)
+                .addStep(BlePeripheral.LED_STATE_OFF, 500)
+                .setDuration(500)
+                .setRepeatCount(2)
+                .compile();
+    }
+
+    @Test
+    public void compile_singlePassMayEndAtLastStep() throws Exception {
+        BleScene.Schedule schedule = new BleScene()
+                .addStep(BlePeripheral.LED_STATE_ON, 0)
+                .addStep(BlePeripheral.LED_STATE_OFF, 500)
+                .setDuration(100)
+                .compile();
+        assertEquals(500, schedule.getDuration());
+    }
+
+    @Test
+    public void sampleStats_reportPercentiles() throws Exception {
+        BleSampleStats stats = new BleSampleStats(100);
+        for (int i = 1; i <= 100; i++) {
+            stats.add(i);
+        }
+        assertEquals(50, stats.getPercentile(50));
+        assertEquals(95, stats.getPercentile(95));
+        assertEquals(100, stats.getMax());
+        assertEquals(50.5, stats.getMean(), 0.001);
+    }
+}
@@ -0,0 +1,121 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the post-connect setup steps and the readiness barrier
+ */
+public class BleSetupPipelineTest {
+    private final List<Integer> mStarted = new ArrayList<Integer>();
+    private final List<Integer> mReady = new ArrayList<Integer>();
+    private boolean mSkipPriority = false;
+    private BleSetupPipeline mPipeline;
+
+    @Before
+    public void setUp() throws Exception {
+        mPipeline = new BleSetupPipeline(new BleSetupPipeline.StepRunner() {
+            @Override
+            public boolean startStep(int step) {
+                if (mSkipPriority && step == BleSetupPipeline.STEP_CONNECTION_PRIORITY) {
+                    return false;
+                }
+                mStarted.add(step);
+                return true;
+            }
+        });
+        mPipeline.setOnReadyListener(new BleSetupPipeline.OnReadyListener() {
+            @Override
+            public void onSetupReady(BleSetupPipeline pipeline, int failedSteps) {
+                mReady.add(failedSteps);
+            }
+        });
+    }
+
+    @Test
+    public void steps_runBackToBackUntilReady() throws Exception {
+        mPipeline.start(100);
+        // one GATT operation at a time
+        assertEquals(1, mStarted.size());
+        assertEquals(BleSetupPipeline.STEP_REQUEST_MTU, mPipeline.getCurrentStep());
+        assertTrue(mPipeline.isRunning());
+
+        long now = 100;
+        for (int step : BleSetupPipeline.DEFAULT_STEPS) {
+            assertFalse(mPipeline.isReady());
+            now += 20;
+            assertTrue(mPipeline.onStepComplete(step, true, now));
+        }
+        assertEquals(4, mStarted.size());
+        assertTrue(mPipeline.isReady());
+        assertFalse(mPipeline.isRunning());
+        // no longer than the operations themselves
+        assertEquals(80, mPipeline.getLastSetupTime());
+        assertEquals(20, mPipeline.getStepTimes(BleSetupPipeline.STEP_READ_STATE).getMax());
+        assertEquals(1, mReady.size());
+        assertEquals(0, (int) mReady.get(0));
+    }
+
+    @Test
+    public void skippedAndFailedSteps_stillReachTheBarrier() throws Exception {
+        mSkipPriority = true;
+        mPipeline.start(0);
+        mPipeline.onStepComplete(BleSetupPipeline.STEP_REQUEST_MTU, false, 10);
+        // the connection priority doesn't apply, so notifications go straight out
+        assertEquals(BleSetupPipeline.STEP_ENABLE_NOTIFICATIONS, mPipeline.getCurrentStep());
+        mPipeline.onStepComplete(BleSetupPipeline.STEP_ENABLE_NOTIFICATIONS, true, 20);
+        mPipeline.onStepComplete(BleSetupPipeline.STEP_READ_STATE, true, 30);
+
+        assertTrue(mPipeline.isReady());
+        assertEquals(1, (int) mReady.get(0));
+        assertEquals(1, mPipeline.getStepsSkipped());
+        assertEquals(1, mPipeline.getStepsFailed());
+    }
+
+    @Test
+    public void staleCompletions_areIgnored() throws Exception {
+        mPipeline.start(0);
+        assertFalse(mPipeline.onStepComplete(BleSetupPipeline.STEP_READ_STATE, true, 5));
+        mPipeline.cancel();
+        assertFalse(mPipeline.onStepComplete(BleSetupPipeline.STEP_REQUEST_MTU, true, 10));
+        assertFalse(mPipeline.isRunning());
+        assertFalse(mPipeline.isReady());
+        assertEquals(1, mPipeline.getSetupsCancelled());
+        assertTrue(mReady.isEmpty());
+    }
+
+    @Test
+    public void awaitReady_releasedByTheLastStep() throws Exception {
+        mPipeline.start(0);
+        assertFalse(mPipeline.awaitReady(10, TimeUnit.MILLISECONDS));
+
+        final boolean[] released = new boolean[1];
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    released[0] = mPipeline.awaitReady(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        waiter.start();
+        for (int step : BleSetupPipeline.DEFAULT_STEPS) {
+            mPipeline.onStepComplete(step, true, 0);
+        }
+        waiter.join(5000);
+        assertTrue(released[0]);
+
+        // a dropped connection closes the barrier until the next setup passes it
+        mPipeline.cancel();
+        assertFalse(mPipeline.isReady());
+        assertFalse(mPipeline.awaitReady(10, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,97 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for session timelines and the per-model startup profile
+ */
+public class BleStartupProfilerTest {
+    private static final long MS = 1000000; // nanoseconds
+
+    /**
+     * A finished session where discovering services takes the given time and every other phase takes 10ms
+     */
+    private static BleSessionTimeline session(long start, long discoverServices) {
+        BleSessionTimeline timeline = new BleSessionTimeline(start);
+        long now = start;
+        for (int phase = 0; phase < BleSessionTimeline.PHASE_COUNT; phase++) {
+            now += phase == BleSessionTimeline.PHASE_DISCOVER_SERVICES ? discoverServices : 10 * MS;
+            timeline.stamp(phase, now);
+        }
+        timeline.finish(now);
+        return timeline;
+    }
+
+    @Test
+    public void timeline_skippedPhaseCountsTowardsTheNext() throws Exception {
+        BleSessionTimeline timeline = new BleSessionTimeline(100 * MS);
+        timeline.stamp(BleSessionTimeline.PHASE_ADAPTER_CHECK, 101 * MS);
+        timeline.stamp(BleSessionTimeline.PHASE_SCAN, 400 * MS);
+        // no wait for a connect slot
+        timeline.stamp(BleSessionTimeline.PHASE_CONNECT_GATT, 405 * MS);
+
+        assertEquals(1 * MS, timeline.getDuration(BleSessionTimeline.PHASE_ADAPTER_CHECK));
+        assertEquals(299 * MS, timeline.getDuration(BleSessionTimeline.PHASE_SCAN));
+        assertEquals(-1, timeline.getDuration(BleSessionTimeline.PHASE_CONNECT_QUEUE));
+        assertEquals(5 * MS, timeline.getDuration(BleSessionTimeline.PHASE_CONNECT_GATT));
+        assertEquals(305 * MS, timeline.getTotal());
+        assertFalse(timeline.isComplete());
+        assertTrue(timeline.finish(420 * MS));
+        assertEquals(320 * MS, timeline.getTotal());
+        assertTrue(timeline.isComplete());
+
+        // late or repeated stamps don't rewrite the timeline
+        assertFalse(timeline.stamp(BleSessionTimeline.PHASE_SCAN, 500 * MS));
+        assertFalse(timeline.stamp(BleSessionTimeline.PHASE_CONNECT_GATT, 500 * MS));
+        assertFalse(timeline.stamp(BleSessionTimeline.PHASE_LINK, 500 * MS));
+        assertFalse(timeline.finish(500 * MS));
+        assertEquals(299 * MS, timeline.getDuration(BleSessionTimeline.PHASE_SCAN));
+    }
+
+    @Test
+    public void timeline_copyContinuesSeparately() throws Exception {
+        BleSessionTimeline scan = new BleSessionTimeline(0);
+        scan.stamp(BleSessionTimeline.PHASE_ADAPTER_CHECK, 1 * MS);
+        BleSessionTimeline first = scan.copy();
+        BleSessionTimeline second = scan.copy();
+        first.stamp(BleSessionTimeline.PHASE_SCAN, 50 * MS);
+        second.stamp(BleSessionTimeline.PHASE_SCAN, 80 * MS);
+        assertEquals(49 * MS, first.getDuration(BleSessionTimeline.PHASE_SCAN));
+        assertEquals(79 * MS, second.getDuration(BleSessionTimeline.PHASE_SCAN));
+        assertEquals(-1, scan.getDuration(BleSessionTimeline.PHASE_SCAN));
+    }
+
+    @Test
+    public void profiler_findsDominantPhasePerModel() throws Exception {
+        BleStartupProfiler profiler = new BleStartupProfiler();
+        for (int i = 0; i < 5; i++) {
+            profiler.addSession("Pixel", session(i * 1000 * MS, 400 * MS));
+            profiler.addSession("Nexus 5", session(i * 1000 * MS, 5 * MS));
+        }
+        // one slow outlier doesn't move the median
+        profiler.addSession("Nexus 5", session(0, 2000 * MS));
+
+        BleStartupProfiler.ModelProfile pixel = profiler.getProfile("Pixel");
+        assertEquals(BleSessionTimeline.PHASE_DISCOVER_SERVICES, pixel.getDominantPhase());
+        assertEquals(400000, pixel.getPhaseStats(BleSessionTimeline.PHASE_DISCOVER_SERVICES).getPercentile(50));
+        assertEquals(510000, pixel.getTotalStats().getPercentile(50));
+
+        BleStartupProfiler.ModelProfile nexus = profiler.getProfile("Nexus 5");
+        assertNotEquals(BleSessionTimeline.PHASE_DISCOVER_SERVICES, nexus.getDominantPhase());
+        assertEquals(6, nexus.getTotalStats().getCount());
+        assertEquals(2, profiler.getModels().size());
+        assertEquals(11, profiler.getSessionsAdded());
+    }
+
+    @Test
+    public void profiler_turnsAwayIncompleteSessions() throws Exception {
+        BleStartupProfiler profiler = new BleStartupProfiler();
+        BleSessionTimeline timeline = new BleSessionTimeline(0);
+        timeline.stamp(BleSessionTimeline.PHASE_SCAN, 100 * MS);
+        assertFalse(profiler.addSession("Pixel", timeline));
+        assertNull(profiler.getProfile("Pixel"));
+        assertEquals(1, profiler.getSessionsIncomplete());
+    }
+}
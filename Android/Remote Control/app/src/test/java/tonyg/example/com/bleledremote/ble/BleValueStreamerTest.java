@@ -0,0 +1,74 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the brightness value streamer
+ */
+public class BleValueStreamerTest {
+
+    @Test
+    public void firstValue_isSentImmediately() throws Exception {
+        BleValueStreamer streamer = new BleValueStreamer(4, 50);
+        streamer.offer(100, 0);
+        assertEquals(100, streamer.poll(0));
+        assertEquals(-1, streamer.getDelayUntilNextPoll(0));
+    }
+
+    @Test
+    public void sends_areRateLimited() throws Exception {
+        BleValueStreamer streamer = new BleValueStreamer(4, 50);
+        streamer.offer(100, 0);
+        streamer.poll(0);
+        streamer.offer(150, 10);
+        assertEquals(BleValueStreamer.NO_VALUE, streamer.poll(10));
+        assertEquals(40, streamer.getDelayUntilNextPoll(10));
+        streamer.offer(200, 20);
+        assertEquals(200, streamer.poll(50));
+    }
+
+    @Test
+    public void smallChanges_waitUntilInputSettles() throws Exception {
+        BleValueStreamer streamer = new BleValueStreamer(4, 50);
+        streamer.offer(100, 0);
+        streamer.poll(0);
+        streamer.offer(102, 100);
+        assertEquals(BleValueStreamer.NO_VALUE, streamer.poll(100));
+        assertEquals(50, streamer.getDelayUntilNextPoll(100));
+        assertEquals(102, streamer.poll(150));
+    }
+
+    @Test
+    public void finalValue_isAlwaysDelivered() throws Exception {
+        BleValueStreamer streamer = new BleValueStreamer(4, 50);
+        streamer.offer(100, 0);
+        streamer.poll(0);
+        streamer.offer(101, 100);
+        streamer.finish();
+        assertEquals(101, streamer.poll(100));
+    }
+
+    @Test
+    public void dragging_isThinnedOut() throws Exception {
+        BleValueStreamer streamer = new BleValueStreamer(4, 50);
+        int last = BleValueStreamer.NO_VALUE;
+        // a slider dragged from 0 to 255 over one second, sampled every 4ms
+        for (int t = 0; t <= 1000; t += 4) {
+            streamer.offer(t * 255 / 1000, t);
+            int value = streamer.poll(t);
+            if (value != BleValueStreamer.NO_VALUE) {
+                last = value;
+            }
+        }
+        streamer.finish();
+        int value = streamer.poll(1100);
+        if (value != BleValueStreamer.NO_VALUE) {
+            last = value;
+        }
+        assertEquals(255, last);
+        assertTrue(streamer.getValuesSent() <= 1000 / 50 + 2);
+        assertTrue(streamer.getValuesOffered() > 200);
+    }
+}
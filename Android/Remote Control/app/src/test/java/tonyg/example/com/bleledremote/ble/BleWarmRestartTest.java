@@ -0,0 +1,104 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for remembering remotes across adapter toggles and timing the restart
+ */
+public class BleWarmRestartTest {
+    private static final String A = "00:00:00:00:00:0A";
+    private static final String B = "00:00:00:00:00:0B";
+    private static final String C = "00:00:00:00:00:0C";
+
+    @Test
+    public void toggle_reconnectsInOrderAndTimesUntilAllReady() throws Exception {
+        BleWarmRestart restart = new BleWarmRestart();
+        restart.onAdapterOff(Arrays.asList(A, B), 1000);
+        assertTrue(restart.isPaused());
+        // a repeated off doesn't forget anyone
+        restart.onAdapterOff(Collections.<String>emptyList(), 1500);
+
+        List<String> addresses = restart.onAdapterOn(4000);
+        assertEquals(Arrays.asList(A, B), addresses);
+        assertEquals(3000, restart.getLastOffTime());
+        assertTrue(restart.isRestarting());
+
+        assertFalse(restart.onReady(A, 4300));
+        assertEquals(300, restart.getLastTimeToFirstReady());
+        assertTrue(restart.onReady(B, 4500));
+        assertEquals(500, restart.getLastTimeToAllReady());
+        assertFalse(restart.isRestarting());
+        // later connections aren't part of the restart
+        assertFalse(restart.onReady(C, 9000));
+        assertEquals(1, restart.getTimesToReady().getCount());
+    }
+
+    @Test
+    public void failedResume_doesNotHoldTheRestartOpen() throws Exception {
+        BleWarmRestart restart = new BleWarmRestart();
+        restart.onAdapterOff(Arrays.asList(A, B), 0);
+        restart.onAdapterOn(100);
+        assertFalse(restart.onReady(A, 400));
+        assertTrue(restart.onResumeFailed(B));
+        assertEquals(300, restart.getLastTimeToAllReady());
+        assertEquals(1, restart.getResumesFailed());
+    }
+
+    @Test
+    public void everyResumeFailed_finishesTheRestartUntimed() throws Exception {
+        BleWarmRestart restart = new BleWarmRestart();
+        restart.onAdapterOff(Arrays.asList(A, B), 0);
+        restart.onAdapterOn(100);
+        assertFalse(restart.onResumeFailed(A));
+        assertTrue(restart.onResumeFailed(B));
+        assertFalse(restart.isRestarting());
+        assertEquals(-1, restart.getLastTimeToAllReady());
+        assertEquals(0, restart.getTimesToReady().getCount());
+        // a remote the scan brings up later isn't part of the restart
+        assertFalse(restart.onReady(C, 5000));
+    }
+
+    @Test
+    public void disconnectBeforeAdapterOff_isRemembered() throws Exception {
+        BleWarmRestart restart = new BleWarmRestart();
+        // the adapter is turning off; the first disconnect pauses with everyone still connected
+        restart.onAdapterOff(Arrays.asList(A, B), 1000);
+        // releasing each remote as its disconnect arrives doesn't forget it
+        assertFalse(restart.onResumeFailed(A));
+        assertFalse(restart.onResumeFailed(B));
+        // STATE_OFF comes once nothing is connected
+        restart.onAdapterOff(Collections.<String>emptyList(), 1200);
+        assertEquals(0, restart.getResumesFailed());
+        assertEquals(Arrays.asList(A, B), restart.onAdapterOn(3000));
+        assertEquals(2000, restart.getLastOffTime());
+    }
+
+    @Test
+    public void nothingRemembered_timesUntilFirstScannedRemoteIsReady() throws Exception {
+        BleWarmRestart restart = new BleWarmRestart();
+        restart.onAdapterOff(Collections.<String>emptyList(), 0);
+        assertTrue(restart.onAdapterOn(100).isEmpty());
+        assertTrue(restart.onReady(C, 2100));
+        assertEquals(2000, restart.getLastTimeToAllReady());
+    }
+
+    @Test
+    public void offDuringRestart_keepsRemotesStillWaiting() throws Exception {
+        BleWarmRestart restart = new BleWarmRestart();
+        restart.onAdapterOff(Arrays.asList(A, B), 0);
+        restart.onAdapterOn(100);
+        restart.onReady(A, 200);
+        // B never came back before the radio went off again
+        restart.onAdapterOff(Collections.singletonList(A), 300);
+        assertEquals(1, restart.getRestartsInterrupted());
+        List<String> addresses = restart.onAdapterOn(500);
+        assertEquals(Arrays.asList(A, B), addresses);
+        assertEquals(4, restart.getResumes());
+    }
+}
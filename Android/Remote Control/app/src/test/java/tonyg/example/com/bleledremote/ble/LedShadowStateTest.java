@@ -0,0 +1,139 @@
+package tonyg.example.com.bleledremote.ble;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the optimistic LED shadow state
+ */
+public class LedShadowStateTest {
+    private static final int ON = BlePeripheral.LED_STATE_ON;
+    private static final int OFF = BlePeripheral.LED_STATE_OFF;
+
+    private int mRollbackState = LedShadowState.STATE_UNKNOWN;
+    private long mRollbackVersion = -1;
+
+    private final LedShadowState.OnRollbackListener mListener = new LedShadowState.OnRollbackListener() {
+        @Override
+        public void onLedStateRolledBack(int state, long version) {
+            mRollbackState = state;
+            mRollbackVersion = version;
+        }
+    };
+
+    /**
+     * @return a shadow the Peripheral reported OFF to
+     */
+    private LedShadowState createOffShadow() {
+        LedShadowState shadow = new LedShadowState();
+        shadow.setOnRollbackListener(mListener);
+        assertEquals(LedShadowState.STATE_UNKNOWN, shadow.onReportedState(OFF));
+        assertTrue(shadow.isReconciled());
+        return shadow;
+    }
+
+    @Test
+    public void optimisticUpdate_isDesiredBeforeItIsConfirmed() throws Exception {
+        LedShadowState shadow = createOffShadow();
+        assertTrue(shadow.setDesiredState(ON));
+        assertEquals(ON, shadow.getDesiredState());
+        assertEquals(OFF, shadow.getReportedState());
+        assertTrue(shadow.isCommandInFlight());
+        assertFalse(shadow.isReconciled());
+        // asking again changes nothing and sends nothing
+        assertFalse(shadow.setDesiredState(ON));
+        assertEquals(1, shadow.getVersion());
+    }
+
+    @Test
+    public void confirmation_reconciles() throws Exception {
+        LedShadowState shadow = createOffShadow();
+        shadow.setDesiredState(ON);
+        assertEquals(LedShadowState.STATE_UNKNOWN, shadow.onReportedState(ON));
+        assertEquals(ON, shadow.getReportedState());
+        assertFalse(shadow.isCommandInFlight());
+        assertTrue(shadow.isReconciled());
+    }
+
+    @Test
+    public void changeWhileInFlight_isSentOnceConfirmed() throws Exception {
+        LedShadowState shadow = createOffShadow();
+        assertTrue(shadow.setDesiredState(ON));
+        // only one command in flight; the latest desired state waits
+        assertFalse(shadow.setDesiredState(OFF));
+        assertFalse(shadow.setDesiredState(ON));
+        assertFalse(shadow.setDesiredState(OFF));
+        // the report lags behind the desired state, so the latest one goes out next
+        assertEquals(OFF, shadow.onReportedState(ON));
+        assertTrue(shadow.isCommandInFlight());
+        assertEquals(LedShadowState.STATE_UNKNOWN, shadow.onReportedState(OFF));
+        assertTrue(shadow.isReconciled());
+    }
+
+    @Test
+    public void staleReport_doesNotOverwriteDesiredState() throws Exception {
+        LedShadowState shadow = createOffShadow();
+        shadow.setDesiredState(ON);
+        // the Peripheral reports the state from before the command
+        assertEquals(ON, shadow.onReportedState(OFF));
+        assertEquals(ON, shadow.getDesiredState());
+        assertEquals(OFF, shadow.getReportedState());
+        assertTrue(shadow.isCommandInFlight());
+    }
+
+    @Test
+    public void notReconciling_doesNotResendWhenReportLags() throws Exception {
+        LedShadowState shadow = createOffShadow();
+        shadow.setReconciling(false);
+        shadow.forceDesiredState(ON);
+        shadow.forceDesiredState(OFF);
+        shadow.forceDesiredState(ON);
+        // a scene sent every state itself; the lagging reports are only recorded
+        assertEquals(LedShadowState.STATE_UNKNOWN, shadow.onReportedState(ON));
+        assertEquals(LedShadowState.STATE_UNKNOWN, shadow.onReportedState(OFF));
+        assertEquals(OFF, shadow.getReportedState());
+        assertFalse(shadow.isCommandInFlight());
+        shadow.setReconciling(true);
+        assertEquals(ON, shadow.onReportedState(OFF));
+    }
+
+    @Test
+    public void failure_rollsBackToReportedState() throws Exception {
+        LedShadowState shadow = createOffShadow();
+        shadow.setDesiredState(ON);
+        shadow.onCommandFailed();
+        assertEquals(OFF, shadow.getDesiredState());
+        assertTrue(shadow.isReconciled());
+        assertEquals(OFF, mRollbackState);
+        assertEquals(2, mRollbackVersion);
+
+        // nothing to undo, so nobody is told
+        mRollbackVersion = -1;
+        shadow.onCommandFailed();
+        assertEquals(-1, mRollbackVersion);
+    }
+
+    @Test
+    public void version_growsWithEveryChangeOfDesiredState() throws Exception {
+        LedShadowState shadow = createOffShadow();
+        long version = shadow.getVersion();
+        shadow.setDesiredState(ON);
+        assertTrue(shadow.getVersion() > version);
+        version = shadow.getVersion();
+        shadow.onCommandFailed();
+        // the rollback is newer than the change it undid
+        assertTrue(shadow.getVersion() > version);
+        version = shadow.getVersion();
+        shadow.onExternalState(ON);
+        assertTrue(shadow.getVersion() > version);
+        assertEquals(ON, shadow.getReportedState());
+        version = shadow.getVersion();
+        // a confirmation alone isn't a change of desired state
+        shadow.onReportedState(ON);
+        assertEquals(version, shadow.getVersion());
+        shadow.forceDesiredState(OFF);
+        assertEquals(version + 1, shadow.getVersion());
+        assertTrue(shadow.isCommandInFlight());
+    }
+}
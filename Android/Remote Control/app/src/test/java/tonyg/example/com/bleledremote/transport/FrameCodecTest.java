@@ -0,0 +1,56 @@
+package tonyg.example.com.bleledremote.transport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for stream framing
+ */
+public class FrameCodecTest {
+
+    private static class Collector implements FrameCodec.OnFrameDecodedListener {
+        final List<byte[]> mFrames = new ArrayList<byte[]>();
+
+        @Override
+        public void onFrameDecoded(byte[] frame) {
+            mFrames.add(frame);
+        }
+    }
+
+    @Test
+    public void frames_roundTripInAnyChunkSize() throws Exception {
+        byte[][] frames = {{2, 2}, {1, 2}, {7, 2, (byte) 200}, {}, {4, 2, 0, 1, 2, 3, 4, 5}};
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            stream.write(FrameCodec.encode(frame));
+        }
+        byte[] bytes = stream.toByteArray();
+
+        for (int chunk = 1; chunk <= bytes.length; chunk++) {
+            FrameCodec codec = new FrameCodec();
+            Collector collector = new Collector();
+            for (int offset = 0; offset < bytes.length; offset += chunk) {
+                codec.decode(bytes, offset, Math.min(chunk, bytes.length - offset), collector);
+            }
+            assertEquals(frames.length, collector.mFrames.size());
+            for (int i = 0; i < frames.length; i++) {
+                assertArrayEquals(frames[i], collector.mFrames.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void loopbackPeripheral_confirmsLedCommands() throws Exception {
+        LoopbackPeripheral peripheral = new LoopbackPeripheral();
+        byte[] reply = peripheral.onFrame(new byte[] {2, 2});
+        assertArrayEquals(new byte[] {1, 1}, reply);
+        assertNull(peripheral.onFrame(new byte[] {7, 2, 10}));
+        assertEquals(10, peripheral.getBrightness());
+        assertArrayEquals(new byte[] {2, 1}, peripheral.onFrame(new byte[] {1, 2}));
+    }
+}
@@ -0,0 +1,122 @@
+package tonyg.example.com.bleledremote.transport;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import tonyg.example.com.bleledremote.ble.BleCaptureLog;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays a recorded Peripheral against the transport callback
+ */
+public class ReplayTransportTest {
+
+    private static class Recorder implements TransportCallback {
+        final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+        final BlockingQueue<Long> mTimes = new LinkedBlockingQueue<Long>();
+
+        private void add(String event) {
+            mTimes.add(System.nanoTime());
+            mEvents.add(event);
+        }
+
+        @Override
+        public void onConnected(Transport transport) {
+            add("connected");
+        }
+
+        @Override
+        public void onDisconnected(Transport transport) {
+            add("disconnected");
+        }
+
+        @Override
+        public void onFrameWritten(Transport transport, boolean success) {
+            add("written " + success);
+        }
+
+        @Override
+        public void onFrameReceived(Transport transport, byte[] frame) {
+            add("received " + frame[0]);
+        }
+
+        String next() throws InterruptedException {
+            return mEvents.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Two LED commands, each written in 10ms and confirmed 100ms after the write, then a disconnect
+     */
+    private static List<BleCaptureLog.Record> capture() {
+        List<BleCaptureLog.Record> records = new ArrayList<BleCaptureLog.Record>();
+        records.add(new BleCaptureLog.Record(BleCaptureLog.TYPE_CONNECTION_STATE, 2, new byte[0], 0));
+        records.add(new BleCaptureLog.Record(BleCaptureLog.TYPE_WRITE, 0, new byte[] {2, 2}, 1000000));
+        records.add(new BleCaptureLog.Record(BleCaptureLog.TYPE_WRITE_COMPLETE, 0, new byte[0], 1010000));
+        records.add(new BleCaptureLog.Record(BleCaptureLog.TYPE_CHANGED, 0, new byte[] {1, 1}, 1099000));
+        records.add(new BleCaptureLog.Record(BleCaptureLog.TYPE_READ, 0, new byte[] {1, 1}, 1100000));
+        records.add(new BleCaptureLog.Record(BleCaptureLog.TYPE_WRITE, 0, new byte[] {1, 2}, 3000000));
+        records.add(new BleCaptureLog.Record(BleCaptureLog.TYPE_WRITE_COMPLETE, 133, new byte[0], 3010000));
+        records.add(new BleCaptureLog.Record(BleCaptureLog.TYPE_READ, 0, new byte[] {2, 1}, 3100000));
+        records.add(new BleCaptureLog.Record(BleCaptureLog.TYPE_CONNECTION_STATE, 0, new byte[0], 3200000));
+        return records;
+    }
+
+    @Test
+    public void replay_answersEachWriteWithRecordedLatency() throws Exception {
+        ReplayTransport transport = new ReplayTransport(capture(), 1);
+        Recorder recorder = new Recorder();
+        transport.setTransportCallback(recorder);
+        transport.connect();
+        assertEquals("connected", recorder.next());
+
+        long writtenAt = System.nanoTime();
+        assertTrue(transport.writeFrame(new byte[] {2, 2}));
+        assertEquals("written true", recorder.next());
+        assertEquals("received 1", recorder.next());
+        recorder.mTimes.poll();
+        recorder.mTimes.poll();
+        long confirmedAt = recorder.mTimes.poll();
+        long latency = TimeUnit.NANOSECONDS.toMillis(confirmedAt - writtenAt);
+        assertTrue("latency " + latency, latency >= 90 && latency < 1000);
+
+        // the recorded write failed; the mismatched frame is still answered
+        assertTrue(transport.writeFrame(new byte[] {7, 2, 100}));
+        assertEquals("written false", recorder.next());
+        assertEquals("received 2", recorder.next());
+        assertEquals("disconnected", recorder.next());
+        assertFalse(transport.isConnected());
+        assertEquals(1, transport.getWritesMatched());
+        assertEquals(1, transport.getWritesMismatched());
+        transport.shutdown();
+    }
+
+    @Test
+    public void replay_runsFasterWhenAccelerated() throws Exception {
+        ReplayTransport transport = new ReplayTransport(capture(), 100);
+        Recorder recorder = new Recorder();
+        transport.setTransportCallback(recorder);
+        transport.connect();
+        assertEquals("connected", recorder.next());
+
+        long startedAt = System.nanoTime();
+        transport.writeFrame(new byte[] {2, 2});
+        assertEquals("written true", recorder.next());
+        assertEquals("received 1", recorder.next());
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        assertTrue("elapsed " + elapsed, elapsed < 90);
+
+        // the rest of the capture plays back just as fast
+        transport.writeFrame(new byte[] {1, 2});
+        assertEquals("written false", recorder.next());
+        assertEquals("received 2", recorder.next());
+        assertEquals("disconnected", recorder.next());
+        transport.shutdown();
+    }
+}
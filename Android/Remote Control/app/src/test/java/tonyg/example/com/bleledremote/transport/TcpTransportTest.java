@@ -0,0 +1,112 @@
+package tonyg.example.com.bleledremote.transport;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the TCP transport against the emulated firmware on a local socket
+ */
+public class TcpTransportTest {
+
+    /**
+     * Serve one connection, answering frames like the firmware would
+     */
+    private static Thread startEmulator(final ServerSocket server) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final LoopbackPeripheral peripheral = new LoopbackPeripheral();
+                try {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    final OutputStream out = socket.getOutputStream();
+                    InputStream in = socket.getInputStream();
+                    FrameCodec codec = new FrameCodec();
+                    byte[] buffer = new byte[512];
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        codec.decode(buffer, 0, read, new FrameCodec.OnFrameDecodedListener() {
+                            @Override
+                            public void onFrameDecoded(byte[] frame) {
+                                byte[] reply = peripheral.onFrame(frame);
+                                if (reply != null) {
+                                    try {
+                                        out.write(FrameCodec.encode(reply));
+                                    } catch (Exception e) {
+                                        // client went away
+                                    }
+                                }
+                            }
+                        });
+                    }
+                    socket.close();
+                } catch (Exception e) {
+                    // server closed
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void commands_areConfirmedOverTcp() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        startEmulator(server);
+
+        final CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        final BlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+        final BlockingQueue<Boolean> written = new LinkedBlockingQueue<Boolean>();
+
+        TcpTransport transport = new TcpTransport("127.0.0.1", server.getLocalPort());
+        transport.setTransportCallback(new TransportCallback() {
+            @Override
+            public void onConnected(Transport transport) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onDisconnected(Transport transport) {
+                disconnected.countDown();
+            }
+
+            @Override
+            public void onFrameWritten(Transport transport, boolean success) {
+                written.add(success);
+            }
+
+            @Override
+            public void onFrameReceived(Transport transport, byte[] frame) {
+                received.add(frame);
+            }
+        });
+        transport.connect();
+        assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 50; i++) {
+            boolean on = i % 2 == 0;
+            assertTrue(transport.writeFrame(new byte[] {(byte) (on ? 2 : 1), 2}));
+            assertEquals(Boolean.TRUE, written.poll(5, TimeUnit.SECONDS));
+            byte[] reply = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(reply);
+            assertArrayEquals(new byte[] {(byte) (on ? 1 : 2), 1}, reply);
+        }
+
+        transport.disconnect();
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+        assertFalse(transport.isConnected());
+        server.close();
+    }
+}
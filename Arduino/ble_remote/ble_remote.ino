@@ -3,33 +3,61 @@
 static const char* bluetoothDeviceName = "LedRemote";
 
 static const int   characteristicTransmissionLength = 2; 
+static const int   characteristicMaxLength = 20; // fits in one packet at the default MTU
 static const unsigned int bleDataFooterPosition = 1;
 static const unsigned int bleMessageDataPosition = 0;
+static const unsigned int blePayloadPosition = 2;
 
 static const unsigned int bleCommandLedOff = 1; 
 static const unsigned int bleCommandLedOn = 2;
+static const unsigned int bleCommandPatternBegin = 3;
+static const unsigned int bleCommandPatternData = 4;
+static const unsigned int bleCommandPatternPlay = 5;
+static const unsigned int bleCommandPatternStop = 6;
+static const unsigned int bleCommandLedBrightness = 7;
 
 static const unsigned int bleResponseError = 0;
 static const unsigned int bleResponseConfirmation = 1;
 static const unsigned int bleResponseCommand = 2;
+static const unsigned int bleResponsePatternProgress = 3;
+static const unsigned int bleResponsePatternLoaded = 4;
+
+// pattern table.  each step is a LED state and a 16 bit offset in ms
+static const unsigned int maxPatternSteps = 64;
+static const unsigned int patternStepLength = 3;
 
 
 static const byte ledPin = 13;
+static const byte ledPwmPin = 9; // pin 13 can't do PWM, so dimming drives a second LED on a PWM pin
 static const unsigned int ledError = 0;
 static const unsigned int ledOn = 1;
 static const unsigned int ledOff = 2;
 int ledState = ledOff;
+byte ledBrightness = 255; // PWM duty cycle while the LED is on
 
-char bleMessage[characteristicTransmissionLength];
+char bleMessage[characteristicMaxLength];
+unsigned int bleMessageLength = 0; // bytes of bleMessage from the latest write
 const char* uuid;
 bool bleCommandReceived = false;
 
+byte patternStates[maxPatternSteps];
+unsigned int patternOffsets[maxPatternSteps];
+unsigned int patternStepCount = 0;
+unsigned int patternStepsReceived = 0;
+unsigned int patternRepeatCount = 1; // 0 repeats forever
+unsigned int patternDuration = 0; // length of one pass in ms
+bool patternPlaying = false;
+unsigned long patternPassStart = 0;
+unsigned int patternPass = 0;
+unsigned int patternNextStep = 0;
+bool patternLoadedReceived = false;
+
 
 BLEService service("180C");
 BLECharacteristic characteristic(
   "2A56",
   BLEWrite | BLERead | BLENotify,
-  characteristicTransmissionLength
+  characteristicMaxLength
 );
 
 BLEPeripheral blePeripheral;
@@ -37,11 +65,62 @@ BLEPeripheral blePeripheral;
 
 void onCharacteristicWritten(BLECentral& central, 
   BLECharacteristic &characteristic) {
+
+  const unsigned char* value = characteristic.value();
+  unsigned int valueLength = characteristic.valueLength();
+
+  if (valueLength == 0) {
+    return;
+  }
+
+  // pattern chunks arrive back to back, so store them as soon as they arrive
+  unsigned int command = value[bleMessageDataPosition];
+  if (command == bleCommandPatternBegin || command == bleCommandPatternData) {
+    onPatternChunkReceived(value, valueLength);
+    return;
+  }
     
   bleCommandReceived = true;
   uuid = characteristic.uuid();
   
-  strcpy((char*) bleMessage, (const char*) characteristic.value());
+  // commands are binary and may contain zeros, so copy by length
+  bleMessageLength = min(valueLength, (unsigned int)characteristicMaxLength);
+  memcpy(bleMessage, value, bleMessageLength);
+}
+
+// Store part of a pattern upload
+// Begin:  [command, footer, step count, repeat count, duration low, duration high]
+// Data:   [command, footer, first step, (state, offset low, offset high)...]
+void onPatternChunkReceived(const unsigned char* value, unsigned int valueLength) {
+  unsigned int command = value[bleMessageDataPosition];
+  if (command == bleCommandPatternBegin) {
+    // a short header would leave the table half described; wait for a whole one
+    if (valueLength < blePayloadPosition + 4) {
+      return;
+    }
+    patternPlaying = false;
+    patternStepCount = min((unsigned int)value[blePayloadPosition], maxPatternSteps);
+    patternRepeatCount = value[blePayloadPosition + 1];
+    patternDuration = value[blePayloadPosition + 2] | (value[blePayloadPosition + 3] << 8);
+    patternStepsReceived = 0;
+    return;
+  }
+
+  if (valueLength <= blePayloadPosition) {
+    return;
+  }
+  unsigned int step = value[blePayloadPosition];
+  for (unsigned int position = blePayloadPosition + 1; 
+      position + patternStepLength <= valueLength && step < patternStepCount; 
+      position += patternStepLength) {
+    patternStates[step] = value[position];
+    patternOffsets[step] = value[position + 1] | (value[position + 2] << 8);
+    step++;
+    patternStepsReceived++;
+  }
+  if (patternStepsReceived >= patternStepCount) {
+    patternLoadedReceived = true;
+  }
 }
 
 void sendBleCommandConfirmation(int ledState) {
@@ -57,6 +136,75 @@ void sendBleCommandConfirmation(int ledState) {
 }
 
 
+// Drive the LED pins from the LED state and brightness
+void writeLed() {
+  digitalWrite(ledPin, ledState);
+  if (ledState == HIGH) {
+    analogWrite(ledPwmPin, ledBrightness);
+  } else {
+    analogWrite(ledPwmPin, 0);
+  }
+}
+
+
+// Report pattern playback progress
+// [step, footer, pass, led state]
+void sendPatternProgress(unsigned int step, unsigned int pass, byte state) {
+  byte progress[4];
+  progress[bleMessageDataPosition] = (byte)step;
+  progress[bleDataFooterPosition] = (byte)bleResponsePatternProgress;
+  progress[2] = (byte)pass;
+  progress[3] = state;
+  characteristic.setValue((const unsigned char*) progress, 4);
+}
+
+// Report that the whole pattern table has arrived
+void sendPatternLoaded() {
+  byte loaded[characteristicTransmissionLength];
+  loaded[bleMessageDataPosition] = (byte)patternStepCount;
+  loaded[bleDataFooterPosition] = (byte)bleResponsePatternLoaded;
+  characteristic.setValue((const unsigned char*) loaded, characteristicTransmissionLength);
+}
+
+void startPattern() {
+  if (patternStepCount == 0) {
+    return;
+  }
+  patternPlaying = true;
+  patternPass = 0;
+  patternNextStep = 0;
+  patternPassStart = millis();
+}
+
+// Play the next pattern step if it is due.  Timing runs off millis(), so no BLE round trips are involved.
+// One step per loop, so each progress report is sent before the characteristic is overwritten
+void playPattern() {
+  unsigned long elapsed = millis() - patternPassStart;
+
+  if (patternNextStep < patternStepCount && elapsed >= patternOffsets[patternNextStep]) {
+    if (patternStates[patternNextStep] == ledOn) {
+      ledState = HIGH;
+    } else {
+      ledState = LOW;
+    }
+    writeLed();
+    sendPatternProgress(patternNextStep, patternPass, patternStates[patternNextStep]);
+    patternNextStep++;
+  }
+
+  if (patternNextStep >= patternStepCount && elapsed >= patternDuration) {
+    patternPass++;
+    // a zero length pattern can't repeat forever
+    if ((patternRepeatCount != 0 && patternPass >= patternRepeatCount) || patternDuration == 0) {
+      patternPlaying = false;
+      return;
+    }
+    patternNextStep = 0;
+    patternPassStart += patternDuration; // keep passes on the original timeline
+  }
+}
+
+
 // Central connected.  Print MAC address
 void onCentralConnected(BLECentral& central) {
   Serial.print("Central connected: ");
@@ -73,7 +221,9 @@ void setup() {
   Serial.begin(9600);
   while (!Serial) {;}
 
+  pinMode(ledPwmPin, OUTPUT);
   digitalWrite(ledPin, LOW); // start with LED off
+  analogWrite(ledPwmPin, 0);
   
   blePeripheral.setLocalName(bluetoothDeviceName);
   
@@ -104,22 +254,50 @@ void setup() {
 }
 
 void loop() {
+  if (patternLoadedReceived) {
+    patternLoadedReceived = false;
+    Serial.println("Pattern loaded");
+    sendPatternLoaded();
+  }
+
   if (bleCommandReceived) {
     bleCommandReceived = false; // ensures only executed once
   
     // incoming command is one byte
     unsigned int command = bleMessage[bleMessageDataPosition]; 
-    if (command == bleCommandLedOn) {
-      Serial.println("Turning LED on");
-      ledState = HIGH;
+    if (command == bleCommandPatternPlay) {
+      Serial.println("Playing pattern");
+      startPattern();
+    } else if (command == bleCommandLedBrightness) {
+      // brightness arrives as a stream while a slider moves, so it isn't confirmed.
+      // A frame too short to carry the level is ignored, rather than reading a stale byte
+      if (bleMessageLength > blePayloadPosition) {
+        ledBrightness = (byte)bleMessage[blePayloadPosition];
+        writeLed();
+      }
+    } else if (command == bleCommandPatternStop) {
+      Serial.println("Stopping pattern");
+      patternPlaying = false;
       sendBleCommandConfirmation(ledState);
     } else {
-      Serial.println("Turning LED off");
-      ledState = LOW;
-      sendBleCommandConfirmation(ledState);
+      // a direct LED command overrides the pattern
+      patternPlaying = false;
+      if (command == bleCommandLedOn) {
+        Serial.println("Turning LED on");
+        ledState = HIGH;
+        sendBleCommandConfirmation(ledState);
+      } else {
+        Serial.println("Turning LED off");
+        ledState = LOW;
+        sendBleCommandConfirmation(ledState);
+      }
+
+      writeLed();
     }
+  }
 
-    digitalWrite(ledPin, ledState);
+  if (patternPlaying) {
+    playPattern();
   }
 
 }